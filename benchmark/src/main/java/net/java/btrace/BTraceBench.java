@@ -210,6 +210,24 @@ public class BTraceBench {
         }
     }
 
+    // exercises the per-thread counter table with thousands of method ids
+    private static final int SAMPLE_HIT_IDS = 4096;
+    int sampleHitId = 0;
+    long sampleHitManyChecks = 0;
+    long sampleHitManySampled = 0;
+
+    @Warmup(iterations = 5, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+    @Measurement(iterations = 20, time = 100, timeUnit = TimeUnit.MILLISECONDS)
+    @Benchmark
+    @Threads(4)
+    public void testSampleHit10ManyIds() {
+        sampleHitManyChecks++;
+        sampleHitId = (sampleHitId + 1) % SAMPLE_HIT_IDS;
+        if (SamplingSupport.sampleHit(20, sampleHitId + 1)) {
+            sampleHitManySampled++;
+        }
+    }
+
     @org.openjdk.jmh.annotations.TearDown
     public void teardown() {
         System.err.println();
@@ -217,6 +235,10 @@ public class BTraceBench {
             System.err.println("=== testSampleHit10");
             System.err.println("#sampling rate ~ " + (sampleHit10Checks / sampleHit10Sampled));
         }
+        if (sampleHitManyChecks > 0) {
+            System.err.println("=== testSampleHit10ManyIds");
+            System.err.println("#sampling rate ~ " + (sampleHitManyChecks / sampleHitManySampled));
+        }
     }
 
     public static void main(String[] args) throws Exception {
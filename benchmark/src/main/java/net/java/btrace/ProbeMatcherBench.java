@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2014, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package net.java.btrace;
+
+import com.sun.btrace.org.objectweb.asm.ClassWriter;
+import com.sun.btrace.org.objectweb.asm.Opcodes;
+import com.sun.btrace.runtime.ClassFilter;
+import com.sun.btrace.runtime.OnMethod;
+import com.sun.btrace.runtime.ProbeMatcher;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures the probe matching over a synthetic corpus of 50k classes.
+ *
+ * @author Jaroslav Bachorik
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@BenchmarkMode(Mode.AverageTime)
+public class ProbeMatcherBench {
+    private static final int CORPUS_SIZE = 50000;
+    private static final String[] PACKAGES = {
+        "java.util", "java.util.concurrent", "java.io", "javax.swing",
+        "org.apache.commons.lang", "org.springframework.beans", "com.acme.app.service",
+        "com.acme.app.dao", "com.acme.app.web", "net.sf.ehcache"
+    };
+
+    private String[] names;
+    private String[] internalNames;
+    private byte[][] classes;
+    private List<OnMethod> onMethods;
+    private ProbeMatcher matcher;
+    private ClassFilter filter;
+
+    @Setup
+    public void setup() {
+        Random r = new Random(42);
+        names = new String[CORPUS_SIZE];
+        internalNames = new String[CORPUS_SIZE];
+        classes = new byte[CORPUS_SIZE][];
+        for (int i = 0; i < CORPUS_SIZE; i++) {
+            names[i] = PACKAGES[r.nextInt(PACKAGES.length)] + ".Class" + i +
+                       (i % 7 == 0 ? "Service" : (i % 5 == 0 ? "Dao" : ""));
+            internalNames[i] = names[i].replace('.', '/');
+            classes[i] = generateClass(internalNames[i]);
+        }
+
+        onMethods = new ArrayList<>();
+        onMethods.add(onMethod("java.util.HashMap", "put"));
+        onMethods.add(onMethod("com.acme.app.web.Class100", "service"));
+        onMethods.add(onMethod("/com\\.acme\\.app\\.service\\..*Service/", "/.*/"));
+        onMethods.add(onMethod("/com\\.acme\\.app\\.dao\\..*Dao/", "/find.*/"));
+        onMethods.add(onMethod("/javax\\.swing\\..*/", "paint"));
+        onMethods.add(onMethod("/org\\.springframework\\.(beans|context)\\..*/", "/get.*/"));
+        onMethods.add(onMethod("/.*\\.Class1234/", "run"));
+        onMethods.add(onMethod("+java.lang.Runnable", "run"));
+        onMethods.add(onMethod("@javax.annotation.Resource", "/.*/"));
+        matcher = new ProbeMatcher(onMethods);
+        filter = new ClassFilter(matcher);
+    }
+
+    @Warmup(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+    @Measurement(iterations = 10, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+    @Benchmark
+    public int testMatchClassIndexed() {
+        int cnt = 0;
+        for (String name : internalNames) {
+            cnt += matcher.matchClass(null, name, "java/lang/Object", new String[0]).size();
+        }
+        return cnt;
+    }
+
+    @Warmup(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+    @Measurement(iterations = 10, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+    @Benchmark
+    public int testMatchClassBruteForce() {
+        // the original per class/probe pair matching
+        int cnt = 0;
+        for (String name : names) {
+            for (OnMethod om : onMethods) {
+                String probeClazz = om.getClazz();
+                if (probeClazz.charAt(0) == '/') {
+                    if (name.matches(probeClazz.substring(1, probeClazz.length() - 1))) {
+                        cnt++;
+                    }
+                } else if (probeClazz.equals(name)) {
+                    cnt++;
+                }
+            }
+        }
+        return cnt;
+    }
+
+    @Warmup(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+    @Measurement(iterations = 10, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+    @Benchmark
+    public int testClassFilter() {
+        int cnt = 0;
+        for (byte[] clz : classes) {
+            if (filter.isCandidate(clz)) {
+                cnt++;
+            }
+        }
+        return cnt;
+    }
+
+    private static OnMethod onMethod(String clazz, String method) {
+        OnMethod om = new OnMethod();
+        om.setClazz(clazz);
+        om.setMethod(method);
+        return om;
+    }
+
+    private static byte[] generateClass(String internalName) {
+        ClassWriter cw = new ClassWriter(0);
+        cw.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC, internalName, null, "java/lang/Object", null);
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options opt = new OptionsBuilder()
+                .include(".*" + ProbeMatcherBench.class.getSimpleName() + ".*test.*")
+                .build();
+
+        new Runner(opt).run();
+    }
+}
@@ -196,7 +196,7 @@ public class BTraceMBean implements DynamicMBean {
     }
 
     // internals only below this point
-    private static String getBeanName(Class clazz) {
+    static String getBeanName(Class clazz) {
         BTrace info = (BTrace) clazz.getAnnotation(BTrace.class);
         String beanName = info.name();
         if (beanName.isEmpty()) {
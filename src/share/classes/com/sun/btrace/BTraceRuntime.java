@@ -56,9 +56,13 @@ import com.sun.btrace.comm.ExitCommand;
 import com.sun.btrace.comm.MessageCommand;
 import com.sun.btrace.comm.NumberDataCommand;
 import com.sun.btrace.comm.NumberMapDataCommand;
+import com.sun.btrace.comm.ProbeOverheadNotification;
 import com.sun.btrace.comm.StringMapDataCommand;
 import com.sun.btrace.comm.GridDataCommand;
+import com.sun.btrace.comm.FoldedStacksDataCommand;
 import com.sun.btrace.profiling.MethodInvocationProfiler;
+import com.sun.btrace.profiling.StackSamplingProfiler;
+import com.sun.btrace.util.SamplingSupport;
 
 import java.lang.management.GarbageCollectorMXBean;
 
@@ -72,6 +76,7 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectOutputStream;
+import java.io.PrintWriter;
 import java.lang.management.LockInfo;
 import java.lang.management.MemoryMXBean;
 import java.lang.management.MemoryNotificationInfo;
@@ -150,6 +155,14 @@ public final class BTraceRuntime {
 
     // the command FIFO queue related settings
     private static final int CMD_QUEUE_LIMIT_DEFAULT = 100;
+    // period of checking the probe overhead budget (ms)
+    private static final long PROBE_BUDGET_CHECK_PERIOD = 1000;
+    // the probe cost sampling used by the budget check if none was requested
+    private static final int PROBE_BUDGET_COST_SAMPLING = 100;
+    // a probe over the budget is sampled down by this factor ...
+    private static final int PROBE_BUDGET_SAMPLING_STEP = 10;
+    // ... and disabled once it would run less often than this
+    private static final int PROBE_BUDGET_MAX_SAMPLING = 1000;
     public static final String CMD_QUEUE_LIMIT_KEY = "com.sun.btrace.runtime.cmdQueueLimit";
 
     // the command FIFO queue upper limit
@@ -232,6 +245,15 @@ public final class BTraceRuntime {
 
     // map of client event handling methods
     private Map<String, Method> eventHandlers;
+    private volatile ProbeControl probeControl;
+    // per-probe invocation counters
+    private volatile ProbeStats probeStats;
+    // every N-th probe invocation is timed; 0 if disabled
+    private int probeCostSampling;
+    // period of sending the probe statistics to the client; 0 if disabled
+    private long probeStatsPeriod;
+    // max. handler nanoseconds per second of a probe; 0 if unlimited
+    private long probeBudget;
 
     // low memory handlers
     private Map<String, Method> lowMemHandlers;
@@ -239,6 +261,9 @@ public final class BTraceRuntime {
     // timer to run profile provider actions
     private volatile Timer timer;
 
+    // timer to drive the stack sampling profilers
+    private volatile Timer samplingTimer;
+
     // executer to run low memory handlers
     private volatile ExecutorService threadPool;
     // Memory MBean listener
@@ -372,6 +397,9 @@ public final class BTraceRuntime {
                     specQueueManager.clear();
                     BTraceRuntime.leave();
                     disabled = true;
+                    if (!hasLiveRuntimes()) {
+                        SamplingSupport.stop();
+                    }
                 }
             }
         });
@@ -430,6 +458,16 @@ public final class BTraceRuntime {
         return enter(dummy);
     }
 
+    /**
+     * Cheap check inlined at the probe site, before any of the probe
+     * arguments are captured. Returns false when the probe actions
+     * would not run anyway - the runtime has been disabled or the
+     * current thread is already executing a probe.
+     */
+    public static boolean isActive(BTraceRuntime current) {
+        return current != null && !current.disabled && rt.get() == NULL;
+    }
+
     /**
      * Leave method is called by every probed method just
      * before the probe actions end (and actual probed
@@ -455,8 +493,20 @@ public final class BTraceRuntime {
     }
 
     public void handleEvent(EventCommand ecmd) {
+        String event = ecmd.getEvent();
+        if (event.equals(EventCommand.PROBE_STATS)) {
+            sendProbeStats();
+            return;
+        }
+        if (event.startsWith(EventCommand.ENABLE_PROBE)) {
+            setProbeEnabled(event.substring(EventCommand.ENABLE_PROBE.length()), true);
+            return;
+        }
+        if (event.startsWith(EventCommand.DISABLE_PROBE)) {
+            setProbeEnabled(event.substring(EventCommand.DISABLE_PROBE.length()), false);
+            return;
+        }
         if (eventHandlers != null) {
-            String event = ecmd.getEvent();
             Method eventHandler = eventHandlers.get(event);
             if (eventHandler != null) {
                 BTraceRuntime oldRuntime = rt.get();
@@ -473,6 +523,104 @@ public final class BTraceRuntime {
         }
     }
 
+    /**
+     * Switches an {@code @OnMethod} probe on or off without retransforming
+     * the probed classes.
+     * @param probe The probe id or the name of a handler which is not overloaded
+     * @param enabled The new state
+     * @return {@code true} if the probe exists and is not ambiguous
+     */
+    public boolean setProbeEnabled(String probe, boolean enabled) {
+        ProbeControl pc = probeControl;
+        if (pc == null || !pc.hasProbe(probe)) {
+            return false;
+        }
+        pc.setEnabled(probe, enabled);
+        return true;
+    }
+
+    /**
+     * Sets up the per-probe statistics. Must be called before the BTrace
+     * class is initialized.
+     * @param costSampling Every N-th probe invocation is timed; 0 to disable
+     * @param period The period in milliseconds of sending the statistics
+     *               to the client; 0 to disable
+     */
+    public void setProbeStats(int costSampling, long period) {
+        this.probeCostSampling = costSampling;
+        this.probeStatsPeriod = period;
+    }
+
+    /**
+     * Sets the overhead budget of the probes. The handler of a probe taking
+     * more time is sampled down to every 10th, 100th and 1000th invocation
+     * in the subsequent checks and the probe is disabled if it still exceeds
+     * the budget. The client is notified of each step by a {@linkplain ProbeOverheadNotification};
+     * the script keeps running. Enabling the probe again restores its full rate.
+     * <p>
+     * The budget needs the probe cost - if no cost sampling has been set
+     * by {@linkplain #setProbeStats(int, long)} every 100th invocation is timed.
+     * Must be called before the BTrace class is initialized.
+     * @param nanosPerSec The max. time in nanoseconds per second spent
+     *                    in a probe handler; 0 for unlimited
+     */
+    public void setProbeBudget(long nanosPerSec) {
+        this.probeBudget = nanosPerSec;
+    }
+
+    /**
+     * Called by the preprocessed probe handlers upon entry.
+     * @param probe The probe id
+     * @return The time stamp to be passed to {@linkplain #probeExit(int, long)}
+     */
+    public long probeHit(int probe) {
+        ProbeStats ps = probeStats;
+        return ps != null ? ps.probeHit(probe) : 0L;
+    }
+
+    /**
+     * Called by the preprocessed probe handlers upon exit.
+     * @param probe The probe id
+     * @param startTs The time stamp returned by {@linkplain #probeHit(int)}
+     */
+    public void probeExit(int probe, long startTs) {
+        ProbeStats ps = probeStats;
+        if (ps != null) {
+            ps.probeExit(probe, startTs);
+        }
+    }
+
+    private void checkProbeBudget() {
+        ProbeStats ps = probeStats;
+        ProbeControl pc = probeControl;
+        if (ps == null || pc == null) {
+            return;
+        }
+        String[] probes = ps.getProbes();
+        long[] rates = ps.getCostRates();
+        for (int i = 0; i < probes.length; i++) {
+            if (rates[i] > probeBudget && pc.isEnabled(probes[i])) {
+                // step down the sampling first; disable only if that does not help
+                int sampling = ps.getHandlerSampling(i) * PROBE_BUDGET_SAMPLING_STEP;
+                if (sampling <= PROBE_BUDGET_MAX_SAMPLING) {
+                    ps.setHandlerSampling(i, sampling);
+                } else {
+                    pc.disable(probes[i]);
+                    sampling = 0;
+                }
+                send(new ProbeOverheadNotification(probes[i], rates[i], probeBudget, sampling));
+            }
+        }
+    }
+
+    private void sendProbeStats() {
+        ProbeStats ps = probeStats;
+        if (ps != null) {
+            send(new GridDataCommand(EventCommand.PROBE_STATS, ps.getGridData(),
+                 "%1$s: hits=%2$d sampled=%3$d time=%4$dns avg=%5$dns"));
+        }
+    }
+
     /**
      * One instance of BTraceRuntime is created per-client.
      * This forClass method creates it. Class passed is the
@@ -1703,6 +1851,37 @@ public final class BTraceRuntime {
     static void printSnapshot(String name, Profiler.Snapshot snapshot, String format) {
         getCurrent().send(new GridDataCommand(name, snapshot.getGridData(), format));
     }
+
+    /**
+     * @see BTraceUtils.Profiling#printFoldedStacks(java.lang.String, com.sun.btrace.Profiler, boolean)
+     */
+    static void printFoldedStacks(String name, Profiler profiler, boolean invocations) {
+        getCurrent().send(new FoldedStacksDataCommand(name, profiler, invocations));
+    }
+
+    /**
+     * @see BTraceUtils.Profiling#writeFoldedStacks(com.sun.btrace.Profiler, java.lang.String, boolean)
+     */
+    static void writeFoldedStacks(Profiler profiler, String fileName, boolean invocations) {
+        try {
+            PrintWriter pw = new PrintWriter(new BufferedWriter(
+                new FileWriter(resolveFileName(fileName))));
+            try {
+                new FoldedStacksDataCommand(null, profiler, invocations).print(pw);
+                // PrintWriter swallows the write failures
+                if (pw.checkError()) {
+                    throw new IOException("error writing " + fileName);
+                }
+            } finally {
+                pw.close();
+            }
+        } catch (RuntimeException re) {
+            throw re;
+        } catch (Exception exp) {
+            throw new RuntimeException(exp);
+        }
+    }
+
     /**
      * Precondition: Only values from the first Aggregation are printed. If the subsequent aggregations have
      * values for keys which the first aggregation does not have, these rows are ignored.
@@ -1766,6 +1945,18 @@ public final class BTraceRuntime {
         return new MethodInvocationProfiler(expectedMethodCnt);
     }
 
+    /**
+     * @see BTraceUtils.Profiling#newSamplingProfiler(long, java.lang.String, java.lang.String)
+     */
+    static Profiler newSamplingProfiler(long interval, String threadNameFilter, String threadStates) {
+        StackSamplingProfiler p = new StackSamplingProfiler(
+            interval, threadNameFilter,
+            StackSamplingProfiler.parseThreadStates(threadStates)
+        );
+        getCurrent().startSampling(p);
+        return p;
+    }
+
     /**
      * @see BTraceUtils.Profiling#recordEntry(com.sun.btrace.Profiler, java.lang.String)
      */
@@ -2111,6 +2302,39 @@ public final class BTraceRuntime {
             }
         }
 
+        if (probeStats != null && probeStatsPeriod > 0) {
+            if (timer == null) {
+                timer = new Timer(true);
+            }
+            timer.schedule(new TimerTask() {
+                public void run() {
+                    // sending the statistics must not trigger any probes
+                    BTraceRuntime.enter();
+                    try {
+                        sendProbeStats();
+                    } finally {
+                        BTraceRuntime.leave();
+                    }
+                }
+            }, probeStatsPeriod, probeStatsPeriod);
+        }
+
+        if (probeStats != null && probeBudget > 0) {
+            if (timer == null) {
+                timer = new Timer(true);
+            }
+            timer.schedule(new TimerTask() {
+                public void run() {
+                    BTraceRuntime.enter();
+                    try {
+                        checkProbeBudget();
+                    } finally {
+                        BTraceRuntime.leave();
+                    }
+                }
+            }, PROBE_BUDGET_CHECK_PERIOD, PROBE_BUDGET_CHECK_PERIOD);
+        }
+
         if (! lowMemHandlers.isEmpty()) {
             initMemoryMBean();
             initMemoryListener();
@@ -2121,6 +2345,32 @@ public final class BTraceRuntime {
         leave();
     }
 
+    private void startSampling(final StackSamplingProfiler profiler) {
+        if (samplingTimer == null) {
+            synchronized (this) {
+                if (samplingTimer == null) {
+                    samplingTimer = new Timer("BTrace Stack Sampler", true);
+                }
+            }
+        }
+        samplingTimer.schedule(new TimerTask() {
+            public void run() {
+                if (disabled) {
+                    cancel();
+                    return;
+                }
+                // the sampling must not trigger any probes
+                BTraceRuntime.enter();
+                try {
+                    profiler.sample();
+                } catch (Throwable ignored) {
+                } finally {
+                    BTraceRuntime.leave();
+                }
+            }
+        }, profiler.getInterval(), profiler.getInterval());
+    }
+
     private void generateRunnables(RunnableGenerator gen, Runnable[] runnables) {
         final MemoryClassLoader loader = AccessController.doPrivileged(
             new PrivilegedAction<MemoryClassLoader>() {
@@ -2163,6 +2413,17 @@ public final class BTraceRuntime {
         }
     }
 
+    private static boolean hasLiveRuntimes() {
+        synchronized(runtimes) {
+            for (BTraceRuntime rt : runtimes.values()) {
+                if (rt != NULL) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     private synchronized void exitImpl(int exitCode) {
         if (exitHandler != null) {
             try {
@@ -2174,6 +2435,17 @@ public final class BTraceRuntime {
         if (timer != null) {
             timer.cancel();
         }
+        if (samplingTimer != null) {
+            samplingTimer.cancel();
+        }
+        ProbeControl pc = probeControl;
+        if (pc != null) {
+            pc.unregisterMBean();
+        }
+        ProbeStats ps = probeStats;
+        if (ps != null) {
+            ps.unregisterMBean();
+        }
 
         if (memoryListener != null && memoryMBean != null) {
             NotificationEmitter emitter = (NotificationEmitter) memoryMBean;
@@ -2292,6 +2564,19 @@ public final class BTraceRuntime {
         timersList.toArray(timerHandlers);
 
         BTraceMBean.registerMBean(clazz);
+        probeControl = ProbeControl.registerMBean(clazz);
+        // the handlers count their invocations only if the statistics are in use
+        if (probeCostSampling > 0 || probeStatsPeriod > 0 || probeBudget > 0) {
+            // the budget check needs the probe cost
+            int costSampling = probeCostSampling;
+            if (probeBudget > 0 && costSampling == 0) {
+                costSampling = PROBE_BUDGET_COST_SAMPLING;
+            }
+            probeStats = ProbeStats.registerMBean(clazz, costSampling);
+            if (probeControl != null) {
+                probeControl.setStats(probeStats);
+            }
+        }
     }
 
     private static String resolveFileName(String name) {
@@ -5083,6 +5083,55 @@ public class BTraceUtils {
             return BTraceRuntime.newProfiler(expectedBlockCnt);
         }
 
+        /**
+         * Creates a new stack sampling {@linkplain Profiler} instance.<br>
+         * Instead of recording the block entries and exits the profiler
+         * periodically samples the stacks of all the application threads
+         * and aggregates the sampled frames. The
+         * {@linkplain Profiler#recordEntry(java.lang.String) recordEntry} and
+         * {@linkplain Profiler#recordExit(java.lang.String, long) recordExit}
+         * calls are ignored.
+         * <br>
+         * The recorded invocation count of a block is the number of samples
+         * containing it and the times are estimated as the number of samples
+         * multiplied by the sampling interval.
+         * @param intervalMs The sampling interval in milliseconds
+         * @return A new {@linkplain Profiler} instance
+         * @since 1.3
+         */
+        public static Profiler newSamplingProfiler(long intervalMs) {
+            return BTraceRuntime.newSamplingProfiler(intervalMs, null, null);
+        }
+
+        /**
+         * Creates a new stack sampling {@linkplain Profiler} instance
+         * sampling only the threads with matching names.
+         * @param intervalMs The sampling interval in milliseconds
+         * @param threadNameFilter A regular expression the thread names must match
+         * @return A new {@linkplain Profiler} instance
+         * @see #newSamplingProfiler(long)
+         * @since 1.3
+         */
+        public static Profiler newSamplingProfiler(long intervalMs, String threadNameFilter) {
+            return BTraceRuntime.newSamplingProfiler(intervalMs, threadNameFilter, null);
+        }
+
+        /**
+         * Creates a new stack sampling {@linkplain Profiler} instance
+         * sampling only the threads with matching names and states.
+         * @param intervalMs The sampling interval in milliseconds
+         * @param threadNameFilter A regular expression the thread names must match;
+         *                         may be {@code null}
+         * @param threadStates A comma separated list of {@linkplain Thread.State} names
+         *                     (eg. "RUNNABLE,BLOCKED"); may be {@code null}
+         * @return A new {@linkplain Profiler} instance
+         * @see #newSamplingProfiler(long)
+         * @since 1.3
+         */
+        public static Profiler newSamplingProfiler(long intervalMs, String threadNameFilter, String threadStates) {
+            return BTraceRuntime.newSamplingProfiler(intervalMs, threadNameFilter, threadStates);
+        }
+
         /**
          * Records the entry to a particular code block
          * @param profiler The {@linkplain Profiler} instance to use
@@ -5131,6 +5180,53 @@ public class BTraceUtils {
         public static void printSnapshot(String name, Profiler profiler, String format) {
             BTraceRuntime.printSnapshot(name, profiler.snapshot(), format);
         }
+
+        /**
+         * Prints the call stacks collected by the profiler in the folded
+         * (collapsed) stack format - one "frame1;frame2;frame3 selfTime" line
+         * per distinct stack, ready to be processed by the flame graph tools
+         * @param name The name of the printed data; use an empty string to omit it
+         * @param profiler The {@linkplain Profiler} instance to use
+         */
+        public static void printFoldedStacks(String name, Profiler profiler) {
+            BTraceRuntime.printFoldedStacks(name, profiler, false);
+        }
+
+        /**
+         * Prints the call stacks collected by the profiler in the folded
+         * (collapsed) stack format
+         * @param name The name of the printed data; use an empty string to omit it
+         * @param profiler The {@linkplain Profiler} instance to use
+         * @param invocations If {@code true} the number of invocations is
+         *                    used as the stack value instead of the self time
+         */
+        public static void printFoldedStacks(String name, Profiler profiler, boolean invocations) {
+            BTraceRuntime.printFoldedStacks(name, profiler, invocations);
+        }
+
+        /**
+         * Writes the call stacks collected by the profiler to a file in the
+         * folded (collapsed) stack format. The data is streamed directly
+         * to the file.
+         * @param profiler The {@linkplain Profiler} instance to use
+         * @param fileName The file name; directories are not allowed
+         */
+        public static void writeFoldedStacks(Profiler profiler, String fileName) {
+            BTraceRuntime.writeFoldedStacks(profiler, fileName, false);
+        }
+
+        /**
+         * Writes the call stacks collected by the profiler to a file in the
+         * folded (collapsed) stack format. The data is streamed directly
+         * to the file.
+         * @param profiler The {@linkplain Profiler} instance to use
+         * @param fileName The file name; directories are not allowed
+         * @param invocations If {@code true} the number of invocations is
+         *                    used as the stack value instead of the self time
+         */
+        public static void writeFoldedStacks(Profiler profiler, String fileName, boolean invocations) {
+            BTraceRuntime.writeFoldedStacks(profiler, fileName, invocations);
+        }
     }
 
     /*
@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2014, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.btrace;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Runtime switches for the {@code @OnMethod} probes of a BTrace class.
+ * <p>
+ * Each probe handler is guarded by a static volatile boolean field
+ * ({@linkplain #getSwitchName(String)}) generated in the BTrace class.
+ * A disabled handler returns right away and the probed classes stay
+ * untouched; toggling the switch is just a field store.
+ * <p>
+ * A probe is identified by the handler name followed by its descriptor
+ * so that the overloaded handlers can be told apart. A handler name alone
+ * may be used as long as it is not overloaded.
+ *
+ * @author Jaroslav Bachorik
+ * @since 1.3
+ */
+public final class ProbeControl implements ProbeControlMBean {
+    public static final String DISABLED_FIELD_PREFIX = "$btrace$disabled$";
+
+    private final Map<String, Field> switches = new TreeMap<String, Field>();
+    private ObjectName objectName;
+    // the handler sampling of a probe is reset when the probe is enabled
+    private volatile ProbeStats stats;
+
+    public ProbeControl(Class clazz) {
+        String[] probes = ProbeStats.getProbes(clazz);
+        if (probes == null) {
+            return;
+        }
+        for (String probe : probes) {
+            try {
+                Field f = clazz.getDeclaredField(getSwitchName(probe));
+                f.setAccessible(true);
+                switches.put(probe, f);
+            } catch (NoSuchFieldException e) {
+                // not a switchable probe
+            }
+        }
+    }
+
+    /**
+     * @param name The handler name
+     * @param desc The handler descriptor
+     * @return The probe id
+     */
+    public static String getProbeId(String name, String desc) {
+        return name + desc;
+    }
+
+    /**
+     * Mangles the probe id into the name of its switch field. The mangling
+     * is the one used by JNI for the overloaded native methods, extended
+     * to the whole descriptor, so the name is unique and a legal field name.
+     * @param probeId The probe id
+     * @return The name of the switch field
+     */
+    public static String getSwitchName(String probeId) {
+        StringBuilder sb = new StringBuilder(DISABLED_FIELD_PREFIX);
+        for (int i = 0; i < probeId.length(); i++) {
+            char c = probeId.charAt(i);
+            switch (c) {
+                case '_': sb.append("_1"); break;
+                case ';': sb.append("_2"); break;
+                case '[': sb.append("_3"); break;
+                case '(': sb.append("_4"); break;
+                case ')': sb.append("_5"); break;
+                case '/': sb.append("_6"); break;
+                default: {
+                    if (Character.isJavaIdentifierPart(c)) {
+                        sb.append(c);
+                    } else {
+                        sb.append("_0").append(String.format("%04x", (int)c));
+                    }
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    public String[] getProbes() {
+        return switches.keySet().toArray(new String[switches.size()]);
+    }
+
+    /**
+     * @param probe The probe id or a handler name
+     * @return {@code true} if the argument identifies exactly one probe
+     */
+    public boolean hasProbe(String probe) {
+        try {
+            return resolveId(probe) != null;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    public boolean isEnabled(String probe) {
+        try {
+            return !getSwitch(probe).getBoolean(null);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void enable(String probe) {
+        setEnabled(probe, true);
+    }
+
+    public void disable(String probe) {
+        setEnabled(probe, false);
+    }
+
+    /**
+     * Switches the probe on or off
+     * @param probe The probe id or the name of a handler which is not overloaded
+     * @param enabled The new state
+     * @throws IllegalArgumentException if there is no such probe or the handler name is overloaded
+     */
+    public void setEnabled(String probe, boolean enabled) {
+        Field f = getSwitch(probe);
+        ProbeStats ps = stats;
+        if (enabled && ps != null) {
+            // a probe disabled for its overhead starts over at the full rate
+            ps.resetHandlerSampling(resolveId(probe));
+        }
+        try {
+            f.setBoolean(null, !enabled);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @param stats The counters of the same BTrace class or {@code null}
+     */
+    void setStats(ProbeStats stats) {
+        this.stats = stats;
+    }
+
+    /**
+     * Registers the switches of the given BTrace class with the platform MBean server
+     * @param clazz The BTrace class
+     * @return The switches or {@code null} if the class has no switchable probes
+     */
+    public static ProbeControl registerMBean(Class clazz) {
+        ProbeControl control = new ProbeControl(clazz);
+        if (control.switches.isEmpty()) {
+            return null;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName on = new ObjectName("btrace:type=ProbeControl,name=" + BTraceMBean.getBeanName(clazz));
+            if (server.isRegistered(on)) {
+                server.unregisterMBean(on);
+            }
+            server.registerMBean(control, on);
+            control.objectName = on;
+        } catch (RuntimeException re) {
+            throw re;
+        } catch (Exception exp) {
+            throw new RuntimeException(exp);
+        }
+        return control;
+    }
+
+    /**
+     * Removes the switches from the platform MBean server
+     */
+    public void unregisterMBean() {
+        ObjectName on = objectName;
+        if (on == null) {
+            return;
+        }
+        objectName = null;
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(on)) {
+                server.unregisterMBean(on);
+            }
+        } catch (Exception exp) {
+            // the runtime is going away anyway
+        }
+    }
+
+    private Field getSwitch(String probe) {
+        String id = resolveId(probe);
+        if (id == null) {
+            throw new IllegalArgumentException("No such probe: " + probe);
+        }
+        return switches.get(id);
+    }
+
+    /**
+     * @param probe The probe id or the name of a handler which is not overloaded
+     * @return The probe id or {@code null}
+     * @throws IllegalArgumentException if the handler name is overloaded
+     */
+    private String resolveId(String probe) {
+        if (switches.containsKey(probe)) {
+            return probe;
+        }
+        String id = null;
+        if (probe.indexOf('(') == -1) {
+            String prefix = probe + "(";
+            for (String key : switches.keySet()) {
+                if (key.startsWith(prefix)) {
+                    if (id != null) {
+                        throw new IllegalArgumentException("Ambiguous probe: " + probe);
+                    }
+                    id = key;
+                }
+            }
+        }
+        return id;
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2014, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.btrace;
+
+/**
+ * Management interface for switching the {@code @OnMethod} probes of
+ * a BTrace script on and off.
+ *
+ * @author Jaroslav Bachorik
+ * @since 1.3
+ */
+public interface ProbeControlMBean {
+    /**
+     * @return The ids of the switchable probes (the probe handler names
+     *         followed by their descriptors)
+     */
+    String[] getProbes();
+
+    /**
+     * @param probe The probe id or the name of a handler which is not overloaded
+     * @return {@code true} if the probe is enabled
+     */
+    boolean isEnabled(String probe);
+
+    /**
+     * Enables the probe
+     * @param probe The probe id or the name of a handler which is not overloaded
+     */
+    void enable(String probe);
+
+    /**
+     * Disables the probe
+     * @param probe The probe id or the name of a handler which is not overloaded
+     */
+    void disable(String probe);
+}
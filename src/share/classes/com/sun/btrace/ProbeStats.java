@@ -0,0 +1,327 @@
+/*
+ * Copyright (c) 2014, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.btrace;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Per-probe invocation counters of a BTrace class.
+ * <p>
+ * The preprocessed {@code @OnMethod} handlers report each invocation by
+ * their probe id - the index of the handler name in the
+ * {@linkplain #PROBES_FIELD} constant generated in the BTrace class.
+ * Every {@linkplain #getCostSamplingInterval() N-th} invocation is also
+ * timed. Handlers inlined into the probe sites are not counted.
+ * <p>
+ * A probe handler may be {@linkplain #setHandlerSampling(int, int) sampled down}
+ * to run only every N-th invocation; the skipped invocations are not counted.
+ * <p>
+ * The handlers are counted only if the BTrace class was preprocessed with
+ * the statistics enabled; the counting code is not generated otherwise.
+ * <p>
+ * The counters are kept in a plain long array striped by the thread id
+ * and padded to a cache line so the probes hit from different threads
+ * do not contend. The increments are not atomic - threads sharing a stripe
+ * (thread ids equal modulo the stripe count) may overwrite each other's
+ * updates and the hits, samples and times lost this way are never recovered.
+ * The numbers are therefore a lower bound under contention, and so are the
+ * cost rates the probe budget is checked against.
+ *
+ * @author Jaroslav Bachorik
+ * @since 1.3
+ */
+public final class ProbeStats implements ProbeStatsMBean {
+    public static final String PROBES_FIELD = "$btrace$probes";
+    /**
+     * Returned by {@linkplain #probeHit(int)} if the handler is to be skipped
+     */
+    public static final long SAMPLED_OUT = -1L;
+
+    // counter offsets within a stripe
+    private static final int HITS = 0;
+    private static final int SAMPLES = 1;
+    private static final int NANOS = 2;
+    // all the invocations of a sampled down handler
+    private static final int CALLS = 3;
+    // a stripe takes a whole cache line
+    private static final int STRIPE_SIZE = 8;
+    private static final int MAX_STRIPES = 16;
+
+    private final String[] probes;
+    private final int stripeMask;
+    private final long[] counters;
+    private volatile int costSamplingInterval;
+    // the handler of a probe runs every N-th invocation; replaced on change
+    private volatile int[] handlerSampling;
+    // the counters at the last call to getCostRates()
+    private long[] lastHits, lastSamples, lastNanos;
+    private long lastRateTs;
+    private ObjectName objectName;
+
+    public ProbeStats(String[] probes, int costSamplingInterval) {
+        int stripes = 1;
+        int cpus = Runtime.getRuntime().availableProcessors();
+        while (stripes < cpus && stripes < MAX_STRIPES) {
+            stripes <<= 1;
+        }
+        this.probes = probes;
+        this.stripeMask = stripes - 1;
+        this.counters = new long[probes.length * stripes * STRIPE_SIZE];
+        setCostSamplingInterval(costSamplingInterval);
+        this.handlerSampling = new int[probes.length];
+        Arrays.fill(handlerSampling, 1);
+        this.lastHits = new long[probes.length];
+        this.lastSamples = new long[probes.length];
+        this.lastNanos = new long[probes.length];
+        this.lastRateTs = System.nanoTime();
+    }
+
+    /**
+     * Counts an invocation of the probe handler
+     * @param probe The probe id
+     * @return The start time stamp if this invocation is timed;
+     *         {@linkplain #SAMPLED_OUT} if the handler is to be skipped; 0 otherwise
+     */
+    public long probeHit(int probe) {
+        int stripe = stripe(probe);
+        int sampling = handlerSampling[probe];
+        if (sampling > 1 && ++counters[stripe + CALLS] % sampling != 0) {
+            return SAMPLED_OUT;
+        }
+        long hits = ++counters[stripe + HITS];
+        int interval = costSamplingInterval;
+        return interval > 0 && hits % interval == 0 ? System.nanoTime() : 0L;
+    }
+
+    /**
+     * Finishes an invocation of the probe handler
+     * @param probe The probe id
+     * @param startTs The time stamp returned by {@linkplain #probeHit(int)}
+     */
+    public void probeExit(int probe, long startTs) {
+        if (startTs != 0L && startTs != SAMPLED_OUT) {
+            int stripe = stripe(probe);
+            counters[stripe + SAMPLES]++;
+            counters[stripe + NANOS] += System.nanoTime() - startTs;
+        }
+    }
+
+    public String[] getProbes() {
+        return probes.clone();
+    }
+
+    public long[] getHitCounts() {
+        return sum(HITS);
+    }
+
+    public long[] getSampleCounts() {
+        return sum(SAMPLES);
+    }
+
+    public long[] getSampledTimes() {
+        return sum(NANOS);
+    }
+
+    public int getCostSamplingInterval() {
+        return costSamplingInterval;
+    }
+
+    public void setCostSamplingInterval(int interval) {
+        costSamplingInterval = interval > 0 ? interval : 0;
+    }
+
+    public int[] getHandlerSamplingIntervals() {
+        return handlerSampling.clone();
+    }
+
+    /**
+     * @param probe The probe id
+     * @return The handler of the probe runs every N-th invocation
+     */
+    int getHandlerSampling(int probe) {
+        return handlerSampling[probe];
+    }
+
+    /**
+     * Samples down the handler of the given probe
+     * @param probe The probe id
+     * @param interval The handler runs every N-th invocation; 1 for every invocation
+     */
+    synchronized void setHandlerSampling(int probe, int interval) {
+        int[] sampling = handlerSampling.clone();
+        sampling[probe] = Math.max(interval, 1);
+        handlerSampling = sampling;
+    }
+
+    /**
+     * Lets the handler of the given probe run on every invocation again
+     * @param probe The probe id
+     */
+    void resetHandlerSampling(String probe) {
+        int index = Arrays.asList(probes).indexOf(probe);
+        if (index != -1) {
+            setHandlerSampling(index, 1);
+        }
+    }
+
+    public synchronized void reset() {
+        Arrays.fill(counters, 0L);
+        Arrays.fill(lastHits, 0L);
+        Arrays.fill(lastSamples, 0L);
+        Arrays.fill(lastNanos, 0L);
+    }
+
+    /**
+     * Estimates the time spent in each probe handler since the last call.
+     * The sampled handler time is extrapolated to all the invocations.
+     * @return The nanoseconds per second spent in each probe handler
+     */
+    synchronized long[] getCostRates() {
+        long[] hits = getHitCounts();
+        long[] samples = getSampleCounts();
+        long[] nanos = getSampledTimes();
+        long now = System.nanoTime();
+        double elapsed = Math.max(now - lastRateTs, 1L);
+        long[] rates = new long[probes.length];
+        for (int i = 0; i < probes.length; i++) {
+            long sampled = samples[i] - lastSamples[i];
+            if (sampled > 0) {
+                double cost = (double)(nanos[i] - lastNanos[i]) * (hits[i] - lastHits[i]) / sampled;
+                rates[i] = (long)(cost * 1000000000d / elapsed);
+            }
+        }
+        lastHits = hits;
+        lastSamples = samples;
+        lastNanos = nanos;
+        lastRateTs = now;
+        return rates;
+    }
+
+    /**
+     * @return One row per probe - the probe handler name, the number of
+     *         invocations, the number of timed invocations, their total
+     *         and average time in nanoseconds
+     */
+    public List<Object[]> getGridData() {
+        long[] hits = getHitCounts();
+        long[] samples = getSampleCounts();
+        long[] nanos = getSampledTimes();
+        List<Object[]> rows = new ArrayList<Object[]>(probes.length);
+        for (int i = 0; i < probes.length; i++) {
+            rows.add(new Object[]{
+                probes[i], hits[i], samples[i], nanos[i],
+                samples[i] > 0 ? nanos[i] / samples[i] : 0L
+            });
+        }
+        return rows;
+    }
+
+    /**
+     * Registers the counters of the given BTrace class with the platform MBean server
+     * @param clazz The BTrace class
+     * @param costSamplingInterval Every N-th probe invocation is timed; 0 to disable
+     * @return The counters or {@code null} if the class has no counted probes
+     */
+    public static ProbeStats registerMBean(Class clazz, int costSamplingInterval) {
+        String[] probes = getProbes(clazz);
+        if (probes == null) {
+            return null;
+        }
+        ProbeStats stats = new ProbeStats(probes, costSamplingInterval);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName on = new ObjectName("btrace:type=ProbeStats,name=" + BTraceMBean.getBeanName(clazz));
+            if (server.isRegistered(on)) {
+                server.unregisterMBean(on);
+            }
+            server.registerMBean(stats, on);
+            stats.objectName = on;
+        } catch (RuntimeException re) {
+            throw re;
+        } catch (Exception exp) {
+            throw new RuntimeException(exp);
+        }
+        return stats;
+    }
+
+    /**
+     * Removes the counters from the platform MBean server
+     */
+    public void unregisterMBean() {
+        ObjectName on = objectName;
+        if (on == null) {
+            return;
+        }
+        objectName = null;
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(on)) {
+                server.unregisterMBean(on);
+            }
+        } catch (Exception exp) {
+            // the runtime is going away anyway
+        }
+    }
+
+    /**
+     * @return The probe ids listed in the {@linkplain #PROBES_FIELD} constant
+     *         of the BTrace class or {@code null}
+     */
+    static String[] getProbes(Class clazz) {
+        try {
+            Field f = clazz.getDeclaredField(PROBES_FIELD);
+            f.setAccessible(true);
+            String probes = (String)f.get(null);
+            return probes == null || probes.isEmpty() ? null : probes.split(",");
+        } catch (NoSuchFieldException e) {
+            return null;
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private int stripe(int probe) {
+        int stripe = (int)(Thread.currentThread().getId() & stripeMask);
+        return (probe * (stripeMask + 1) + stripe) * STRIPE_SIZE;
+    }
+
+    private long[] sum(int offset) {
+        int stripes = stripeMask + 1;
+        long[] result = new long[probes.length];
+        for (int i = 0; i < probes.length; i++) {
+            for (int j = 0; j < stripes; j++) {
+                result[i] += counters[(i * stripes + j) * STRIPE_SIZE + offset];
+            }
+        }
+        return result;
+    }
+}
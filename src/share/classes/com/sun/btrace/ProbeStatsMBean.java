@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2014, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.btrace;
+
+/**
+ * Management interface exposing the per-probe overhead statistics of
+ * a BTrace script.
+ * <p>
+ * All the arrays are indexed the same way as {@linkplain #getProbes()}.
+ *
+ * @author Jaroslav Bachorik
+ * @since 1.3
+ */
+public interface ProbeStatsMBean {
+    /**
+     * @return The names of the counted probes (the probe handler names)
+     */
+    String[] getProbes();
+
+    /**
+     * @return The number of invocations of each probe handler, not counting
+     *         the ones skipped by the handler sampling
+     */
+    long[] getHitCounts();
+
+    /**
+     * @return The number of timed invocations of each probe handler
+     */
+    long[] getSampleCounts();
+
+    /**
+     * @return The total time in nanoseconds spent in the timed invocations
+     *         of each probe handler
+     */
+    long[] getSampledTimes();
+
+    /**
+     * @return Every N-th invocation of a probe handler is timed; 0 if disabled
+     */
+    int getCostSamplingInterval();
+
+    /**
+     * @param interval Every N-th invocation of a probe handler is timed; 0 to disable
+     */
+    void setCostSamplingInterval(int interval);
+
+    /**
+     * @return The handler of each probe runs every N-th invocation; more than 1
+     *         if the probe has been sampled down for exceeding its overhead budget
+     */
+    int[] getHandlerSamplingIntervals();
+
+    /**
+     * Resets all the counters
+     */
+    void reset();
+}
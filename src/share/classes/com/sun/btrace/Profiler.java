@@ -170,6 +170,25 @@ public abstract class Profiler {
         }
     }
 
+    /**
+     * Receives the call stacks aggregated by a {@linkplain Profiler}.
+     * <br/><br/>
+     * The frames array is reused between the invocations and only its first
+     * <b>depth</b> elements are valid; the root frame comes first.
+     *
+     * @since 1.3
+     */
+    public static interface StackVisitor {
+        /**
+         * Visits one distinct call stack
+         * @param frames The stack frames (block names), root first
+         * @param depth The number of valid frames
+         * @param invocations The number of invocations of the top frame in this stack
+         * @param selfTime The self time of the top frame in this stack
+         */
+        void visitStack(String[] frames, int depth, long invocations, long selfTime);
+    }
+
     /**
      * Helper interface to make accessing a {@linkplain Profiler} as an MBean
      * type safe.
@@ -223,6 +242,23 @@ public abstract class Profiler {
      */
     public abstract Snapshot snapshot(boolean reset);
     
+    /**
+     * Walks all the call stacks collected so far.<br/>
+     * Implementations not tracking the call stacks report each block as
+     * a single frame stack.
+     * @param visitor The {@linkplain StackVisitor} to receive the stacks
+     * @since 1.3
+     */
+    public void visitStacks(StackVisitor visitor) {
+        String[] frames = new String[1];
+        for(Record r : snapshot().total) {
+            if (r != null) {
+                frames[0] = r.blockName;
+                visitor.visitStack(frames, 1, r.invocations, r.selfTime);
+            }
+        }
+    }
+
     /**
      * Resets all the collected data
      */
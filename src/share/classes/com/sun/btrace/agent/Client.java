@@ -27,7 +27,11 @@ package com.sun.btrace.agent;
 
 import java.io.IOException;
 import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import com.sun.btrace.org.objectweb.asm.ClassReader;
 import com.sun.btrace.org.objectweb.asm.ClassWriter;
 import com.sun.btrace.org.objectweb.asm.ClassVisitor;
@@ -39,10 +43,14 @@ import com.sun.btrace.comm.InstrumentCommand;
 import com.sun.btrace.comm.OkayCommand;
 import com.sun.btrace.comm.RenameCommand;
 import com.sun.btrace.PerfReader;
+import com.sun.btrace.comm.MethodSizeNotification;
 import com.sun.btrace.comm.RetransformClassNotification;
 import com.sun.btrace.comm.RetransformationStartNotification;
+import com.sun.btrace.comm.RetransformProgressNotification;
 import com.sun.btrace.org.objectweb.asm.Opcodes;
 import com.sun.btrace.runtime.ClassFilter;
+import com.sun.btrace.runtime.ClassHeader;
+import com.sun.btrace.runtime.ClassHierarchy;
 import com.sun.btrace.runtime.ClassRenamer;
 import com.sun.btrace.runtime.ClinitInjector;
 import com.sun.btrace.runtime.Instrumentor;
@@ -53,8 +61,12 @@ import com.sun.btrace.runtime.Preprocessor;
 import com.sun.btrace.runtime.Verifier;
 import com.sun.btrace.runtime.OnMethod;
 import com.sun.btrace.runtime.OnProbe;
+import com.sun.btrace.runtime.ProbeMatcher;
+import com.sun.btrace.runtime.RecordedMethods;
 import com.sun.btrace.runtime.RunnableGeneratorImpl;
 import com.sun.btrace.util.templates.impl.CallTimeStampExpander;
+import com.sun.btrace.util.templates.impl.MethodAllocationExpander;
+import com.sun.btrace.util.templates.impl.MethodCpuTimeExpander;
 import com.sun.btrace.util.templates.impl.MethodTimeStampExpander;
 import java.lang.annotation.Annotation;
 import java.lang.instrument.ClassFileTransformer;
@@ -69,7 +81,7 @@ import sun.reflect.annotation.AnnotationType;
  *
  * @author A. Sundararajan
  */
-abstract class Client implements ClassFileTransformer, CommandListener {
+abstract class Client implements CommandListener {
     protected final Instrumentation inst;
     private volatile BTraceRuntime runtime;
     private volatile String className;
@@ -77,14 +89,25 @@ abstract class Client implements ClassFileTransformer, CommandListener {
     private volatile byte[] btraceCode;
     private volatile List<OnMethod> onMethods;
     private volatile List<OnProbe> onProbes;
+    private volatile ProbeMatcher matcher;
+    private volatile RecordedMethods btraceMethods;
+    private volatile String codeHash;
     private volatile ClassFilter filter;
     private volatile boolean skipRetransforms;
+    private boolean detached;
     private volatile boolean hasSubclassChecks;
+    // internal names of the classes carrying probes of this client
+    private final Set<String> instrumentedClasses = Collections.synchronizedSet(new HashSet<String>());
     protected final boolean debug = Main.isDebug();
     protected final boolean trackRetransforms = Main.isRetransformTracking();
 
     static {
         ClassFilter.class.getClass();
+        ClassHeader.class.getClass();
+        ProbeMatcher.class.getClass();
+        RecordedMethods.class.getClass();
+        ClassHierarchy.class.getClass();
+        InstrumentationCoordinator.class.getClass();
         InstrumentUtils.class.getClass();
         Instrumentor.class.getClass();
         ClassReader.class.getClass();
@@ -94,6 +117,8 @@ abstract class Client implements ClassFileTransformer, CommandListener {
         Annotation.class.getClass();
         MethodTimeStampExpander.class.getClass();
         CallTimeStampExpander.class.getClass();
+        MethodCpuTimeExpander.class.getClass();
+        MethodAllocationExpander.class.getClass();
 
         BTraceRuntime.init(createPerfReaderImpl(), new RunnableGeneratorImpl());
     }
@@ -137,70 +162,60 @@ abstract class Client implements ClassFileTransformer, CommandListener {
         this.inst = inst;
     }
 
-    public byte[] transform(
-                ClassLoader loader,
-                String cname,
-                Class<?> classBeingRedefined,
-                ProtectionDomain protectionDomain,
-                byte[] classfileBuffer)
-        throws IllegalClassFormatException {
-        boolean entered = BTraceRuntime.enter();
-        try {
-            if (cname == null) {
-                cname = readClassName(classfileBuffer);
-                if (cname == null) {
-                    if (debug) Main.debugPrint("skipping transform for unknown class"); // NOI18N
-                    return null;
-                }
-            }
-            if (isBTraceClass(cname) || isSensitiveClass(cname)) {
-                if (debug) Main.debugPrint("skipping transform for BTrace class " + cname); // NOI18N
-                return null;
-            }
-
-                if (classBeingRedefined != null) {
-                    // class already defined; retransforming
-                    if (!skipRetransforms && filter.isCandidate(classBeingRedefined)) {
-                        return doTransform(classBeingRedefined, cname, classfileBuffer);
-                    } else {
-                        if (debug) Main.debugPrint("client " + className + ": skipping transform for " + cname); // NOi18N
-                    }
-                } else {
-                    // class not yet defined
-                    if (!hasSubclassChecks) {
-                        if (filter.isCandidate(classfileBuffer)) {
-                            return doTransform(classBeingRedefined, cname, classfileBuffer);
-                        } else {
-                            if (debug) Main.debugPrint("client " + className + ": skipping transform for " + cname); // NOI18N
-                        }
-                    }
-                }
-
-            return null; // ignore
-        } catch (Exception e) {
-            e.printStackTrace();
-            if (e instanceof IllegalClassFormatException) {
-                throw (IllegalClassFormatException)e;
-            }
-            return null;
-        } finally {
-            if (entered) {
-                BTraceRuntime.leave();
-            }
+    /**
+     * Checks whether this client wants to instrument the given class
+     * @param classBeingRedefined The class being retransformed or {@code null}
+     * @param classfileBuffer The class bytes
+     * @return {@code true} if the class is to be instrumented by this client
+     */
+    final boolean isTransformCandidate(Class<?> classBeingRedefined, byte[] classfileBuffer) {
+        if (classBeingRedefined != null) {
+            // class already defined; retransforming
+            return filter.isCandidate(classBeingRedefined);
+        } else {
+            // class not yet defined
+            return !hasSubclassChecks && filter.isCandidate(classfileBuffer);
         }
     }
 
+    /**
+     * Creates the instrumenting visitor for one class. It will be chained
+     * with the instrumentors of the other active clients.
+     */
+    Instrumentor instrumentor(Class<?> classBeingRedefined, String cname, ClassVisitor cv) {
+        notifyTransform(cname);
+        Instrumentor i = new Instrumentor(classBeingRedefined, className, btraceMethods, matcher, cv);
+        i.setInlineThreshold(Main.getInlineThreshold());
+        i.setSharedExit(Main.isSharedExit());
+        return i;
+    }
+
     void registerTransformer() {
         inst.addTransformer(clInitTransformer, false);
-        inst.addTransformer(this, true);
+        InstrumentationCoordinator.getInstance(inst).register(this);
     }
 
     void unregisterTransformer() {
-        inst.removeTransformer(this);
+        InstrumentationCoordinator.getInstance(inst).unregister(this);
         inst.removeTransformer(clInitTransformer);
     }
 
-    private byte[] doTransform(Class<?> classBeingRedefined, String cname, byte[] classfileBuffer) {
+    /**
+     * Records a class which got probes of this client woven in
+     * @param cname The internal class name
+     */
+    final void classInstrumented(String cname) {
+        instrumentedClasses.add(cname);
+    }
+
+    /**
+     * @return The hash of the final BTrace class bytes used by the instrumentation cache
+     */
+    final String getCodeHash() {
+        return codeHash;
+    }
+
+    final void notifyTransform(String cname) {
         if (debug) Main.debugPrint("client " + className + ": instrumenting " + cname);
         if (trackRetransforms) {
             try {
@@ -209,42 +224,115 @@ abstract class Client implements ClassFileTransformer, CommandListener {
                 Main.debugPrint(e);
             }
         }
-        return instrument(classBeingRedefined, cname, classfileBuffer);
     }
 
-    protected synchronized void onExit(int exitCode) {
-        if (shouldAddTransformer()) {
-            if (debug) Main.debugPrint("onExit: removing transformer for " + className);
-            unregisterTransformer();
+    /**
+     * Reports a method which the instrumentation made grow over a JIT
+     * inlining threshold
+     */
+    final void notifyMethodSize(String cname, String method, int originalSize, int size, int threshold) {
+        if (debug) Main.debugPrint("client " + className + ": " + cname + "." + method + " grew from " + originalSize + " to " + size + " bytes, over the inlining threshold of " + threshold);
+        if (trackRetransforms) {
+            try {
+                onCommand(new MethodSizeNotification(cname, method, originalSize, size, threshold));
+            } catch (IOException e) {
+                Main.debugPrint(e);
+            }
+        }
+    }
+
+    protected void onExit(int exitCode) {
+        detach();
+        synchronized(this) {
+            try {
+                if (debug) Main.debugPrint("onExit: closing all");
+                Thread.sleep(300);
+                closeAll();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException ioexp) {
+                if (debug) Main.debugPrint(ioexp);
+            }
+        }
+    }
+
+    /**
+     * Removes the transformer and the probes of this client. The client lock
+     * is not held while the classes are being retransformed.
+     */
+    final void detach() {
+        synchronized(this) {
+            if (detached || !shouldAddTransformer()) {
+                return;
+            }
+            detached = true;
+        }
+        if (debug) Main.debugPrint("onExit: removing transformer for " + className);
+        unregisterTransformer();
+        uninstrument();
+    }
+
+    /**
+     * Retransforms all the still loaded classes instrumented by this client.
+     * The client is not registered any more so the classes will end up
+     * carrying only the probes of the other active clients, if any.
+     */
+    private void uninstrument() {
+        String[] names;
+        synchronized(instrumentedClasses) {
+            names = instrumentedClasses.toArray(new String[instrumentedClasses.size()]);
+            instrumentedClasses.clear();
+        }
+        if (names.length == 0) return;
+
+        Set<String> nameSet = new HashSet<String>(names.length * 2);
+        for (String name : names) {
+            nameSet.add(name.replace('/', '.'));
         }
+        List<Class> list = new ArrayList<Class>(names.length);
+        for (Class c : inst.getAllLoadedClasses()) {
+            if (nameSet.contains(c.getName()) && inst.isModifiableClass(c)) {
+                list.add(c);
+            }
+        }
+        if (list.isEmpty()) return;
+
+        Class[] classes = list.toArray(new Class[list.size()]);
+        if (debug) Main.debugPrint("onExit: removing probes from " + classes.length + " classes");
+        startRetransformClasses(classes.length);
         try {
-            if (debug) Main.debugPrint("onExit: closing all");
-            Thread.sleep(300);
-            closeAll();
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-        } catch (IOException ioexp) {
-            if (debug) Main.debugPrint(ioexp);
+            Main.retransformInChunks(this, classes);
+        } catch (Throwable th) {
+            // the classes keep the probes; the handlers will not run anyway
+            Main.debugPrint(th);
+        } finally {
+            endRetransformClasses();
         }
+        if (debug) Main.debugPrint("onExit: probes removed");
     }
 
-    protected Class loadClass(InstrumentCommand instr) throws IOException {
-        String[] args = instr.getArguments();
-        this.btraceCode = instr.getCode();
+    /**
+     * Verifies and preprocesses the BTrace class and sets up the probe matching
+     * @param code The BTrace class bytes
+     * @return {@code false} if the class could not be processed; the client is exited then
+     */
+    final boolean prepare(byte[] code) throws IOException {
+        this.btraceCode = code;
         try {
             verify(btraceCode);
         } catch (Throwable th) {
             if (debug) Main.debugPrint(th);
             errorExit(th);
-            return null;
+            return false;
         }
 
-        this.filter = new ClassFilter(onMethods);
+        this.matcher = new ProbeMatcher(onMethods);
+        this.filter = new ClassFilter(matcher);
         if (debug) Main.debugPrint("created class filter");
 
         ClassWriter writer = InstrumentUtils.newClassWriter(btraceCode);
         ClassReader reader = new ClassReader(btraceCode);
-        ClassVisitor visitor = new Preprocessor(writer);
+        ClassVisitor visitor = new Preprocessor(writer, Main.isProbeStats());
 		Main.dumpClass(className + "_orig", className + "_orig", btraceCode);
         if (BTraceRuntime.classNameExists(className)) {
             className += "$" + getCount();
@@ -260,11 +348,26 @@ abstract class Client implements ClassFileTransformer, CommandListener {
         } catch (Throwable th) {
             if (debug) Main.debugPrint(th);
             errorExit(th);
-            return null;
+            return false;
         }
         Main.dumpClass(className, className, btraceCode);
+        // the handler methods are parsed only once and copied into each instrumented class
+        this.btraceMethods = new RecordedMethods(btraceCode);
+        if (Main.getInstrumentationCache() != null) {
+            this.codeHash = InstrumentationCache.hash(btraceCode);
+        }
+        return true;
+    }
+
+    protected Class loadClass(InstrumentCommand instr) throws IOException {
+        String[] args = instr.getArguments();
+        if (!prepare(instr.getCode())) {
+            return null;
+        }
         if (debug) Main.debugPrint("creating BTraceRuntime instance for " + className);
         this.runtime = new BTraceRuntime(className, args, this, inst);
+        runtime.setProbeStats(Main.getProbeCostSampling(), Main.getProbeStatsPeriod());
+        runtime.setProbeBudget(Main.getProbeBudget());
         if (debug) Main.debugPrint("created BTraceRuntime instance for " + className);
         if (debug) Main.debugPrint("removing @OnMethod, @OnProbe methods");
         byte[] codeBuf = removeMethods(btraceCode);
@@ -350,6 +453,15 @@ abstract class Client implements ClassFileTransformer, CommandListener {
         }
     }
 
+    final void retransformProgress(int done, int total) {
+        try {
+            onCommand(new RetransformProgressNotification(done, total));
+            if (Main.isDebug()) Main.debugPrint("retransformed " + done + " of " + total + " classes");
+        } catch (IOException e) {
+            Main.debugPrint(e);
+        }
+    }
+
     final void endRetransformClasses() {
         try {
             onCommand(new OkayCommand());
@@ -360,7 +472,7 @@ abstract class Client implements ClassFileTransformer, CommandListener {
     }
 
     // Internals only below this point
-    private static boolean isBTraceClass(String name) {
+    static boolean isBTraceClass(String name) {
         return name.startsWith("com/sun/btrace/");
     }
 
@@ -373,7 +485,7 @@ abstract class Client implements ClassFileTransformer, CommandListener {
      * if BTrace instruments java.lang.ThreadLocal for example.
      * For now, we avoid such classes till we find a solution.
      */
-    private static boolean isSensitiveClass(String name) {
+    static boolean isSensitiveClass(String name) {
         return name.equals("java/lang/Object") || // NOI18N
                name.startsWith("java/lang/ThreadLocal") || // NOI18N
                name.startsWith("sun/reflect") || // NOI18N
@@ -382,17 +494,25 @@ abstract class Client implements ClassFileTransformer, CommandListener {
                name.equals("java/lang/VerifyError"); // NOI18N
     }
 
-    private byte[] instrument(Class clazz, String cname, byte[] target) {
+    /**
+     * Instruments the class by this client alone
+     */
+    final byte[] instrument(ClassLoader loader, Class clazz, String cname, byte[] target) {
         byte[] instrumentedCode;
         try {
-            ClassWriter writer = InstrumentUtils.newClassWriter(target);
+            ClassWriter writer = InstrumentUtils.newClassWriter(target, loader);
             ClassReader reader = new ClassReader(target);
-            Instrumentor i = new Instrumentor(clazz, className,  btraceCode, onMethods, writer);
+            Instrumentor i = new Instrumentor(clazz, className, btraceMethods, matcher, writer);
+            i.setInlineThreshold(Main.getInlineThreshold());
+            i.setSharedExit(Main.isSharedExit());
             InstrumentUtils.accept(reader, i);
             if (Main.isDebug() && !i.hasMatch()) {
                 Main.debugPrint("*WARNING* No method was matched for class " + cname); // NOI18N
             }
             instrumentedCode = writer.toByteArray();
+            if (i.hasMatch()) {
+                classInstrumented(cname);
+            }
         } catch (Throwable th) {
             Main.debugPrint(th);
             return null;
@@ -429,12 +549,15 @@ abstract class Client implements ClassFileTransformer, CommandListener {
         return writer.toByteArray();
     }
 
-    private static String readClassName(byte[] classfileBuffer) {
+    static String readClassName(byte[] classfileBuffer) {
         if (classfileBuffer == null || classfileBuffer.length == 0) {
             return null;
         }
-        ClassReader cr = new ClassReader(classfileBuffer);
-        return cr.getClassName();
+        try {
+            return ClassHeader.read(classfileBuffer).getClassName();
+        } catch (IllegalArgumentException e) {
+            return new ClassReader(classfileBuffer).getClassName();
+        }
     }
 
     private static long count = 0L;
@@ -0,0 +1,373 @@
+/*
+ * Copyright (c) 2014, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.btrace.agent;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * An on-disk cache of instrumented class bytes. It allows skipping
+ * the weaving when the same class is loaded with the same set of scripts
+ * again, typically when a service is restarted with the agent in premain.
+ * <p>
+ * An entry is keyed by the SHA-1 of the agent version and settings, the
+ * defining class loader, the supertypes of a retransformed class, the original
+ * class bytes and the final bytes of all the participating scripts.
+ * Each entry carries a CRC32 of the instrumented bytes and is discarded when
+ * it does not match. When the cache grows over its size limit the least recently
+ * used entries are evicted.
+ *
+ * @author Jaroslav Bachorik
+ * @since 1.3
+ */
+final class InstrumentationCache {
+    private static final int MAGIC = 0x42544943; // BTIC
+    private static final int FORMAT = 1;
+    private static final String SUFFIX = ".cls";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final FileFilter ENTRY_FILTER = new FileFilter() {
+        public boolean accept(File f) {
+            return f.isFile() && f.getName().endsWith(SUFFIX);
+        }
+    };
+
+    /**
+     * A cache hit
+     */
+    static final class Entry {
+        private final byte[] code;
+        private final long matched;
+
+        private Entry(byte[] code, long matched) {
+            this.code = code;
+            this.matched = matched;
+        }
+
+        byte[] getCode() {
+            return code;
+        }
+
+        /**
+         * @param idx The participant index
+         * @return {@code true} if the participant matched any method of the class
+         */
+        boolean isMatched(int idx) {
+            return (matched & (1L << idx)) != 0;
+        }
+    }
+
+    private final File dir;
+    private final long maxSize;
+    private final byte[] agentVersion;
+    private final AtomicLong size = new AtomicLong();
+
+    InstrumentationCache(File dir, long maxSize) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("can not create cache directory " + dir);
+        }
+        this.dir = dir;
+        this.maxSize = maxSize;
+        this.agentVersion = utf8(getAgentVersion());
+        File[] entries = dir.listFiles(ENTRY_FILTER);
+        if (entries != null) {
+            for (File f : entries) {
+                size.addAndGet(f.length());
+            }
+        }
+    }
+
+    /**
+     * Computes the cache key for the given class and participating scripts.
+     * <p>
+     * The loader takes part in the key because the stack map frames are
+     * computed from the class hierarchy it sees. The subtype matching of
+     * a retransformed class works on the resolved supertypes; those are
+     * a part of the key, too.
+     * @param loader The defining class loader
+     * @param clazz The class being retransformed or {@code null}
+     * @param target The original class bytes
+     * @param scriptHashes The {@linkplain #hash(byte[]) hashes} of the participating
+     *                     scripts, in the instrumentation order
+     * @return The key or {@code null} if the combination can not be cached
+     */
+    String key(ClassLoader loader, Class<?> clazz, byte[] target, List<String> scriptHashes) {
+        if (scriptHashes.size() > 64) {
+            return null;
+        }
+        MessageDigest md = sha1();
+        md.update(agentVersion);
+        md.update(utf8(loaderId(loader)));
+        md.update((byte)(clazz != null ? 1 : 0));
+        if (clazz != null) {
+            Set<String> superTypes = new LinkedHashSet<String>();
+            collectSuperTypes(clazz, superTypes);
+            for (String st : superTypes) {
+                md.update(utf8(st));
+                md.update((byte)0);
+            }
+        }
+        // the inlined handlers change the instrumented code
+        md.update(utf8(String.valueOf(Main.getInlineThreshold())));
+        md.update((byte)(Main.isSharedExit() ? 1 : 0));
+        for (String h : scriptHashes) {
+            if (h == null) {
+                return null;
+            }
+            md.update(utf8(h));
+        }
+        md.update(target);
+        return toHex(md.digest());
+    }
+
+    Entry get(String key) {
+        File f = entryFile(key);
+        if (!f.isFile()) {
+            return null;
+        }
+        DataInputStream dis = null;
+        try {
+            dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+            if (dis.readInt() != MAGIC || dis.readInt() != FORMAT || !key.equals(dis.readUTF())) {
+                throw new IOException("invalid cache entry header");
+            }
+            long matched = dis.readLong();
+            int len = dis.readInt();
+            long crc = dis.readLong();
+            if (len < 0 || len > f.length()) {
+                throw new IOException("invalid cache entry length");
+            }
+            byte[] code = new byte[len];
+            dis.readFully(code);
+            if (crc(code) != crc) {
+                throw new IOException("cache entry checksum mismatch");
+            }
+            f.setLastModified(System.currentTimeMillis());
+            return new Entry(code, matched);
+        } catch (IOException e) {
+            if (Main.isDebug()) Main.debugPrint("discarding cache entry " + f + ": " + e.getMessage());
+            close(dis);
+            dis = null;
+            remove(f);
+            return null;
+        } finally {
+            close(dis);
+        }
+    }
+
+    /**
+     * Stores the instrumented class bytes
+     * @param key The key as computed by {@linkplain #key(ClassLoader, Class, byte[], java.util.List) }
+     * @param code The instrumented class bytes
+     * @param matched The bit mask of the participants which matched any method
+     */
+    void put(String key, byte[] code, long matched) {
+        if (key == null) {
+            return;
+        }
+        File f = entryFile(key);
+        File tmp = new File(dir, key + "." + Thread.currentThread().getId() + ".tmp");
+        DataOutputStream dos = null;
+        try {
+            dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            dos.writeInt(MAGIC);
+            dos.writeInt(FORMAT);
+            dos.writeUTF(key);
+            dos.writeLong(matched);
+            dos.writeInt(code.length);
+            dos.writeLong(crc(code));
+            dos.write(code);
+            dos.close();
+            dos = null;
+            long prev = f.length();
+            if (!tmp.renameTo(f)) {
+                tmp.delete();
+                return;
+            }
+            if (size.addAndGet(f.length() - prev) > maxSize) {
+                evict();
+            }
+        } catch (IOException e) {
+            if (Main.isDebug()) Main.debugPrint(e);
+            close(dos);
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Evicts the least recently used entries until the cache
+     * shrinks to 3/4 of its maximum size
+     */
+    private synchronized void evict() {
+        File[] entries = dir.listFiles(ENTRY_FILTER);
+        if (entries == null) {
+            return;
+        }
+        long total = 0;
+        for (File f : entries) {
+            total += f.length();
+        }
+        Arrays.sort(entries, new Comparator<File>() {
+            public int compare(File f1, File f2) {
+                long l1 = f1.lastModified();
+                long l2 = f2.lastModified();
+                return l1 < l2 ? -1 : (l1 == l2 ? 0 : 1);
+            }
+        });
+        long limit = maxSize / 4 * 3;
+        for (int i = 0; i < entries.length && total > limit; i++) {
+            long len = entries[i].length();
+            if (entries[i].delete()) {
+                total -= len;
+            }
+        }
+        size.set(total);
+        if (Main.isDebug()) Main.debugPrint("instrumentation cache shrunk to " + total + " bytes");
+    }
+
+    private void remove(File f) {
+        long len = f.length();
+        if (f.delete()) {
+            size.addAndGet(-len);
+        }
+    }
+
+    private File entryFile(String key) {
+        return new File(dir, key + SUFFIX);
+    }
+
+    /**
+     * The loader instances differ between the JVM runs; the loader is
+     * identified by its type, its class path and its parents instead.
+     */
+    private static String loaderId(ClassLoader loader) {
+        StringBuilder sb = new StringBuilder();
+        while (loader != null) {
+            sb.append(loader.getClass().getName());
+            if (loader instanceof URLClassLoader) {
+                for (URL u : ((URLClassLoader)loader).getURLs()) {
+                    sb.append(';').append(u);
+                }
+            }
+            sb.append('>');
+            loader = loader.getParent();
+        }
+        return sb.append("<bootstrap>").toString();
+    }
+
+    private static void collectSuperTypes(Class<?> clazz, Set<String> types) {
+        for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+            if (!types.add(c.getName())) {
+                return;
+            }
+            for (Class<?> iface : c.getInterfaces()) {
+                collectSuperTypes(iface, types);
+            }
+        }
+    }
+
+    /**
+     * Computes the hash of a script used as a part of the cache keys
+     * @param code The final BTrace class bytes
+     * @return The hash
+     */
+    static String hash(byte[] code) {
+        return toHex(sha1().digest(code));
+    }
+
+    private static String getAgentVersion() {
+        CodeSource cs = InstrumentationCache.class.getProtectionDomain().getCodeSource();
+        if (cs != null && cs.getLocation() != null && "file".equals(cs.getLocation().getProtocol())) {
+            File f = new File(cs.getLocation().getPath());
+            if (f.isFile()) {
+                return f.getName() + ":" + f.length() + ":" + f.lastModified();
+            }
+        }
+        return "unknown";
+    }
+
+    private static long crc(byte[] code) {
+        CRC32 crc = new CRC32();
+        crc.update(code);
+        return crc.getValue();
+    }
+
+    private static MessageDigest sha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String toHex(byte[] data) {
+        char[] chars = new char[data.length * 2];
+        for (int i = 0; i < data.length; i++) {
+            chars[i * 2] = HEX[(data[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[data[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void close(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2014, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.btrace.agent;
+
+import com.sun.btrace.BTraceRuntime;
+import com.sun.btrace.org.objectweb.asm.ClassReader;
+import com.sun.btrace.org.objectweb.asm.ClassVisitor;
+import com.sun.btrace.org.objectweb.asm.ClassWriter;
+import com.sun.btrace.runtime.ClassHeader;
+import com.sun.btrace.runtime.InstrumentUtils;
+import com.sun.btrace.runtime.Instrumentor;
+import com.sun.management.HotSpotDiagnosticMXBean;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
+import java.lang.instrument.Instrumentation;
+import java.lang.management.ManagementFactory;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The single retransforming {@linkplain ClassFileTransformer} shared by all
+ * the active BTrace clients.
+ * <p>
+ * Instead of each client parsing and rewriting the class on its own the
+ * instrumentors of all the interested clients are chained and the class is
+ * read and written only once.
+ *
+ * @author Jaroslav Bachorik
+ * @since 1.3
+ */
+final class InstrumentationCoordinator implements ClassFileTransformer {
+    private static final String HOTSPOT_BEAN_NAME =
+         "com.sun.management:type=HotSpotDiagnostic"; // NOI18N
+    // the HotSpot defaults of -XX:MaxInlineSize and -XX:FreqInlineSize
+    private static final int DEFAULT_MAX_INLINE_SIZE = 35;
+    private static final int DEFAULT_FREQ_INLINE_SIZE = 325;
+
+    private static InstrumentationCoordinator instance;
+
+    private final Instrumentation inst;
+    private final List<Client> clients = new CopyOnWriteArrayList<Client>();
+    private boolean registered = false;
+    // the JIT inlining thresholds; read up front as the management
+    // classes can not be safely loaded from within the transformer
+    private int maxInlineSize = DEFAULT_MAX_INLINE_SIZE;
+    private int freqInlineSize = DEFAULT_FREQ_INLINE_SIZE;
+
+    private InstrumentationCoordinator(Instrumentation inst) {
+        this.inst = inst;
+    }
+
+    static synchronized InstrumentationCoordinator getInstance(Instrumentation inst) {
+        if (instance == null) {
+            instance = new InstrumentationCoordinator(inst);
+        }
+        return instance;
+    }
+
+    /**
+     * Adds the client to the set of clients taking part in the instrumentation
+     * @param client The client
+     */
+    synchronized void register(Client client) {
+        clients.add(client);
+        if (!registered) {
+            if (Main.isRetransformTracking() || Main.isDebug()) {
+                maxInlineSize = readVMOption("MaxInlineSize", DEFAULT_MAX_INLINE_SIZE);
+                freqInlineSize = readVMOption("FreqInlineSize", DEFAULT_FREQ_INLINE_SIZE);
+            }
+            inst.addTransformer(this, true);
+            registered = true;
+        }
+    }
+
+    /**
+     * Removes the client from the set of clients taking part in the instrumentation
+     * @param client The client
+     */
+    synchronized void unregister(Client client) {
+        clients.remove(client);
+        if (clients.isEmpty() && registered) {
+            inst.removeTransformer(this);
+            registered = false;
+        }
+    }
+
+    public byte[] transform(
+                ClassLoader loader,
+                String cname,
+                Class<?> classBeingRedefined,
+                ProtectionDomain protectionDomain,
+                byte[] classfileBuffer)
+        throws IllegalClassFormatException {
+        boolean entered = BTraceRuntime.enter();
+        try {
+            if (cname == null) {
+                cname = Client.readClassName(classfileBuffer);
+                if (cname == null) {
+                    if (Main.isDebug()) Main.debugPrint("skipping transform for unknown class"); // NOI18N
+                    return null;
+                }
+            }
+            if (Client.isBTraceClass(cname) || Client.isSensitiveClass(cname)) {
+                if (Main.isDebug()) Main.debugPrint("skipping transform for BTrace class " + cname); // NOI18N
+                return null;
+            }
+
+            List<Client> participants = new ArrayList<Client>(clients.size());
+            for (Client c : clients) {
+                if (c.isTransformCandidate(classBeingRedefined, classfileBuffer)) {
+                    participants.add(c);
+                } else {
+                    if (Main.isDebug()) Main.debugPrint("client " + c.getClassName() + ": skipping transform for " + cname); // NOI18N
+                }
+            }
+            if (participants.isEmpty()) {
+                return null;
+            }
+            byte[] code = instrument(loader, classBeingRedefined, cname, classfileBuffer, participants);
+            if (code != null && (Main.isRetransformTracking() || Main.isDebug())) {
+                reportMethodSizes(cname, classfileBuffer, code, participants);
+            }
+            return code;
+        } catch (Exception e) {
+            e.printStackTrace();
+            if (e instanceof IllegalClassFormatException) {
+                throw (IllegalClassFormatException)e;
+            }
+            return null;
+        } finally {
+            if (entered) {
+                BTraceRuntime.leave();
+            }
+        }
+    }
+
+    private byte[] instrument(ClassLoader loader, Class<?> clazz, String cname,
+                              byte[] target, List<Client> participants) {
+        int cnt = participants.size();
+        InstrumentationCache cache = Main.getInstrumentationCache();
+        String key = null;
+        if (cache != null) {
+            List<String> hashes = new ArrayList<String>(cnt);
+            for (Client c : participants) {
+                hashes.add(c.getCodeHash());
+            }
+            key = cache.key(loader, clazz, target, hashes);
+            InstrumentationCache.Entry cached = key != null ? cache.get(key) : null;
+            if (cached != null) {
+                if (Main.isDebug()) Main.debugPrint("using cached instrumentation of " + cname); // NOI18N
+                for (int i = 0; i < cnt; i++) {
+                    Client c = participants.get(i);
+                    c.notifyTransform(cname);
+                    if (cached.isMatched(i)) {
+                        c.classInstrumented(cname);
+                    }
+                }
+                return cached.getCode();
+            }
+        }
+        Instrumentor[] instrumentors = new Instrumentor[cnt];
+        byte[] instrumentedCode;
+        try {
+            ClassWriter writer = InstrumentUtils.newClassWriter(target, loader);
+            ClassVisitor cv = writer;
+            // the first client gets to see the original class
+            for (int i = cnt - 1; i >= 0; i--) {
+                instrumentors[i] = participants.get(i).instrumentor(clazz, cname, cv);
+                cv = instrumentors[i];
+            }
+            InstrumentUtils.accept(new ClassReader(target), cv);
+            instrumentedCode = writer.toByteArray();
+        } catch (Throwable th) {
+            Main.debugPrint(th);
+            // one of the scripts failed; instrument the class script by script
+            return instrumentSeparately(loader, clazz, cname, target, participants);
+        }
+        long matched = 0;
+        boolean cacheable = true;
+        for (int i = 0; i < cnt; i++) {
+            Client c = participants.get(i);
+            cacheable &= !instrumentors[i].usesSampling();
+            if (instrumentors[i].hasMatch()) {
+                matched |= 1L << i;
+                c.classInstrumented(cname);
+            } else if (Main.isDebug()) {
+                Main.debugPrint("*WARNING* No method was matched for class " + cname + " by " + c.getClassName()); // NOI18N
+            }
+            Main.dumpClass(c.getClassName(), cname, instrumentedCode);
+        }
+        if (cache != null && cacheable) {
+            cache.put(key, instrumentedCode, matched);
+        }
+        return instrumentedCode;
+    }
+
+    /**
+     * Reports the methods the instrumentation made grow over the JIT inlining
+     * thresholds. Such a method may not get inlined into its hot callers any
+     * more and the traced application performs differently than without the
+     * probes. The synthetic methods added by the instrumentation are ignored.
+     */
+    private void reportMethodSizes(String cname, byte[] target, byte[] code, List<Client> participants) {
+        Map<String, Integer> origSizes = ClassHeader.read(target).getCodeSizes();
+        Map<String, Integer> sizes = ClassHeader.read(code).getCodeSizes();
+        for (Map.Entry<String, Integer> e : sizes.entrySet()) {
+            Integer origSize = origSizes.get(e.getKey());
+            if (origSize == null) {
+                continue;
+            }
+            int size = e.getValue();
+            int threshold = 0;
+            if (origSize <= freqInlineSize && size > freqInlineSize) {
+                threshold = freqInlineSize;
+            } else if (origSize <= maxInlineSize && size > maxInlineSize) {
+                threshold = maxInlineSize;
+            }
+            if (threshold > 0) {
+                for (Client c : participants) {
+                    c.notifyMethodSize(cname, e.getKey(), origSize, size, threshold);
+                }
+            }
+        }
+    }
+
+    private static int readVMOption(String name, int dflt) {
+        try {
+            HotSpotDiagnosticMXBean bean = ManagementFactory.newPlatformMXBeanProxy(
+                ManagementFactory.getPlatformMBeanServer(),
+                HOTSPOT_BEAN_NAME, HotSpotDiagnosticMXBean.class
+            );
+            return Integer.parseInt(bean.getVMOption(name).getValue());
+        } catch (Throwable th) {
+            // not a HotSpot VM
+            if (Main.isDebug()) Main.debugPrint("can not read -XX:" + name + ", using " + dflt); // NOI18N
+            return dflt;
+        }
+    }
+
+    private static byte[] instrumentSeparately(ClassLoader loader, Class<?> clazz, String cname,
+                                               byte[] target, List<Client> participants) {
+        byte[] code = target;
+        for (Client c : participants) {
+            byte[] instrumented = c.instrument(loader, clazz, cname, code);
+            if (instrumented != null) {
+                code = instrumented;
+            }
+        }
+        return code != target ? code : null;
+    }
+}
@@ -51,7 +51,10 @@ import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.PrintWriter;
 import java.util.Date;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
@@ -63,6 +66,15 @@ import java.util.concurrent.TimeUnit;
  * @authos Joachim Skeie (rolling output)
  */
 public final class Main {
+    // number of classes retransformed at once; <= 0 means all of them
+    private static final int DEFAULT_RETRANSFORM_CHUNK_SIZE = 500;
+    // milliseconds between two retransformation chunks
+    private static final long DEFAULT_RETRANSFORM_PAUSE = 10;
+    // below this number of loaded classes the filtering is done serially
+    private static final int PARALLEL_SCAN_THRESHOLD = 2000;
+    // maximum size of the instrumentation cache in bytes
+    private static final long DEFAULT_CACHE_SIZE = 64L * 1024 * 1024;
+
     private static volatile Map<String, String> argMap;
     private static volatile Instrumentation inst;
     private static volatile boolean debugMode;
@@ -73,6 +85,15 @@ public final class Main {
     private static volatile String probeDescPath;
     private static volatile String scriptOutputFile;
     private static volatile Long fileRollMilliseconds;;
+    private static volatile int retransformChunkSize = DEFAULT_RETRANSFORM_CHUNK_SIZE;
+    private static volatile long retransformPause = DEFAULT_RETRANSFORM_PAUSE;
+    private static volatile int scanThreads = Runtime.getRuntime().availableProcessors();
+    private static volatile int inlineThreshold = 0;
+    private static volatile boolean sharedExit;
+    private static volatile int probeCostSampling = 0;
+    private static volatile long probeStatsPeriod = 0;
+    private static volatile long probeBudget = 0;
+    private static volatile InstrumentationCache instrumentationCache;
 
     // #BTRACE-42: Non-daemon thread prevents traced application from exiting
     private static final ThreadFactory daemonizedThreadFactory = new ThreadFactory() {
@@ -240,6 +261,90 @@ public final class Main {
                 if (isDebug()) debugPrint("fileRollMilliseconds is " + fileRollMilliseconds);
             }
         }
+        p = argMap.get("retransformChunkSize");
+        if (p != null && p.length() > 0) {
+            try {
+                retransformChunkSize = Integer.parseInt(p);
+            } catch (NumberFormatException nfe) {
+                error("invalid retransformChunkSize assuming default..");
+            }
+            if (isDebug()) debugPrint("retransformChunkSize is " + retransformChunkSize);
+        }
+        p = argMap.get("retransformPause");
+        if (p != null && p.length() > 0) {
+            try {
+                retransformPause = Long.parseLong(p);
+            } catch (NumberFormatException nfe) {
+                error("invalid retransformPause assuming default..");
+            }
+            if (isDebug()) debugPrint("retransformPause is " + retransformPause);
+        }
+        p = argMap.get("scanThreads");
+        if (p != null && p.length() > 0) {
+            try {
+                scanThreads = Integer.parseInt(p);
+            } catch (NumberFormatException nfe) {
+                error("invalid scanThreads assuming default..");
+            }
+            if (isDebug()) debugPrint("scanThreads is " + scanThreads);
+        }
+        p = argMap.get("inlineThreshold");
+        if (p != null && p.length() > 0) {
+            try {
+                inlineThreshold = Integer.parseInt(p);
+            } catch (NumberFormatException nfe) {
+                error("invalid inlineThreshold assuming default..");
+            }
+            if (isDebug()) debugPrint("inlineThreshold is " + inlineThreshold);
+        }
+        p = argMap.get("sharedExit");
+        sharedExit = p != null && !"false".equals(p);
+        if (isDebug()) debugPrint("sharedExit is " + sharedExit);
+        p = argMap.get("probeCostSampling");
+        if (p != null && p.length() > 0) {
+            try {
+                probeCostSampling = Integer.parseInt(p);
+            } catch (NumberFormatException nfe) {
+                error("invalid probeCostSampling assuming default..");
+            }
+            if (isDebug()) debugPrint("probeCostSampling is " + probeCostSampling);
+        }
+        p = argMap.get("probeStatsPeriod");
+        if (p != null && p.length() > 0) {
+            try {
+                probeStatsPeriod = Long.parseLong(p);
+            } catch (NumberFormatException nfe) {
+                error("invalid probeStatsPeriod assuming default..");
+            }
+            if (isDebug()) debugPrint("probeStatsPeriod is " + probeStatsPeriod);
+        }
+        p = argMap.get("probeBudget");
+        if (p != null && p.length() > 0) {
+            try {
+                probeBudget = Long.parseLong(p);
+            } catch (NumberFormatException nfe) {
+                error("invalid probeBudget assuming default..");
+            }
+            if (isDebug()) debugPrint("probeBudget is " + probeBudget);
+        }
+        p = argMap.get("cacheDir");
+        if (p != null && p.length() > 0) {
+            long cacheSize = DEFAULT_CACHE_SIZE;
+            String sz = argMap.get("cacheSize");
+            if (sz != null && sz.length() > 0) {
+                try {
+                    cacheSize = Long.parseLong(sz) * 1024 * 1024;
+                } catch (NumberFormatException nfe) {
+                    error("invalid cacheSize assuming default..");
+                }
+            }
+            try {
+                instrumentationCache = new InstrumentationCache(new File(p), cacheSize);
+                if (isDebug()) debugPrint("instrumentation cache is " + p + " (" + cacheSize + " bytes)");
+            } catch (IOException e) {
+                error("can not use instrumentation cache " + p + ": " + e.getMessage());
+            }
+        }
 	p = argMap.get("unsafe");
         unsafeMode = "true".equals(p);
         if (isDebug()) debugPrint("unsafeMode is " + unsafeMode);
@@ -418,16 +523,8 @@ public final class Main {
                     if (client.shouldAddTransformer()) {
                         client.registerTransformer();
                         Class[] classes = inst.getAllLoadedClasses();
-                        ArrayList<Class> list = new ArrayList<Class>();
                         if (isDebug()) debugPrint("filtering loaded classes");
-                        for (Class c : classes) {
-                            if (inst.isModifiableClass(c) &&
-                                client.isCandidate(c)) {
-                                if (isDebug()) debugPrint("candidate " + c + " added");
-                                list.add(c);
-                            }
-                        }
-                        list.trimToSize();
+                        List<Class> list = findCandidates(client, classes);
                         int size = list.size();
                         if (isDebug()) debugPrint("added as ClassFileTransformer");
                         if (size > 0) {
@@ -443,7 +540,7 @@ public final class Main {
                                     }
                                 }
                             } else {
-                                inst.retransformClasses(classes);
+                                retransformInChunks(client, classes);
                             }
                             client.skipRetransforms();
                         }
@@ -460,10 +557,112 @@ public final class Main {
 
     }
 
+    /**
+     * Filters the loaded classes for the ones the client wants to instrument.
+     * Large class sets are split into slices checked in parallel. A slice
+     * whose check fails or can not be waited for is re-checked serially
+     * so the result is always complete.
+     */
+    private static List<Class> findCandidates(final Client client, final Class[] classes) {
+        int threads = Math.min(scanThreads, classes.length / (PARALLEL_SCAN_THRESHOLD / 2));
+        if (classes.length < PARALLEL_SCAN_THRESHOLD || threads < 2) {
+            return findCandidates(client, classes, 0, classes.length);
+        }
+        ExecutorService scanner = Executors.newFixedThreadPool(threads, daemonizedThreadFactory);
+        try {
+            int slices = threads * 4;
+            int sliceSize = (classes.length + slices - 1) / slices;
+            List<Future<List<Class>>> results = new ArrayList<Future<List<Class>>>(slices);
+            for (int from = 0; from < classes.length; from += sliceSize) {
+                final int start = from;
+                final int end = Math.min(from + sliceSize, classes.length);
+                results.add(scanner.submit(new Callable<List<Class>>() {
+                    public List<Class> call() {
+                        return findCandidates(client, classes, start, end);
+                    }
+                }));
+            }
+            List<Class> list = new ArrayList<Class>();
+            boolean interrupted = false;
+            for (int i = 0; i < results.size(); i++) {
+                Future<List<Class>> f = results.get(i);
+                if (!interrupted) {
+                    try {
+                        list.addAll(f.get());
+                        continue;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                        scanner.shutdownNow();
+                    } catch (ExecutionException e) {
+                        if (isDebug()) debugPrint(e.getCause());
+                    }
+                }
+                int start = i * sliceSize;
+                list.addAll(findCandidates(client, classes, start, Math.min(start + sliceSize, classes.length)));
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            return list;
+        } finally {
+            scanner.shutdown();
+        }
+    }
+
+    private static List<Class> findCandidates(Client client, Class[] classes, int from, int to) {
+        List<Class> list = new ArrayList<Class>();
+        for (int i = from; i < to; i++) {
+            Class c = classes[i];
+            if (inst.isModifiableClass(c) &&
+                client.isCandidate(c)) {
+                if (isDebug()) debugPrint("candidate " + c + " added");
+                list.add(c);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Retransforms the classes in chunks of {@code retransformChunkSize} classes
+     * with a short pause between them. This keeps the safepoint pauses
+     * caused by the retransformation short.
+     * Used both when attaching and when detaching a client.
+     * The client is notified about the progress after each chunk.
+     */
+    static void retransformInChunks(Client client, Class[] classes) throws UnmodifiableClassException {
+        int chunkSize = retransformChunkSize;
+        if (chunkSize <= 0 || chunkSize >= classes.length) {
+            inst.retransformClasses(classes);
+            client.retransformProgress(classes.length, classes.length);
+            return;
+        }
+        for (int from = 0; from < classes.length; from += chunkSize) {
+            int to = Math.min(from + chunkSize, classes.length);
+            Class[] chunk = new Class[to - from];
+            System.arraycopy(classes, from, chunk, 0, chunk.length);
+            inst.retransformClasses(chunk);
+            client.retransformProgress(to, classes.length);
+            if (to < classes.length && retransformPause > 0) {
+                try {
+                    Thread.sleep(retransformPause);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
     private static void error(String msg) {
         System.err.println(msg);
     }
 
+    /**
+     * @return The on-disk instrumentation cache or {@code null} if not enabled
+     */
+    static InstrumentationCache getInstrumentationCache() {
+        return instrumentationCache;
+    }
+
     static void dumpClass(String btraceClassName, String targetClassName, byte[] code) {
         if (dumpClasses) {
             try {
@@ -543,6 +742,53 @@ public final class Main {
         return debugMode;
     }
 
+    /**
+     * The inlined handlers bypass the probe statistics, therefore the inlining
+     * is disabled while the statistics or the probe budget are in use.
+     * @return The max. size of a handler body inlined into the probe sites; 0 if disabled
+     */
+    static int getInlineThreshold() {
+        return isProbeStats() ? 0 : inlineThreshold;
+    }
+
+    /**
+     * @return {@code true} if the method exit probes are generated once per method
+     */
+    static boolean isSharedExit() {
+        return sharedExit;
+    }
+
+    /**
+     * @return Every N-th probe handler invocation is timed; 0 if disabled
+     */
+    static int getProbeCostSampling() {
+        return probeCostSampling;
+    }
+
+    /**
+     * @return The period in ms of sending the probe statistics; 0 if disabled
+     */
+    static long getProbeStatsPeriod() {
+        return probeStatsPeriod;
+    }
+
+    /**
+     * A probe over the budget is sampled down step by step and then disabled.
+     * The budget turns on the cost sampling of every 100th invocation unless
+     * {@linkplain #getProbeCostSampling()} is set.
+     * @return The max. handler time in ns per second of a probe; 0 if unlimited
+     */
+    static long getProbeBudget() {
+        return probeBudget;
+    }
+
+    /**
+     * @return {@code true} if the probe handler invocations are counted and timed
+     */
+    static boolean isProbeStats() {
+        return probeCostSampling > 0 || probeStatsPeriod > 0 || probeBudget > 0;
+    }
+
     static boolean isRetransformTracking() {
         return trackRetransforms;
     }
@@ -113,6 +113,8 @@ class RemoteClient extends Client {
         switch (cmd.getType()) {
         case Command.EXIT:
             if (debug) Main.debugPrint("client " + getClassName() + ": got " + cmd);
+            // report the probe removal before the client goes away
+            detach();
             WireIO.write(oos, cmd);
             onExit(((ExitCommand)cmd).getExitCode());
             break;
@@ -43,7 +43,44 @@ import java.lang.annotation.Target;
 public @interface Duration {
     /**
      * Allows to capture only each n-th invocation in average
+     * <p>
+     * The value of {@linkplain #ADAPTIVE} turns on the adaptive sampling.
+     * The sampling interval is then adjusted continuously so that the cost
+     * of the duration measurement and of the handler invocation stays within
+     * the {@linkplain #overheadBudgetNs()}. The handler is invoked only for
+     * the measured invocations. The currently used interval can be obtained
+     * via a {@linkplain SamplingRate} annotated parameter.
      * @return The sampling interval
      */
     int samplingInterval() default 1;
+
+    /**
+     * The overhead budget for the adaptive sampling in nanoseconds of
+     * the measurement and handler cost per second, per thread and probed method.
+     * <p>
+     * Used only when {@linkplain #samplingInterval()} is {@linkplain #ADAPTIVE};
+     * any value lower than 1 means the default budget of 1ms per second.
+     * @return The overhead budget
+     * @since 1.3
+     */
+    long overheadBudgetNs() default 0;
+
+    /**
+     * Limits the number of measured invocations per second, per thread and
+     * probed method. Once the limit is reached the remaining invocations
+     * within the same second are not measured.
+     * <p>
+     * Any value greater than 0 takes precedence over {@linkplain #samplingInterval()}.
+     * The resulting average sampling interval can be obtained via a
+     * {@linkplain SamplingRate} annotated parameter.
+     * @return The maximum number of measured invocations per second
+     * @since 1.3
+     */
+    int maxSamplesPerSec() default 0;
+
+    /**
+     * The {@linkplain #samplingInterval()} value requesting the adaptive sampling
+     * @since 1.3
+     */
+    int ADAPTIVE = -1;
 }
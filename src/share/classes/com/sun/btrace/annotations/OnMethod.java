@@ -78,4 +78,36 @@ public @interface OnMethod {
     Location location() default @Location();
 
     boolean follow() default false;
+
+    /**
+     * Name of a public static boolean method of the BTrace class
+     * deciding whether the handler should be invoked at all.
+     * <p>
+     * The predicate is evaluated at the probe site before the handler
+     * arguments are captured - a rejected invocation does not box any
+     * arguments nor allocate the argument arrays.
+     * </p>
+     * <p>
+     * The predicate parameters are a subset of the handler parameters.
+     * An annotated parameter (eg. {@linkplain Duration}) takes the value
+     * of the handler parameter with the same annotation; the unannotated
+     * ones take the unannotated handler parameters in order. The types
+     * must match and {@linkplain com.sun.btrace.AnyType} is not allowed.
+     * </p>
+     * Eg.
+     * <pre>
+     * public static boolean slow(@Duration long d) {
+     *     return d > 1000000;
+     * }
+     *
+     * &#64;OnMethod(clazz="java.io.File", method="exists",
+     *           location=&#64;Location(Kind.RETURN), predicate="slow")
+     * public static void onExists(&#64;Duration long d, &#64;Self Object o) {
+     *     ...
+     * }
+     * </pre>
+     *
+     * @since 1.3
+     */
+    String predicate() default "";
 }
@@ -63,6 +63,9 @@ public abstract class BTraceTask {
         public void onNumberMap(String name, Map<String, ? extends Number> data) {};
         public void onStringMap(String name, Map<String, String> data) {};
         public void onClassInstrumented(String name) {}
+        public void onMethodSizeExceeded(String className, String method, int originalSize, int size, int threshold) {}
+        public void onRetransformProgress(int done, int total) {}
+        public void onProbeOverhead(String probe, long cost, long budget, int sampling) {}
         public void onError(Throwable cause) {}
     }
 
@@ -177,6 +180,31 @@ public abstract class BTraceTask {
      */
     abstract public void sendEvent();
 
+    /**
+     * Switches an {@code @OnMethod} probe of the running script on or off.
+     * The probed classes are not retransformed.
+     * @param probe The probe handler name followed by its descriptor; the name
+     *              alone is sufficient if the handler is not overloaded
+     * @param enabled The requested probe state
+     */
+    abstract public void setProbeEnabled(String probe, boolean enabled);
+
+    /**
+     * Asks the running script for its per-probe statistics. The statistics
+     * arrive asynchronously - both via {@linkplain MessageDispatcher#onGrid(String, List)}
+     * and {@linkplain #getProbeStats()}.
+     */
+    abstract public void requestProbeStats();
+
+    /**
+     * The last per-probe statistics received from the running script.
+     * Each row holds the probe handler name, the number of its invocations,
+     * the number of the timed invocations and their total and average time
+     * in nanoseconds.
+     * @return Returns the per-probe statistics or an empty list if none were received yet
+     */
+    abstract public List<Object[]> getProbeStats();
+
     /**
      * A list of named events
      * @return Returns the list of all named events defined in the script
@@ -328,6 +328,17 @@ public class BTraceEngineImpl extends BTraceEngine {
         }
     }
 
+    void setProbeEnabled(BTraceTaskImpl task, String probe, boolean enabled) {
+        Client client = clientMap.get(task);
+        if (client != null) {
+            try {
+                client.setProbeEnabled(probe, enabled);
+            } catch (IOException ex) {
+                LOGGER.log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
     ClasspathProvider getClasspathProvider() {
         return cpProvider;
     }
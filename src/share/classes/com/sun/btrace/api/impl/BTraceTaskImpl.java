@@ -27,8 +27,10 @@ package com.sun.btrace.api.impl;
 import com.sun.btrace.comm.Command;
 import java.io.File;
 import java.io.PrintWriter;
+import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Matcher;
@@ -36,10 +38,14 @@ import java.util.regex.Pattern;
 import com.sun.btrace.api.BTraceEngine;
 import com.sun.btrace.api.BTraceTask;
 import com.sun.btrace.comm.ErrorCommand;
+import com.sun.btrace.comm.EventCommand;
 import com.sun.btrace.comm.GridDataCommand;
 import com.sun.btrace.comm.MessageCommand;
 import com.sun.btrace.comm.NumberDataCommand;
 import com.sun.btrace.comm.NumberMapDataCommand;
+import com.sun.btrace.comm.MethodSizeNotification;
+import com.sun.btrace.comm.ProbeOverheadNotification;
+import com.sun.btrace.comm.RetransformProgressNotification;
 import com.sun.btrace.comm.RetransformClassNotification;
 import com.sun.btrace.comm.StringMapDataCommand;
 import java.util.concurrent.ExecutorService;
@@ -67,6 +73,7 @@ public class BTraceTaskImpl extends BTraceTask implements BTraceEngineImpl.State
     private String script;
     private int numInstrClasses;
     private boolean unsafe;
+    private volatile List<Object[]> probeStats = Collections.emptyList();
 
     final private BTraceEngineImpl engine;
 
@@ -116,6 +123,21 @@ public class BTraceTaskImpl extends BTraceTask implements BTraceEngineImpl.State
         engine.sendEvent(this);
     }
 
+    @Override
+    public void setProbeEnabled(String probe, boolean enabled) {
+        engine.setProbeEnabled(this, probe, enabled);
+    }
+
+    @Override
+    public void requestProbeStats() {
+        engine.sendEvent(this, EventCommand.PROBE_STATS);
+    }
+
+    @Override
+    public List<Object[]> getProbeStats() {
+        return probeStats;
+    }
+
     @Override
     public Set<String> getNamedEvents() {
         Set<String> events = new HashSet<String>();
@@ -279,6 +301,12 @@ public class BTraceTaskImpl extends BTraceTask implements BTraceEngineImpl.State
     }
 
     void dispatchCommand(final Command cmd) {
+        if (cmd.getType() == Command.GRID_DATA) {
+            GridDataCommand gdc = (GridDataCommand)cmd;
+            if (EventCommand.PROBE_STATS.equals(gdc.getName())) {
+                probeStats = gdc.getData();
+            }
+        }
         final Set<MessageDispatcher> dispatchingSet = new HashSet<BTraceTask.MessageDispatcher>();
         synchronized(messageDispatchers) {
             dispatchingSet.addAll(messageDispatchers);
@@ -296,6 +324,21 @@ public class BTraceTaskImpl extends BTraceTask implements BTraceEngineImpl.State
                             listener.onClassInstrumented(((RetransformClassNotification)cmd).getClassName());
                             break;
                         }
+                        case Command.METHOD_SIZE: {
+                            MethodSizeNotification msn = (MethodSizeNotification)cmd;
+                            listener.onMethodSizeExceeded(msn.getClassName(), msn.getMethod(), msn.getOriginalSize(), msn.getSize(), msn.getThreshold());
+                            break;
+                        }
+                        case Command.RETRANSFORM_PROGRESS: {
+                            RetransformProgressNotification rpn = (RetransformProgressNotification)cmd;
+                            listener.onRetransformProgress(rpn.getDone(), rpn.getTotal());
+                            break;
+                        }
+                        case Command.PROBE_OVERHEAD: {
+                            ProbeOverheadNotification pon = (ProbeOverheadNotification)cmd;
+                            listener.onProbeOverhead(pon.getProbe(), pon.getCost(), pon.getBudget(), pon.getSampling());
+                            break;
+                        }
                         case Command.NUMBER: {
                             NumberDataCommand ndc = (NumberDataCommand)cmd;
                             listener.onNumberMessage(ndc.getName(), ndc.getValue());
@@ -388,6 +388,14 @@ public class Client {
         send(new EventCommand(name));
     }
 
+    /**
+     * Sends an EventCommand switching an {@code @OnMethod} probe
+     * of the script on or off.
+     */
+    public void setProbeEnabled(String probe, boolean enabled) throws IOException {
+        send(EventCommand.switchProbe(probe, enabled));
+    }
+
     /**
      * Closes all connection state to the traced JVM.
      */
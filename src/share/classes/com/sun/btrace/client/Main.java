@@ -36,6 +36,7 @@ import com.sun.btrace.comm.Command;
 import com.sun.btrace.comm.DataCommand;
 import com.sun.btrace.comm.ErrorCommand;
 import com.sun.btrace.comm.ExitCommand;
+import com.sun.btrace.comm.ProbeOverheadNotification;
 import com.sun.btrace.util.Messages;
 
 /**
@@ -183,6 +184,8 @@ public final class Main {
                     if (cause != null) {
                         cause.printStackTrace();
                     }
+                } else if (type == Command.PROBE_OVERHEAD) {
+                    System.err.println(((ProbeOverheadNotification)cmd).getMessage());
                 }
             }
         };
@@ -212,7 +215,7 @@ public final class Main {
                 public void handle(Signal sig) {
                     try {
                         con.printf("Please enter your option:\n");
-                        con.printf("\t1. exit\n\t2. send an event\n\t3. send a named event\n");
+                        con.printf("\t1. exit\n\t2. send an event\n\t3. send a named event\n\t4. enable a probe\n\t5. disable a probe\n");
                         con.flush();
                         String option = con.readLine();
                         option = option.trim();
@@ -231,6 +234,13 @@ public final class Main {
                                 if (isDebug()) debugPrint("sending event command");
                                 client.sendEvent(name);
                             }
+                        } else if (option.equals("4") || option.equals("5")) {
+                            con.printf("Please enter the probe name: ");
+                            String name = con.readLine();
+                            if (name != null) {
+                                if (isDebug()) debugPrint("sending probe switch event");
+                                client.setProbeEnabled(name, option.equals("4"));
+                            }
                         } else {
                             con.printf("invalid option!\n");
                         }
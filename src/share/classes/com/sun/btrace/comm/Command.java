@@ -44,9 +44,12 @@ public abstract class Command implements Serializable {
     public static final byte GRID_DATA  = 10;
     public static final byte RETRANSFORMATION_START = 11;
     public static final byte RETRANSFORM_CLASS = 12;
+    public static final byte METHOD_SIZE = 13;
+    public static final byte RETRANSFORM_PROGRESS = 14;
+    public static final byte PROBE_OVERHEAD = 15;
     
     public static final byte FIRST_COMMAND = ERROR;
-    public static final byte LAST_COMMAND = RETRANSFORM_CLASS;
+    public static final byte LAST_COMMAND = PROBE_OVERHEAD;
 
     protected byte type;
     protected Command(byte type) {
@@ -30,6 +30,18 @@ import java.io.ObjectOutput;
 import java.io.IOException;
 
 public class EventCommand extends Command {
+    /**
+     * Event name prefixes reserved for switching {@code @OnMethod} probes;
+     * the rest of the event name is the probe handler name
+     */
+    public static final String ENABLE_PROBE = "btrace:enable:";
+    public static final String DISABLE_PROBE = "btrace:disable:";
+    /**
+     * Event requesting the per-probe statistics; they are sent back
+     * as a {@linkplain GridDataCommand} of the same name
+     */
+    public static final String PROBE_STATS = "btrace:probestats";
+
     private String event;
 
     public EventCommand(String event) {
@@ -53,4 +65,14 @@ public class EventCommand extends Command {
     public String getEvent() {
         return event;
     }
+
+    /**
+     * Creates an event switching the given probe on or off
+     * @param probe The probe handler name
+     * @param enabled The requested probe state
+     * @return The event command
+     */
+    public static EventCommand switchProbe(String probe, boolean enabled) {
+        return new EventCommand((enabled ? ENABLE_PROBE : DISABLE_PROBE) + probe);
+    }
 }
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2014, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.btrace.comm;
+
+import com.sun.btrace.Profiler;
+import java.io.IOException;
+import java.io.ObjectOutput;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@linkplain GridDataCommand} variant holding the call stacks collected
+ * by a {@linkplain Profiler} in the folded (collapsed) stack format.
+ * <br/><br/>
+ * Each row consists of the frames joined by ';' (root first) and the value
+ * for that stack - either the self time or the number of invocations.
+ * The output can be fed directly to the flame graph tools.
+ * <br/><br/>
+ * The stacks are kept as indices into a table of the block names and the
+ * rows are composed only while writing the command out so that large profiles
+ * are never materialized as strings in the traced application.
+ * On the receiving side the command is read as a plain {@linkplain GridDataCommand}.
+ *
+ * @author Jaroslav Bachorik
+ * @since 1.3
+ */
+public class FoldedStacksDataCommand extends GridDataCommand {
+    private static final String FORMAT = "%s %d";
+
+    private final List<String> frameNames = new ArrayList<String>();
+    private int[] stacks = new int[256];
+    private int stacksPtr = 0;
+    private long[] values = new long[32];
+    private int rows = 0;
+
+    /**
+     * Creates a new instance of {@linkplain FoldedStacksDataCommand}
+     * @param name The data name
+     * @param profiler The {@linkplain Profiler} to take the call stacks from
+     * @param invocations {@code true} to use the number of invocations as the
+     *                    stack value, {@code false} to use the self time
+     */
+    public FoldedStacksDataCommand(String name, Profiler profiler, final boolean invocations) {
+        super(name, null, FORMAT);
+        final Map<String, Integer> frameIds = new HashMap<String, Integer>();
+        profiler.visitStacks(new Profiler.StackVisitor() {
+            public void visitStack(String[] frames, int depth, long invocationCnt, long selfTime) {
+                ensureStacksCapacity(depth + 1);
+                stacks[stacksPtr++] = depth;
+                for(int i=0;i<depth;i++) {
+                    Integer id = frameIds.get(frames[i]);
+                    if (id == null) {
+                        id = frameNames.size();
+                        frameIds.put(frames[i], id);
+                        frameNames.add(frames[i]);
+                    }
+                    stacks[stacksPtr++] = id;
+                }
+                if (rows == values.length) {
+                    long[] newValues = new long[rows * 2];
+                    System.arraycopy(values, 0, newValues, 0, rows);
+                    values = newValues;
+                }
+                values[rows++] = invocations ? invocationCnt : selfTime;
+            }
+        });
+    }
+
+    /**
+     * Materializes the folded stacks; use {@linkplain #print(java.io.PrintWriter)}
+     * to stream the data instead
+     * @return The list of [folded stack, value] rows
+     */
+    @Override
+    public List<Object[]> getData() {
+        List<Object[]> data = new ArrayList<Object[]>(rows);
+        StringBuilder sb = new StringBuilder();
+        int ptr = 0;
+        for(int i=0;i<rows;i++) {
+            sb.setLength(0);
+            ptr = appendStack(sb, ptr);
+            data.add(new Object[]{sb.toString(), values[i]});
+        }
+        return data;
+    }
+
+    @Override
+    public void print(PrintWriter out) {
+        if (name != null && !name.equals("")) {
+            out.println(name);
+        }
+        int ptr = 0;
+        for(int i=0;i<rows;i++) {
+            ptr = appendStack(out, ptr);
+            out.print(' ');
+            out.println(values[i]);
+        }
+    }
+
+    @Override
+    protected void write(ObjectOutput out) throws IOException {
+        out.writeUTF(name != null ? name : "");
+        out.writeUTF(FORMAT);
+        out.writeInt(rows);
+        StringBuilder sb = new StringBuilder();
+        int ptr = 0;
+        for(int i=0;i<rows;i++) {
+            sb.setLength(0);
+            ptr = appendStack(sb, ptr);
+            out.writeInt(2);
+            out.writeObject(sb.toString());
+            out.writeObject(values[i]);
+        }
+    }
+
+    private int appendStack(Appendable a, int ptr) {
+        try {
+            int depth = stacks[ptr++];
+            for(int i=0;i<depth;i++) {
+                if (i > 0) {
+                    a.append(';');
+                }
+                String frame = frameNames.get(stacks[ptr++]);
+                // ';' is the frame separator; keep the descriptors parsable
+                for(int j=0;j<frame.length();j++) {
+                    char c = frame.charAt(j);
+                    a.append(c == ';' ? ',' : c);
+                }
+            }
+            return ptr;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void ensureStacksCapacity(int len) {
+        if (stacksPtr + len > stacks.length) {
+            int newLen = stacks.length * 2;
+            while (stacksPtr + len > newLen) {
+                newLen *= 2;
+            }
+            int[] newStacks = new int[newLen];
+            System.arraycopy(stacks, 0, newStacks, 0, stacksPtr);
+            stacks = newStacks;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2008-2010 Sun Microsystems, Inc.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Sun designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Sun in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Sun Microsystems, Inc., 4150 Network Circle, Santa Clara,
+ * CA 95054 USA or visit www.sun.com if you need additional information or
+ * have any questions.
+ */
+
+package com.sun.btrace.comm;
+
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.IOException;
+
+/**
+ * This command is sent out as a notification that the instrumentation
+ * made a method grow over one of the JIT inlining thresholds
+ * (-XX:MaxInlineSize or -XX:FreqInlineSize). Such a method may not be
+ * inlined into its callers any more which skews the measured performance.
+ *
+ * @author Jaroslav Bachorik
+ * @since 1.3
+ */
+public class MethodSizeNotification extends Command {
+    private String className;
+    private String method;
+    private int originalSize;
+    private int size;
+    private int threshold;
+
+    public MethodSizeNotification(String className, String method,
+                                  int originalSize, int size, int threshold) {
+        super(METHOD_SIZE);
+        this.className = className;
+        this.method = method;
+        this.originalSize = originalSize;
+        this.size = size;
+        this.threshold = threshold;
+    }
+
+    public MethodSizeNotification() {
+        super(METHOD_SIZE);
+    }
+
+    protected void write(ObjectOutput out) throws IOException {
+        out.writeObject(className);
+        out.writeObject(method);
+        out.writeInt(originalSize);
+        out.writeInt(size);
+        out.writeInt(threshold);
+    }
+
+    protected void read(ObjectInput in)
+        throws IOException, ClassNotFoundException {
+        className = (String)in.readObject();
+        method = (String)in.readObject();
+        originalSize = in.readInt();
+        size = in.readInt();
+        threshold = in.readInt();
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    /**
+     * @return The method name followed by its descriptor
+     */
+    public String getMethod() {
+        return method;
+    }
+
+    /**
+     * @return The bytecode size of the method before the instrumentation
+     */
+    public int getOriginalSize() {
+        return originalSize;
+    }
+
+    /**
+     * @return The bytecode size of the instrumented method
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return The inlining threshold the method grew over
+     */
+    public int getThreshold() {
+        return threshold;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2008-2010 Sun Microsystems, Inc.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Sun designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Sun in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Sun Microsystems, Inc., 4150 Network Circle, Santa Clara,
+ * CA 95054 USA or visit www.sun.com if you need additional information or
+ * have any questions.
+ */
+package com.sun.btrace.comm;
+
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.IOException;
+
+/**
+ * This command is sent out when an {@code @OnMethod} probe has exceeded
+ * its overhead budget and has been sampled down or disabled. The script
+ * keeps running.
+ *
+ * @author Jaroslav Bachorik
+ * @since 1.3
+ */
+public class ProbeOverheadNotification extends Command {
+    private String probe;
+    private long cost;
+    private long budget;
+    private int sampling;
+
+    public ProbeOverheadNotification(String probe, long cost, long budget, int sampling) {
+        super(PROBE_OVERHEAD);
+        this.probe = probe;
+        this.cost = cost;
+        this.budget = budget;
+        this.sampling = sampling;
+    }
+
+    public ProbeOverheadNotification() {
+        super(PROBE_OVERHEAD);
+    }
+
+    protected void write(ObjectOutput out) throws IOException {
+        out.writeObject(probe);
+        out.writeLong(cost);
+        out.writeLong(budget);
+        out.writeInt(sampling);
+    }
+
+    protected void read(ObjectInput in)
+        throws IOException, ClassNotFoundException {
+        probe = (String)in.readObject();
+        cost = in.readLong();
+        budget = in.readLong();
+        sampling = in.readInt();
+    }
+
+    /**
+     * @return The probe id
+     */
+    public String getProbe() {
+        return probe;
+    }
+
+    /**
+     * @return The estimated handler time in nanoseconds per second
+     */
+    public long getCost() {
+        return cost;
+    }
+
+    /**
+     * @return The budget in nanoseconds per second
+     */
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * @return The probe handler now runs every N-th invocation; 0 if the probe has been disabled
+     */
+    public int getSampling() {
+        return sampling;
+    }
+
+    public String getMessage() {
+        return "probe " + probe + " has been " +
+               (sampling > 0 ? "sampled down to every " + sampling + ". invocation" : "disabled") +
+               " - it took " + cost + "ns per second, over the budget of " + budget + "ns";
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2008-2010 Sun Microsystems, Inc.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Sun designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Sun in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Sun Microsystems, Inc., 4150 Network Circle, Santa Clara,
+ * CA 95054 USA or visit www.sun.com if you need additional information or
+ * have any questions.
+ */
+
+package com.sun.btrace.comm;
+
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.IOException;
+
+/**
+ * This command is sent out after each chunk of classes has been retransformed.
+ * It follows a {@linkplain RetransformationStartNotification} command.
+ *
+ * @author Jaroslav Bachorik
+ * @since 1.3
+ */
+public class RetransformProgressNotification extends Command {
+    private int done;
+    private int total;
+
+    public RetransformProgressNotification(int done, int total) {
+        super(RETRANSFORM_PROGRESS);
+        this.done = done;
+        this.total = total;
+    }
+
+    public RetransformProgressNotification() {
+        super(RETRANSFORM_PROGRESS);
+    }
+
+    protected void write(ObjectOutput out) throws IOException {
+        out.writeInt(done);
+        out.writeInt(total);
+    }
+
+    protected void read(ObjectInput in)
+        throws IOException, ClassNotFoundException {
+        done = in.readInt();
+        total = in.readInt();
+    }
+
+    /**
+     * @return The number of classes retransformed so far
+     */
+    public int getDone() {
+        return done;
+    }
+
+    /**
+     * @return The number of classes to be retransformed
+     */
+    public int getTotal() {
+        return total;
+    }
+}
@@ -76,6 +76,15 @@ public class WireIO {
             case Command.RETRANSFORM_CLASS:
                 cmd = new RetransformClassNotification();
                 break;
+            case Command.METHOD_SIZE:
+                cmd = new MethodSizeNotification();
+                break;
+            case Command.RETRANSFORM_PROGRESS:
+                cmd = new RetransformProgressNotification();
+                break;
+            case Command.PROBE_OVERHEAD:
+                cmd = new ProbeOverheadNotification();
+                break;
            default:
                 throw new RuntimeException("invalid command: " + type);
         }
@@ -26,173 +26,329 @@
 package com.sun.btrace.profiling;
 
 import com.sun.btrace.Profiler;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Implementation of {@linkplain Profiler}
+ * <br/><br/>
+ * Each thread aggregates its data into its own per-block accumulators and
+ * never blocks. Every update is wrapped in a per-thread sequence counter
+ * (seqlock) so that a snapshot can read consistent values without stopping
+ * the profiled thread.
+ * <br/>
+ * The accumulators modified since the last snapshot are tracked per snapshot
+ * epoch and only those are merged into the profiler-wide data when a new
+ * snapshot is taken.
+ *
  * @author Jaroslav Bachorik
  */
 public class MethodInvocationProfiler extends Profiler implements Profiler.MBeanValueProvider {
-    private static class MethodInvocationRecorder {
-        private int stackSize = 200;
-        private int stackPtr = -1;
-        private int stackBndr = 150;
-        private Record[] stackArr = new Record[stackSize];
+    /**
+     * Per-thread accumulator of a single block.
+     * <br/>
+     * The cumulative values are written only by the owning thread. The min/max
+     * values are kept for the current snapshot epoch only and are stored
+     * separately for odd and even epochs so the snapshot can read the values
+     * from the previous epoch while the thread proceeds with the current one.
+     */
+    private static final class Block {
+        private final String blockName;
+        private final int id;
+
+        // owning thread only
+        private int active = 0;
+        private int dirtyEpoch = -1;
+
+        private long invocations = 0;
+        private long selfTime = 0;
+        private long wallTime = 0;
+        private final long[] selfTimeMin = new long[]{Long.MAX_VALUE, Long.MAX_VALUE};
+        private final long[] selfTimeMax = new long[2];
+        private final long[] wallTimeMin = new long[]{Long.MAX_VALUE, Long.MAX_VALUE};
+        private final long[] wallTimeMax = new long[2];
+
+        // the values already merged into the profiler; snapshot only
+        private long mergedInvocations = 0;
+        private long mergedSelfTime = 0;
+        private long mergedWallTime = 0;
+
+        Block(String blockName, int id) {
+            this.blockName = blockName;
+            this.id = id;
+        }
+    }
 
-        private int measuredSize = 0;
-        private int measuredPtr = 0;
-        private Record[] measured = new Record[0];
+    /**
+     * A node in the per-thread calling context tree
+     */
+    private static final class CallNode {
+        private static final CallNode[] NO_CHILDREN = new CallNode[0];
+
+        private final String blockName;
+        private final CallNode parent;
+        private CallNode[] children = NO_CHILDREN;
+        // publishes the children to the snapshot
+        private volatile int childCnt = 0;
+
+        // owning thread only
+        private long invocations = 0;
+        private long selfTime = 0;
+
+        // the values at the time of the last reset; snapshot only
+        private long baseInvocations = 0;
+        private long baseSelfTime = 0;
+
+        CallNode(String blockName, CallNode parent) {
+            this.blockName = blockName;
+            this.parent = parent;
+        }
+
+        private CallNode child(String blockName) {
+            int cnt = childCnt;
+            for(int i=0;i<cnt;i++) {
+                CallNode c = children[i];
+                if (c.blockName == blockName || c.blockName.equals(blockName)) {
+                    return c;
+                }
+            }
+            CallNode[] arr = children;
+            if (cnt == arr.length) {
+                arr = new CallNode[cnt == 0 ? 2 : cnt * 2];
+                System.arraycopy(children, 0, arr, 0, cnt);
+            }
+            CallNode c = new CallNode(blockName, this);
+            arr[cnt] = c;
+            children = arr;
+            childCnt = cnt + 1;
+            return c;
+        }
+    }
+
+    private final class MethodInvocationRecorder {
+        // odd while the owning thread is updating the collected data
+        private final AtomicInteger seq = new AtomicInteger(0);
+
+        private final Map<String, Block> blocks;
+
+        private int stackPtr = -1;
+        private Block[] stackBlocks = new Block[200];
+        private long[] stackChildTime = new long[200];
 
         private long carryOver = 0L;
-        private int defaultBufferSize;
 
-        public MethodInvocationRecorder(int expectedBlockCnt) {
-            defaultBufferSize = expectedBlockCnt * 10;
-            measuredSize = defaultBufferSize;
-            measured = new Record[measuredSize];
+        // blocks modified in the odd/even epochs
+        private final Block[][] dirty = new Block[2][];
+        private final int[] dirtyCnt = new int[2];
+
+        private final CallNode callTree = new CallNode(null, null);
+        private CallNode callPtr = callTree;
+
+        MethodInvocationRecorder(int expectedBlockCnt) {
+            blocks = new HashMap<String, Block>(expectedBlockCnt * 2);
+            dirty[0] = new Block[expectedBlockCnt];
+            dirty[1] = new Block[expectedBlockCnt];
         }
-        
-        private synchronized void recordEntry(String blockName) {
-            Record r = new Record(blockName);
-            addMeasured(r);
-            push(r);
+
+        private void recordEntry(String blockName) {
+            Block b = getBlock(blockName);
+            push(b);
+            b.active++;
+            callPtr = callPtr.child(blockName);
             carryOver = 0L; // clear the carryOver; not 2 subsequent calls to recordExit
         }
 
-        private synchronized void recordExit(String blockName, long duration) {
-            Record r = pop();
-            if (r == null) {
-                r = new Record(blockName);
-                addMeasured(r);
-            }
-            r.wallTime = duration;
-            r.selfTime += duration - carryOver;
-
-            for(int i=0;i<stackPtr;i++) {
-                if (stackArr[i].blockName.equals(blockName)) {
-                    r.wallTime = 0;
-                    break;
-                }
+        private void recordExit(String blockName, long duration) {
+            Block b;
+            long self;
+            CallNode node;
+            if (stackPtr > -1) {
+                b = stackBlocks[stackPtr];
+                self = duration - stackChildTime[stackPtr] - carryOver;
+                stackPtr--;
+                b.active--;
+                node = callPtr;
+                callPtr = node.parent;
+            } else {
+                // unbalanced exit; account it under the current call path
+                b = getBlock(blockName);
+                self = duration - carryOver;
+                node = callPtr.child(blockName);
             }
-            r.selfTimeMin = r.selfTimeMax = r.selfTime;
-            r.wallTimeMin = r.wallTimeMax = r.wallTime;
+            // the wall time is accounted only for the outermost recursive call
+            long wall = b.active > 0 ? 0 : duration;
 
-            Record parent = peek();
-            if (parent != null) {
-                parent.selfTime -= duration;
+            if (stackPtr > -1) {
+                stackChildTime[stackPtr] += duration;
             } else {
                 carryOver = duration;
             }
-        }
 
-        private Record[] getRecords(boolean reset) {
-            Record[] recs = null;
-            synchronized(this) {
-                // compact the collected data
-                int stopPtr = compactMeasured();
-                recs = new Record[stopPtr];
-                // copy the record array
-                System.arraycopy(measured, 0, recs, 0, stopPtr);
-                // call reset if requested
-                if (reset) reset();
-
-                // detach the real records so they don't change as the measuring goes on
-                for(int i=0;i<recs.length;i++) {
-                    recs[i] = recs[i].duplicate();
-                }
-                return recs;
+            int s = seq.incrementAndGet();
+            int e = epoch;
+            int p = e & 1;
+            if (b.dirtyEpoch != e) {
+                b.dirtyEpoch = e;
+                b.selfTimeMin[p] = Long.MAX_VALUE;
+                b.selfTimeMax[p] = 0;
+                b.wallTimeMin[p] = Long.MAX_VALUE;
+                b.wallTimeMax[p] = 0;
+                addDirty(p, b);
             }
+            b.invocations++;
+            b.selfTime += self;
+            b.wallTime += wall;
+            if (self < b.selfTimeMin[p]) b.selfTimeMin[p] = self;
+            if (self > b.selfTimeMax[p]) b.selfTimeMax[p] = self;
+            if (wall < b.wallTimeMin[p]) b.wallTimeMin[p] = wall;
+            if (wall > b.wallTimeMax[p]) b.wallTimeMax[p] = wall;
+            node.invocations++;
+            node.selfTime += self;
+            seq.lazySet(s + 1);
         }
 
-        private void push(Record r) {
-            if (stackPtr > stackBndr) {
-                stackSize *= 1.5;
-                stackBndr *= 1.5;
-                Record[] newStack = new Record[stackSize];
-                System.arraycopy(stackArr, 0, newStack, 0, stackPtr + 1);
-                stackArr = newStack;
+        private Block getBlock(String blockName) {
+            Block b = blocks.get(blockName);
+            if (b == null) {
+                b = new Block(blockName, blockId(blockName));
+                blocks.put(blockName, b);
             }
-            stackArr[++stackPtr] = r;
-            r.onStack = true;
+            return b;
         }
 
-        private Record pop() {
-            Record r = stackPtr > -1 ? stackArr[stackPtr--] : null;
-            if (r != null) {
-                r.onStack = false;
+        private void push(Block b) {
+            if (++stackPtr == stackBlocks.length) {
+                Block[] newBlocks = new Block[stackBlocks.length * 2];
+                System.arraycopy(stackBlocks, 0, newBlocks, 0, stackPtr);
+                stackBlocks = newBlocks;
+                long[] newChildTime = new long[stackChildTime.length * 2];
+                System.arraycopy(stackChildTime, 0, newChildTime, 0, stackPtr);
+                stackChildTime = newChildTime;
             }
-            return r;
+            stackBlocks[stackPtr] = b;
+            stackChildTime[stackPtr] = 0L;
         }
 
-        private Record peek() {
-            return stackPtr > -1 ? stackArr[stackPtr] : null;
+        private void addDirty(int p, Block b) {
+            Block[] d = dirty[p];
+            int cnt = dirtyCnt[p];
+            if (cnt == d.length) {
+                Block[] newD = new Block[cnt == 0 ? 16 : cnt * 2];
+                System.arraycopy(d, 0, newD, 0, cnt);
+                dirty[p] = d = newD;
+            }
+            d[cnt] = b;
+            dirtyCnt[p] = cnt + 1;
         }
 
-        private void addMeasured(Record r) {
-            if (measuredPtr == measuredSize) {
-                compactMeasured();
+        // -- the following methods are called by the snapshot; never by the owning thread
+
+        /**
+         * Waits until the owning thread is not in the middle of an update
+         * @return The current sequence number to be validated after reading the data
+         */
+        private int readBegin() {
+            int spins = 0;
+            int s;
+            while (((s = seq.get()) & 1) == 1) {
+                if (++spins % 64 == 0) {
+                    Thread.yield();
+                }
             }
-            measured[measuredPtr++] = r;
+            return s;
         }
 
-        private synchronized void reset() {
-            Record[] newMeasured = new Record[defaultBufferSize + stackPtr + 1];
-            if (stackPtr > -1) {
-                System.arraycopy(stackArr, 0, newMeasured, 0, stackPtr + 1);
-            }
-            measuredPtr = stackPtr + 1;
-            measured = newMeasured;
-            measuredSize = measured.length;
+        /**
+         * @return {@code true} if the data read since the corresponding
+         *         {@linkplain #readBegin()} are consistent
+         */
+        private boolean readValidate(int s) {
+            // CAS serves as a full fence - all the reads before are done
+            return seq.compareAndSet(s, s);
         }
 
-        private int compactMeasured() {
-            Map<String, Integer> indexMap = new HashMap<String, Integer>();
-            int lastIndex = 0;
-            for(int i=0;i<measuredPtr;i++) {
-                Record m = measured[i];
-                if (!m.onStack) {
-                    Integer newIndex = indexMap.get(m.blockName);
-                    if (newIndex == null) {
-                        newIndex = lastIndex++;
-                        indexMap.put(m.blockName, newIndex);
-                        measured[newIndex] = m;
-                    } else {
-                        Record mr = measured[newIndex];
-                        mr.selfTime += m.selfTime;
-                        mr.wallTime += m.wallTime;
-                        mr.invocations++;
-                        mr.selfTimeMax = m.selfTime > mr.selfTimeMax ? m.selfTime : mr.selfTimeMax;
-                        mr.selfTimeMin = m.selfTime < mr.selfTimeMin ? m.selfTime : mr.selfTimeMin;
-                        mr.wallTimeMax = m.wallTime > mr.wallTimeMax ? m.wallTime : mr.wallTimeMax;
-                        mr.wallTimeMin = m.wallTime < mr.wallTimeMin ? m.wallTime : mr.wallTimeMin;
-                        for(int j=0;j<stackPtr;j++) {
-                            if (stackArr[j] == m) { // if the old ref is kept on stack
-                                stackArr[j] = mr; // replace it with the compacted ref
-                            }
-                        }
-                    }
-                }
-            }
-            if ((lastIndex + stackPtr + 1) == measuredSize) {
-                int newMeasuredSize = (int)(measuredSize * 1.25) + (stackPtr + 1); // make room for the methods on the stack
-                if (newMeasuredSize == measuredSize) {
-                    newMeasuredSize = measuredSize * 2 + (stackPtr + 1); // make room for the methods on the stack
-                }
-                Record[] newMeasured = new Record[newMeasuredSize];
-                System.arraycopy(measured, 0, newMeasured, 0, lastIndex); // copy the compacted values
-                measured = newMeasured;
-                measuredSize = newMeasuredSize;
+        /**
+         * Merges all blocks modified in the given epoch into the profiler data
+         */
+        private void merge(int e) {
+            int p = e & 1;
+            Block[] toMerge;
+            int s;
+            do {
+                s = readBegin();
+                int cnt = dirtyCnt[p];
+                toMerge = new Block[cnt];
+                System.arraycopy(dirty[p], 0, toMerge, 0, cnt);
+            } while (!readValidate(s));
+            // the owning thread will not touch the list until the next but one epoch
+            dirtyCnt[p] = 0;
+
+            for(Block b : toMerge) {
+                long inv, self, wall;
+                do {
+                    s = readBegin();
+                    inv = b.invocations;
+                    self = b.selfTime;
+                    wall = b.wallTime;
+                } while (!readValidate(s));
+
+                Record r = getMerged(b);
+                r.invocations += inv - b.mergedInvocations;
+                r.selfTime += self - b.mergedSelfTime;
+                r.wallTime += wall - b.mergedWallTime;
+                b.mergedInvocations = inv;
+                b.mergedSelfTime = self;
+                b.mergedWallTime = wall;
+                // min/max for this epoch are stable now
+                r.selfTimeMin = Math.min(r.selfTimeMin, b.selfTimeMin[p]);
+                r.selfTimeMax = Math.max(r.selfTimeMax, b.selfTimeMax[p]);
+                r.wallTimeMin = Math.min(r.wallTimeMin, b.wallTimeMin[p]);
+                r.wallTimeMax = Math.max(r.wallTimeMax, b.wallTimeMax[p]);
             }
-            System.arraycopy(stackArr, 0, measured, lastIndex, stackPtr + 1); // add the not processed methods on the stack
-            measuredPtr = lastIndex + stackPtr + 1; // move the pointer behind the methods on the stack
-            
-            return lastIndex;
         }
+
+        private long[] readNode(CallNode n, long[] vals) {
+            int s;
+            do {
+                s = readBegin();
+                vals[0] = n.invocations;
+                vals[1] = n.selfTime;
+            } while (!readValidate(s));
+            return vals;
+        }
+    }
+
+    /**
+     * Receives the call tree nodes
+     */
+    private static interface CallNodeVisitor {
+        void visit(MethodInvocationRecorder r, CallNode n, int depth);
     }
 
-    final private Map<Thread, MethodInvocationRecorder> recorders = new HashMap<Thread, MethodInvocationRecorder>(128);
+    // the current snapshot epoch; incremented by each snapshot
+    private volatile int epoch = 0;
 
+    // serializes the snapshots; never taken by the profiled threads
+    private final Object snapshotLock = new Object();
+
+    private volatile MethodInvocationRecorder[] recorders = new MethodInvocationRecorder[0];
+
+    private final ThreadLocal<MethodInvocationRecorder> threadRecorder = new ThreadLocal<MethodInvocationRecorder>() {
+        @Override
+        protected MethodInvocationRecorder initialValue() {
+            return addRecorder();
+        }
+    };
+
+    private final ConcurrentHashMap<String, Integer> blockIds = new ConcurrentHashMap<String, Integer>();
+    private final AtomicInteger lastBlockId = new AtomicInteger(0);
+
+    // merged data indexed by the block id; snapshot only
+    private Record[] merged;
 
     volatile private Snapshot lastValidSnapshot = null;
 
@@ -200,72 +356,46 @@ public class MethodInvocationProfiler extends Profiler implements Profiler.MBean
 
     public MethodInvocationProfiler(int expectedMethodCnt) {
         this.expectedBlockCnt = expectedMethodCnt;
+        this.merged = new Record[expectedMethodCnt > 0 ? expectedMethodCnt : 16];
     }
 
     public void recordEntry(String blockName) {
-        getThreadSampler().recordEntry(blockName);
+        threadRecorder.get().recordEntry(blockName);
     }
 
     public void recordExit(String blockName, long duration) {
-        getThreadSampler().recordExit(blockName, duration);
+        threadRecorder.get().recordExit(blockName, duration);
     }
 
     public void reset() {
-        synchronized(recorders) {
-            for(MethodInvocationRecorder r : recorders.values()) {
-                r.reset();
-            }
+        synchronized(snapshotLock) {
+            mergeAll();
+            resetImpl();
         }
     }
 
     private long lastTs = START_TIME;
 
     public Snapshot snapshot(boolean reset) {
-        synchronized(recorders) {
-            Map<String, Integer> idMap = new HashMap<String, Integer>();
-
-            Record[] mergedRecords = null;
-            int mergedEntries = 0, mergedCapacity = 0;
-            for(Map.Entry<Thread, MethodInvocationRecorder> sEntry : recorders.entrySet()) {
-                final Record[] records = sEntry.getValue().getRecords(reset);
-                if (records == null || records.length == 0) continue; // just skip the empty data
-
-                if (mergedRecords == null) {
-                    mergedRecords = records;
-                    mergedCapacity = mergedRecords.length;
-                    for(int i=0;i<records.length;i++) {
-                        if (records[i] != null) {
-                            mergedEntries = i + 1;
-                        }
-                        idMap.put(records[i].blockName, i);
-                    }
-                    continue;
-                }
+        synchronized(snapshotLock) {
+            mergeAll();
 
-                for(int i=0;i<records.length;i++) {
-                    Record r = records[i];
-                    Integer id = idMap.get(r.blockName);
-                    if (id == null) {
-                        id = mergedEntries++;
-                        if (mergedEntries > mergedCapacity) {
-                            mergedCapacity = (int)((mergedEntries + 1) * 1.25);
-                            Record[] newRecs = new Record[mergedCapacity];
-                            System.arraycopy(mergedRecords, 0, newRecs, 0, mergedEntries - 1);
-                            mergedRecords = newRecs;
-                        }
-                        idMap.put(r.blockName, id);
-                        mergedRecords[id] = r;
-                    } else {
-                        Record merged = mergedRecords[id];
-                        merged.invocations += r.invocations;
-                        merged.selfTime += r.selfTime;
-                        merged.wallTime += r.wallTime;
-                    }
+            int cnt = 0;
+            for(int i=0;i<merged.length;i++) {
+                if (merged[i] != null && merged[i].invocations > 0) {
+                    cnt++;
                 }
             }
-            Record[] rslt = new Record[mergedEntries];
-            if (mergedRecords != null) {
-                System.arraycopy(mergedRecords, 0, rslt, 0, mergedEntries);
+            Record[] rslt = new Record[cnt];
+            int ptr = 0;
+            for(int i=0;i<merged.length;i++) {
+                Record r = merged[i];
+                if (r != null && r.invocations > 0) {
+                    rslt[ptr++] = r.duplicate();
+                }
+            }
+            if (reset) {
+                resetImpl();
             }
 
             long curTs = System.currentTimeMillis();
@@ -276,21 +406,120 @@ public class MethodInvocationProfiler extends Profiler implements Profiler.MBean
         }
     }
 
+    @Override
+    public void visitStacks(final StackVisitor visitor) {
+        synchronized(snapshotLock) {
+            final String[][] frames = new String[][]{new String[32]};
+            final long[] vals = new long[2];
+            walkCallTrees(new CallNodeVisitor() {
+                public void visit(MethodInvocationRecorder r, CallNode n, int depth) {
+                    String[] f = frames[0];
+                    if (depth > f.length) {
+                        String[] newFrames = new String[f.length * 2];
+                        System.arraycopy(f, 0, newFrames, 0, f.length);
+                        frames[0] = f = newFrames;
+                    }
+                    f[depth - 1] = n.blockName;
+                    r.readNode(n, vals);
+                    long invocations = vals[0] - n.baseInvocations;
+                    if (invocations > 0) {
+                        visitor.visitStack(f, depth, invocations, vals[1] - n.baseSelfTime);
+                    }
+                }
+            });
+        }
+    }
+
     public Snapshot getMBeanValue() {
         return lastValidSnapshot;
     }
-    
-    private MethodInvocationRecorder getThreadSampler() {
-        Thread t = Thread.currentThread();
-        MethodInvocationRecorder s = recorders.get(t);
-        if (s == null) {
-            synchronized(recorders) {
-                if (!recorders.containsKey(t)) {
-                    s = new MethodInvocationRecorder(expectedBlockCnt);
-                    recorders.put(t, s);
+
+    private void mergeAll() {
+        int e = epoch;
+        // from now on the profiled threads record into the next epoch
+        epoch = e + 1;
+        for(MethodInvocationRecorder r : recorders) {
+            r.merge(e);
+        }
+    }
+
+    private void resetImpl() {
+        for(int i=0;i<merged.length;i++) {
+            merged[i] = null;
+        }
+        final long[] vals = new long[2];
+        walkCallTrees(new CallNodeVisitor() {
+            public void visit(MethodInvocationRecorder r, CallNode n, int depth) {
+                r.readNode(n, vals);
+                n.baseInvocations = vals[0];
+                n.baseSelfTime = vals[1];
+            }
+        });
+    }
+
+    /**
+     * Pre-order walk over all the call trees. When a node is visited
+     * the previously visited nodes on the lower depths are its ancestors.
+     */
+    private void walkCallTrees(CallNodeVisitor v) {
+        List<CallNode> nodes = new ArrayList<CallNode>();
+        List<Integer> depths = new ArrayList<Integer>();
+        for(MethodInvocationRecorder r : recorders) {
+            nodes.add(r.callTree);
+            depths.add(0);
+            while (!nodes.isEmpty()) {
+                CallNode n = nodes.remove(nodes.size() - 1);
+                int depth = depths.remove(depths.size() - 1);
+                if (depth > 0) {
+                    v.visit(r, n, depth);
+                }
+                int cnt = n.childCnt;
+                CallNode[] children = n.children;
+                for(int i=cnt - 1;i>=0;i--) {
+                    nodes.add(children[i]);
+                    depths.add(depth + 1);
                 }
             }
         }
-        return s;
+    }
+
+    private Record getMerged(Block b) {
+        if (b.id >= merged.length) {
+            int newLen = merged.length * 2;
+            while (b.id >= newLen) {
+                newLen *= 2;
+            }
+            Record[] newMerged = new Record[newLen];
+            System.arraycopy(merged, 0, newMerged, 0, merged.length);
+            merged = newMerged;
+        }
+        Record r = merged[b.id];
+        if (r == null) {
+            r = new Record(b.blockName);
+            r.invocations = 0;
+            merged[b.id] = r;
+        }
+        return r;
+    }
+
+    private int blockId(String blockName) {
+        Integer id = blockIds.get(blockName);
+        if (id == null) {
+            Integer newId = lastBlockId.getAndIncrement();
+            id = blockIds.putIfAbsent(blockName, newId);
+            if (id == null) {
+                id = newId;
+            }
+        }
+        return id;
+    }
+
+    private synchronized MethodInvocationRecorder addRecorder() {
+        MethodInvocationRecorder r = new MethodInvocationRecorder(expectedBlockCnt);
+        MethodInvocationRecorder[] newRecorders = new MethodInvocationRecorder[recorders.length + 1];
+        System.arraycopy(recorders, 0, newRecorders, 0, recorders.length);
+        newRecorders[recorders.length] = r;
+        recorders = newRecorders;
+        return r;
     }
 }
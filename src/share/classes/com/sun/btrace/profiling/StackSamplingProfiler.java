@@ -0,0 +1,369 @@
+/*
+ * Copyright (c) 2014, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.btrace.profiling;
+
+import com.sun.btrace.Profiler;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * A {@linkplain Profiler} implementation collecting its data by periodically
+ * sampling the thread stacks instead of instrumenting the profiled code.
+ * <br/><br/>
+ * The sampled stacks are interned into a table of distinct stacks and only
+ * a per-stack sample counter is kept. The sampling itself is driven by
+ * the caller via {@linkplain #sample()} - the profiled threads are never
+ * touched by this profiler.
+ * <br/><br/>
+ * The values reported in {@linkplain Profiler.Record} are estimated from
+ * the number of samples: the invocation count is the number of samples the
+ * block was seen on the stack, the self time and wall time are the number
+ * of samples the block was on the top of the stack or anywhere on the stack,
+ * respectively, multiplied by the sampling interval.
+ *
+ * @author Jaroslav Bachorik
+ * @since 1.3
+ */
+public class StackSamplingProfiler extends Profiler implements Profiler.MBeanValueProvider {
+    private static final int MAX_STACK_DEPTH = 1024;
+
+    /**
+     * A lookup key for the interned stacks; holds the frame ids, root first
+     */
+    private static final class StackKey {
+        private int[] frames;
+        private int depth;
+        private int hash;
+
+        StackKey(int[] frames, int depth) {
+            set(frames, depth);
+        }
+
+        void set(int[] frames, int depth) {
+            this.frames = frames;
+            this.depth = depth;
+            int h = 1;
+            for(int i=0;i<depth;i++) {
+                h = 31 * h + frames[i];
+            }
+            this.hash = h;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof StackKey)) {
+                return false;
+            }
+            StackKey other = (StackKey)obj;
+            if (depth != other.depth || hash != other.hash) {
+                return false;
+            }
+            for(int i=0;i<depth;i++) {
+                if (frames[i] != other.frames[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private final long interval;
+    private final Pattern threadNameFilter;
+    private final EnumSet<Thread.State> threadStates;
+
+    private final ThreadMXBean threadMBean = ManagementFactory.getThreadMXBean();
+
+    // interned frames; class name -> method name -> frame id
+    private final Map<String, Map<String, Integer>> frameIds = new HashMap<String, Map<String, Integer>>();
+    private final List<String> frameNames = new ArrayList<String>();
+
+    // interned stacks
+    private final Map<StackKey, Integer> stackIds = new HashMap<StackKey, Integer>();
+    private int[][] stacks = new int[64][];
+    private long[] samples = new long[64];
+    private int stackCnt = 0;
+
+    // reused while sampling
+    private final StackKey lookupKey = new StackKey(new int[0], 0);
+    private int[] frameBuffer = new int[64];
+
+    private long lastTs = START_TIME;
+    volatile private Snapshot lastValidSnapshot = null;
+
+    /**
+     * @param interval The sampling interval in milliseconds
+     * @param threadNameFilter A regular expression the sampled thread names must match or {@code null}
+     * @param threadStates The states the sampled threads must be in or {@code null} for any state
+     */
+    public StackSamplingProfiler(long interval, String threadNameFilter, EnumSet<Thread.State> threadStates) {
+        this.interval = interval > 0 ? interval : 1;
+        this.threadNameFilter = threadNameFilter != null && !threadNameFilter.isEmpty() ?
+                                    Pattern.compile(threadNameFilter) : null;
+        this.threadStates = threadStates != null && !threadStates.isEmpty() ?
+                                threadStates : null;
+    }
+
+    /**
+     * Parses a comma separated list of {@linkplain Thread.State} names
+     * @param states The state names; may be {@code null}
+     * @return The parsed states or {@code null} if no state was given
+     * @throws IllegalArgumentException if an unknown state name is used
+     */
+    public static EnumSet<Thread.State> parseThreadStates(String states) {
+        if (states == null) {
+            return null;
+        }
+        EnumSet<Thread.State> rslt = EnumSet.noneOf(Thread.State.class);
+        for(String s : states.split(",")) {
+            s = s.trim();
+            if (!s.isEmpty()) {
+                rslt.add(Thread.State.valueOf(s.toUpperCase()));
+            }
+        }
+        return rslt.isEmpty() ? null : rslt;
+    }
+
+    /**
+     * @return The sampling interval in milliseconds
+     */
+    public long getInterval() {
+        return interval;
+    }
+
+    /**
+     * Profiled code is not instrumented; the entries are not recorded
+     */
+    public void recordEntry(String blockName) {
+    }
+
+    /**
+     * Profiled code is not instrumented; the exits are not recorded
+     */
+    public void recordExit(String blockName, long duration) {
+    }
+
+    /**
+     * Takes one sample of all the live threads matching the filter.
+     * The calling thread itself is never sampled.
+     * <br/><br/>
+     * The threads are selected by their name and state first and the stack
+     * traces are retrieved only for the selected ones.
+     */
+    public void sample() {
+        long selfId = Thread.currentThread().getId();
+        long[] ids = threadMBean.getAllThreadIds();
+        int cnt = 0;
+        if (threadStates != null || threadNameFilter != null) {
+            // the thread infos without stack traces are cheap to obtain
+            for(ThreadInfo ti : threadMBean.getThreadInfo(ids)) {
+                if (isSampled(ti, selfId)) {
+                    ids[cnt++] = ti.getThreadId();
+                }
+            }
+        } else {
+            for(long id : ids) {
+                if (id != selfId) {
+                    ids[cnt++] = id;
+                }
+            }
+        }
+        if (cnt == 0) {
+            return;
+        }
+        ThreadInfo[] infos = threadMBean.getThreadInfo(Arrays.copyOf(ids, cnt), MAX_STACK_DEPTH);
+        synchronized(this) {
+            for(ThreadInfo ti : infos) {
+                // the thread state might have changed in the meantime
+                if (isSampled(ti, selfId)) {
+                    recordStack(ti.getStackTrace());
+                }
+            }
+        }
+    }
+
+    private boolean isSampled(ThreadInfo ti, long selfId) {
+        if (ti == null || ti.getThreadId() == selfId) {
+            return false;
+        }
+        if (threadStates != null && !threadStates.contains(ti.getThreadState())) {
+            return false;
+        }
+        return threadNameFilter == null || threadNameFilter.matcher(ti.getThreadName()).matches();
+    }
+
+    /**
+     * Records one sampled stack
+     * @param trace The stack trace; the top frame first
+     */
+    synchronized void recordStack(StackTraceElement[] trace) {
+        int depth = trace.length;
+        if (depth == 0) {
+            return;
+        }
+        if (frameBuffer.length < depth) {
+            frameBuffer = new int[Math.max(depth, frameBuffer.length * 2)];
+        }
+        for(int i=0;i<depth;i++) {
+            frameBuffer[depth - 1 - i] = frameId(trace[i]);
+        }
+        lookupKey.set(frameBuffer, depth);
+        Integer id = stackIds.get(lookupKey);
+        if (id == null) {
+            id = addStack(Arrays.copyOf(frameBuffer, depth));
+        }
+        samples[id]++;
+    }
+
+    private int frameId(StackTraceElement e) {
+        // the frames are distinguished by the class and method name only
+        Map<String, Integer> methodIds = frameIds.get(e.getClassName());
+        if (methodIds == null) {
+            methodIds = new HashMap<String, Integer>();
+            frameIds.put(e.getClassName(), methodIds);
+        }
+        Integer id = methodIds.get(e.getMethodName());
+        if (id == null) {
+            id = frameNames.size();
+            frameNames.add(e.getClassName() + "." + e.getMethodName());
+            methodIds.put(e.getMethodName(), id);
+        }
+        return id;
+    }
+
+    private int addStack(int[] frames) {
+        if (stackCnt == stacks.length) {
+            stacks = Arrays.copyOf(stacks, stackCnt * 2);
+            samples = Arrays.copyOf(samples, stackCnt * 2);
+        }
+        int id = stackCnt++;
+        stacks[id] = frames;
+        stackIds.put(new StackKey(frames, frames.length), id);
+        return id;
+    }
+
+    /**
+     * Drops all the collected samples together with the interned frames and stacks
+     */
+    public synchronized void reset() {
+        frameIds.clear();
+        frameNames.clear();
+        stackIds.clear();
+        stacks = new int[64][];
+        samples = new long[64];
+        stackCnt = 0;
+    }
+
+    synchronized int getStackCount() {
+        return stackCnt;
+    }
+
+    synchronized int getFrameCount() {
+        return frameNames.size();
+    }
+
+    public synchronized Snapshot snapshot(boolean reset) {
+        long intervalNs = interval * 1000000L;
+        int frameCnt = frameNames.size();
+        long[] selfSamples = new long[frameCnt];
+        long[] totalSamples = new long[frameCnt];
+        // the last stack a frame was counted for; avoids counting recursive frames twice
+        int[] lastSeen = new int[frameCnt];
+        Arrays.fill(lastSeen, -1);
+
+        for(int i=0;i<stackCnt;i++) {
+            long cnt = samples[i];
+            if (cnt == 0) {
+                continue;
+            }
+            int[] frames = stacks[i];
+            selfSamples[frames[frames.length - 1]] += cnt;
+            for(int f : frames) {
+                if (lastSeen[f] != i) {
+                    lastSeen[f] = i;
+                    totalSamples[f] += cnt;
+                }
+            }
+        }
+
+        List<Record> rslt = new ArrayList<Record>();
+        for(int i=0;i<frameCnt;i++) {
+            if (totalSamples[i] > 0) {
+                Record r = new Record(frameNames.get(i));
+                r.threadId = -1;
+                r.invocations = totalSamples[i];
+                r.selfTime = selfSamples[i] * intervalNs;
+                r.wallTime = totalSamples[i] * intervalNs;
+                rslt.add(r);
+            }
+        }
+        if (reset) {
+            reset();
+        }
+
+        long curTs = System.currentTimeMillis();
+        Snapshot snp = new Snapshot(rslt.toArray(new Record[rslt.size()]), lastTs, curTs);
+        lastTs = curTs;
+        lastValidSnapshot = snp;
+        return snp;
+    }
+
+    @Override
+    public synchronized void visitStacks(StackVisitor visitor) {
+        long intervalNs = interval * 1000000L;
+        String[] names = new String[32];
+        for(int i=0;i<stackCnt;i++) {
+            long cnt = samples[i];
+            if (cnt == 0) {
+                continue;
+            }
+            int[] frames = stacks[i];
+            if (names.length < frames.length) {
+                names = new String[Math.max(frames.length, names.length * 2)];
+            }
+            for(int j=0;j<frames.length;j++) {
+                names[j] = frameNames.get(frames[j]);
+            }
+            visitor.visitStack(names, frames.length, cnt, cnt * intervalNs);
+        }
+    }
+
+    public Snapshot getMBeanValue() {
+        return lastValidSnapshot;
+    }
+}
@@ -25,9 +25,7 @@
 package com.sun.btrace.runtime;
 
 import java.lang.annotation.Annotation;
-import java.util.ArrayList;
 import java.util.List;
-import java.util.regex.Pattern;
 import static com.sun.btrace.org.objectweb.asm.Opcodes.ACC_INTERFACE;
 import static com.sun.btrace.runtime.Constants.*;
 import com.sun.btrace.org.objectweb.asm.AnnotationVisitor;
@@ -39,7 +37,6 @@ import com.sun.btrace.org.objectweb.asm.MethodVisitor;
 import com.sun.btrace.org.objectweb.asm.Type;
 import com.sun.btrace.annotations.BTrace;
 import com.sun.btrace.org.objectweb.asm.Opcodes;
-import java.util.regex.PatternSyntaxException;
 
 /**
  * This class checks whether a given target class
@@ -50,17 +47,15 @@ import java.util.regex.PatternSyntaxException;
  */
 public class ClassFilter {
 
-    private String[] sourceClasses;
-    private Pattern[] sourceClassPatterns;
-    private String[] annotationClasses;
-    private Pattern[] annotationClassPatterns;
+    private final ProbeMatcher matcher;
     // +foo type class pattern in any @OnMethod.
-    private String[] superTypes;
+    private final String[] superTypes;
     // same as above but stored in internal name form ('/' instead of '.')
-    private String[] superTypesInternal;
+    private final String[] superTypesInternal;
 
     static {
         CheckingVisitor.class.getClass();
+        ClassHeader.class.getClass();
         ClassReader.class.getClass();
         AnnotationVisitor.class.getClass();
         FieldVisitor.class.getClass();
@@ -69,7 +64,15 @@ public class ClassFilter {
     }
 
     public ClassFilter(List<OnMethod> onMethods) {
-        init(onMethods);
+        this(new ProbeMatcher(onMethods));
+    }
+
+    public ClassFilter(ProbeMatcher matcher) {
+        this.matcher = matcher;
+        List<String> st = matcher.getSuperTypes();
+        this.superTypes = st.toArray(new String[st.size()]);
+        st = matcher.getSuperTypesInternal();
+        this.superTypesInternal = st.toArray(new String[st.size()]);
     }
 
     public boolean isCandidate(Class target) {
@@ -92,17 +95,8 @@ public class ClassFilter {
             return false;
         }
 
-        String className = target.getName();
-        for (String name : sourceClasses) {
-            if (name.equals(className)) {
-                return true;
-            }
-        }
-
-        for (Pattern pat : sourceClassPatterns) {
-            if (pat.matcher(className).matches()) {
-                return true;
-            }
+        if (matcher.hasClassMatch(target.getName())) {
+            return true;
         }
 
         for (String st : superTypes) {
@@ -111,25 +105,9 @@ public class ClassFilter {
             }
         }
 
-        Annotation[] annotations = target.getAnnotations();
-        String[] annoTypes = new String[annotations.length];
-        for (int i = 0; i < annotations.length; i++) {
-            annoTypes[i] = annotations[i].annotationType().getName();
-        }
-
-        for (String name : annotationClasses) {
-            for (int i = 0; i < annoTypes.length; i++) {
-                if (name.equals(annoTypes[i])) {
-                    return true;
-                }
-            }
-        }
-
-        for (Pattern pat : annotationClassPatterns) {
-            for (int i = 0; i < annoTypes.length; i++) {
-                if (pat.matcher(annoTypes[i]).matches()) {
-                    return true;
-                }
+        for (Annotation a : target.getAnnotations()) {
+            if (matcher.hasClassAnnotationMatch(a.annotationType().getName())) {
+                return true;
             }
         }
 
@@ -137,7 +115,40 @@ public class ClassFilter {
     }
 
     public boolean isCandidate(byte[] classBytes) {
-        return isCandidate(new ClassReader(classBytes));
+        ClassHeader header;
+        try {
+            header = ClassHeader.read(classBytes);
+        } catch (IllegalArgumentException e) {
+            // let ASM deal with whatever the class file looks like
+            return isCandidate(new ClassReader(classBytes));
+        }
+        return isCandidate(header);
+    }
+
+    /**
+     * Checks the class using only its header; the annotations are read
+     * only if they can change the outcome.
+     */
+    public boolean isCandidate(ClassHeader header) {
+        if ((header.getAccess() & ACC_INTERFACE) != 0) {
+            return false;
+        }
+        boolean candidate = matcher.hasClassMatch(header.getClassName().replace('/', '.')) ||
+                            isDirectSubTypeOf(header.getSuperName(), header.getInterfaces());
+        if (!candidate && !matcher.hasClassAnnotationProbes()) {
+            return false;
+        }
+        for (String desc : header.getAnnotations()) {
+            if (BTRACE_DESC.equals(desc)) {
+                // ignore classes annotated with @BTrace -
+                // we don't want to instrument tracing classes!
+                return false;
+            }
+            if (!candidate && matcher.hasClassAnnotationMatch(Type.getType(desc).getClassName())) {
+                candidate = true;
+            }
+        }
+        return candidate;
     }
 
     public boolean isCandidate(ClassReader reader) {
@@ -146,6 +157,20 @@ public class ClassFilter {
         return cv.isCandidate();
     }
 
+    private boolean isDirectSubTypeOf(String superName, String[] interfaces) {
+        for (String st : superTypesInternal) {
+            if (st.equals(superName)) {
+                return true;
+            }
+            for (String iface : interfaces) {
+                if (iface.equals(st)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     /*
      * return whether given Class is subtype of given type name
      * Note that we can not use Class.iaAssignableFrom because the other
@@ -187,19 +212,9 @@ public class ClassFilter {
                 isCandidate = false;
                 return;
             }
-            name = name.replace('/', '.');
-            for (String className : sourceClasses) {
-                if (className.equals(name)) {
-                    isCandidate = true;
-                    return;
-                }
-            }
-
-            for (Pattern pat : sourceClassPatterns) {
-                if (pat.matcher(name).matches()) {
-                    isCandidate = true;
-                    return;
-                }
+            if (matcher.hasClassMatch(name.replace('/', '.'))) {
+                isCandidate = true;
+                return;
             }
 
             for (String st : superTypesInternal) {
@@ -229,18 +244,9 @@ public class ClassFilter {
             }
 
             if (!isCandidate) {
-                String annoName = Type.getType(desc).getClassName();
-                for (String name : annotationClasses) {
-                    if (annoName.equals(name)) {
-                        isCandidate = true;
-                        return nullAnnotationVisitor;
-                    }
-                }
-                for (Pattern pat : annotationClassPatterns) {
-                    if (pat.matcher(annoName).matches()) {
-                        isCandidate = true;
-                        return nullAnnotationVisitor;
-                    }
+                if (matcher.hasClassAnnotationMatch(Type.getType(desc).getClassName())) {
+                    isCandidate = true;
+                    return nullAnnotationVisitor;
                 }
             }
 
@@ -273,63 +279,4 @@ public class ClassFilter {
         public void visitSource(String source, String debug) {
         }
     }
-
-    private void init(List<OnMethod> onMethods) {
-        List<String> strSrcList = new ArrayList<String>();
-        List<Pattern> patSrcList = new ArrayList<Pattern>();
-        List<String> superTypesList = new ArrayList<String>();
-        List<String> superTypesInternalList = new ArrayList<String>();
-        List<String> strAnoList = new ArrayList<String>();
-        List<Pattern> patAnoList = new ArrayList<Pattern>();
-
-        for (OnMethod om : onMethods) {
-            String className = om.getClazz();
-            if (className.length() == 0) {
-                continue;
-            }
-            char firstCh = className.charAt(0);
-            if (firstCh == '/' &&
-                    REGEX_SPECIFIER.matcher(className).matches()) {
-                try {
-                    Pattern p = Pattern.compile(className.substring(1,
-                            className.length() - 1));
-                    patSrcList.add(p);
-                } catch (PatternSyntaxException pse) {
-                    System.err.println("btrace ERROR: invalid regex pattern - " + className.substring(1, className.length() - 1));
-                }
-            } else if (firstCh == '@') {
-                className = className.substring(1);
-                if (REGEX_SPECIFIER.matcher(className).matches()) {
-                    try {
-                        Pattern p = Pattern.compile(
-                                className.substring(1, className.length() - 1));
-                        patAnoList.add(p);
-                    } catch (PatternSyntaxException pse) {
-                        System.err.println("btrace ERROR: invalid regex pattern - " + className.substring(1, className.length() - 1));
-                    }
-                } else {
-                    strAnoList.add(className);
-                }
-            } else if (firstCh == '+') {
-                String superType = className.substring(1);
-                superTypesList.add(superType);
-                superTypesInternalList.add(superType.replace('.', '/'));
-            } else {
-                strSrcList.add(className);
-            }
-        }
-
-        sourceClasses = new String[strSrcList.size()];
-        strSrcList.toArray(sourceClasses);
-        sourceClassPatterns = new Pattern[patSrcList.size()];
-        patSrcList.toArray(sourceClassPatterns);
-        superTypes = new String[superTypesList.size()];
-        superTypesList.toArray(superTypes);
-        superTypesInternal = new String[superTypesInternalList.size()];
-        superTypesInternalList.toArray(superTypesInternal);
-        annotationClasses = new String[strAnoList.size()];
-        strAnoList.toArray(annotationClasses);
-        annotationClassPatterns = new Pattern[patAnoList.size()];
-        patAnoList.toArray(annotationClassPatterns);
-    }
 }
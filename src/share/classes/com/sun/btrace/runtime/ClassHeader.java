@@ -0,0 +1,317 @@
+/*
+ * Copyright (c) 2014, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.btrace.runtime;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A lightweight reader of the class file header. It walks the constant
+ * pool once and resolves only the class access flags, the class name,
+ * the super class, the interfaces and, on demand, the class level
+ * annotations. No ASM structures are built, so the classes which are not
+ * interesting to any probe can be rejected very cheaply.
+ *
+ * @author Jaroslav Bachorik
+ * @since 1.3
+ */
+public final class ClassHeader {
+    private static final int MAGIC = 0xCAFEBABE;
+
+    private static final int UTF8 = 1;
+    private static final int INT = 3;
+    private static final int FLOAT = 4;
+    private static final int LONG = 5;
+    private static final int DOUBLE = 6;
+    private static final int CLASS = 7;
+    private static final int STR = 8;
+    private static final int FIELD = 9;
+    private static final int METH = 10;
+    private static final int IMETH = 11;
+    private static final int NAME_TYPE = 12;
+    private static final int HANDLE = 15;
+    private static final int MTYPE = 16;
+    private static final int INDY = 18;
+
+    private final byte[] b;
+    // offsets of the constant pool entries (pointing right after the tag)
+    private final int[] cpOffsets;
+    private final int access;
+    private final String className;
+    private final String superName;
+    private final String[] interfaces;
+    // offset of the fields_count item
+    private final int membersOffset;
+    private String[] annotations;
+
+    private ClassHeader(byte[] b) {
+        this.b = b;
+        if (readInt(0) != MAGIC) {
+            throw new IllegalArgumentException("not a class file");
+        }
+        int cpCount = readUnsignedShort(8);
+        cpOffsets = new int[cpCount];
+        int pos = 10;
+        for (int i = 1; i < cpCount; i++) {
+            int tag = b[pos];
+            cpOffsets[i] = pos + 1;
+            switch (tag) {
+                case UTF8:
+                    pos += 3 + readUnsignedShort(pos + 1);
+                    break;
+                case CLASS:
+                case STR:
+                case MTYPE:
+                    pos += 3;
+                    break;
+                case HANDLE:
+                    pos += 4;
+                    break;
+                case INT:
+                case FLOAT:
+                case FIELD:
+                case METH:
+                case IMETH:
+                case NAME_TYPE:
+                case INDY:
+                    pos += 5;
+                    break;
+                case LONG:
+                case DOUBLE:
+                    pos += 9;
+                    i++;
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown constant pool tag " + tag);
+            }
+        }
+        access = readUnsignedShort(pos);
+        className = readClass(readUnsignedShort(pos + 2));
+        superName = readClass(readUnsignedShort(pos + 4));
+        int ifcCount = readUnsignedShort(pos + 6);
+        pos += 8;
+        interfaces = new String[ifcCount];
+        for (int i = 0; i < ifcCount; i++) {
+            interfaces[i] = readClass(readUnsignedShort(pos));
+            pos += 2;
+        }
+        membersOffset = pos;
+    }
+
+    /**
+     * Reads the header of the given class
+     * @param classBytes The class bytes
+     * @return The class header
+     * @throws IllegalArgumentException if the bytes can not be read as a class file
+     */
+    public static ClassHeader read(byte[] classBytes) {
+        try {
+            return new ClassHeader(classBytes);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("truncated class file");
+        }
+    }
+
+    public int getAccess() {
+        return access;
+    }
+
+    /**
+     * @return The class name in the internal form
+     */
+    public String getClassName() {
+        return className;
+    }
+
+    /**
+     * @return The super class name in the internal form or {@code null} for java.lang.Object
+     */
+    public String getSuperName() {
+        return superName;
+    }
+
+    /**
+     * @return The implemented interfaces names in the internal form
+     */
+    public String[] getInterfaces() {
+        return interfaces;
+    }
+
+    /**
+     * Lists the descriptors of the class level annotations, both the visible
+     * and invisible ones. The fields and methods are skipped over without
+     * being parsed.
+     * @return The annotation type descriptors
+     * @throws IllegalArgumentException if the class bytes are malformed
+     */
+    public String[] getAnnotations() {
+        if (annotations == null) {
+            try {
+                annotations = readAnnotations();
+            } catch (ArrayIndexOutOfBoundsException e) {
+                throw new IllegalArgumentException("truncated class file");
+            }
+        }
+        return annotations;
+    }
+
+    private String[] readAnnotations() {
+        int pos = skipMembers(skipMembers(membersOffset));
+        List<String> result = new ArrayList<String>(2);
+        int attrCount = readUnsignedShort(pos);
+        pos += 2;
+        for (int i = 0; i < attrCount; i++) {
+            String attrName = readUTF8(readUnsignedShort(pos));
+            int len = readInt(pos + 2);
+            pos += 6;
+            if ("RuntimeVisibleAnnotations".equals(attrName) ||
+                "RuntimeInvisibleAnnotations".equals(attrName)) {
+                int annoCount = readUnsignedShort(pos);
+                int annoPos = pos + 2;
+                for (int j = 0; j < annoCount; j++) {
+                    result.add(readUTF8(readUnsignedShort(annoPos)));
+                    annoPos = skipAnnotation(annoPos);
+                }
+            }
+            pos += len;
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    /**
+     * Reads the bytecode sizes of the class methods. The abstract and
+     * native methods are not listed.
+     * @return The mapping of the method name + descriptor to the code length
+     * @throws IllegalArgumentException if the class bytes are malformed
+     */
+    public Map<String, Integer> getCodeSizes() {
+        try {
+            return readCodeSizes();
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("truncated class file");
+        }
+    }
+
+    private Map<String, Integer> readCodeSizes() {
+        int pos = skipMembers(membersOffset);
+        int count = readUnsignedShort(pos);
+        pos += 2;
+        Map<String, Integer> result = new HashMap<String, Integer>(count);
+        for (int i = 0; i < count; i++) {
+            String name = readUTF8(readUnsignedShort(pos + 2));
+            String desc = readUTF8(readUnsignedShort(pos + 4));
+            int attrCount = readUnsignedShort(pos + 6);
+            pos += 8;
+            for (int j = 0; j < attrCount; j++) {
+                int len = readInt(pos + 2);
+                if ("Code".equals(readUTF8(readUnsignedShort(pos)))) {
+                    // max_stack, max_locals, code_length
+                    result.put(name + desc, readInt(pos + 10));
+                }
+                pos += 6 + len;
+            }
+        }
+        return result;
+    }
+
+    private int skipMembers(int pos) {
+        int count = readUnsignedShort(pos);
+        pos += 2;
+        for (int i = 0; i < count; i++) {
+            // access, name, descriptor
+            pos += 6;
+            int attrCount = readUnsignedShort(pos);
+            pos += 2;
+            for (int j = 0; j < attrCount; j++) {
+                pos += 6 + readInt(pos + 2);
+            }
+        }
+        return pos;
+    }
+
+    private int skipAnnotation(int pos) {
+        int pairs = readUnsignedShort(pos + 2);
+        pos += 4;
+        for (int i = 0; i < pairs; i++) {
+            pos = skipElementValue(pos + 2);
+        }
+        return pos;
+    }
+
+    private int skipElementValue(int pos) {
+        switch (b[pos]) {
+            case 'e':
+                return pos + 5;
+            case '@':
+                return skipAnnotation(pos + 1);
+            case '[': {
+                int count = readUnsignedShort(pos + 1);
+                pos += 3;
+                for (int i = 0; i < count; i++) {
+                    pos = skipElementValue(pos);
+                }
+                return pos;
+            }
+            default:
+                return pos + 3;
+        }
+    }
+
+    private String readClass(int idx) {
+        return idx == 0 ? null : readUTF8(readUnsignedShort(cpOffsets[idx]));
+    }
+
+    private String readUTF8(int idx) {
+        int pos = cpOffsets[idx];
+        int len = readUnsignedShort(pos);
+        pos += 2;
+        int end = pos + len;
+        char[] buf = new char[len];
+        int strLen = 0;
+        while (pos < end) {
+            int c = b[pos++] & 0xff;
+            if (c < 0x80) {
+                buf[strLen++] = (char)c;
+            } else if ((c & 0xe0) == 0xc0) {
+                buf[strLen++] = (char)(((c & 0x1f) << 6) | (b[pos++] & 0x3f));
+            } else {
+                buf[strLen++] = (char)(((c & 0x0f) << 12) | ((b[pos++] & 0x3f) << 6) | (b[pos++] & 0x3f));
+            }
+        }
+        return new String(buf, 0, strLen);
+    }
+
+    private int readUnsignedShort(int pos) {
+        return ((b[pos] & 0xff) << 8) | (b[pos + 1] & 0xff);
+    }
+
+    private int readInt(int pos) {
+        return ((b[pos] & 0xff) << 24) | ((b[pos + 1] & 0xff) << 16) |
+               ((b[pos + 2] & 0xff) << 8) | (b[pos + 3] & 0xff);
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2014, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.btrace.runtime;
+
+import com.sun.btrace.org.objectweb.asm.ClassReader;
+import com.sun.btrace.org.objectweb.asm.Opcodes;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import static com.sun.btrace.runtime.Constants.JAVA_LANG_OBJECT;
+
+/**
+ * Resolves the common super class of two types for the stack map frame
+ * computation.
+ * <p>
+ * The super type information is read from the class bytes obtained through
+ * the defining class loader, so the resolution neither triggers class loading
+ * nor depends on the agent's class loader. The parsed information is kept
+ * in a bounded per-loader cache.
+ *
+ * @author Jaroslav Bachorik
+ * @since 1.3
+ */
+public final class ClassHierarchy {
+    /**
+     * The super type information of one class
+     */
+    static final class ClassInfo {
+        private final String name;
+        private final String superName;
+        private final String[] interfaces;
+        private final boolean isInterface;
+
+        ClassInfo(String name, String superName, String[] interfaces, boolean isInterface) {
+            this.name = name;
+            this.superName = superName;
+            this.interfaces = interfaces != null ? interfaces : new String[0];
+            this.isInterface = isInterface;
+        }
+
+        ClassInfo(ClassReader cr) {
+            this(cr.getClassName(), cr.getSuperName(), cr.getInterfaces(),
+                 (cr.getAccess() & Opcodes.ACC_INTERFACE) != 0);
+        }
+    }
+
+    // maximum number of classes cached per class loader
+    private static final int MAX_ENTRIES = 8192;
+
+    private static final ClassHierarchy INSTANCE = new ClassHierarchy();
+
+    private final Map<ClassLoader, ConcurrentMap<String, ClassInfo>> caches =
+            new WeakHashMap<ClassLoader, ConcurrentMap<String, ClassInfo>>();
+    private final ConcurrentMap<String, ClassInfo> bootCache = new ConcurrentHashMap<String, ClassInfo>();
+
+    public static ClassHierarchy getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Finds the closest common super class of the given types.
+     * @param loader The class loader defining the class being written; {@code null} for bootstrap
+     * @param type1 The internal name of the first type
+     * @param type2 The internal name of the second type
+     * @return The internal name of the common super class; "java/lang/Object" if
+     *         it can not be resolved
+     */
+    public String getCommonSuperClass(ClassLoader loader, String type1, String type2) {
+        return getCommonSuperClass(loader, type1, type2, null);
+    }
+
+    String getCommonSuperClass(ClassLoader loader, String type1, String type2, ClassInfo self1) {
+        if (type1.equals(type2)) {
+            return type1;
+        }
+        if (JAVA_LANG_OBJECT.equals(type1) || JAVA_LANG_OBJECT.equals(type2)) {
+            return JAVA_LANG_OBJECT;
+        }
+        ClassInfo info1 = getClassInfo(loader, type1, self1);
+        ClassInfo info2 = getClassInfo(loader, type2, self1);
+        if (info1 == null || info2 == null) {
+            return JAVA_LANG_OBJECT;
+        }
+        if (isAssignableFrom(loader, info1, info2, self1)) {
+            return type1;
+        }
+        if (isAssignableFrom(loader, info2, info1, self1)) {
+            return type2;
+        }
+        if (info1.isInterface || info2.isInterface) {
+            return JAVA_LANG_OBJECT;
+        }
+        Set<String> supers = new HashSet<String>();
+        ClassInfo ci = info1;
+        while (ci != null) {
+            supers.add(ci.name);
+            ci = ci.superName != null ? getClassInfo(loader, ci.superName, self1) : null;
+        }
+        ci = info2;
+        while (ci != null) {
+            if (supers.contains(ci.name)) {
+                return ci.name;
+            }
+            ci = ci.superName != null ? getClassInfo(loader, ci.superName, self1) : null;
+        }
+        return JAVA_LANG_OBJECT;
+    }
+
+    ClassInfo getClassInfo(ClassLoader loader, String type, ClassInfo self) {
+        if (self != null && self.name.equals(type)) {
+            return self;
+        }
+        ConcurrentMap<String, ClassInfo> cache = getCache(loader);
+        ClassInfo ci = cache.get(type);
+        if (ci == null) {
+            ci = loadClassInfo(loader, type);
+            if (ci != null) {
+                if (cache.size() >= MAX_ENTRIES) {
+                    evict(cache);
+                }
+                cache.putIfAbsent(type, ci);
+            }
+        }
+        return ci;
+    }
+
+    private boolean isAssignableFrom(ClassLoader loader, ClassInfo to, ClassInfo from, ClassInfo self) {
+        if (to.name.equals(from.name)) {
+            return true;
+        }
+        if (from.superName != null) {
+            ClassInfo ci = getClassInfo(loader, from.superName, self);
+            if (ci != null && isAssignableFrom(loader, to, ci, self)) {
+                return true;
+            }
+        }
+        if (to.isInterface) {
+            for (String iface : from.interfaces) {
+                ClassInfo ci = getClassInfo(loader, iface, self);
+                if (ci != null && isAssignableFrom(loader, to, ci, self)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private ConcurrentMap<String, ClassInfo> getCache(ClassLoader loader) {
+        if (loader == null) {
+            return bootCache;
+        }
+        synchronized (caches) {
+            ConcurrentMap<String, ClassInfo> cache = caches.get(loader);
+            if (cache == null) {
+                cache = new ConcurrentHashMap<String, ClassInfo>();
+                caches.put(loader, cache);
+            }
+            return cache;
+        }
+    }
+
+    private static void evict(ConcurrentMap<String, ClassInfo> cache) {
+        // drop roughly a quarter of the entries; the hierarchy is cheap to re-read
+        int toRemove = cache.size() / 4;
+        Iterator<String> iter = cache.keySet().iterator();
+        while (toRemove-- > 0 && iter.hasNext()) {
+            iter.next();
+            iter.remove();
+        }
+    }
+
+    private static ClassInfo loadClassInfo(ClassLoader loader, String type) {
+        String resource = type + ".class";
+        InputStream is = loader != null ? loader.getResourceAsStream(resource)
+                                        : ClassLoader.getSystemResourceAsStream(resource);
+        if (is != null) {
+            try {
+                return new ClassInfo(new ClassReader(is));
+            } catch (IOException e) {
+                // fall through
+            } catch (RuntimeException e) {
+                // malformed class file; fall through
+            } finally {
+                try {
+                    is.close();
+                } catch (IOException e) {}
+            }
+        }
+        // the class bytes are not available (eg. generated classes); ask the class itself
+        try {
+            Class clz = Class.forName(type.replace('/', '.'), false, loader);
+            Class sup = clz.getSuperclass();
+            Class[] ifcs = clz.getInterfaces();
+            String[] interfaces = new String[ifcs.length];
+            for (int i = 0; i < ifcs.length; i++) {
+                interfaces[i] = ifcs[i].getName().replace('.', '/');
+            }
+            return new ClassInfo(type, sup != null ? sup.getName().replace('.', '/') : null,
+                                 interfaces, clz.isInterface());
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (LinkageError e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,527 @@
+/*
+ * Copyright (c) 2014, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.btrace.runtime;
+
+import static com.sun.btrace.org.objectweb.asm.Opcodes.*;
+import com.sun.btrace.org.objectweb.asm.Handle;
+import com.sun.btrace.org.objectweb.asm.Label;
+import com.sun.btrace.org.objectweb.asm.MethodVisitor;
+import com.sun.btrace.org.objectweb.asm.Type;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Splices the bodies of trivial handlers directly into the probe sites.
+ * <p>
+ * A handler body is inlinable when it can neither throw an exception nor
+ * call out of the probe site - i.e. it is made only of local variable,
+ * constant, stack, arithmetic (except integer division) and static field
+ * accesses to the BTrace class and of forward jumps. A local variable of
+ * the body must be stored before it is read. Such a body does not
+ * need the enter/leave and exception handling prolog and epilog added by
+ * {@linkplain Preprocessor}; the probe site itself checks the probe switch
+ * and {@linkplain com.sun.btrace.BTraceRuntime#isActive(com.sun.btrace.BTraceRuntime) }
+ * before the handler is invoked.
+ * <p>
+ * The {@linkplain Preprocessor} records the inlinable handler bodies as
+ * {@code $btrace$inline$<handler>} methods of the BTrace class and the
+ * {@linkplain Instrumentor} splices them in place of the handler invocation
+ * when their size does not exceed the configured threshold.
+ *
+ * @author Jaroslav Bachorik
+ * @since 1.3
+ */
+final class HandlerInliner {
+    static final String INLINE_PREFIX = "$btrace$inline$";
+
+    private HandlerInliner() {}
+
+    /**
+     * Passes all the events through while recording the body of a handler
+     * if it is inlinable.
+     */
+    static final class BodyRecorder extends MethodVisitor {
+        private final String owner;
+        private final RecordedMethods.RecordedMethod body;
+        private MethodVisitor recorder = null;
+        private boolean recording = false;
+        private boolean inlinable = true;
+        // the first slot after the handler parameters
+        private final int firstLocal;
+        // the locals stored so far, keyed like in the inlined body
+        private final Set<Long> storedLocals = new HashSet<Long>();
+        // the labels visited so far; a jump to any of them is a backward one
+        private final Set<Label> visitedLabels = new HashSet<Label>();
+
+        BodyRecorder(MethodVisitor mv, String owner, String name, String desc) {
+            super(ASM5, mv);
+            this.owner = owner;
+            this.body = RecordedMethods.newMethod(ACC_PUBLIC | ACC_STATIC, INLINE_PREFIX + name, desc);
+            int size = 0;
+            for (Type t : Type.getArgumentTypes(desc)) {
+                size += t.getSize();
+            }
+            this.firstLocal = size;
+        }
+
+        /**
+         * Starts recording; the following events make up the handler body
+         */
+        void start() {
+            recorder = body.recorder();
+            recorder.visitCode();
+            recording = true;
+        }
+
+        /**
+         * Excludes the following events from the body until {@linkplain #resume()}
+         */
+        void suspend() {
+            recording = false;
+        }
+
+        void resume() {
+            recording = recorder != null;
+        }
+
+        /**
+         * Stops recording
+         * @return The recorded body or {@code null} if the body is not inlinable
+         */
+        RecordedMethods.RecordedMethod finish() {
+            recording = false;
+            if (recorder == null || !inlinable) {
+                return null;
+            }
+            recorder.visitMaxs(0, 0);
+            recorder.visitEnd();
+            recorder = null;
+            return body;
+        }
+
+        private boolean record(boolean allowed) {
+            if (recording && inlinable) {
+                inlinable = allowed;
+                return allowed;
+            }
+            return false;
+        }
+
+        @Override
+        public void visitInsn(int opcode) {
+            if (record(isInlinable(opcode))) {
+                recorder.visitInsn(opcode);
+            }
+            super.visitInsn(opcode);
+        }
+
+        @Override
+        public void visitIntInsn(int opcode, int operand) {
+            if (record(opcode != NEWARRAY)) {
+                recorder.visitIntInsn(opcode, operand);
+            }
+            super.visitIntInsn(opcode, operand);
+        }
+
+        @Override
+        public void visitVarInsn(int opcode, int var) {
+            if (record(opcode != RET && isInitialized(opcode, var))) {
+                recorder.visitVarInsn(opcode, var);
+            }
+            super.visitVarInsn(opcode, var);
+        }
+
+        /**
+         * Tracks the stores to the body locals
+         * @return {@code false} if a local is read before it is stored
+         */
+        private boolean isInitialized(int opcode, int var) {
+            if (!recording || var < firstLocal) {
+                return true;
+            }
+            Long key = localKey(var, localType(opcode));
+            if (opcode >= ISTORE && opcode <= ASTORE) {
+                storedLocals.add(key);
+                return true;
+            }
+            return storedLocals.contains(key);
+        }
+
+        @Override
+        public void visitTypeInsn(int opcode, String type) {
+            record(false);
+            super.visitTypeInsn(opcode, type);
+        }
+
+        @Override
+        public void visitFieldInsn(int opcode, String fOwner, String name, String desc) {
+            if (record((opcode == GETSTATIC || opcode == PUTSTATIC) && fOwner.equals(owner))) {
+                recorder.visitFieldInsn(opcode, fOwner, name, desc);
+            }
+            super.visitFieldInsn(opcode, fOwner, name, desc);
+        }
+
+        @Override
+        public void visitMethodInsn(int opcode, String mOwner, String name, String desc, boolean itf) {
+            record(false);
+            super.visitMethodInsn(opcode, mOwner, name, desc, itf);
+        }
+
+        @Override
+        public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... bsmArgs) {
+            record(false);
+            super.visitInvokeDynamicInsn(name, desc, bsm, bsmArgs);
+        }
+
+        @Override
+        public void visitJumpInsn(int opcode, Label label) {
+            if (record(opcode != JSR && !visitedLabels.contains(label))) {
+                recorder.visitJumpInsn(opcode, label);
+            }
+            super.visitJumpInsn(opcode, label);
+        }
+
+        @Override
+        public void visitLabel(Label label) {
+            if (record(true)) {
+                visitedLabels.add(label);
+                recorder.visitLabel(label);
+            }
+            super.visitLabel(label);
+        }
+
+        @Override
+        public void visitLdcInsn(Object cst) {
+            if (record(!(cst instanceof Type || cst instanceof Handle))) {
+                recorder.visitLdcInsn(cst);
+            }
+            super.visitLdcInsn(cst);
+        }
+
+        @Override
+        public void visitIincInsn(int var, int increment) {
+            if (record(isInitialized(ILOAD, var))) {
+                recorder.visitIincInsn(var, increment);
+            }
+            super.visitIincInsn(var, increment);
+        }
+
+        @Override
+        public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+            if (record(isForward(dflt, labels))) {
+                recorder.visitTableSwitchInsn(min, max, dflt, labels);
+            }
+            super.visitTableSwitchInsn(min, max, dflt, labels);
+        }
+
+        @Override
+        public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+            if (record(isForward(dflt, labels))) {
+                recorder.visitLookupSwitchInsn(dflt, keys, labels);
+            }
+            super.visitLookupSwitchInsn(dflt, keys, labels);
+        }
+
+        private boolean isForward(Label dflt, Label[] labels) {
+            if (visitedLabels.contains(dflt)) {
+                return false;
+            }
+            for (Label l : labels) {
+                if (visitedLabels.contains(l)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void visitMultiANewArrayInsn(String desc, int dims) {
+            record(false);
+            super.visitMultiANewArrayInsn(desc, dims);
+        }
+
+        @Override
+        public void visitTryCatchBlock(Label start, Label end, Label handler, String type) {
+            record(false);
+            super.visitTryCatchBlock(start, end, handler, type);
+        }
+    }
+
+    /**
+     * @param body The recorded handler body
+     * @return The number of instructions in the body
+     */
+    static int size(RecordedMethods.RecordedMethod body) {
+        final int[] size = new int[1];
+        body.accept(new MethodVisitor(ASM5) {
+            @Override
+            public void visitInsn(int opcode) {
+                size[0]++;
+            }
+
+            @Override
+            public void visitIntInsn(int opcode, int operand) {
+                size[0]++;
+            }
+
+            @Override
+            public void visitVarInsn(int opcode, int var) {
+                size[0]++;
+            }
+
+            @Override
+            public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+                size[0]++;
+            }
+
+            @Override
+            public void visitJumpInsn(int opcode, Label label) {
+                size[0]++;
+            }
+
+            @Override
+            public void visitLdcInsn(Object cst) {
+                size[0]++;
+            }
+
+            @Override
+            public void visitIincInsn(int var, int increment) {
+                size[0]++;
+            }
+
+            @Override
+            public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+                size[0]++;
+            }
+
+            @Override
+            public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+                size[0]++;
+            }
+        });
+        return size[0];
+    }
+
+    /**
+     * Splices the handler body into the probe site. The handler arguments
+     * are expected on the stack.
+     * @param site The probe site
+     * @param body The recorded handler body
+     * @param argTypes The types of the handler arguments on the stack
+     */
+    static void inline(final MethodInstrumentor site, final RecordedMethods.RecordedMethod body, Type[] argTypes) {
+        final Map<Integer, Integer> params = new HashMap<Integer, Integer>();
+        int[] vars = new int[argTypes.length];
+        for (int i = argTypes.length - 1; i >= 0; i--) {
+            vars[i] = site.storeNewLocal(argTypes[i]);
+        }
+        int ptr = 0;
+        for (int i = 0; i < argTypes.length; i++) {
+            params.put(ptr, vars[i]);
+            ptr += argTypes[i].getSize();
+        }
+        final Label end = new Label();
+        body.accept(new MethodVisitor(ASM5) {
+            private final Map<Long, Integer> locals = new HashMap<Long, Integer>();
+            private final Map<Label, Label> labels = new IdentityHashMap<Label, Label>();
+            // a 'return' is turned into a jump unless it is the last instruction
+            private boolean returning = false;
+            private final List<Label> pendingLabels = new ArrayList<Label>();
+
+            private Label label(Label l) {
+                Label mapped = labels.get(l);
+                if (mapped == null) {
+                    mapped = new Label();
+                    labels.put(l, mapped);
+                }
+                return mapped;
+            }
+
+            private Label[] labels(Label[] ls) {
+                Label[] mapped = new Label[ls.length];
+                for (int i = 0; i < ls.length; i++) {
+                    mapped[i] = label(ls[i]);
+                }
+                return mapped;
+            }
+
+            private void flushReturn() {
+                if (returning) {
+                    site.visitJumpInsn(GOTO, end);
+                    returning = false;
+                    flushLabels();
+                }
+            }
+
+            private void flushLabels() {
+                for (Label l : pendingLabels) {
+                    site.visitLabel(l);
+                }
+                pendingLabels.clear();
+            }
+
+            private int local(int opcode, int var) {
+                Integer mapped = params.get(var);
+                if (mapped == null) {
+                    mapped = locals.get(localKey(var, localType(opcode)));
+                    if (mapped == null) {
+                        // the recorder refuses bodies reading a local before storing it
+                        throw new IllegalStateException("local " + var + " of " + body.getName() + " read before stored");
+                    }
+                }
+                return mapped;
+            }
+
+            @Override
+            public void visitVarInsn(int opcode, int var) {
+                flushReturn();
+                if (opcode >= ISTORE && opcode <= ASTORE && !params.containsKey(var)) {
+                    Type t = localType(opcode);
+                    Long key = localKey(var, t);
+                    if (!locals.containsKey(key)) {
+                        // the first store allocates the local in the probe site
+                        locals.put(key, site.storeNewLocal(t));
+                        return;
+                    }
+                }
+                site.visitVarInsn(opcode, local(opcode, var));
+            }
+
+            @Override
+            public void visitIincInsn(int var, int increment) {
+                flushReturn();
+                site.visitIincInsn(local(ILOAD, var), increment);
+            }
+
+            @Override
+            public void visitInsn(int opcode) {
+                flushReturn();
+                if (opcode == RETURN) {
+                    returning = true;
+                } else {
+                    site.visitInsn(opcode);
+                }
+            }
+
+            @Override
+            public void visitIntInsn(int opcode, int operand) {
+                flushReturn();
+                site.visitIntInsn(opcode, operand);
+            }
+
+            @Override
+            public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+                flushReturn();
+                site.visitFieldInsn(opcode, owner, name, desc);
+            }
+
+            @Override
+            public void visitJumpInsn(int opcode, Label label) {
+                flushReturn();
+                site.visitJumpInsn(opcode, label(label));
+            }
+
+            @Override
+            public void visitLabel(Label label) {
+                if (returning) {
+                    pendingLabels.add(label(label));
+                } else {
+                    site.visitLabel(label(label));
+                }
+            }
+
+            @Override
+            public void visitLdcInsn(Object cst) {
+                flushReturn();
+                site.visitLdcInsn(cst);
+            }
+
+            @Override
+            public void visitTableSwitchInsn(int min, int max, Label dflt, Label... ls) {
+                flushReturn();
+                site.visitTableSwitchInsn(min, max, label(dflt), labels(ls));
+            }
+
+            @Override
+            public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] ls) {
+                flushReturn();
+                site.visitLookupSwitchInsn(label(dflt), keys, labels(ls));
+            }
+
+            @Override
+            public void visitEnd() {
+                // the trailing 'return' just falls through
+                flushLabels();
+            }
+        });
+        site.visitLabel(end);
+    }
+
+    /**
+     * The handler locals are keyed by their index and type sort
+     */
+    private static Long localKey(int var, Type t) {
+        return ((long)var << 32) | t.getSort();
+    }
+
+    private static Type localType(int opcode) {
+        switch (opcode) {
+            case ILOAD:
+            case ISTORE:
+                return Type.INT_TYPE;
+            case LLOAD:
+            case LSTORE:
+                return Type.LONG_TYPE;
+            case FLOAD:
+            case FSTORE:
+                return Type.FLOAT_TYPE;
+            case DLOAD:
+            case DSTORE:
+                return Type.DOUBLE_TYPE;
+            default:
+                return TypeUtils.objectType;
+        }
+    }
+
+    private static boolean isInlinable(int opcode) {
+        switch (opcode) {
+            case IDIV:
+            case LDIV:
+            case IREM:
+            case LREM:
+                return false;
+            default:
+                return (opcode >= ACONST_NULL && opcode <= DCONST_1) ||
+                       (opcode >= POP && opcode <= DCMPG) ||
+                       opcode == RETURN;
+        }
+    }
+}
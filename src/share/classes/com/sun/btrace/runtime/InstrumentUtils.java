@@ -87,6 +87,26 @@ public class InstrumentUtils {
         return newClassWriter(null, flags);
     }
     
+    /**
+     * Creates a class writer resolving the common super classes from the
+     * class bytes available through the given class loader.
+     * @param code The bytecode of the class being written
+     * @param loader The defining class loader; {@code null} for bootstrap
+     * @return A new {@linkplain ClassWriter} instance
+     */
+    public static ClassWriter newClassWriter(byte[] code, final ClassLoader loader) {
+        int flags = ClassWriter.COMPUTE_MAXS;
+        if (isJDK16OrAbove(code)) {
+            flags |= ClassWriter.COMPUTE_FRAMES;
+        }
+        final ClassHierarchy.ClassInfo self = new ClassHierarchy.ClassInfo(new ClassReader(code));
+        return new ClassWriter(flags) {
+            protected String getCommonSuperClass(String type1, String type2) {
+                return ClassHierarchy.getInstance().getCommonSuperClass(loader, type1, type2, self);
+            }
+        };
+    }
+
     public static ClassWriter newClassWriter(ClassReader reader, int flags) {
         // FIXME: getCommonSuperClass is called by ClassWriter to merge two types
         // - persumably to compute stack frame attribute. We get LinkageError
@@ -29,7 +29,13 @@ import java.util.List;
 import java.util.ArrayList;
 import java.util.Set;
 import java.util.HashSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import static com.sun.btrace.org.objectweb.asm.Opcodes.*;
+import com.sun.btrace.BTraceRuntime;
+import com.sun.btrace.ProbeControl;
+import com.sun.btrace.annotations.Duration;
 import com.sun.btrace.annotations.Kind;
 import com.sun.btrace.annotations.Where;
 import java.io.File;
@@ -39,16 +45,21 @@ import com.sun.btrace.org.objectweb.asm.AnnotationVisitor;
 import com.sun.btrace.org.objectweb.asm.ClassReader;
 import com.sun.btrace.org.objectweb.asm.ClassVisitor;
 import com.sun.btrace.org.objectweb.asm.ClassWriter;
+import com.sun.btrace.org.objectweb.asm.Label;
 import com.sun.btrace.org.objectweb.asm.MethodVisitor;
 import com.sun.btrace.org.objectweb.asm.Opcodes;
 import com.sun.btrace.org.objectweb.asm.Type;
+import com.sun.btrace.util.templates.Template;
 import com.sun.btrace.util.templates.TemplateExpanderVisitor;
 import com.sun.btrace.util.TimeStampHelper;
-import java.util.regex.PatternSyntaxException;
 import static com.sun.btrace.runtime.Constants.*;
 import com.sun.btrace.util.LocalVariableHelperImpl;
 import com.sun.btrace.util.LocalVariableHelper;
+import com.sun.btrace.util.MethodID;
+import com.sun.btrace.util.SamplingSupport;
 import com.sun.btrace.util.templates.impl.CallTimeStampExpander;
+import com.sun.btrace.util.templates.impl.MethodAllocationExpander;
+import com.sun.btrace.util.templates.impl.MethodCpuTimeExpander;
 import com.sun.btrace.util.templates.impl.MethodTimeStampExpander;
 import com.sun.btrace.util.templates.impl.TimeStampExpander;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -61,112 +72,107 @@ import java.util.concurrent.atomic.AtomicInteger;
  */
 public class Instrumentor extends ClassVisitor {
     private String btraceClassName;
-    private ClassReader btraceClass;
-    private List<OnMethod> onMethods;
+    private RecordedMethods btraceMethods;
+    private ProbeMatcher matcher;
     private List<OnMethod> applicableOnMethods;
+    private ProbeMatcher.MethodIndex methodIndex;
     private Set<OnMethod> calledOnMethods;
     private String className, superName;
     private Class clazz;
+    // max. size of the handler bodies spliced into the probe sites; 0 = disabled
+    private int inlineThreshold = 0;
+    private Map<OnMethod, RecordedMethods.RecordedMethod> inlineBodies;
+    // generate the method exit probes once, in a block shared by all the returns
+    private boolean sharedExit = false;
+    // the synthetic AnyType[] packing methods to add; descriptor -> name
+    private Map<String, String> argsPackers = new LinkedHashMap<String, String>();
 
     private boolean usesTimeStamp = false;
     private boolean timeStampExisting = false;
+    // the generated code refers to the sampling method ids
+    private boolean usesSampling = false;
 
 
     public Instrumentor(Class clazz,
-            String btraceClassName, ClassReader btraceClass,
-            List<OnMethod> onMethods, ClassVisitor cv) {
+            String btraceClassName, RecordedMethods btraceMethods,
+            ProbeMatcher matcher, ClassVisitor cv) {
         super(ASM4, cv);
         this.clazz = clazz;
         this.btraceClassName = btraceClassName.replace('.', '/');
-        this.btraceClass = btraceClass;
-        this.onMethods = onMethods;
+        this.btraceMethods = btraceMethods;
+        this.matcher = matcher;
         this.applicableOnMethods = new ArrayList<OnMethod>();
         this.calledOnMethods = new HashSet<OnMethod>();
     }
 
+    public Instrumentor(Class clazz,
+            String btraceClassName, ClassReader btraceClass,
+            List<OnMethod> onMethods, ClassVisitor cv) {
+        this(clazz, btraceClassName, new RecordedMethods(btraceClass), new ProbeMatcher(onMethods), cv);
+    }
+
+    public Instrumentor(Class clazz,
+            String btraceClassName, byte[] btraceCode,
+            ProbeMatcher matcher, ClassVisitor cv) {
+        this(clazz, btraceClassName, new RecordedMethods(btraceCode), matcher, cv);
+    }
+
     public Instrumentor(Class clazz,
             String btraceClassName, byte[] btraceCode,
             List<OnMethod> onMethods, ClassVisitor cv) {
         this(clazz, btraceClassName, new ClassReader(btraceCode), onMethods, cv);
     }
 
+    /**
+     * Enables splicing the bodies of trivial handlers directly into the
+     * probe sites instead of invoking them. See {@linkplain HandlerInliner}
+     * @param threshold The max. number of instructions of an inlined
+     *                  handler body; 0 disables inlining
+     */
+    public void setInlineThreshold(int threshold) {
+        this.inlineThreshold = threshold;
+    }
+
+    /**
+     * Makes the RETURN and SYNC_EXIT probes be generated only once per method,
+     * in an exit block all the returns jump to, instead of at each return.
+     * See {@linkplain MethodInstrumentor#setSharedExit(boolean)}
+     */
+    public void setSharedExit(boolean sharedExit) {
+        this.sharedExit = sharedExit;
+    }
+
     final public boolean hasMatch() {
         return !calledOnMethods.isEmpty();
     }
 
+    /**
+     * The sampling code refers to the {@linkplain MethodID method ids} which
+     * are assigned anew in each JVM run; such an instrumented class can not
+     * be reused by another JVM.
+     * @return {@code true} if any sampling code was generated
+     */
+    final public boolean usesSampling() {
+        return usesSampling;
+    }
+
     public void visit(int version, int access, String name,
         String signature, String superName, String[] interfaces) {
         usesTimeStamp = false;
         timeStampExisting = false;
+        usesSampling = false;
         className = name;
         this.superName = superName;
-        // we filter the probe methods applicable for this particular
-        // class by brute force walking. FIXME: should I optimize?
-        String externalName = name.replace('/', '.');
-        for (OnMethod om : onMethods) {
-            String probeClazz = om.getClazz();
-            if (probeClazz.length() == 0) {
-                continue;
-            }
-            char firstChar = probeClazz.charAt(0);
-            if (firstChar == '/' &&
-                REGEX_SPECIFIER.matcher(probeClazz).matches()) {
-                probeClazz = probeClazz.substring(1, probeClazz.length() - 1);
-                try {
-                    if (externalName.matches(probeClazz)) {
-                        applicableOnMethods.add(om);
-                    }
-                } catch (PatternSyntaxException pse) {
-                    reportPatternSyntaxException(probeClazz);
-                }
-            } else if (firstChar == '+') {
-                // super type being matched.
-                String superType = probeClazz.substring(1);
-                // internal name of super type.
-                String superTypeInternal = superType.replace('.', '/');
-                /*
-                 * If we are redefining a class, then we have a Class object
-                 * of it and we can walk through it's hierarchy to match for
-                 * specified super type. But, if we are loading it a fresh, then
-                 * we can not walk through super hierarchy. We just check the
-                 * immediate super class and directly implemented interfaces
-                 */
-                if (ClassFilter.isSubTypeOf(this.clazz, superType) ||
-                    superName.equals(superTypeInternal) ||
-                    isInArray(interfaces, superTypeInternal)) {
-                    applicableOnMethods.add(om);
-                }
-            } else if (probeClazz.equals(externalName)) {
-                applicableOnMethods.add(om);
-            }
-        }
+        applicableOnMethods.addAll(
+            matcher.matchClass(this.clazz, name, superName, interfaces)
+        );
         super.visit(version, access, name, signature, superName, interfaces);
     }
 
     public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
         AnnotationVisitor av = super.visitAnnotation(desc, visible);
         String extName = Type.getType(desc).getClassName();
-        for (OnMethod om : onMethods) {
-            String probeClazz = om.getClazz();
-            if (probeClazz.length() > 0 && probeClazz.charAt(0) == '@') {
-                probeClazz = probeClazz.substring(1);
-                if (probeClazz.length() == 0) {
-                    continue;
-                }
-                if (REGEX_SPECIFIER.matcher(probeClazz).matches()) {
-                    probeClazz = probeClazz.substring(1, probeClazz.length() - 1);
-                    try {
-                        if (extName.matches(probeClazz)) {
-                            applicableOnMethods.add(om);
-                        }
-                    } catch (PatternSyntaxException pse) {
-                        reportPatternSyntaxException(probeClazz);
-                    }
-                } else if (probeClazz.equals(extName)) {
-                    applicableOnMethods.add(om);
-                }
-            }
-        }
+        applicableOnMethods.addAll(matcher.matchClassAnnotation(extName));
         return av;
     }
 
@@ -195,57 +201,21 @@ public class Instrumentor extends ClassVisitor {
 
         LocalVariableHelper visitor = tse;
 
-        for (OnMethod om : applicableOnMethods) {
-            if (om.getLocation().getValue() == Kind.LINE) {
-                visitor = instrumentorFor(om, visitor, access, name, desc);
-            } else {
-                String methodName = om.getMethod();
-                if (methodName.equals("")) {
-                    methodName = om.getTargetName();
-                }
-                if (methodName.equals(name) &&
-                    typeMatches(om.getType(), desc)) {
-                    visitor = instrumentorFor(om, visitor, access, name, desc);
-                } else if (methodName.charAt(0) == '/' &&
-                           REGEX_SPECIFIER.matcher(methodName).matches()) {
-                    methodName = methodName.substring(1, methodName.length() - 1);
-                    try {
-                        if (name.matches(methodName) &&
-                            typeMatches(om.getType(), desc)) {
-                            visitor = instrumentorFor(om, visitor, access, name, desc);
-                        }
-                    } catch (PatternSyntaxException pse) {
-                        reportPatternSyntaxException(name);
-                    }
-                }
-            }
+        if (methodIndex == null) {
+            // the class level matching is complete once the methods are visited
+            methodIndex = matcher.indexMethods(applicableOnMethods);
+        }
+        for (OnMethod om : methodIndex.match(name, desc)) {
+            visitor = instrumentorFor(om, visitor, access, name, desc);
         }
 
         return new MethodVisitor(Opcodes.ASM5, (MethodVisitor)visitor) {
             public AnnotationVisitor visitAnnotation(String annoDesc,
                                   boolean visible) {
                 LocalVariableHelper visitor = (LocalVariableHelper)mv;
-                for (OnMethod om : applicableOnMethods) {
-                    String extAnnoName = Type.getType(annoDesc).getClassName();
-                    String annoName = om.getMethod();
-                    if (annoName.length() > 0 && annoName.charAt(0) == '@') {
-                        annoName = annoName.substring(1);
-                        if (annoName.length() == 0) {
-                            continue;
-                        }
-                        if (REGEX_SPECIFIER.matcher(annoName).matches()) {
-                            annoName = annoName.substring(1, annoName.length() - 1);
-                            try {
-                                if (extAnnoName.matches(annoName)) {
-                                    visitor = instrumentorFor(om, visitor, access, name, desc);
-                                }
-                            } catch (PatternSyntaxException pse) {
-                                reportPatternSyntaxException(extAnnoName);
-                            }
-                        } else if (annoName.equals(extAnnoName)) {
-                            visitor = instrumentorFor(om, visitor, access, name, desc);
-                        }
-                    }
+                String extAnnoName = Type.getType(annoDesc).getClassName();
+                for (OnMethod om : methodIndex.matchAnnotation(extAnnoName)) {
+                    visitor = instrumentorFor(om, visitor, access, name, desc);
                 }
                 return ((MethodVisitor)visitor).visitAnnotation(annoDesc, visible);
             }
@@ -284,14 +254,12 @@ public class Instrumentor extends ClassVisitor {
                                 argsIndex[INSTANCE_PTR] = storeNewLocal(arrtype);
                             }
                             if (where == Where.BEFORE) {
-                                loadArguments(
+                                invokeBTraceAction(this, om,
                                     new LocalVarArgProvider(vr.getArgIdx(INDEX_PTR), Type.INT_TYPE, argsIndex[INDEX_PTR]),
                                     new LocalVarArgProvider(vr.getArgIdx(INSTANCE_PTR), arrtype, argsIndex[INSTANCE_PTR]),
                                     new ConstantArgProvider(om.getClassNameParameter(), className.replace("/", ".")),
                                     new ConstantArgProvider(om.getMethodParameter(), getName(om.isMethodFqn())),
                                     new LocalVarArgProvider(om.getSelfParameter(), Type.getObjectType(className), 0));
-
-                                invokeBTraceAction(this, om);
                             }
                         }
                     }
@@ -311,14 +279,13 @@ public class Instrumentor extends ClassVisitor {
                                     retValIndex = storeNewLocal(retType);
                                 }
 
-                                loadArguments(
+                                invokeBTraceAction(this, om,
                                     new LocalVarArgProvider(vr.getArgIdx(INDEX_PTR), Type.INT_TYPE, argsIndex[INDEX_PTR]),
                                     new LocalVarArgProvider(vr.getArgIdx(INSTANCE_PTR), arrtype, argsIndex[INSTANCE_PTR]),
                                     new ConstantArgProvider(om.getClassNameParameter(), className.replace("/", ".")),
                                     new ConstantArgProvider(om.getMethodParameter(), getName(om.isMethodFqn())),
                                     new LocalVarArgProvider(om.getReturnParameter(), retType, retValIndex),
                                     new LocalVarArgProvider(om.getSelfParameter(), Type.getObjectType(className), 0));
-                                invokeBTraceAction(this, om);
                             }
                         }
                     }
@@ -347,15 +314,13 @@ public class Instrumentor extends ClassVisitor {
                             }
 
                             if (where == Where.BEFORE) {
-                                loadArguments(
+                                invokeBTraceAction(this, om,
                                     new LocalVarArgProvider(vr.getArgIdx(INSTANCE_PTR), arrayType, argsIndex[INSTANCE_PTR]),
                                     new LocalVarArgProvider(vr.getArgIdx(INDEX_PTR), Type.INT_TYPE, argsIndex[INDEX_PTR]),
                                     new LocalVarArgProvider(vr.getArgIdx(VALUE_PTR), elementType, argsIndex[VALUE_PTR]),
                                     new ConstantArgProvider(om.getClassNameParameter(), className.replace("/", ".")),
                                     new ConstantArgProvider(om.getMethodParameter(), getName(om.isMethodFqn())),
                                     new LocalVarArgProvider(om.getSelfParameter(), Type.getObjectType(className), 0));
-
-                                invokeBTraceAction(this, om);
                             }
                         }
                     }
@@ -369,15 +334,13 @@ public class Instrumentor extends ClassVisitor {
                             addExtraTypeInfo(om.getSelfParameter(), Type.getObjectType(className));
                             ValidationResult vr = validateArguments(om, isStatic(), actionArgTypes, new Type[]{arrayType, Type.INT_TYPE, elementType});
                             if (vr.isValid()) {
-                                loadArguments(
+                                invokeBTraceAction(this, om,
                                     new LocalVarArgProvider(vr.getArgIdx(INSTANCE_PTR), arrayType, argsIndex[INSTANCE_PTR]),
                                     new LocalVarArgProvider(vr.getArgIdx(INDEX_PTR), Type.INT_TYPE, argsIndex[INDEX_PTR]),
                                     new LocalVarArgProvider(vr.getArgIdx(VALUE_PTR), elementType, argsIndex[VALUE_PTR]),
                                     new ConstantArgProvider(om.getClassNameParameter(), className.replace("/", ".")),
                                     new ConstantArgProvider(om.getMethodParameter(), getName(om.isMethodFqn())),
                                     new LocalVarArgProvider(om.getSelfParameter(), Type.getObjectType(className), 0));
-
-                                invokeBTraceAction(this, om);
                             }
                         }
                     }
@@ -393,7 +356,7 @@ public class Instrumentor extends ClassVisitor {
                     int[] backupArgsIndices;
 
                     private void injectBtrace(ValidationResult vr, final String method, final Type[] callArgTypes, final Type returnType) {
-                        ArgumentProvider[] actionArgs = new ArgumentProvider[actionArgTypes.length + 7];
+                        ArgumentProvider[] actionArgs = new ArgumentProvider[actionArgTypes.length + 8];
                         for(int i=0;i<vr.getArgCnt();i++) {
                             int index = vr.getArgIdx(i);
                             Type t = actionArgTypes[index];
@@ -421,15 +384,21 @@ public class Instrumentor extends ClassVisitor {
                         actionArgs[actionArgTypes.length + 3] = new ConstantArgProvider(om.getClassNameParameter(), className);
                         actionArgs[actionArgTypes.length + 4] = new ConstantArgProvider(om.getMethodParameter(), getName(om.isMethodFqn()));
                         actionArgs[actionArgTypes.length + 5] = new LocalVarArgProvider(om.getSelfParameter(), Type.getObjectType(className), 0);
-                        actionArgs[actionArgTypes.length + 6] = new ArgumentProvider(om.getDurationParameter()) {
+                        actionArgs[actionArgTypes.length + 6] = new TemplateArgProvider(om.getDurationParameter(), Type.LONG_TYPE) {
                                 public void doProvide() {
                                     CallTimeStampExpander.DURATION.insert(mv, "id=" + getCallId(), "transient");
                                 }
                             };
+                        actionArgs[actionArgTypes.length + 7] = new TemplateArgProvider(om.getSamplingRateParameter(), Type.INT_TYPE) {
+                                public void doProvide() {
+                                    CallTimeStampExpander.SAMPLING_RATE.insert(mv, CallTimeStampExpander.CALLID + "=" + getCallId());
+                                }
+                            };
 
-                        loadArguments(actionArgs);
-
-                        invokeBTraceAction(this, om);
+                        invokeBTraceAction(this, om,
+                            new HitCost(CallTimeStampExpander.SAMPLE_HIT, CallTimeStampExpander.HIT_START, CallTimeStampExpander.HIT_COST,
+                                        CallTimeStampExpander.CALLID + "=" + getCallId()),
+                            actionArgs);
                     }
 
                     @Override
@@ -461,9 +430,12 @@ public class Instrumentor extends ClassVisitor {
                                     }
                                 }
                                 if (where == Where.AFTER && om.getDurationParameter() != -1) {
+                                    usesSampling |= TimeStampExpander.isSampled(om.getDurationSamplingInterval());
                                     CallTimeStampExpander.START_TIME.insert(
                                         mv,
                                         TimeStampExpander.SAMPLING_INTERVAl + "=" + om.getDurationSamplingInterval(),
+                                        TimeStampExpander.OVERHEAD_BUDGET + "=" + om.getDurationOverheadBudget(),
+                                        TimeStampExpander.MAX_SAMPLES + "=" + om.getDurationMaxSamplesPerSec(),
                                         CallTimeStampExpander.CALLID + "=" + getCallId()
                                     );
                                 }
@@ -532,13 +504,11 @@ public class Instrumentor extends ClassVisitor {
                                 dup();
                                 index = storeNewLocal(exctype);
                             }
-                            loadArguments(
+                            invokeBTraceAction(this, om,
                                 new LocalVarArgProvider(vr.getArgIdx(0), exctype, index),
                                 new ConstantArgProvider(om.getClassNameParameter(), className),
                                 new ConstantArgProvider(om.getMethodParameter(), getName(om.isMethodFqn())),
                                 new LocalVarArgProvider(om.getSelfParameter(), Type.getObjectType(className), 0));
-
-                            invokeBTraceAction(this, om);
                         }
                     }
                 };// </editor-fold>
@@ -560,13 +530,11 @@ public class Instrumentor extends ClassVisitor {
                                     dup();
                                     castTypeIndex = storeNewLocal(castType);
                                 }
-                                loadArguments(
+                                invokeBTraceAction(this, om,
                                     new LocalVarArgProvider(vr.getArgIdx(0), castType, castTypeIndex),
                                     new ConstantArgProvider(om.getClassNameParameter(), className.replace("/", ".")),
                                     new ConstantArgProvider(om.getMethodParameter(), getName(om.isMethodFqn())),
                                     new LocalVarArgProvider(om.getSelfParameter(), Type.getObjectType(className), 0));
-
-                                invokeBTraceAction(this, om);
                             }
                         }
                     }
@@ -606,9 +574,7 @@ public class Instrumentor extends ClassVisitor {
                         actionArgs[actionArgTypes.length] = new ConstantArgProvider(om.getMethodParameter(), getName(om.isMethodFqn()));
                         actionArgs[actionArgTypes.length + 1] = new ConstantArgProvider(om.getClassNameParameter(), className.replace("/", "."));
                         actionArgs[actionArgTypes.length + 2] = new LocalVarArgProvider(om.getSelfParameter(), Type.getObjectType(className), 0);
-                        loadArguments(actionArgs);
-
-                        invokeBTraceAction(this, om);
+                        invokeBTraceAction(this, om, actionArgs);
                     }
 
                     private void callAction() {
@@ -650,27 +616,46 @@ public class Instrumentor extends ClassVisitor {
                             if (om.getDurationParameter() != -1) {
                                 MethodTimeStampExpander.END_TIME.insert(mv, "transient");
                             }
+                            if (om.getCpuDurationParameter() != -1) {
+                                MethodCpuTimeExpander.END_TIME.insert(mv, "transient");
+                            }
+                            if (om.getAllocatedBytesParameter() != -1) {
+                                MethodAllocationExpander.END_BYTES.insert(mv, "transient");
+                            }
 
                             if (!vr.isAny()) {
                                 dup();
                                 throwableIndex = storeNewLocal(TypeUtils.throwableType);
                             }
 
-                            ArgumentProvider[] actionArgs = new ArgumentProvider[5];
+                            ArgumentProvider[] actionArgs = new ArgumentProvider[8];
 
                             actionArgs[0] = new LocalVarArgProvider(vr.getArgIdx(0), TypeUtils.throwableType, throwableIndex);
                             actionArgs[1] = new ConstantArgProvider(om.getClassNameParameter(), className.replace("/", "."));
                             actionArgs[2] = new ConstantArgProvider(om.getMethodParameter(), getName(om.isMethodFqn()));
                             actionArgs[3] = new LocalVarArgProvider(om.getSelfParameter(), Type.getObjectType(className), 0);
-                            actionArgs[4] = new ArgumentProvider(om.getDurationParameter()) {
+                            actionArgs[4] = new TemplateArgProvider(om.getDurationParameter(), Type.LONG_TYPE) {
                                 public void doProvide() {
                                     MethodTimeStampExpander.DURATION.insert(mv, "transient");
                                 }
                             };
+                            actionArgs[5] = new TemplateArgProvider(om.getCpuDurationParameter(), Type.LONG_TYPE) {
+                                public void doProvide() {
+                                    MethodCpuTimeExpander.DURATION.insert(mv, "transient");
+                                }
+                            };
+                            actionArgs[6] = new TemplateArgProvider(om.getAllocatedBytesParameter(), Type.LONG_TYPE) {
+                                public void doProvide() {
+                                    MethodAllocationExpander.ALLOCATED_BYTES.insert(mv, "transient");
+                                }
+                            };
+                            actionArgs[7] = new TemplateArgProvider(om.getSamplingRateParameter(), Type.INT_TYPE) {
+                                public void doProvide() {
+                                    MethodTimeStampExpander.SAMPLING_RATE.insert(mv);
+                                }
+                            };
 
-                            loadArguments(actionArgs);
-
-                            invokeBTraceAction(this, om);
+                            invokeBTraceAction(this, om, HitCost.METHOD, actionArgs);
                         }
                     }
 
@@ -683,16 +668,27 @@ public class Instrumentor extends ClassVisitor {
                                 try {
                                     if (!generatingCode) {
                                         generatingCode = true;
+                                        usesSampling |= TimeStampExpander.isSampled(om.getDurationSamplingInterval());
                                         MethodTimeStampExpander.START_TIME.insert(
                                             mv,
                                             TimeStampExpander.SAMPLING_INTERVAl +
-                                                "=" + om.getDurationSamplingInterval()
+                                                "=" + om.getDurationSamplingInterval(),
+                                            TimeStampExpander.OVERHEAD_BUDGET +
+                                                "=" + om.getDurationOverheadBudget(),
+                                            TimeStampExpander.MAX_SAMPLES +
+                                                "=" + om.getDurationMaxSamplesPerSec()
                                         );
                                     }
                                 } finally {
                                     generatingCode = false;
                                 }
                             }
+                            if (om.getCpuDurationParameter() != -1) {
+                                MethodCpuTimeExpander.START_TIME.insert(mv);
+                            }
+                            if (om.getAllocatedBytesParameter() != -1) {
+                                MethodAllocationExpander.START_BYTES.insert(mv);
+                            }
                         }
                     }
                 };
@@ -735,14 +731,12 @@ public class Instrumentor extends ClassVisitor {
                                     calledInstanceIndex = storeNewLocal(TypeUtils.objectType);
                                 }
                                 if (where == Where.BEFORE) {
-                                    loadArguments(
+                                    invokeBTraceAction(this, om,
                                         new LocalVarArgProvider(om.getTargetInstanceParameter(), TypeUtils.objectType, calledInstanceIndex),
                                         new ConstantArgProvider(om.getTargetMethodOrFieldParameter(), targetFieldName),
                                         new ConstantArgProvider(om.getClassNameParameter(), className.replace("/", ".")),
                                         new ConstantArgProvider(om.getMethodParameter(), getName(om.isMethodFqn())),
                                         new LocalVarArgProvider(om.getSelfParameter(), Type.getObjectType(className), 0));
-
-                                    invokeBTraceAction(this, om);
                                 }
                             }
                         }
@@ -769,15 +763,13 @@ public class Instrumentor extends ClassVisitor {
                                     returnValIndex = storeNewLocal(fldType);
                                 }
 
-                                loadArguments(
+                                invokeBTraceAction(this, om,
                                     new LocalVarArgProvider(om.getTargetInstanceParameter(), TypeUtils.objectType, calledInstanceIndex),
                                     new ConstantArgProvider(om.getTargetMethodOrFieldParameter(), targetFieldName),
                                     new LocalVarArgProvider(om.getReturnParameter(), fldType, returnValIndex),
                                     new ConstantArgProvider(om.getClassNameParameter(), className.replace("/", ".")),
                                     new ConstantArgProvider(om.getMethodParameter(), getName(om.isMethodFqn())),
                                     new LocalVarArgProvider(om.getSelfParameter(), Type.getObjectType(className), 0));
-
-                                invokeBTraceAction(this, om);
                             }
                         }
                     }
@@ -819,15 +811,13 @@ public class Instrumentor extends ClassVisitor {
                                 }
 
                                 if (where == Where.BEFORE) {
-                                    loadArguments(
+                                    invokeBTraceAction(this, om,
                                         new LocalVarArgProvider(vr.getArgIdx(0), fieldType, fldValueIndex),
                                         new LocalVarArgProvider(om.getTargetInstanceParameter(), TypeUtils.objectType, calledInstanceIndex),
                                         new ConstantArgProvider(om.getTargetMethodOrFieldParameter(), targetFieldName),
                                         new ConstantArgProvider(om.getClassNameParameter(), className.replace("/", ".")),
                                         new ConstantArgProvider(om.getMethodParameter(), getName(om.isMethodFqn())),
                                         new LocalVarArgProvider(om.getSelfParameter(), Type.getObjectType(className), 0));
-
-                                    invokeBTraceAction(this, om);
                                 }
                             }
                         }
@@ -849,15 +839,13 @@ public class Instrumentor extends ClassVisitor {
                             ValidationResult vr = validateArguments(om, isStatic(), actionArgTypes, new Type[]{fieldType});
 
                             if (vr.isValid()) {
-                                loadArguments(
+                                invokeBTraceAction(this, om,
                                         new LocalVarArgProvider(vr.getArgIdx(0), fieldType, fldValueIndex),
                                         new LocalVarArgProvider(om.getTargetInstanceParameter(), TypeUtils.objectType, calledInstanceIndex),
                                         new ConstantArgProvider(om.getTargetMethodOrFieldParameter(), targetFieldName),
                                         new ConstantArgProvider(om.getClassNameParameter(), className.replace("/", ".")),
                                         new ConstantArgProvider(om.getMethodParameter(), getName(om.isMethodFqn())),
                                         new LocalVarArgProvider(om.getSelfParameter(), Type.getObjectType(className), 0));
-
-                                invokeBTraceAction(this, om);
                             }
                         }
                     }
@@ -879,13 +867,11 @@ public class Instrumentor extends ClassVisitor {
                         // It would be better to check for the original and desired type
 
                         if (vr.isValid()) {
-                            loadArguments(
+                            invokeBTraceAction(this, om,
                                 new LocalVarArgProvider(vr.getArgIdx(0), castType, castTypeIndex),
                                 new ConstantArgProvider(om.getClassNameParameter(), className.replace("/", ".")),
                                 new ConstantArgProvider(om.getMethodParameter(), getName(om.isMethodFqn())),
                                 new LocalVarArgProvider(om.getSelfParameter(), Type.getObjectType(className), 0));
-
-                            invokeBTraceAction(this, om);
                         }
                     }
 
@@ -930,13 +916,11 @@ public class Instrumentor extends ClassVisitor {
                         addExtraTypeInfo(om.getSelfParameter(), Type.getObjectType(className));
                         ValidationResult vr = validateArguments(om, isStatic(), actionArgTypes, new Type[]{Type.INT_TYPE});
                         if (vr.isValid()) {
-                            loadArguments(
+                            invokeBTraceAction(this, om,
                                 new ConstantArgProvider(vr.getArgIdx(0), line),
                                 new ConstantArgProvider(om.getClassNameParameter(), className.replace("/", ".")),
                                 new ConstantArgProvider(om.getMethodParameter(), getName(om.isMethodFqn())),
                                 new LocalVarArgProvider(om.getSelfParameter(), Type.getObjectType(className), 0));
-
-                            invokeBTraceAction(this, om);
                         }
                     }
 
@@ -969,13 +953,11 @@ public class Instrumentor extends ClassVisitor {
                                 addExtraTypeInfo(om.getSelfParameter(), Type.getObjectType(className));
                                 ValidationResult vr = validateArguments(om, isStatic(), actionArgTypes, new Type[]{TypeUtils.stringType});
                                 if (vr.isValid()) {
-                                    loadArguments(
+                                    invokeBTraceAction(this, om,
                                         new ConstantArgProvider(vr.getArgIdx(0), extName),
                                         new ConstantArgProvider(om.getClassNameParameter(), className.replace("/", ".")),
                                         new ConstantArgProvider(om.getMethodParameter(), getName(om.isMethodFqn())),
                                         new LocalVarArgProvider(om.getSelfParameter(), Type.getObjectType(className), 0));
-
-                                    invokeBTraceAction(this, om);
                                 }
                             }
                         }
@@ -997,14 +979,12 @@ public class Instrumentor extends ClassVisitor {
                                         dupValue(instType);
                                         returnValIndex = storeNewLocal(instType);
                                     }
-                                    loadArguments(
+                                    invokeBTraceAction(this, om,
                                         new ConstantArgProvider(vr.getArgIdx(0), extName),
                                         new LocalVarArgProvider(om.getReturnParameter(), instType, returnValIndex),
                                         new ConstantArgProvider(om.getClassNameParameter(), className.replace("/", ".")),
                                         new ConstantArgProvider(om.getMethodParameter(), getName(om.isMethodFqn())),
                                         new LocalVarArgProvider(om.getSelfParameter(), Type.getObjectType(className), 0));
-
-                                    invokeBTraceAction(this, om);
                                 }
                             }
                         }
@@ -1024,14 +1004,12 @@ public class Instrumentor extends ClassVisitor {
                                 addExtraTypeInfo(om.getSelfParameter(), Type.getObjectType(className));
                                 ValidationResult vr = validateArguments(om, isStatic(), actionArgTypes, new Type[]{TypeUtils.stringType, Type.INT_TYPE});
                                 if (vr.isValid()) {
-                                    loadArguments(
+                                    invokeBTraceAction(this, om,
                                         new ConstantArgProvider(vr.getArgIdx(0), extName),
                                         new ConstantArgProvider(vr.getArgIdx(1), dims),
                                         new ConstantArgProvider(om.getClassNameParameter(), className.replace("/", ".")),
                                         new ConstantArgProvider(om.getMethodParameter(), getName(om.isMethodFqn())),
                                         new LocalVarArgProvider(om.getSelfParameter(), Type.getObjectType(className), 0));
-
-                                    invokeBTraceAction(this, om);
                                 }
                             }
                         }
@@ -1058,15 +1036,13 @@ public class Instrumentor extends ClassVisitor {
                                         dupValue(instType);
                                         returnValIndex = storeNewLocal(instType);
                                     }
-                                    loadArguments(
+                                    invokeBTraceAction(this, om,
                                         new ConstantArgProvider(vr.getArgIdx(0), extName),
                                         new ConstantArgProvider(vr.getArgIdx(1), dims),
                                         new LocalVarArgProvider(om.getReturnParameter(), instType, returnValIndex),
                                         new ConstantArgProvider(om.getClassNameParameter(), className.replace("/", ".")),
                                         new ConstantArgProvider(om.getMethodParameter(), getName(om.isMethodFqn())),
                                         new LocalVarArgProvider(om.getSelfParameter(), Type.getObjectType(className), 0));
-
-                                    invokeBTraceAction(this, om);
                                 }
                             }
                         }
@@ -1099,18 +1075,24 @@ public class Instrumentor extends ClassVisitor {
                             if (om.getDurationParameter() != -1) {
                                 MethodTimeStampExpander.END_TIME.insert(mv);
                             }
+                            if (om.getCpuDurationParameter() != -1) {
+                                MethodCpuTimeExpander.END_TIME.insert(mv);
+                            }
+                            if (om.getAllocatedBytesParameter() != -1) {
+                                MethodAllocationExpander.END_BYTES.insert(mv);
+                            }
                             if (om.getReturnParameter() != -1) {
                                 dupReturnValue(retOpCode);
                                 retValIndex = storeNewLocal(getReturnType());
                             }
 
-                            ArgumentProvider[] actionArgs = new ArgumentProvider[actionArgTypes.length + 5];
+                            ArgumentProvider[] actionArgs = new ArgumentProvider[actionArgTypes.length + 8];
                             int ptr = isStatic() ? 0 : 1;
                             for(int i=0;i<vr.getArgCnt();i++) {
                                 int index = vr.getArgIdx(i);
                                 Type t = actionArgTypes[index];
                                 if (TypeUtils.isAnyTypeArray(t)) {
-                                    actionArgs[i] = new AnyTypeArgProvider(i, ptr);
+                                    actionArgs[i] = new AnyTypeArgProvider(index, ptr);
                                     ptr++;
                                 } else {
                                     actionArgs[i] = new LocalVarArgProvider(index, t, ptr);
@@ -1121,14 +1103,27 @@ public class Instrumentor extends ClassVisitor {
                             actionArgs[actionArgTypes.length + 1] = new ConstantArgProvider(om.getClassNameParameter(), className.replace("/", "."));
                             actionArgs[actionArgTypes.length + 2] = new LocalVarArgProvider(om.getReturnParameter(), getReturnType(), retValIndex);
                             actionArgs[actionArgTypes.length + 3] = new LocalVarArgProvider(om.getSelfParameter(), Type.getObjectType(className), 0);
-                            actionArgs[actionArgTypes.length + 4] = new ArgumentProvider(om.getDurationParameter()) {
+                            actionArgs[actionArgTypes.length + 4] = new TemplateArgProvider(om.getDurationParameter(), Type.LONG_TYPE) {
                                 public void doProvide() {
                                     MethodTimeStampExpander.DURATION.insert(mv);
                                 }
                             };
-                            loadArguments(actionArgs);
-
-                            invokeBTraceAction(this, om);
+                            actionArgs[actionArgTypes.length + 5] = new TemplateArgProvider(om.getCpuDurationParameter(), Type.LONG_TYPE) {
+                                public void doProvide() {
+                                    MethodCpuTimeExpander.DURATION.insert(mv);
+                                }
+                            };
+                            actionArgs[actionArgTypes.length + 6] = new TemplateArgProvider(om.getAllocatedBytesParameter(), Type.LONG_TYPE) {
+                                public void doProvide() {
+                                    MethodAllocationExpander.ALLOCATED_BYTES.insert(mv);
+                                }
+                            };
+                            actionArgs[actionArgTypes.length + 7] = new TemplateArgProvider(om.getSamplingRateParameter(), Type.INT_TYPE) {
+                                public void doProvide() {
+                                    MethodTimeStampExpander.SAMPLING_RATE.insert(mv);
+                                }
+                            };
+                            invokeBTraceAction(this, om, HitCost.METHOD, actionArgs);
                         } finally {
                             if (getSkipLabel() != null) {
                                 visitLabel(getSkipLabel());
@@ -1154,20 +1149,31 @@ public class Instrumentor extends ClassVisitor {
                                 try {
                                     if (!generatingCode) {
                                         generatingCode = true;
+                                        usesSampling |= TimeStampExpander.isSampled(om.getDurationSamplingInterval());
                                         MethodTimeStampExpander.START_TIME.insert(
                                             mv,
                                             TimeStampExpander.SAMPLING_INTERVAl +
-                                                "=" + om.getDurationSamplingInterval()
+                                                "=" + om.getDurationSamplingInterval(),
+                                            TimeStampExpander.OVERHEAD_BUDGET +
+                                                "=" + om.getDurationOverheadBudget(),
+                                            TimeStampExpander.MAX_SAMPLES +
+                                                "=" + om.getDurationMaxSamplesPerSec()
                                         );
                                     }
                                 } finally {
                                     generatingCode = false;
                                 }
                             }
+                            if (om.getCpuDurationParameter() != -1) {
+                                MethodCpuTimeExpander.START_TIME.insert(mv);
+                            }
+                            if (om.getAllocatedBytesParameter() != -1) {
+                                MethodAllocationExpander.START_BYTES.insert(mv);
+                            }
                         }
                     }
                 };
-                return mri;
+                return sharedExit ? mri.withSharedExit() : mri;
                 // </editor-fold>
 
             case SYNC_ENTRY:
@@ -1186,12 +1192,11 @@ public class Instrumentor extends ClassVisitor {
                             }
 
                             if (where == Where.BEFORE) {
-                                loadArguments(
+                                invokeBTraceAction(this, om,
                                     new LocalVarArgProvider(vr.getArgIdx(0), TypeUtils.objectType, storedObjIdx),
                                     new ConstantArgProvider(om.getClassNameParameter(), className),
                                     new ConstantArgProvider(om.getMethodParameter(), getName(om.isMethodFqn())),
                                     new LocalVarArgProvider(om.getSelfParameter(), Type.getObjectType(className), 0));
-                                invokeBTraceAction(this, om);
                             }
                         }
                     }
@@ -1202,12 +1207,11 @@ public class Instrumentor extends ClassVisitor {
                             addExtraTypeInfo(om.getSelfParameter(), Type.getObjectType(className));
                             ValidationResult vr = validateArguments(om, isStatic(), actionArgTypes, new Type[]{TypeUtils.objectType});
                             if (vr.isValid()) {
-                                loadArguments(
+                                invokeBTraceAction(this, om,
                                     new LocalVarArgProvider(vr.getArgIdx(0), TypeUtils.objectType, storedObjIdx),
                                     new ConstantArgProvider(om.getClassNameParameter(), className),
                                     new ConstantArgProvider(om.getMethodParameter(), getName(om.isMethodFqn())),
                                     new LocalVarArgProvider(om.getSelfParameter(), Type.getObjectType(className), 0));
-                                invokeBTraceAction(this, om);
                             }
                         }
                     }
@@ -1223,7 +1227,7 @@ public class Instrumentor extends ClassVisitor {
 
             case SYNC_EXIT:
                 // <editor-fold defaultstate="collapsed" desc="SyncExit Instrumentor">
-                return new SynchronizedInstrumentor(mv, className, superName, access, name, desc) {
+                SynchronizedInstrumentor sei = new SynchronizedInstrumentor(mv, className, superName, access, name, desc) {
                     int storedObjIdx = -1;
 
                     @Override
@@ -1237,12 +1241,11 @@ public class Instrumentor extends ClassVisitor {
                             }
 
                             if (where == Where.BEFORE) {
-                                loadArguments(
+                                invokeBTraceAction(this, om,
                                     new LocalVarArgProvider(vr.getArgIdx(0), TypeUtils.objectType, storedObjIdx),
                                     new ConstantArgProvider(om.getClassNameParameter(), className),
                                     new ConstantArgProvider(om.getMethodParameter(), getName(om.isMethodFqn())),
                                     new LocalVarArgProvider(om.getSelfParameter(), Type.getObjectType(className), 0));
-                                invokeBTraceAction(this, om);
                             }
                         }
                     }
@@ -1253,12 +1256,11 @@ public class Instrumentor extends ClassVisitor {
                             addExtraTypeInfo(om.getSelfParameter(), Type.getObjectType(className));
                             MethodInstrumentor.ValidationResult vr = validateArguments(om, isStatic(), actionArgTypes, new Type[]{TypeUtils.objectType});
                             if (vr.isValid()) {
-                                loadArguments(
+                                invokeBTraceAction(this, om,
                                     new LocalVarArgProvider(vr.getArgIdx(0), TypeUtils.objectType, storedObjIdx),
                                     new ConstantArgProvider(om.getClassNameParameter(), className),
                                     new ConstantArgProvider(om.getMethodParameter(), getName(om.isMethodFqn())),
                                     new LocalVarArgProvider(om.getSelfParameter(), Type.getObjectType(className), 0));
-                                invokeBTraceAction(this, om);
                             }
                         }
                     }
@@ -1270,7 +1272,9 @@ public class Instrumentor extends ClassVisitor {
                     @Override
                     protected void onBeforeSyncEntry() {
                     }
-                };// </editor-fold>
+                };
+                return sharedExit ? sei.withSharedExit() : sei;
+                // </editor-fold>
 
             case THROW:
                 // <editor-fold defaultstate="collapsed" desc="Throw Instrumentor">
@@ -1286,13 +1290,11 @@ public class Instrumentor extends ClassVisitor {
                                 dup();
                                 throwableIndex = storeNewLocal(TypeUtils.throwableType);
                             }
-                            loadArguments(
+                            invokeBTraceAction(this, om,
                                 new LocalVarArgProvider(vr.getArgIdx(0), TypeUtils.throwableType, throwableIndex),
                                 new ConstantArgProvider(om.getClassNameParameter(), className.replace("/", ".")),
                                 new ConstantArgProvider(om.getMethodParameter(),getName(om.isMethodFqn())),
                                 new LocalVarArgProvider(om.getSelfParameter(), Type.getObjectType(className), 0));
-
-                            invokeBTraceAction(this, om);
                         }
                     }
                 };// </editor-fold>
@@ -1306,17 +1308,55 @@ public class Instrumentor extends ClassVisitor {
         }
     }
 
+    /**
+     * Adds the methods packing the AnyType[] handler arguments. Building
+     * the array in place takes several instructions per argument and can
+     * easily push a small probed method over the JIT inlining thresholds.
+     */
+    private void introduceArgsPackers() {
+        for (Map.Entry<String, String> e : argsPackers.entrySet()) {
+            int access = ACC_PRIVATE | ACC_STATIC | ACC_SYNTHETIC;
+            String desc = e.getKey();
+            MethodVisitor packer = super.visitMethod(access, e.getValue(), desc, null, null);
+            MethodInstrumentor mi = new MethodInstrumentor(
+                new LocalVariableHelperImpl(packer, access, desc),
+                className, superName, access, e.getValue(), desc
+            );
+            mi.visitCode();
+            mi.new AnyTypeArgProvider(0, 0).provide();
+            mi.visitInsn(ARETURN);
+            mi.visitMaxs(0, 0);
+            mi.visitEnd();
+        }
+    }
+
+    private String getArgsPacker(Type[] argTypes) {
+        String desc = MethodInstrumentor.getPackerDescriptor(argTypes);
+        String name = argsPackers.get(desc);
+        if (name == null) {
+            name = Constants.BTRACE_METHOD_PREFIX +
+                   btraceClassName.replace('/', '$') + "$$args$" + argsPackers.size();
+            argsPackers.put(desc, name);
+        }
+        return name;
+    }
+
     public void visitEnd() {
         int size = applicableOnMethods.size();
         List<MethodCopier.MethodInfo> mi = new ArrayList<MethodCopier.MethodInfo>(size);
         for (OnMethod om : calledOnMethods) {
+            if (getInlineBody(om) != null) {
+                // never invoked
+                continue;
+            }
             mi.add(new MethodCopier.MethodInfo(om.getTargetName(),
                      om.getTargetDescriptor(),
                      getActionMethodName(om.getTargetName()),
                      ACC_STATIC | ACC_PRIVATE));
         }
         introduceTimeStampHelper();
-        MethodCopier copier = new MethodCopier(btraceClass, cv, mi) {
+        introduceArgsPackers();
+        MethodCopier copier = new MethodCopier(btraceMethods, cv, mi) {
             @Override
             protected MethodVisitor addMethod(int access, String name, String desc,
                         String signature, String[] exceptions) {
@@ -1365,27 +1405,165 @@ public class Instrumentor extends ClassVisitor {
                btraceClassName.replace('/', '$') + "$" + name;
     }
 
-    private void invokeBTraceAction(MethodInstrumentor mv, OnMethod om) {
-        mv.invokeStatic(className, getActionMethodName(om.getTargetName()),
-            om.getTargetDescriptor().replace(ANYTYPE_DESC, OBJECT_DESC));
-        calledOnMethods.add(om);
+    /**
+     * The templates measuring the handler cost for the adaptive sampling
+     */
+    private static final class HitCost {
+        static final HitCost METHOD = new HitCost(MethodTimeStampExpander.SAMPLE_HIT,
+                                                  MethodTimeStampExpander.HIT_START,
+                                                  MethodTimeStampExpander.HIT_COST);
+
+        final Template sampleHit, hitStart, hitCost;
+        final String[] tags;
+
+        HitCost(Template sampleHit, Template hitStart, Template hitCost, String ... tags) {
+            this.sampleHit = sampleHit;
+            this.hitStart = hitStart;
+            this.hitCost = hitCost;
+            this.tags = tags;
+        }
     }
 
-    private boolean matches(String pattern, String input) {
-        if (pattern.length() == 0) {
-            return false;
+    private void invokeBTraceAction(final MethodInstrumentor mv, OnMethod om, MethodInstrumentor.ArgumentProvider ... args) {
+        invokeBTraceAction(mv, om, null, args);
+    }
+
+    private void invokeBTraceAction(final MethodInstrumentor mv, OnMethod om, HitCost hitCost, MethodInstrumentor.ArgumentProvider ... args) {
+        String actionDesc = om.getTargetDescriptor().replace(ANYTYPE_DESC, OBJECT_DESC);
+        if (om.hasPredicate() && getPredicateArgs(mv, om, args) == null) {
+            // never invoke the handler without evaluating its predicate
+            System.err.println("Skipping the probe " + om.getTargetName() + " in " + mv.getName(true) +
+                               ". The arguments of the predicate " + om.getPredicate() + " are not available at this location");
+            return;
+        }
+        // template expansions may set up locals shared with the other probes
+        // at this location; they must be evaluated regardless of the guard
+        for (int i = 0; i < args.length; i++) {
+            if (args[i] instanceof MethodInstrumentor.TemplateArgProvider && args[i].getIndex() > -1) {
+                MethodInstrumentor.TemplateArgProvider tap = (MethodInstrumentor.TemplateArgProvider)args[i];
+                tap.provide();
+                int ptr = mv.storeNewLocal(tap.getType());
+                args[i] = mv.new LocalVarArgProvider(tap.getIndex(), tap.getType(), ptr);
+            }
+        }
+        // bail out early, before any of the arguments are captured (and boxed)
+        Label skipLabel = new Label();
+        mv.visitFieldInsn(GETSTATIC, btraceClassName,
+                          ProbeControl.getSwitchName(ProbeControl.getProbeId(om.getTargetName(), om.getTargetDescriptor())), "Z");
+        mv.visitJumpInsn(IFNE, skipLabel);
+        mv.visitFieldInsn(GETSTATIC, btraceClassName, Preprocessor.BTRACE_RUNTIME_FIELD_NAME, Type.getDescriptor(BTraceRuntime.class));
+        mv.invokeStatic(Type.getInternalName(BTraceRuntime.class), "isActive", "(" + Type.getDescriptor(BTraceRuntime.class) + ")Z");
+        mv.visitJumpInsn(IFEQ, skipLabel);
+        if (om.hasPredicate()) {
+            mv.loadArguments(getPredicateArgs(mv, om, args));
+            mv.invokeStatic(btraceClassName, Preprocessor.BTRACE_PREDICATE_PREFIX + om.getPredicate(), om.getPredicateDescriptor());
+            mv.visitJumpInsn(IFEQ, skipLabel);
+        }
+        if (om.getSampledMaxPerSec() > 0) {
+            usesSampling = true;
+            mv.push(om.getSampledMaxPerSec());
+            mv.push(MethodID.getMethodId(mv.getName(true) + "#" + ProbeControl.getProbeId(om.getTargetName(), om.getTargetDescriptor())));
+            mv.invokeStatic(Type.getInternalName(SamplingSupport.class), "sampleHitTimed", "(II)Z");
+            mv.visitJumpInsn(IFEQ, skipLabel);
         }
-        if (pattern.charAt(0) == '/' &&
-            REGEX_SPECIFIER.matcher(pattern).matches()) {
-            try {
-                return input.matches(pattern.substring(1, pattern.length() - 1));
-            } catch (PatternSyntaxException pse) {
-                reportPatternSyntaxException(pattern.substring(1, pattern.length() - 1));
-                return false;
+        // the adaptive sampling accounts for the handler cost; invoke the handler
+        // only for the measured hits and report the cost back
+        int hitStartIndex = -1;
+        if (hitCost != null && om.getDurationParameter() != -1 &&
+            om.getDurationSamplingInterval() == Duration.ADAPTIVE) {
+            hitCost.sampleHit.insert(mv, hitCost.tags);
+            mv.visitJumpInsn(IFEQ, skipLabel);
+            hitCost.hitStart.insert(mv, hitCost.tags);
+            hitStartIndex = mv.storeNewLocal(Type.LONG_TYPE);
+        }
+        // don't allocate and box AnyType[] arguments the handler never reads
+        for (int i = 0; i < args.length; i++) {
+            if (args[i] != null && om.isUnusedParameter(args[i].getIndex())) {
+                args[i] = mv.new ArgumentProvider(args[i].getIndex()) {
+                    @Override
+                    protected void doProvide() {
+                        mv.visitInsn(ACONST_NULL);
+                    }
+                };
             }
+        }
+        for (MethodInstrumentor.ArgumentProvider arg : args) {
+            if (arg instanceof MethodInstrumentor.AnyTypeArgProvider) {
+                MethodInstrumentor.AnyTypeArgProvider atap = (MethodInstrumentor.AnyTypeArgProvider)arg;
+                if (atap.getArgTypes().length > 0) {
+                    atap.setPacker(className, getArgsPacker(atap.getArgTypes()));
+                }
+            }
+        }
+        mv.loadArguments(args);
+        RecordedMethods.RecordedMethod inlineBody = getInlineBody(om);
+        if (inlineBody != null) {
+            HandlerInliner.inline(mv, inlineBody, Type.getArgumentTypes(actionDesc));
         } else {
-            return pattern.equals(input);
+            mv.invokeStatic(className, getActionMethodName(om.getTargetName()), actionDesc);
+        }
+        if (hitStartIndex != -1) {
+            mv.visitVarInsn(LLOAD, hitStartIndex);
+            hitCost.hitCost.insert(mv, hitCost.tags);
+        }
+        mv.visitLabel(skipLabel);
+        calledOnMethods.add(om);
+    }
+
+    /**
+     * @return The handler body to splice into the probe site or {@code null}
+     *         if the handler is to be invoked
+     */
+    private RecordedMethods.RecordedMethod getInlineBody(OnMethod om) {
+        if (inlineThreshold <= 0) {
+            return null;
+        }
+        if (inlineBodies == null) {
+            inlineBodies = new HashMap<OnMethod, RecordedMethods.RecordedMethod>();
         }
+        if (!inlineBodies.containsKey(om)) {
+            RecordedMethods.RecordedMethod body = btraceMethods.getMethod(
+                HandlerInliner.INLINE_PREFIX + om.getTargetName(), om.getTargetDescriptor());
+            if (body != null && HandlerInliner.size(body) > inlineThreshold) {
+                body = null;
+            }
+            inlineBodies.put(om, body);
+        }
+        return inlineBodies.get(om);
+    }
+
+    /**
+     * Re-maps the handler argument providers to the predicate parameters
+     * @return The predicate argument providers or {@code null} if some of
+     *         the handler arguments is not available at this location
+     */
+    private MethodInstrumentor.ArgumentProvider[] getPredicateArgs(MethodInstrumentor mv, OnMethod om, MethodInstrumentor.ArgumentProvider[] args) {
+        int[] argMap = om.getPredicateArgs();
+        MethodInstrumentor.ArgumentProvider[] predicateArgs = new MethodInstrumentor.ArgumentProvider[argMap.length];
+        for (int i = 0; i < argMap.length; i++) {
+            MethodInstrumentor.ArgumentProvider arg = null;
+            for (MethodInstrumentor.ArgumentProvider ap : args) {
+                if (ap != null && ap.getIndex() == argMap[i]) {
+                    arg = ap;
+                    break;
+                }
+            }
+            if (arg == null) {
+                return null;
+            }
+            final MethodInstrumentor.ArgumentProvider source = arg;
+            predicateArgs[i] = mv.new ArgumentProvider(i) {
+                @Override
+                protected void doProvide() {
+                    source.doProvide();
+                }
+            };
+        }
+        return predicateArgs;
+    }
+
+    private boolean matches(String pattern, String input) {
+        return matcher.matches(pattern, input);
     }
 
     private boolean typeMatches(String decl, String desc) {
@@ -1399,18 +1577,4 @@ public class Instrumentor extends ClassVisitor {
             return TypeUtils.isCompatible(args1, args2);
         }
     }
-
-    private static boolean isInArray(String[] candidates, String given) {
-        for (String c : candidates) {
-            if (c.equals(given)) {
-                return true;
-            }
-        }
-        return false;
-    }
-
-    private static void reportPatternSyntaxException(String pattern) {
-        System.err.println("btrace ERROR: invalid regex pattern - " + pattern);
-    }
 }
-
@@ -46,6 +46,7 @@ import static com.sun.btrace.runtime.Constants.CLASS_INITIALIZER;
  */
 public class MethodCopier extends ClassVisitor {
     private ClassReader fromClass;
+    private RecordedMethods fromMethods;
     private Iterable<MethodInfo> methods;
 
     public static class MethodInfo { 
@@ -70,6 +71,17 @@ public class MethodCopier extends ClassVisitor {
         this.methods = methods;
     }
 
+    /**
+     * Copies the methods from an already parsed class; this
+     * avoids re-reading the source class for each target class.
+     */
+    public MethodCopier(RecordedMethods fromMethods, ClassVisitor toClass,
+                       Iterable<MethodInfo> methods) {
+        super(Opcodes.ASM4, toClass);
+        this.fromMethods = fromMethods;
+        this.methods = methods;
+    }
+
     protected MethodVisitor addMethod(int access, String name, String desc,
                         String signature, String[] exceptions) {
         return super.visitMethod(access, name, desc, 
@@ -90,6 +102,17 @@ public class MethodCopier extends ClassVisitor {
     }
                 
     public void visitEnd() {
+        if (fromMethods != null) {
+            for (RecordedMethods.RecordedMethod m : fromMethods.getMethods()) {
+                MethodInfo mi = getMethodInfo(m.getName(), m.getDesc());
+                if (mi != null) {
+                    m.accept(addMethod(mi.newAccess, mi.newName, m.getDesc(),
+                                       m.getSignature(), m.getExceptions()));
+                }
+            }
+            super.visitEnd();
+            return;
+        }
         fromClass.accept(new ClassVisitor(Opcodes.ASM4) {
             public void visit(int version, int access, String name, 
                 String signature, String superName, String[] interfaces) {
@@ -67,6 +67,9 @@ abstract public class MethodEntryExitInstrumentor extends ErrorReturnInstrumento
                     entryCalled = true;
                     doMethodEntry();
                 }
+                if (jumpToSharedExit(opcode)) {
+                    return;
+                }
                 onMethodReturn(opcode);
                 break;
             default:
@@ -75,6 +78,17 @@ abstract public class MethodEntryExitInstrumentor extends ErrorReturnInstrumento
         super.visitInsn(opcode);
     }
 
+    @Override
+    public void visitMaxs(int maxStack, int maxLocals) {
+        // the exit block must end up in the range of the error handler
+        int opcode = visitSharedExit();
+        if (opcode != -1) {
+            onMethodReturn(opcode);
+            super.visitInsn(opcode);
+        }
+        super.visitMaxs(maxStack, maxLocals);
+    }
+
     protected void onMethodReturn(int opcode) {
         println("on method return");
     }
@@ -181,6 +181,24 @@ public class MethodInstrumentor extends MethodVisitor implements LocalVariableHe
         abstract protected void doProvide();
     }
 
+    /**
+     * Provides a value computed by a template expansion. Such values are
+     * evaluated ahead of the probe guard since the expansion may set up
+     * locals which are shared with the other probes at the same location.
+     */
+    protected abstract class TemplateArgProvider extends ArgumentProvider {
+        private final Type type;
+
+        public TemplateArgProvider(int index, Type type) {
+            super(index);
+            this.type = type;
+        }
+
+        public Type getType() {
+            return type;
+        }
+    }
+
     protected class LocalVarArgProvider extends ArgumentProvider {
         private Type type;
         private int ptr;
@@ -223,6 +241,9 @@ public class MethodInstrumentor extends MethodVisitor implements LocalVariableHe
     protected class AnyTypeArgProvider extends ArgumentProvider {
         private int argPtr;
         private Type[] myArgTypes;
+        private String packerOwner;
+        private String packerName;
+
         public AnyTypeArgProvider(int index, int basePtr) {
             this(index, basePtr, argumentTypes);
         }
@@ -233,18 +254,42 @@ public class MethodInstrumentor extends MethodVisitor implements LocalVariableHe
             this.myArgTypes = argTypes;
         }
 
+        public Type[] getArgTypes() {
+            return myArgTypes;
+        }
+
+        /**
+         * Makes the arguments being packed by the given static method
+         * instead of building the array in place
+         * @param owner The class declaring the packing method
+         * @param name The packing method name; the method descriptor is
+         *             {@linkplain #getPackerDescriptor(Type[])}
+         */
+        public void setPacker(String owner, String name) {
+            this.packerOwner = owner;
+            this.packerName = name;
+        }
 
         public void doProvide() {
+            int ptr = argPtr;
+            if (packerName != null) {
+                for (Type argType : myArgTypes) {
+                    loadLocal(argType, ptr);
+                    ptr += argType.getSize();
+                }
+                invokeStatic(packerOwner, packerName, getPackerDescriptor(myArgTypes));
+                return;
+            }
             push(myArgTypes.length);
             visitTypeInsn(ANEWARRAY, TypeUtils.objectType.getInternalName());
             for (int j = 0; j < myArgTypes.length; j++) {
                 dup();
                 push(j);
                 Type argType = myArgTypes[j];
-                loadLocal(argType, argPtr);
+                loadLocal(argType, ptr);
                 box(argType);
                 arrayStore(TypeUtils.objectType);
-                argPtr += argType.getSize();
+                ptr += argType.getSize();
             }
         }
 
@@ -259,6 +304,10 @@ public class MethodInstrumentor extends MethodVisitor implements LocalVariableHe
     private Type[] argumentTypes;
     private Map<Integer, Type> extraTypes;
     private Label skipLabel;
+    private StackDepthTracker exitStack;
+    private Label exitLabel;
+    private int exitOpcode;
+    private int exitValueIndex;
 
     private final LocalVariableHelper lvt;
 
@@ -310,6 +359,84 @@ public class MethodInstrumentor extends MethodVisitor implements LocalVariableHe
         return returnType;
     }
 
+    /**
+     * The descriptor of a static method packing the arguments of the
+     * given types into an Object[]. The reference types are passed in as
+     * {@linkplain Object} so that one packing method serves all the
+     * argument lists of the same shape.
+     */
+    public static String getPackerDescriptor(Type[] argTypes) {
+        StringBuilder sb = new StringBuilder("(");
+        for (Type t : argTypes) {
+            int sort = t.getSort();
+            sb.append(sort == Type.OBJECT || sort == Type.ARRAY ? TypeUtils.objectType : t);
+        }
+        return sb.append(")").append(TypeUtils.objectArrayType).toString();
+    }
+
+    /**
+     * Makes the returns of the method jump to a single exit block so
+     * that the code instrumenting the method exit is generated only once.
+     * The return value is carried over in a new local variable.
+     * <p>
+     * Only the returns with nothing but the return value on the operand
+     * stack, as in the javac generated code, jump to the exit block. The
+     * paths with different stack depths can not be joined, so any other
+     * return keeps its own copy of the exit code.
+     * </p>
+     * @return The visitor to feed the method code through instead of this
+     *         instrumentor; it tracks the operand stack depth
+     */
+    public LocalVariableHelper withSharedExit() {
+        exitStack = new StackDepthTracker(this);
+        return exitStack;
+    }
+
+    /**
+     * Replaces the return instruction by a jump to the shared exit block,
+     * if enabled and the operand stack holds just the return value
+     * @param opcode The return opcode
+     * @return {@code true} if the return was replaced
+     */
+    protected final boolean jumpToSharedExit(int opcode) {
+        if (exitStack == null) {
+            return false;
+        }
+        if (exitStack.getDepth() != (opcode == RETURN ? 0 : returnType.getSize())) {
+            return false;
+        }
+        if (opcode != RETURN) {
+            if (exitLabel == null) {
+                exitValueIndex = storeNewLocal(returnType);
+            } else {
+                storeLocal(returnType, exitValueIndex);
+            }
+        }
+        if (exitLabel == null) {
+            exitLabel = new Label();
+            exitOpcode = opcode;
+        }
+        super.visitJumpInsn(GOTO, exitLabel);
+        return true;
+    }
+
+    /**
+     * Starts the shared exit block, if any of the returns was replaced,
+     * and loads the return value
+     * @return The return opcode to finish the exit block with or -1
+     */
+    protected final int visitSharedExit() {
+        if (exitLabel == null) {
+            return -1;
+        }
+        super.visitLabel(exitLabel);
+        if (exitOpcode != RETURN) {
+            loadLocal(returnType, exitValueIndex);
+        }
+        exitLabel = null;
+        return exitOpcode;
+    }
+
     protected void addExtraTypeInfo(int index, Type type) {
         if (index != -1) {
             extraTypes.put(index, type);
@@ -755,6 +882,25 @@ public class MethodInstrumentor extends MethodVisitor implements LocalVariableHe
             }
             specialArgsCount++;
         }
+        if (om.getCpuDurationParameter() != -1) {
+            if (actionArgTypes[om.getCpuDurationParameter()] != Type.LONG_TYPE) {
+                return INVALID;
+            }
+            specialArgsCount++;
+        }
+        if (om.getAllocatedBytesParameter() != -1) {
+            if (actionArgTypes[om.getAllocatedBytesParameter()] != Type.LONG_TYPE) {
+                return INVALID;
+            }
+            specialArgsCount++;
+        }
+        if (om.getSamplingRateParameter() != -1) {
+            if (om.getDurationParameter() == -1 ||
+                actionArgTypes[om.getSamplingRateParameter()] != Type.INT_TYPE) {
+                return INVALID;
+            }
+            specialArgsCount++;
+        }
         if (om.getClassNameParameter() != -1) {
             if (!(TypeUtils.isCompatible(actionArgTypes[om.getClassNameParameter()], Type.getType(String.class)))) {
                 return INVALID;
@@ -779,7 +925,10 @@ public class MethodInstrumentor extends MethodVisitor implements LocalVariableHe
                     argIndex != om.getReturnParameter() &&
                     argIndex != om.getTargetInstanceParameter() &&
                     argIndex != om.getTargetMethodOrFieldParameter() &&
-                    argIndex != om.getDurationParameter()) {
+                    argIndex != om.getDurationParameter() &&
+                    argIndex != om.getCpuDurationParameter() &&
+                    argIndex != om.getAllocatedBytesParameter() &&
+                    argIndex != om.getSamplingRateParameter()) {
                 cleansedArgArray[counter] = actionArgTypes[argIndex];
                 cleansedArgIndex[counter] = argIndex;
                 counter++;
@@ -61,6 +61,9 @@ public class MethodReturnInstrumentor extends MethodEntryInstrumentor {
             case LRETURN:
             case DRETURN:
             case RETURN:
+                if (jumpToSharedExit(opcode)) {
+                    return;
+                }
                 onMethodReturn(opcode);
                 break;
             default:
@@ -69,6 +72,16 @@ public class MethodReturnInstrumentor extends MethodEntryInstrumentor {
         super.visitInsn(opcode);
     }
 
+    @Override
+    public void visitMaxs(int maxStack, int maxLocals) {
+        int opcode = visitSharedExit();
+        if (opcode != -1) {
+            onMethodReturn(opcode);
+            super.visitInsn(opcode);
+        }
+        super.visitMaxs(maxStack, maxLocals);
+    }
+
     protected void loadReturnParameter(int opcode) {
         super.dupReturnValue(opcode);
     }
@@ -25,6 +25,9 @@
 
 package com.sun.btrace.runtime;
 
+import java.util.HashSet;
+import java.util.Set;
+
 /**
  * This class is used to store data of the annotation
  * com.sun.btrace.annotations.OnMethod. We can not read the
@@ -54,8 +57,20 @@ public class OnMethod {
     private int targetInstanceParameter = -1;
     private int durationParameter = -1;
     private int durationSamplingInterval = 1;
+    private long durationOverheadBudget = 0;
+    private int durationMaxSamplesPerSec = 0;
+    private int sampledMaxPerSec = 0;
+    private int samplingRateParameter = -1;
+    private int cpuDurationParameter = -1;
+    private int allocatedBytesParameter = -1;
     private boolean methodFqn = false;
     private boolean targetMethodFqn = false;
+    private String predicate = "";
+    private String predicateDescriptor;
+    private int[] predicateArgs;
+    // handler parameters which are never read by the handler code;
+    // an AnyType[] parameter which is read at all gets all its elements
+    private Set<Integer> unusedParameters = new HashSet<Integer>();
 
     public OnMethod() {
     }
@@ -194,4 +209,97 @@ public class OnMethod {
     public int getDurationSamplingInterval() {
         return durationSamplingInterval;
     }
+
+    public void setDurationOverheadBudget(long budget) {
+        this.durationOverheadBudget = budget;
+    }
+
+    public long getDurationOverheadBudget() {
+        return durationOverheadBudget;
+    }
+
+    public void setDurationMaxSamplesPerSec(int maxSamples) {
+        this.durationMaxSamplesPerSec = maxSamples;
+    }
+
+    public int getDurationMaxSamplesPerSec() {
+        return durationMaxSamplesPerSec;
+    }
+
+    /**
+     * @return The maximum number of handler invocations per second or 0 if not sampled
+     */
+    public int getSampledMaxPerSec() {
+        return sampledMaxPerSec;
+    }
+
+    public void setSampledMaxPerSec(int maxPerSec) {
+        this.sampledMaxPerSec = maxPerSec;
+    }
+
+    public int getSamplingRateParameter() {
+        return samplingRateParameter;
+    }
+
+    public void setSamplingRateParameter(int samplingRateParameter) {
+        this.samplingRateParameter = samplingRateParameter;
+    }
+
+    public int getCpuDurationParameter() {
+        return cpuDurationParameter;
+    }
+
+    public void setCpuDurationParameter(int cpuDurationParameter) {
+        this.cpuDurationParameter = cpuDurationParameter;
+    }
+
+    public int getAllocatedBytesParameter() {
+        return allocatedBytesParameter;
+    }
+
+    public void setAllocatedBytesParameter(int allocatedBytesParameter) {
+        this.allocatedBytesParameter = allocatedBytesParameter;
+    }
+
+    /**
+     * @return The name of the predicate method or an empty string
+     */
+    public String getPredicate() {
+        return predicate;
+    }
+
+    public void setPredicate(String predicate) {
+        this.predicate = predicate;
+    }
+
+    public String getPredicateDescriptor() {
+        return predicateDescriptor;
+    }
+
+    public void setPredicateDescriptor(String predicateDescriptor) {
+        this.predicateDescriptor = predicateDescriptor;
+    }
+
+    /**
+     * @return The handler parameter index for each of the predicate parameters
+     */
+    public int[] getPredicateArgs() {
+        return predicateArgs;
+    }
+
+    public void setPredicateArgs(int[] predicateArgs) {
+        this.predicateArgs = predicateArgs;
+    }
+
+    public boolean hasPredicate() {
+        return predicateDescriptor != null;
+    }
+
+    public void addUnusedParameter(int parameter) {
+        unusedParameters.add(parameter);
+    }
+
+    public boolean isUnusedParameter(int parameter) {
+        return unusedParameters.contains(parameter);
+    }
 }
@@ -28,11 +28,16 @@ package com.sun.btrace.runtime;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import static com.sun.btrace.org.objectweb.asm.Opcodes.*;
 import static com.sun.btrace.runtime.Constants.*;
 import com.sun.btrace.BTraceRuntime;
+import com.sun.btrace.ProbeControl;
+import com.sun.btrace.ProbeStats;
 import com.sun.btrace.annotations.Export;
 import com.sun.btrace.annotations.TLS;
 import com.sun.btrace.annotations.Property;
@@ -72,6 +77,12 @@ import com.sun.btrace.util.LocalVariableHelperImpl;
  *       to insert BTraceRuntime.enter/leave and also to call
  *       BTraceRuntime.handleException on exception catch
  *    7. add a field to store client's BTraceRuntime instance
+ *    8. add a guarded wrapper (enter/leave, handleException) for
+ *       each method used as an @OnMethod predicate
+ *    9. add a plain copy of each @OnMethod handler body which can
+ *       be inlined into the probe sites (see HandlerInliner)
+ *   10. add a constant listing the @OnMethod handlers (see ProbeStats)
+ *       and, if the statistics are enabled, count their invocations
  *
  *
  * @author A. Sundararajan
@@ -97,6 +108,7 @@ public class Preprocessor extends ClassVisitor {
 
     public static final String BTRACE_RUNTIME_FIELD_NAME = "runtime";
     public static final String BTRACE_FIELD_PREFIX = "$";
+    public static final String BTRACE_PREDICATE_PREFIX = "$btrace$predicate$";
 
     public static final String BTRACE_RUNTIME_HANDLE_EXCEPTION;
     public static final String BTRACE_RUNTIME_HANDLE_EXCEPTION_DESC;
@@ -104,6 +116,10 @@ public class Preprocessor extends ClassVisitor {
     public static final String BTRACE_RUNTIME_ENTER_DESC;
     public static final String BTRACE_RUNTIME_LEAVE;
     public static final String BTRACE_RUNTIME_LEAVE_DESC;
+    public static final String BTRACE_RUNTIME_PROBE_HIT;
+    public static final String BTRACE_RUNTIME_PROBE_HIT_DESC;
+    public static final String BTRACE_RUNTIME_PROBE_EXIT;
+    public static final String BTRACE_RUNTIME_PROBE_EXIT_DESC;
     public static final String BTRACE_RUNTIME_START;
     public static final String BTRACE_RUNTIME_START_DESC;
     public static final String BTRACE_RUNTIME_FOR_CLASS;
@@ -158,6 +174,20 @@ public class Preprocessor extends ClassVisitor {
            BTRACE_RUNTIME_LEAVE_DESC =
                        Type.getMethodDescriptor(leave);
 
+           Method probeHit = BTraceRuntime.class.getMethod(
+                       "probeHit",
+                       new Class[] { int.class });
+           BTRACE_RUNTIME_PROBE_HIT = probeHit.getName();
+           BTRACE_RUNTIME_PROBE_HIT_DESC =
+                       Type.getMethodDescriptor(probeHit);
+
+           Method probeExit = BTraceRuntime.class.getMethod(
+                       "probeExit",
+                       new Class[] { int.class, long.class });
+           BTRACE_RUNTIME_PROBE_EXIT = probeExit.getName();
+           BTRACE_RUNTIME_PROBE_EXIT_DESC =
+                       Type.getMethodDescriptor(probeExit);
+
            Method start = BTraceRuntime.class.getMethod(
                        "start",
                        new Class[0]);
@@ -274,15 +304,40 @@ public class Preprocessor extends ClassVisitor {
     private List<FieldDescriptor> fields;
     private Map<String, FieldDescriptor> threadLocalFields;
     private Map<String, FieldDescriptor> exportFields;
+    // names of the @OnMethod handlers which get a runtime switch
+    // mapped to the probe ids used by the invocation counters
+    private Map<String, Integer> probeSwitches;
+    // names of the methods used as @OnMethod predicates
+    private Set<String> predicates;
+    // method name -> descriptor of the visited methods
+    private Map<String, String> methodDescs;
+    // the recorded bodies of the inlinable @OnMethod handlers
+    private List<RecordedMethods.RecordedMethod> inlineBodies;
 
     // flag to tell whether we have seen <clinit> or not
     private boolean classInitializerFound;
+    // whether the handlers report their invocations to ProbeStats
+    private final boolean probeStats;
 
     public Preprocessor(ClassVisitor cv) {
+        this(cv, false);
+    }
+
+    /**
+     * @param cv The next visitor in the chain
+     * @param probeStats {@code true} if the {@code @OnMethod} handlers should
+     *                   count their invocations (see ProbeStats)
+     */
+    public Preprocessor(ClassVisitor cv, boolean probeStats) {
         super(Opcodes.ASM4, cv);
+        this.probeStats = probeStats;
         fields = new ArrayList<FieldDescriptor>();
         threadLocalFields = new HashMap<String, FieldDescriptor>();
         exportFields = new HashMap<String, FieldDescriptor>();
+        probeSwitches = new LinkedHashMap<String, Integer>();
+        predicates = new LinkedHashSet<String>();
+        methodDescs = new HashMap<String, String>();
+        inlineBodies = new ArrayList<RecordedMethods.RecordedMethod>();
     }
 
     public void visit(int version,
@@ -441,9 +496,76 @@ public class Preprocessor extends ClassVisitor {
             clinit.visitEnd();
         }
         addFields();
+        addPredicateGuards();
+        addInlineBodies();
         super.visitEnd();
     }
 
+    /*
+     * The predicates are called from the probe site, outside of any
+     * handler. Each one gets a wrapper like
+     *
+     *        if (! BTraceRuntime.enter(runtime)) {
+     *            return false;
+     *        }
+     *        try {
+     *            boolean result = predicate(args);
+     *            BTraceRuntime.leave();
+     *            return result;
+     *        } catch (Throwable t) {
+     *            BTraceRuntime.handleException(t);
+     *            return false;
+     *        }
+     */
+    private void addPredicateGuards() {
+        for (String predicate : predicates) {
+            String desc = methodDescs.get(predicate);
+            if (desc == null || Type.getReturnType(desc) != Type.BOOLEAN_TYPE) {
+                // rejected by the verifier
+                continue;
+            }
+            MethodVisitor mv = super.visitMethod(ACC_PUBLIC|ACC_STATIC,
+                          BTRACE_PREDICATE_PREFIX + predicate, desc, null, null);
+            Label start = new Label();
+            Label end = new Label();
+            Label handler = new Label();
+            mv.visitCode();
+            mv.visitTryCatchBlock(start, end, handler, JAVA_LANG_THROWABLE);
+            mv.visitFieldInsn(GETSTATIC, className,
+                          BTRACE_RUNTIME_FIELD_NAME, BTRACE_RUNTIME_DESC);
+            mv.visitMethodInsn(INVOKESTATIC, BTRACE_RUNTIME,
+                          BTRACE_RUNTIME_ENTER, BTRACE_RUNTIME_ENTER_DESC);
+            mv.visitJumpInsn(IFNE, start);
+            mv.visitInsn(ICONST_0);
+            mv.visitInsn(IRETURN);
+            mv.visitLabel(start);
+            int ptr = 0;
+            for (Type t : Type.getArgumentTypes(desc)) {
+                mv.visitVarInsn(t.getOpcode(ILOAD), ptr);
+                ptr += t.getSize();
+            }
+            mv.visitMethodInsn(INVOKESTATIC, className, predicate, desc);
+            mv.visitMethodInsn(INVOKESTATIC, BTRACE_RUNTIME,
+                          BTRACE_RUNTIME_LEAVE, BTRACE_RUNTIME_LEAVE_DESC);
+            mv.visitInsn(IRETURN);
+            mv.visitLabel(end);
+            mv.visitLabel(handler);
+            mv.visitMethodInsn(INVOKESTATIC, BTRACE_RUNTIME,
+                          BTRACE_RUNTIME_HANDLE_EXCEPTION,
+                          BTRACE_RUNTIME_HANDLE_EXCEPTION_DESC);
+            mv.visitInsn(ICONST_0);
+            mv.visitInsn(IRETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+    }
+
+    private void addInlineBodies() {
+        for (RecordedMethods.RecordedMethod m : inlineBodies) {
+            m.accept(super.visitMethod(m.getAccess(), m.getName(), m.getDesc(), null, null));
+        }
+    }
+
     private void addFields() {
         for (FieldDescriptor fd : fields) {
             String fieldName = fd.name;
@@ -482,6 +604,23 @@ public class Preprocessor extends ClassVisitor {
             fv.visitEnd();
         }
 
+        // add the runtime switches of the @OnMethod handlers
+        StringBuilder probes = new StringBuilder();
+        for (String probe : probeSwitches.keySet()) {
+            super.visitField(ACC_PUBLIC|ACC_STATIC|ACC_VOLATILE,
+                       ProbeControl.getSwitchName(probe), "Z", null, null);
+            if (probes.length() > 0) {
+                probes.append(',');
+            }
+            probes.append(probe);
+        }
+        // the probe ids are the indices of the probes in this list
+        if (probes.length() > 0) {
+            super.visitField(ACC_PUBLIC|ACC_STATIC|ACC_FINAL,
+                       ProbeStats.PROBES_FIELD, MethodInstrumentor.JAVA_LANG_STRING_DESC, null,
+                       probes.toString());
+        }
+
         // add a special field to store client's BTraceRuntime
         super.visitField(ACC_PUBLIC|ACC_STATIC, BTRACE_RUNTIME_FIELD_NAME,
                    BTRACE_RUNTIME_DESC, null, null);
@@ -511,6 +650,9 @@ public class Preprocessor extends ClassVisitor {
              */
             final boolean isClassInitializer = name.equals(CLASS_INITIALIZER);
             classInitializerFound = classInitializerFound || isClassInitializer;
+            if (!methodDescs.containsKey(name)) {
+                methodDescs.put(name, desc);
+            }
 
             if (!isClassInitializer) {
                 // force the method to be public
@@ -521,12 +663,28 @@ public class Preprocessor extends ClassVisitor {
 
             MethodVisitor adaptee = super.visitMethod(access, name, desc,
                                                     signature, exceptions);
+            final HandlerInliner.BodyRecorder body = new HandlerInliner.BodyRecorder(adaptee, className, name, desc);
 
-            return new MethodInstrumentor(new LocalVariableHelperImpl(adaptee, access, desc), className, superName, access, name, desc) {
+            return new MethodInstrumentor(new LocalVariableHelperImpl(body, access, desc), className, superName, access, name, desc) {
                 private boolean isBTraceHandler = false;
+                private boolean isProbeHandler = false;
                 private Label start = new Label();
                 private Label handler = new Label();
                 private int nextVar = 0;
+                // the probe id and the local holding the time stamp for ProbeStats
+                private int probeId = -1;
+                private int probeTsVar = -1;
+
+                private void probeExit() {
+                    visitFieldInsn(GETSTATIC, className,
+                                   BTRACE_RUNTIME_FIELD_NAME,
+                                   BTRACE_RUNTIME_DESC);
+                    push(probeId);
+                    loadLocal(Type.LONG_TYPE, probeTsVar);
+                    visitMethodInsn(INVOKEVIRTUAL, BTRACE_RUNTIME,
+                                    BTRACE_RUNTIME_PROBE_EXIT,
+                                    BTRACE_RUNTIME_PROBE_EXIT_DESC);
+                }
 
                 private void generateExportGet(String name, String desc) {
                     int typeCode = desc.charAt(0);
@@ -656,12 +814,27 @@ public class Preprocessor extends ClassVisitor {
 
                 @Override
                 public AnnotationVisitor visitAnnotation(String name, boolean bln) {
+                    if (name.equals(ONMETHOD_DESC) || name.equals(ONPROBE_DESC)) {
+                        isProbeHandler = true;
+                    }
                     if (name.startsWith("Lcom/sun/btrace/annotations/")) {
                         isBTraceHandler = true;
                     } else {
                         isBTraceHandler = false;
                     }
-                    return super.visitAnnotation(name, bln);
+                    AnnotationVisitor av = super.visitAnnotation(name, bln);
+                    if (name.equals(ONMETHOD_DESC)) {
+                        return new AnnotationVisitor(Opcodes.ASM4, av) {
+                            @Override
+                            public void visit(String name, Object value) {
+                                if (name.equals("predicate") && !((String)value).isEmpty()) {
+                                    predicates.add((String)value);
+                                }
+                                super.visit(name, value);
+                            }
+                        };
+                    }
+                    return av;
                 }
 
 
@@ -680,6 +853,41 @@ public class Preprocessor extends ClassVisitor {
                                        BTRACE_RUNTIME_FIELD_NAME,
                                        BTRACE_RUNTIME_DESC);
                         }
+                        if (isProbeHandler) {
+                            // the probe switch is checked first; see ProbeControl
+                            String probe = ProbeControl.getProbeId(getName(), getDescriptor());
+                            Integer id = probeSwitches.get(probe);
+                            if (id == null) {
+                                id = probeSwitches.size();
+                                probeSwitches.put(probe, id);
+                            }
+                            probeId = id;
+                            Label enabled = new Label();
+                            super.visitFieldInsn(GETSTATIC, className,
+                                       ProbeControl.getSwitchName(probe), "Z");
+                            visitJumpInsn(IFEQ, enabled);
+                            super.visitInsn(RETURN);
+                            visitLabel(enabled);
+                            if (probeStats) {
+                                // count the invocation; see ProbeStats
+                                visitFieldInsn(GETSTATIC, className,
+                                               BTRACE_RUNTIME_FIELD_NAME,
+                                               BTRACE_RUNTIME_DESC);
+                                push(probeId);
+                                visitMethodInsn(INVOKEVIRTUAL, BTRACE_RUNTIME,
+                                                BTRACE_RUNTIME_PROBE_HIT,
+                                                BTRACE_RUNTIME_PROBE_HIT_DESC);
+                                dup2();
+                                probeTsVar = storeNewLocal(Type.LONG_TYPE);
+                                // the handler may be sampled down; see BTraceRuntime.checkProbeBudget
+                                Label sampled = new Label();
+                                visitLdcInsn(ProbeStats.SAMPLED_OUT);
+                                visitInsn(LCMP);
+                                visitJumpInsn(IFNE, sampled);
+                                super.visitInsn(RETURN);
+                                visitLabel(sampled);
+                            }
+                        }
                         visitFieldInsn(GETSTATIC, className,
                                        BTRACE_RUNTIME_FIELD_NAME,
                                        BTRACE_RUNTIME_DESC);
@@ -707,10 +915,18 @@ public class Preprocessor extends ClassVisitor {
                         }
 
                         visitJumpInsn(IFNE, start);
+                        if (probeTsVar != -1) {
+                            // the counted invocation ends here if re-entered
+                            probeExit();
+                        }
                         super.visitInsn(RETURN);
                         visitLabel(start);
                     }
                     super.visitCode();
+                    if (isProbeHandler && !isClassInitializer) {
+                        // record the handler body without the prolog; see HandlerInliner
+                        body.start();
+                    }
                 }
 
                 public void visitFieldInsn(int opcode, String owner,
@@ -765,9 +981,14 @@ public class Preprocessor extends ClassVisitor {
                                 BTRACE_RUNTIME_START_DESC);
                         } else {
                             if (isBTraceHandler) {
+                                body.suspend();
+                                if (probeTsVar != -1) {
+                                    probeExit();
+                                }
                                 visitMethodInsn(INVOKESTATIC, BTRACE_RUNTIME,
                                     BTRACE_RUNTIME_LEAVE,
                                     BTRACE_RUNTIME_LEAVE_DESC);
+                                body.resume();
                             }
                         }
                     }
@@ -775,8 +996,15 @@ public class Preprocessor extends ClassVisitor {
                 }
 
                 public void visitMaxs(int maxStack, int maxLocals) {
+                    RecordedMethods.RecordedMethod inlineBody = body.finish();
+                    if (inlineBody != null) {
+                        inlineBodies.add(inlineBody);
+                    }
                     visitLabel(handler);
                     if (isBTraceHandler) {
+                        if (probeTsVar != -1) {
+                            probeExit();
+                        }
                         visitMethodInsn(INVOKESTATIC, BTRACE_RUNTIME,
                                         BTRACE_RUNTIME_HANDLE_EXCEPTION,
                                         BTRACE_RUNTIME_HANDLE_EXCEPTION_DESC);
@@ -0,0 +1,619 @@
+/*
+ * Copyright (c) 2014, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.btrace.runtime;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import static com.sun.btrace.runtime.Constants.REGEX_SPECIFIER;
+import com.sun.btrace.annotations.Kind;
+import com.sun.btrace.org.objectweb.asm.Type;
+
+/**
+ * A precompiled index of the {@linkplain OnMethod} class and method specifications
+ * of one BTrace script. It is built once per script and shared by
+ * {@linkplain ClassFilter} and {@linkplain Instrumentor}.
+ * <p>
+ * Exact class names are looked up in a hash map and the regular expressions
+ * are stored in a prefix tree keyed by their literal prefix so that only the
+ * patterns which can possibly match a given name are evaluated. All the
+ * patterns are compiled only once.
+ *
+ * @author Jaroslav Bachorik
+ * @since 1.3
+ */
+public final class ProbeMatcher {
+    private static final class PatternEntry {
+        private final Pattern pattern;
+        private final int index;
+
+        PatternEntry(Pattern pattern, int index) {
+            this.pattern = pattern;
+            this.index = index;
+        }
+    }
+
+    /**
+     * A prefix tree node; holds the patterns whose literal prefix ends here
+     */
+    private static final class TrieNode {
+        private final Map<Character, TrieNode> children = new HashMap<Character, TrieNode>();
+        private final List<PatternEntry> entries = new ArrayList<PatternEntry>();
+    }
+
+    private final OnMethod[] onMethods;
+
+    private final Map<String, int[]> exactClasses = new HashMap<String, int[]>();
+    private final TrieNode classPatterns = new TrieNode();
+    private final Map<String, int[]> exactClassAnnotations = new HashMap<String, int[]>();
+    private final List<PatternEntry> classAnnotationPatterns = new ArrayList<PatternEntry>();
+    private final List<String> superTypes = new ArrayList<String>();
+    private final List<String> superTypesInternal = new ArrayList<String>();
+    private final List<Integer> superTypeIndices = new ArrayList<Integer>();
+
+    private final Map<OnMethod, Pattern> methodPatterns = new IdentityHashMap<OnMethod, Pattern>();
+    private final Map<OnMethod, Pattern> methodAnnotationPatterns = new IdentityHashMap<OnMethod, Pattern>();
+    // the parsed argument types of the "type" attribute; missing for the handlers matching any signature
+    private final Map<OnMethod, Type[]> methodArgTypes = new IdentityHashMap<OnMethod, Type[]>();
+
+    // patterns used by the call site and field access locations
+    private final ConcurrentMap<String, Pattern> patternCache = new ConcurrentHashMap<String, Pattern>();
+    private static final Pattern INVALID = Pattern.compile("");
+    private static final String REGEX_META = ".[]{}()*+?^$|";
+
+    public ProbeMatcher(List<OnMethod> onMethods) {
+        this.onMethods = onMethods.toArray(new OnMethod[onMethods.size()]);
+        for (int i = 0; i < this.onMethods.length; i++) {
+            OnMethod om = this.onMethods[i];
+            indexClass(om.getClazz(), i);
+            indexMethod(om);
+        }
+    }
+
+    /**
+     * @return The list of {@linkplain OnMethod} handlers this index was built from
+     */
+    public List<OnMethod> getOnMethods() {
+        return Collections.unmodifiableList(Arrays.asList(onMethods));
+    }
+
+    /**
+     * @param className The class name in the external form ('.' separated)
+     * @return {@code true} if any probe class name or pattern matches the given name
+     */
+    public boolean hasClassMatch(String className) {
+        if (exactClasses.containsKey(className)) {
+            return true;
+        }
+        TrieNode node = classPatterns;
+        int pos = 0;
+        while (node != null) {
+            for (PatternEntry pe : node.entries) {
+                if (pe.pattern.matcher(className).matches()) {
+                    return true;
+                }
+            }
+            node = pos < className.length() ? node.children.get(className.charAt(pos++)) : null;
+        }
+        return false;
+    }
+
+    /**
+     * @param annoName The annotation class name in the external form
+     * @return {@code true} if any probe annotation name or pattern matches the given name
+     */
+    public boolean hasClassAnnotationMatch(String annoName) {
+        if (exactClassAnnotations.containsKey(annoName)) {
+            return true;
+        }
+        for (PatternEntry pe : classAnnotationPatterns) {
+            if (pe.pattern.matcher(annoName).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return {@code true} if any probe is specified by a class annotation
+     */
+    public boolean hasClassAnnotationProbes() {
+        return !exactClassAnnotations.isEmpty() || !classAnnotationPatterns.isEmpty();
+    }
+
+    /**
+     * @return The super types specified by the "+type" probe class specifications
+     */
+    public List<String> getSuperTypes() {
+        return Collections.unmodifiableList(superTypes);
+    }
+
+    /**
+     * @return The super types in the internal form ('/' separated)
+     */
+    public List<String> getSuperTypesInternal() {
+        return Collections.unmodifiableList(superTypesInternal);
+    }
+
+    /**
+     * Collects the handlers applicable for the given class, in the order
+     * they were declared in the script.
+     * @param clazz The class being redefined or {@code null}
+     * @param className The class name in the internal form ('/' separated)
+     * @param superName The super class name in the internal form
+     * @param interfaces The directly implemented interfaces in the internal form
+     * @return The list of applicable handlers
+     */
+    public List<OnMethod> matchClass(Class clazz, String className, String superName, String[] interfaces) {
+        String externalName = className.replace('/', '.');
+        boolean[] matched = new boolean[onMethods.length];
+        boolean any = false;
+
+        int[] exact = exactClasses.get(externalName);
+        if (exact != null) {
+            for (int idx : exact) {
+                matched[idx] = true;
+            }
+            any = true;
+        }
+
+        TrieNode node = classPatterns;
+        int pos = 0;
+        while (node != null) {
+            for (PatternEntry pe : node.entries) {
+                if (pe.pattern.matcher(externalName).matches()) {
+                    matched[pe.index] = true;
+                    any = true;
+                }
+            }
+            node = pos < externalName.length() ? node.children.get(externalName.charAt(pos++)) : null;
+        }
+
+        for (int i = 0; i < superTypes.size(); i++) {
+            String superTypeInternal = superTypesInternal.get(i);
+            /*
+             * If we are redefining a class, then we have a Class object
+             * of it and we can walk through it's hierarchy to match for
+             * specified super type. But, if we are loading it a fresh, then
+             * we can not walk through super hierarchy. We just check the
+             * immediate super class and directly implemented interfaces
+             */
+            if (ClassFilter.isSubTypeOf(clazz, superTypes.get(i)) ||
+                superTypeInternal.equals(superName) ||
+                isInArray(interfaces, superTypeInternal)) {
+                matched[superTypeIndices.get(i)] = true;
+                any = true;
+            }
+        }
+        return any ? collect(matched) : Collections.<OnMethod>emptyList();
+    }
+
+    /**
+     * Collects the handlers applicable for a class annotated by the given annotation,
+     * in the order they were declared in the script.
+     * @param annoName The annotation class name in the external form
+     * @return The list of applicable handlers
+     */
+    public List<OnMethod> matchClassAnnotation(String annoName) {
+        boolean[] matched = new boolean[onMethods.length];
+        boolean any = false;
+        int[] exact = exactClassAnnotations.get(annoName);
+        if (exact != null) {
+            for (int idx : exact) {
+                matched[idx] = true;
+            }
+            any = true;
+        }
+        for (PatternEntry pe : classAnnotationPatterns) {
+            if (pe.pattern.matcher(annoName).matches()) {
+                matched[pe.index] = true;
+                any = true;
+            }
+        }
+        return any ? collect(matched) : Collections.<OnMethod>emptyList();
+    }
+
+    /**
+     * Checks the method name against the handler's method specification.
+     * Annotation based specifications never match here.
+     * @param om The handler
+     * @param name The method name
+     * @return {@code true} if the method name matches
+     */
+    public boolean matchesMethod(OnMethod om, String name) {
+        String methodName = om.getMethod();
+        if (methodName.equals("")) {
+            methodName = om.getTargetName();
+        }
+        if (methodName.equals(name)) {
+            return true;
+        }
+        Pattern p = methodPatterns.get(om);
+        return p != null && p.matcher(name).matches();
+    }
+
+    /**
+     * Checks the method signature against the handler's "type" specification.
+     * An empty specification matches any signature.
+     * @param om The handler
+     * @param methodArgs The argument types of the method
+     * @return {@code true} if the signature matches
+     */
+    public boolean matchesMethodType(OnMethod om, Type[] methodArgs) {
+        Type[] args = methodArgTypes.get(om);
+        if (args == null) {
+            if (om.getType().isEmpty()) {
+                return true;
+            }
+            args = Type.getArgumentTypes(TypeUtils.declarationToDescriptor(om.getType()));
+        }
+        return TypeUtils.isCompatible(args, methodArgs);
+    }
+
+    /**
+     * Builds the per-method lookup for the handlers applicable to one class
+     * @param applicable The applicable handlers, in the instrumentation order
+     * @return The method index
+     */
+    public MethodIndex indexMethods(List<OnMethod> applicable) {
+        return new MethodIndex(applicable);
+    }
+
+    /**
+     * Looks up the handlers applicable to a method of one class. The exactly
+     * named handlers are found by the method name, only the regular
+     * expressions and line probes are checked for each method. The handlers
+     * are returned in the order of the list the index was built from.
+     */
+    public final class MethodIndex {
+        private final OnMethod[] probes;
+        private final Map<String, int[]> byName = new HashMap<String, int[]>();
+        // positions of the line probes and the regular expression method names
+        private final int[] alwaysChecked;
+        // positions of the "@annotation" method specifications
+        private final int[] byAnnotation;
+        private final boolean needsArgTypes;
+
+        private MethodIndex(List<OnMethod> applicable) {
+            probes = applicable.toArray(new OnMethod[applicable.size()]);
+            int[] always = new int[probes.length];
+            int[] annotated = new int[probes.length];
+            int alwaysCnt = 0, annotatedCnt = 0;
+            boolean argTypes = false;
+            for (int i = 0; i < probes.length; i++) {
+                OnMethod om = probes[i];
+                String methodName = om.getMethod();
+                if (methodName.equals("")) {
+                    methodName = om.getTargetName();
+                }
+                boolean isAnnotated = methodName.length() > 1 && methodName.charAt(0) == '@';
+                if (isAnnotated) {
+                    annotated[annotatedCnt++] = i;
+                }
+                if (om.getLocation().getValue() == Kind.LINE) {
+                    always[alwaysCnt++] = i;
+                    continue;
+                }
+                if (isAnnotated) {
+                    continue;
+                }
+                if (methodPatterns.containsKey(om)) {
+                    always[alwaysCnt++] = i;
+                } else {
+                    addIndex(byName, methodName, i);
+                }
+                argTypes |= !om.getType().isEmpty();
+            }
+            alwaysChecked = Arrays.copyOf(always, alwaysCnt);
+            byAnnotation = Arrays.copyOf(annotated, annotatedCnt);
+            needsArgTypes = argTypes;
+        }
+
+        /**
+         * @param name The method name
+         * @param desc The method descriptor
+         * @return The handlers matching the method by name and signature
+         */
+        public List<OnMethod> match(String name, String desc) {
+            int[] exact = byName.get(name);
+            if (exact == null && alwaysChecked.length == 0) {
+                return Collections.emptyList();
+            }
+            if (exact == null) {
+                exact = new int[0];
+            }
+            Type[] methodArgs = needsArgTypes ? Type.getArgumentTypes(desc) : null;
+            List<OnMethod> result = new ArrayList<OnMethod>(exact.length + alwaysChecked.length);
+            int i = 0, j = 0;
+            while (i < exact.length || j < alwaysChecked.length) {
+                // merge the two sorted position lists to keep the order
+                boolean fromExact = j >= alwaysChecked.length ||
+                                    (i < exact.length && exact[i] < alwaysChecked[j]);
+                OnMethod om = probes[fromExact ? exact[i++] : alwaysChecked[j++]];
+                if (om.getLocation().getValue() == Kind.LINE) {
+                    result.add(om);
+                } else if ((fromExact || methodPatterns.get(om).matcher(name).matches()) &&
+                           matchesMethodType(om, methodArgs)) {
+                    result.add(om);
+                }
+            }
+            return result;
+        }
+
+        /**
+         * @param annoName The method annotation class name in the external form
+         * @return The handlers matching the method by the annotation
+         */
+        public List<OnMethod> matchAnnotation(String annoName) {
+            if (byAnnotation.length == 0) {
+                return Collections.emptyList();
+            }
+            List<OnMethod> result = new ArrayList<OnMethod>(1);
+            for (int idx : byAnnotation) {
+                if (matchesMethodAnnotation(probes[idx], annoName)) {
+                    result.add(probes[idx]);
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Checks the method annotation against the handler's "@annotation" method specification.
+     * @param om The handler
+     * @param annoName The annotation class name in the external form
+     * @return {@code true} if the annotation matches
+     */
+    public boolean matchesMethodAnnotation(OnMethod om, String annoName) {
+        String methodName = om.getMethod();
+        if (methodName.length() < 2 || methodName.charAt(0) != '@') {
+            return false;
+        }
+        Pattern p = methodAnnotationPatterns.get(om);
+        if (p != null) {
+            return p.matcher(annoName).matches();
+        }
+        return methodName.regionMatches(1, annoName, 0, annoName.length()) &&
+               methodName.length() == annoName.length() + 1;
+    }
+
+    /**
+     * Matches the input against a plain name or a "/regex/" specification.
+     * The compiled patterns are cached.
+     * @param pattern The name or the regular expression enclosed in slashes
+     * @param input The input to match
+     * @return {@code true} if the input matches
+     */
+    public boolean matches(String pattern, String input) {
+        if (pattern.length() == 0) {
+            return false;
+        }
+        if (pattern.charAt(0) == '/' &&
+            REGEX_SPECIFIER.matcher(pattern).matches()) {
+            Pattern p = patternCache.get(pattern);
+            if (p == null) {
+                p = compile(pattern.substring(1, pattern.length() - 1));
+                if (p == null) {
+                    p = INVALID;
+                }
+                patternCache.putIfAbsent(pattern, p);
+            }
+            return p != INVALID && p.matcher(input).matches();
+        } else {
+            return pattern.equals(input);
+        }
+    }
+
+    /**
+     * Computes the literal prefix of a regular expression - the longest
+     * prefix every matching string has to start with.
+     * @param regex The regular expression
+     * @return The literal prefix; may be empty
+     */
+    static String literalPrefix(String regex) {
+        if (hasTopLevelAlternation(regex)) {
+            // no common prefix can be guaranteed
+            return "";
+        }
+        StringBuilder sb = new StringBuilder();
+        int pos = 0;
+        while (pos < regex.length()) {
+            char c = regex.charAt(pos);
+            int next = pos + 1;
+            if (c == '\\') {
+                if (next >= regex.length() ||
+                    Character.isLetterOrDigit(regex.charAt(next))) {
+                    // character class, quotation or back reference
+                    break;
+                }
+                c = regex.charAt(next++);
+            } else if (REGEX_META.indexOf(c) > -1) {
+                break;
+            }
+            if (isQuantifier(regex, next)) {
+                // the character is optional or repeated
+                break;
+            }
+            sb.append(c);
+            pos = next;
+        }
+        return sb.toString();
+    }
+
+    private void indexClass(String className, int index) {
+        if (className == null || className.length() == 0) {
+            return;
+        }
+        char firstCh = className.charAt(0);
+        if (firstCh == '/' &&
+                REGEX_SPECIFIER.matcher(className).matches()) {
+            String regex = className.substring(1, className.length() - 1);
+            Pattern p = compile(regex);
+            if (p != null) {
+                addToTrie(literalPrefix(regex), new PatternEntry(p, index));
+            }
+        } else if (firstCh == '@') {
+            className = className.substring(1);
+            if (className.length() == 0) {
+                return;
+            }
+            if (REGEX_SPECIFIER.matcher(className).matches()) {
+                Pattern p = compile(className.substring(1, className.length() - 1));
+                if (p != null) {
+                    classAnnotationPatterns.add(new PatternEntry(p, index));
+                }
+            } else {
+                addIndex(exactClassAnnotations, className, index);
+            }
+        } else if (firstCh == '+') {
+            String superType = className.substring(1);
+            superTypes.add(superType);
+            superTypesInternal.add(superType.replace('.', '/'));
+            superTypeIndices.add(index);
+        } else {
+            addIndex(exactClasses, className, index);
+        }
+    }
+
+    private void indexMethod(OnMethod om) {
+        if (!om.getType().isEmpty()) {
+            try {
+                methodArgTypes.put(om, Type.getArgumentTypes(TypeUtils.declarationToDescriptor(om.getType())));
+            } catch (RuntimeException e) {
+                // reported when the handler is matched
+            }
+        }
+        String methodName = om.getMethod();
+        if (methodName.length() > 1 && methodName.charAt(0) == '/' &&
+            REGEX_SPECIFIER.matcher(methodName).matches()) {
+            Pattern p = compile(methodName.substring(1, methodName.length() - 1));
+            if (p != null) {
+                methodPatterns.put(om, p);
+            }
+        } else if (methodName.length() > 1 && methodName.charAt(0) == '@') {
+            String annoName = methodName.substring(1);
+            if (REGEX_SPECIFIER.matcher(annoName).matches()) {
+                Pattern p = compile(annoName.substring(1, annoName.length() - 1));
+                if (p != null) {
+                    methodAnnotationPatterns.put(om, p);
+                }
+            }
+        }
+    }
+
+    private void addToTrie(String prefix, PatternEntry entry) {
+        TrieNode node = classPatterns;
+        for (int i = 0; i < prefix.length(); i++) {
+            Character c = prefix.charAt(i);
+            TrieNode child = node.children.get(c);
+            if (child == null) {
+                child = new TrieNode();
+                node.children.put(c, child);
+            }
+            node = child;
+        }
+        node.entries.add(entry);
+    }
+
+    private List<OnMethod> collect(boolean[] matched) {
+        List<OnMethod> result = new ArrayList<OnMethod>();
+        for (int i = 0; i < matched.length; i++) {
+            if (matched[i]) {
+                result.add(onMethods[i]);
+            }
+        }
+        return result;
+    }
+
+    private static boolean hasTopLevelAlternation(String regex) {
+        int depth = 0;
+        boolean inClass = false;
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (inClass) {
+                inClass = c != ']';
+            } else if (c == '[') {
+                inClass = true;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == '|' && depth == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isQuantifier(String regex, int pos) {
+        if (pos >= regex.length()) {
+            return false;
+        }
+        char c = regex.charAt(pos);
+        return c == '*' || c == '?' || c == '{' || c == '+';
+    }
+
+    private static void addIndex(Map<String, int[]> map, String key, int index) {
+        int[] indices = map.get(key);
+        if (indices == null) {
+            indices = new int[]{index};
+        } else {
+            indices = Arrays.copyOf(indices, indices.length + 1);
+            indices[indices.length - 1] = index;
+        }
+        map.put(key, indices);
+    }
+
+    private static boolean isInArray(String[] candidates, String given) {
+        if (candidates != null) {
+            for (String c : candidates) {
+                if (c.equals(given)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static Pattern compile(String regex) {
+        try {
+            return Pattern.compile(regex);
+        } catch (PatternSyntaxException pse) {
+            System.err.println("btrace ERROR: invalid regex pattern - " + regex);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,586 @@
+/*
+ * Copyright (c) 2014, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.btrace.runtime;
+
+import com.sun.btrace.org.objectweb.asm.AnnotationVisitor;
+import com.sun.btrace.org.objectweb.asm.Attribute;
+import com.sun.btrace.org.objectweb.asm.ClassReader;
+import com.sun.btrace.org.objectweb.asm.ClassVisitor;
+import com.sun.btrace.org.objectweb.asm.Handle;
+import com.sun.btrace.org.objectweb.asm.Label;
+import com.sun.btrace.org.objectweb.asm.MethodVisitor;
+import com.sun.btrace.org.objectweb.asm.Opcodes;
+import com.sun.btrace.org.objectweb.asm.TypePath;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The methods of a BTrace class recorded as a list of visitor events.
+ * <p>
+ * The BTrace class is parsed only once per script and the recorded handler
+ * methods are then replayed into each instrumented class by
+ * {@linkplain MethodCopier}. The recording is immutable and can be replayed
+ * concurrently; each replay uses its own set of {@linkplain Label} instances.
+ * <p>
+ * The stack map frames are not recorded; they are recomputed by the
+ * {@linkplain com.sun.btrace.org.objectweb.asm.ClassWriter} of the target class.
+ *
+ * @author Jaroslav Bachorik
+ * @since 1.3
+ */
+public final class RecordedMethods {
+    /**
+     * Maps the recorded labels to the labels of one particular replay
+     */
+    private static final class LabelMap {
+        private final Map<Label, Label> labels = new IdentityHashMap<Label, Label>();
+
+        Label get(Label l) {
+            Label mapped = labels.get(l);
+            if (mapped == null) {
+                mapped = new Label();
+                labels.put(l, mapped);
+            }
+            return mapped;
+        }
+
+        Label[] get(Label[] ls) {
+            Label[] mapped = new Label[ls.length];
+            for (int i = 0; i < ls.length; i++) {
+                mapped[i] = get(ls[i]);
+            }
+            return mapped;
+        }
+
+        Object[] frame(Object[] items) {
+            if (items == null) {
+                return null;
+            }
+            Object[] mapped = new Object[items.length];
+            for (int i = 0; i < items.length; i++) {
+                mapped[i] = items[i] instanceof Label ? get((Label)items[i]) : items[i];
+            }
+            return mapped;
+        }
+    }
+
+    private static abstract class Event {
+        abstract void replay(MethodVisitor mv, LabelMap labels);
+    }
+
+    private static abstract class AnnotationEvent {
+        abstract void replay(AnnotationVisitor av);
+    }
+
+    /**
+     * A recorded method
+     */
+    public static final class RecordedMethod {
+        private final int access;
+        private final String name;
+        private final String desc;
+        private final String signature;
+        private final String[] exceptions;
+        private final List<Event> events = new ArrayList<Event>();
+
+        private RecordedMethod(int access, String name, String desc,
+                               String signature, String[] exceptions) {
+            this.access = access;
+            this.name = name;
+            this.desc = desc;
+            this.signature = signature;
+            this.exceptions = exceptions != null ? exceptions.clone() : null;
+        }
+
+        public int getAccess() {
+            return access;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getDesc() {
+            return desc;
+        }
+
+        public String getSignature() {
+            return signature;
+        }
+
+        public String[] getExceptions() {
+            return exceptions != null ? exceptions.clone() : null;
+        }
+
+        /**
+         * Replays the recorded method body to the given visitor
+         * @param mv The visitor to receive the method events
+         */
+        public void accept(MethodVisitor mv) {
+            if (mv == null) {
+                return;
+            }
+            LabelMap labels = new LabelMap();
+            for (Event e : events) {
+                e.replay(mv, labels);
+            }
+        }
+
+        /**
+         * @return A visitor appending the received events to this recording;
+         *         must not be used once the recording is being replayed
+         */
+        MethodVisitor recorder() {
+            return new MethodRecorder(events);
+        }
+    }
+
+    private final List<RecordedMethod> methods = new ArrayList<RecordedMethod>();
+
+    public RecordedMethods(byte[] code) {
+        this(new ClassReader(code));
+    }
+
+    public RecordedMethods(ClassReader reader) {
+        reader.accept(new ClassVisitor(Opcodes.ASM5) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String desc,
+                                             String signature, String[] exceptions) {
+                RecordedMethod m = new RecordedMethod(access, name, desc, signature, exceptions);
+                methods.add(m);
+                return new MethodRecorder(m.events);
+            }
+        }, ClassReader.SKIP_FRAMES);
+    }
+
+    /**
+     * @return The recorded methods in the class file order
+     */
+    public List<RecordedMethod> getMethods() {
+        return Collections.unmodifiableList(methods);
+    }
+
+    /**
+     * @param name The method name
+     * @param desc The method descriptor
+     * @return The recorded method or {@code null} if there is no such method
+     */
+    public RecordedMethod getMethod(String name, String desc) {
+        for (RecordedMethod m : methods) {
+            if (m.name.equals(name) && m.desc.equals(desc)) {
+                return m;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Creates an empty standalone recording to be filled through
+     * {@linkplain RecordedMethod#recorder()}
+     */
+    static RecordedMethod newMethod(int access, String name, String desc) {
+        return new RecordedMethod(access, name, desc, null, null);
+    }
+
+    private static final class MethodRecorder extends MethodVisitor {
+        private final List<Event> events;
+
+        MethodRecorder(List<Event> events) {
+            super(Opcodes.ASM5);
+            this.events = events;
+        }
+
+        @Override
+        public void visitParameter(final String name, final int access) {
+            events.add(new Event() {
+                void replay(MethodVisitor mv, LabelMap labels) {
+                    mv.visitParameter(name, access);
+                }
+            });
+        }
+
+        @Override
+        public AnnotationVisitor visitAnnotationDefault() {
+            final List<AnnotationEvent> ae = new ArrayList<AnnotationEvent>();
+            events.add(new Event() {
+                void replay(MethodVisitor mv, LabelMap labels) {
+                    replayAnnotation(mv.visitAnnotationDefault(), ae);
+                }
+            });
+            return new AnnotationRecorder(ae);
+        }
+
+        @Override
+        public AnnotationVisitor visitAnnotation(final String desc, final boolean visible) {
+            final List<AnnotationEvent> ae = new ArrayList<AnnotationEvent>();
+            events.add(new Event() {
+                void replay(MethodVisitor mv, LabelMap labels) {
+                    replayAnnotation(mv.visitAnnotation(desc, visible), ae);
+                }
+            });
+            return new AnnotationRecorder(ae);
+        }
+
+        @Override
+        public AnnotationVisitor visitTypeAnnotation(final int typeRef, final TypePath typePath,
+                                                     final String desc, final boolean visible) {
+            final List<AnnotationEvent> ae = new ArrayList<AnnotationEvent>();
+            events.add(new Event() {
+                void replay(MethodVisitor mv, LabelMap labels) {
+                    replayAnnotation(mv.visitTypeAnnotation(typeRef, typePath, desc, visible), ae);
+                }
+            });
+            return new AnnotationRecorder(ae);
+        }
+
+        @Override
+        public AnnotationVisitor visitParameterAnnotation(final int parameter, final String desc,
+                                                          final boolean visible) {
+            final List<AnnotationEvent> ae = new ArrayList<AnnotationEvent>();
+            events.add(new Event() {
+                void replay(MethodVisitor mv, LabelMap labels) {
+                    replayAnnotation(mv.visitParameterAnnotation(parameter, desc, visible), ae);
+                }
+            });
+            return new AnnotationRecorder(ae);
+        }
+
+        @Override
+        public void visitAttribute(final Attribute attr) {
+            events.add(new Event() {
+                void replay(MethodVisitor mv, LabelMap labels) {
+                    mv.visitAttribute(attr);
+                }
+            });
+        }
+
+        @Override
+        public void visitCode() {
+            events.add(new Event() {
+                void replay(MethodVisitor mv, LabelMap labels) {
+                    mv.visitCode();
+                }
+            });
+        }
+
+        @Override
+        public void visitFrame(final int type, final int nLocal, final Object[] local,
+                               final int nStack, final Object[] stack) {
+            events.add(new Event() {
+                void replay(MethodVisitor mv, LabelMap labels) {
+                    mv.visitFrame(type, nLocal, labels.frame(local), nStack, labels.frame(stack));
+                }
+            });
+        }
+
+        @Override
+        public void visitInsn(final int opcode) {
+            events.add(new Event() {
+                void replay(MethodVisitor mv, LabelMap labels) {
+                    mv.visitInsn(opcode);
+                }
+            });
+        }
+
+        @Override
+        public void visitIntInsn(final int opcode, final int operand) {
+            events.add(new Event() {
+                void replay(MethodVisitor mv, LabelMap labels) {
+                    mv.visitIntInsn(opcode, operand);
+                }
+            });
+        }
+
+        @Override
+        public void visitVarInsn(final int opcode, final int var) {
+            events.add(new Event() {
+                void replay(MethodVisitor mv, LabelMap labels) {
+                    mv.visitVarInsn(opcode, var);
+                }
+            });
+        }
+
+        @Override
+        public void visitTypeInsn(final int opcode, final String type) {
+            events.add(new Event() {
+                void replay(MethodVisitor mv, LabelMap labels) {
+                    mv.visitTypeInsn(opcode, type);
+                }
+            });
+        }
+
+        @Override
+        public void visitFieldInsn(final int opcode, final String owner,
+                                   final String name, final String desc) {
+            events.add(new Event() {
+                void replay(MethodVisitor mv, LabelMap labels) {
+                    mv.visitFieldInsn(opcode, owner, name, desc);
+                }
+            });
+        }
+
+        @Override
+        public void visitMethodInsn(final int opcode, final String owner, final String name,
+                                    final String desc, final boolean itf) {
+            events.add(new Event() {
+                void replay(MethodVisitor mv, LabelMap labels) {
+                    mv.visitMethodInsn(opcode, owner, name, desc, itf);
+                }
+            });
+        }
+
+        @Override
+        public void visitInvokeDynamicInsn(final String name, final String desc,
+                                           final Handle bsm, final Object... bsmArgs) {
+            events.add(new Event() {
+                void replay(MethodVisitor mv, LabelMap labels) {
+                    mv.visitInvokeDynamicInsn(name, desc, bsm, bsmArgs);
+                }
+            });
+        }
+
+        @Override
+        public void visitJumpInsn(final int opcode, final Label label) {
+            events.add(new Event() {
+                void replay(MethodVisitor mv, LabelMap labels) {
+                    mv.visitJumpInsn(opcode, labels.get(label));
+                }
+            });
+        }
+
+        @Override
+        public void visitLabel(final Label label) {
+            events.add(new Event() {
+                void replay(MethodVisitor mv, LabelMap labels) {
+                    mv.visitLabel(labels.get(label));
+                }
+            });
+        }
+
+        @Override
+        public void visitLdcInsn(final Object cst) {
+            events.add(new Event() {
+                void replay(MethodVisitor mv, LabelMap labels) {
+                    mv.visitLdcInsn(cst);
+                }
+            });
+        }
+
+        @Override
+        public void visitIincInsn(final int var, final int increment) {
+            events.add(new Event() {
+                void replay(MethodVisitor mv, LabelMap labels) {
+                    mv.visitIincInsn(var, increment);
+                }
+            });
+        }
+
+        @Override
+        public void visitTableSwitchInsn(final int min, final int max,
+                                         final Label dflt, final Label... lbls) {
+            events.add(new Event() {
+                void replay(MethodVisitor mv, LabelMap labels) {
+                    mv.visitTableSwitchInsn(min, max, labels.get(dflt), labels.get(lbls));
+                }
+            });
+        }
+
+        @Override
+        public void visitLookupSwitchInsn(final Label dflt, final int[] keys,
+                                          final Label[] lbls) {
+            events.add(new Event() {
+                void replay(MethodVisitor mv, LabelMap labels) {
+                    mv.visitLookupSwitchInsn(labels.get(dflt), keys, labels.get(lbls));
+                }
+            });
+        }
+
+        @Override
+        public void visitMultiANewArrayInsn(final String desc, final int dims) {
+            events.add(new Event() {
+                void replay(MethodVisitor mv, LabelMap labels) {
+                    mv.visitMultiANewArrayInsn(desc, dims);
+                }
+            });
+        }
+
+        @Override
+        public AnnotationVisitor visitInsnAnnotation(final int typeRef, final TypePath typePath,
+                                                     final String desc, final boolean visible) {
+            final List<AnnotationEvent> ae = new ArrayList<AnnotationEvent>();
+            events.add(new Event() {
+                void replay(MethodVisitor mv, LabelMap labels) {
+                    replayAnnotation(mv.visitInsnAnnotation(typeRef, typePath, desc, visible), ae);
+                }
+            });
+            return new AnnotationRecorder(ae);
+        }
+
+        @Override
+        public void visitTryCatchBlock(final Label start, final Label end,
+                                       final Label handler, final String type) {
+            events.add(new Event() {
+                void replay(MethodVisitor mv, LabelMap labels) {
+                    mv.visitTryCatchBlock(labels.get(start), labels.get(end), labels.get(handler), type);
+                }
+            });
+        }
+
+        @Override
+        public AnnotationVisitor visitTryCatchAnnotation(final int typeRef, final TypePath typePath,
+                                                         final String desc, final boolean visible) {
+            final List<AnnotationEvent> ae = new ArrayList<AnnotationEvent>();
+            events.add(new Event() {
+                void replay(MethodVisitor mv, LabelMap labels) {
+                    replayAnnotation(mv.visitTryCatchAnnotation(typeRef, typePath, desc, visible), ae);
+                }
+            });
+            return new AnnotationRecorder(ae);
+        }
+
+        @Override
+        public void visitLocalVariable(final String name, final String desc, final String signature,
+                                       final Label start, final Label end, final int index) {
+            events.add(new Event() {
+                void replay(MethodVisitor mv, LabelMap labels) {
+                    mv.visitLocalVariable(name, desc, signature, labels.get(start), labels.get(end), index);
+                }
+            });
+        }
+
+        @Override
+        public AnnotationVisitor visitLocalVariableAnnotation(final int typeRef, final TypePath typePath,
+                                                              final Label[] start, final Label[] end,
+                                                              final int[] index, final String desc,
+                                                              final boolean visible) {
+            final List<AnnotationEvent> ae = new ArrayList<AnnotationEvent>();
+            events.add(new Event() {
+                void replay(MethodVisitor mv, LabelMap labels) {
+                    replayAnnotation(mv.visitLocalVariableAnnotation(typeRef, typePath,
+                        labels.get(start), labels.get(end), index, desc, visible), ae);
+                }
+            });
+            return new AnnotationRecorder(ae);
+        }
+
+        @Override
+        public void visitLineNumber(final int line, final Label start) {
+            events.add(new Event() {
+                void replay(MethodVisitor mv, LabelMap labels) {
+                    mv.visitLineNumber(line, labels.get(start));
+                }
+            });
+        }
+
+        @Override
+        public void visitMaxs(final int maxStack, final int maxLocals) {
+            events.add(new Event() {
+                void replay(MethodVisitor mv, LabelMap labels) {
+                    mv.visitMaxs(maxStack, maxLocals);
+                }
+            });
+        }
+
+        @Override
+        public void visitEnd() {
+            events.add(new Event() {
+                void replay(MethodVisitor mv, LabelMap labels) {
+                    mv.visitEnd();
+                }
+            });
+        }
+    }
+
+    private static final class AnnotationRecorder extends AnnotationVisitor {
+        private final List<AnnotationEvent> events;
+
+        AnnotationRecorder(List<AnnotationEvent> events) {
+            super(Opcodes.ASM5);
+            this.events = events;
+        }
+
+        @Override
+        public void visit(final String name, final Object value) {
+            events.add(new AnnotationEvent() {
+                void replay(AnnotationVisitor av) {
+                    av.visit(name, value);
+                }
+            });
+        }
+
+        @Override
+        public void visitEnum(final String name, final String desc, final String value) {
+            events.add(new AnnotationEvent() {
+                void replay(AnnotationVisitor av) {
+                    av.visitEnum(name, desc, value);
+                }
+            });
+        }
+
+        @Override
+        public AnnotationVisitor visitAnnotation(final String name, final String desc) {
+            final List<AnnotationEvent> nested = new ArrayList<AnnotationEvent>();
+            events.add(new AnnotationEvent() {
+                void replay(AnnotationVisitor av) {
+                    replayAnnotation(av.visitAnnotation(name, desc), nested);
+                }
+            });
+            return new AnnotationRecorder(nested);
+        }
+
+        @Override
+        public AnnotationVisitor visitArray(final String name) {
+            final List<AnnotationEvent> nested = new ArrayList<AnnotationEvent>();
+            events.add(new AnnotationEvent() {
+                void replay(AnnotationVisitor av) {
+                    replayAnnotation(av.visitArray(name), nested);
+                }
+            });
+            return new AnnotationRecorder(nested);
+        }
+
+        @Override
+        public void visitEnd() {
+            events.add(new AnnotationEvent() {
+                void replay(AnnotationVisitor av) {
+                    av.visitEnd();
+                }
+            });
+        }
+    }
+
+    private static void replayAnnotation(AnnotationVisitor av, List<AnnotationEvent> events) {
+        if (av == null) {
+            return;
+        }
+        for (AnnotationEvent e : events) {
+            e.replay(av);
+        }
+    }
+}
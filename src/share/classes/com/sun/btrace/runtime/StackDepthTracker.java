@@ -0,0 +1,358 @@
+/*
+ * Copyright (c) 2014, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.btrace.runtime;
+
+import com.sun.btrace.org.objectweb.asm.Handle;
+import com.sun.btrace.org.objectweb.asm.Label;
+import com.sun.btrace.org.objectweb.asm.MethodVisitor;
+import com.sun.btrace.org.objectweb.asm.Type;
+import com.sun.btrace.util.LocalVariableHelper;
+import java.util.HashMap;
+import java.util.Map;
+import static com.sun.btrace.org.objectweb.asm.Opcodes.*;
+
+/**
+ * Tracks the depth of the operand stack (in slots) of the code passed
+ * through to the wrapped instrumentor.
+ * <p>
+ * The depth is taken over from the jumps to a label, so a label reached
+ * only by a backward jump after an unconditional transfer of control
+ * has an unknown depth. No stack map frames are needed.
+ *
+ * @author Jaroslav Bachorik
+ */
+final class StackDepthTracker extends MethodVisitor implements LocalVariableHelper {
+    // the stack depth at the jump targets seen so far
+    private final Map<Label, Integer> targets = new HashMap<Label, Integer>();
+    private int depth = 0;
+    private boolean reachable = true;
+
+    StackDepthTracker(MethodInstrumentor mi) {
+        super(ASM5, mi);
+    }
+
+    /**
+     * @return The stack depth before the instruction currently being
+     *         passed through or -1 if unknown
+     */
+    int getDepth() {
+        return depth;
+    }
+
+    public int storeNewLocal(Type type) {
+        // the new local is stored from the top of the stack
+        change(-type.getSize());
+        return ((LocalVariableHelper)mv).storeNewLocal(type);
+    }
+
+    @Override
+    public void visitTryCatchBlock(Label start, Label end, Label handler, String type) {
+        super.visitTryCatchBlock(start, end, handler, type);
+        targets.put(handler, 1);
+    }
+
+    @Override
+    public void visitLabel(Label label) {
+        super.visitLabel(label);
+        Integer target = targets.get(label);
+        if (target != null) {
+            depth = target;
+        } else if (!reachable) {
+            depth = -1;
+        }
+        reachable = true;
+    }
+
+    @Override
+    public void visitInsn(int opcode) {
+        super.visitInsn(opcode);
+        switch (opcode) {
+            case IRETURN:
+            case LRETURN:
+            case FRETURN:
+            case DRETURN:
+            case ARETURN:
+            case RETURN:
+            case ATHROW:
+                reachable = false;
+                break;
+            default:
+                change(insnEffect(opcode));
+        }
+    }
+
+    @Override
+    public void visitIntInsn(int opcode, int operand) {
+        super.visitIntInsn(opcode, operand);
+        change(opcode == NEWARRAY ? 0 : 1);
+    }
+
+    @Override
+    public void visitVarInsn(int opcode, int var) {
+        super.visitVarInsn(opcode, var);
+        switch (opcode) {
+            case ILOAD:
+            case FLOAD:
+            case ALOAD:
+                change(1);
+                break;
+            case LLOAD:
+            case DLOAD:
+                change(2);
+                break;
+            case ISTORE:
+            case FSTORE:
+            case ASTORE:
+                change(-1);
+                break;
+            case LSTORE:
+            case DSTORE:
+                change(-2);
+                break;
+            default:
+                // RET
+                reachable = false;
+        }
+    }
+
+    @Override
+    public void visitTypeInsn(int opcode, String type) {
+        super.visitTypeInsn(opcode, type);
+        change(opcode == NEW ? 1 : 0);
+    }
+
+    @Override
+    public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+        super.visitFieldInsn(opcode, owner, name, desc);
+        int size = Type.getType(desc).getSize();
+        switch (opcode) {
+            case GETSTATIC:
+                change(size);
+                break;
+            case PUTSTATIC:
+                change(-size);
+                break;
+            case GETFIELD:
+                change(size - 1);
+                break;
+            default:
+                // PUTFIELD
+                change(-size - 1);
+        }
+    }
+
+    @Override
+    public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+        super.visitMethodInsn(opcode, owner, name, desc, itf);
+        // the argument sizes include the receiver
+        int sizes = Type.getArgumentsAndReturnSizes(desc);
+        change((sizes & 0x03) - (sizes >> 2) + (opcode == INVOKESTATIC ? 1 : 0));
+    }
+
+    @Override
+    public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... bsmArgs) {
+        super.visitInvokeDynamicInsn(name, desc, bsm, bsmArgs);
+        int sizes = Type.getArgumentsAndReturnSizes(desc);
+        change((sizes & 0x03) - (sizes >> 2) + 1);
+    }
+
+    @Override
+    public void visitJumpInsn(int opcode, Label label) {
+        super.visitJumpInsn(opcode, label);
+        switch (opcode) {
+            case GOTO:
+                jumpTo(label);
+                reachable = false;
+                break;
+            case JSR:
+                // the subroutines are not followed
+                depth = -1;
+                break;
+            case IFNULL:
+            case IFNONNULL:
+            case IFEQ:
+            case IFNE:
+            case IFLT:
+            case IFGE:
+            case IFGT:
+            case IFLE:
+                change(-1);
+                jumpTo(label);
+                break;
+            default:
+                // IF_ICMPxx, IF_ACMPxx
+                change(-2);
+                jumpTo(label);
+        }
+    }
+
+    @Override
+    public void visitLdcInsn(Object cst) {
+        super.visitLdcInsn(cst);
+        change(cst instanceof Long || cst instanceof Double ? 2 : 1);
+    }
+
+    @Override
+    public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+        super.visitTableSwitchInsn(min, max, dflt, labels);
+        switchTo(dflt, labels);
+    }
+
+    @Override
+    public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+        super.visitLookupSwitchInsn(dflt, keys, labels);
+        switchTo(dflt, labels);
+    }
+
+    @Override
+    public void visitMultiANewArrayInsn(String desc, int dims) {
+        super.visitMultiANewArrayInsn(desc, dims);
+        change(1 - dims);
+    }
+
+    private void change(int delta) {
+        if (depth != -1) {
+            depth += delta;
+        }
+    }
+
+    private void jumpTo(Label label) {
+        if (depth != -1 && !targets.containsKey(label)) {
+            targets.put(label, depth);
+        }
+    }
+
+    private void switchTo(Label dflt, Label[] labels) {
+        change(-1);
+        jumpTo(dflt);
+        for (Label l : labels) {
+            jumpTo(l);
+        }
+        reachable = false;
+    }
+
+    /**
+     * @param opcode An opcode without operands other than a return
+     * @return The change of the stack depth
+     */
+    static int insnEffect(int opcode) {
+        switch (opcode) {
+            case ACONST_NULL:
+            case ICONST_M1:
+            case ICONST_0:
+            case ICONST_1:
+            case ICONST_2:
+            case ICONST_3:
+            case ICONST_4:
+            case ICONST_5:
+            case FCONST_0:
+            case FCONST_1:
+            case FCONST_2:
+            case DUP:
+            case DUP_X1:
+            case DUP_X2:
+            case I2L:
+            case I2D:
+            case F2L:
+            case F2D:
+                return 1;
+            case LCONST_0:
+            case LCONST_1:
+            case DCONST_0:
+            case DCONST_1:
+            case DUP2:
+            case DUP2_X1:
+            case DUP2_X2:
+                return 2;
+            case IALOAD:
+            case FALOAD:
+            case AALOAD:
+            case BALOAD:
+            case CALOAD:
+            case SALOAD:
+            case POP:
+            case IADD:
+            case FADD:
+            case ISUB:
+            case FSUB:
+            case IMUL:
+            case FMUL:
+            case IDIV:
+            case FDIV:
+            case IREM:
+            case FREM:
+            case ISHL:
+            case LSHL:
+            case ISHR:
+            case LSHR:
+            case IUSHR:
+            case LUSHR:
+            case IAND:
+            case IOR:
+            case IXOR:
+            case L2I:
+            case L2F:
+            case D2I:
+            case D2F:
+            case FCMPL:
+            case FCMPG:
+            case MONITORENTER:
+            case MONITOREXIT:
+                return -1;
+            case POP2:
+            case LADD:
+            case DADD:
+            case LSUB:
+            case DSUB:
+            case LMUL:
+            case DMUL:
+            case LDIV:
+            case DDIV:
+            case LREM:
+            case DREM:
+            case LAND:
+            case LOR:
+            case LXOR:
+                return -2;
+            case IASTORE:
+            case FASTORE:
+            case AASTORE:
+            case BASTORE:
+            case CASTORE:
+            case SASTORE:
+            case LCMP:
+            case DCMPL:
+            case DCMPG:
+                return -3;
+            case LASTORE:
+            case DASTORE:
+                return -4;
+            default:
+                // NOP, LALOAD, DALOAD, SWAP, xNEG, I2F, F2I, D2L, L2D, I2x, ARRAYLENGTH
+                return 0;
+        }
+    }
+}
@@ -29,10 +29,16 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.BufferedInputStream;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import com.sun.btrace.VerifierException;
 import com.sun.btrace.annotations.TargetInstance;
 import com.sun.btrace.annotations.TargetMethodOrField;
+import com.sun.btrace.annotations.AllocatedBytes;
+import com.sun.btrace.annotations.CpuDuration;
 import com.sun.btrace.annotations.Duration;
 import static com.sun.btrace.org.objectweb.asm.Opcodes.*;
 import static com.sun.btrace.runtime.Constants.*;
@@ -40,6 +46,8 @@ import com.sun.btrace.annotations.Kind;
 import com.sun.btrace.annotations.ProbeClassName;
 import com.sun.btrace.annotations.ProbeMethodName;
 import com.sun.btrace.annotations.Return;
+import com.sun.btrace.annotations.Sampled;
+import com.sun.btrace.annotations.SamplingRate;
 import com.sun.btrace.annotations.Self;
 import com.sun.btrace.annotations.Where;
 import com.sun.btrace.util.Messages;
@@ -66,6 +74,10 @@ public class Verifier extends ClassVisitor {
     public static final String BTRACE_TARGETMETHOD_DESC = Type.getDescriptor(TargetMethodOrField.class);
     public static final String BTRACE_TARGETINSTANCE_DESC = Type.getDescriptor(TargetInstance.class);
     public static final String BTRACE_DURATION_DESC = Type.getDescriptor(Duration.class);
+    public static final String BTRACE_CPUDURATION_DESC = Type.getDescriptor(CpuDuration.class);
+    public static final String BTRACE_ALLOCATEDBYTES_DESC = Type.getDescriptor(AllocatedBytes.class);
+    public static final String BTRACE_SAMPLINGRATE_DESC = Type.getDescriptor(SamplingRate.class);
+    public static final String BTRACE_SAMPLED_DESC = Type.getDescriptor(Sampled.class);
     public static final String BTRACE_PROBECLASSNAME_DESC = Type.getDescriptor(ProbeClassName.class);
     public static final String BTRACE_PROBEMETHODNAME_DESC = Type.getDescriptor(ProbeMethodName.class);
 
@@ -75,6 +87,10 @@ public class Verifier extends ClassVisitor {
     private List<OnProbe> onProbes;
     private boolean unsafeScript, unsafeAllowed;
     private CycleDetector cycleDetector;
+    // method name -> descriptors; used to resolve the @OnMethod predicates
+    private Map<String, List<String>> methodDescs;
+    // method name + descriptor -> the BTrace annotation of each parameter
+    private Map<String, String[]> paramAnnotations;
 
     public Verifier(ClassVisitor cv, boolean unsafe) {
         super(Opcodes.ASM4, cv);
@@ -82,6 +98,8 @@ public class Verifier extends ClassVisitor {
         onMethods = new ArrayList<OnMethod>();
         onProbes = new ArrayList<OnProbe>();
         cycleDetector = new CycleDetector();
+        methodDescs = new HashMap<String, List<String>>();
+        paramAnnotations = new HashMap<String, String[]>();
     }
 
     public Verifier(ClassVisitor cv) {
@@ -105,9 +123,67 @@ public class Verifier extends ClassVisitor {
         if (cycleDetector.hasCycle()) {
             reportError("execution.loop.danger");
         }
+        for (OnMethod om : onMethods) {
+            if (!om.getPredicate().isEmpty()) {
+                resolvePredicate(om);
+            }
+        }
         super.visitEnd();
     }
 
+    /**
+     * Finds the predicate method of the given handler and maps its
+     * parameters to the handler parameters. Annotated predicate parameters
+     * are mapped to the handler parameter with the same annotation, the
+     * unannotated ones to the unannotated handler parameters in order.
+     */
+    private void resolvePredicate(OnMethod om) {
+        String handler = om.getTargetName() + om.getTargetDescriptor();
+        List<String> descs = methodDescs.get(om.getPredicate());
+        if (descs == null || descs.size() != 1) {
+            reportError("predicate.invalid", handler + " -> " + om.getPredicate());
+            return;
+        }
+        String desc = descs.get(0);
+        if (Type.getReturnType(desc) != Type.BOOLEAN_TYPE) {
+            reportError("predicate.invalid", handler + " -> " + om.getPredicate() + desc);
+            return;
+        }
+        Type[] predicateArgs = Type.getArgumentTypes(desc);
+        Type[] handlerArgs = Type.getArgumentTypes(om.getTargetDescriptor());
+        String[] predicateAnnos = paramAnnotations.get(om.getPredicate() + desc);
+        String[] handlerAnnos = paramAnnotations.get(handler);
+        int[] argMap = new int[predicateArgs.length];
+        int nextPlain = 0;
+        for (int i = 0; i < predicateArgs.length; i++) {
+            int idx = -1;
+            if (predicateAnnos[i] != null) {
+                for (int j = 0; j < handlerAnnos.length; j++) {
+                    if (predicateAnnos[i].equals(handlerAnnos[j])) {
+                        idx = j;
+                        break;
+                    }
+                }
+            } else {
+                for (int j = nextPlain; j < handlerAnnos.length; j++) {
+                    if (handlerAnnos[j] == null) {
+                        idx = j;
+                        nextPlain = j + 1;
+                        break;
+                    }
+                }
+            }
+            if (idx == -1 || !predicateArgs[i].equals(handlerArgs[idx]) ||
+                predicateArgs[i].getDescriptor().contains(ANYTYPE_DESC)) {
+                reportError("predicate.invalid", handler + " -> " + om.getPredicate() + desc + "(" + i + ")");
+                return;
+            }
+            argMap[i] = idx;
+        }
+        om.setPredicateDescriptor(desc);
+        om.setPredicateArgs(argMap);
+    }
+
     public void visit(int version, int access, String name,
             String signature, String superName, String[] interfaces) {
         if ((access & ACC_INTERFACE) != 0 ||
@@ -187,12 +263,50 @@ public class Verifier extends ClassVisitor {
         MethodVisitor mv = super.visitMethod(access, methodName,
                    methodDesc, signature, exceptions);
 
+        List<String> descs = methodDescs.get(methodName);
+        if (descs == null) {
+            descs = new ArrayList<String>(1);
+            methodDescs.put(methodName, descs);
+        }
+        descs.add(methodDesc);
+        final String[] paramAnnos = new String[Type.getArgumentTypes(methodDesc).length];
+        paramAnnotations.put(methodName + methodDesc, paramAnnos);
+
         return new MethodVerifier(this, mv, className, cycleDetector, methodName + methodDesc) {
             private OnMethod om = null;
             private boolean asBTrace = false;
+            private boolean sampled = false;
+            private int sampledMaxPerSec = 0;
+            private Set<Integer> loadedVars = new HashSet<Integer>();
+
+            @Override
+            public void visitVarInsn(int opcode, int var) {
+                if (opcode == ALOAD) {
+                    loadedVars.add(var);
+                }
+                super.visitVarInsn(opcode, var);
+            }
 
             @Override
             public void visitEnd() {
+                if (om != null) {
+                    // AnyType[] parameters never read by the handler need not be materialized
+                    Type[] argTypes = Type.getArgumentTypes(methodDesc);
+                    int ptr = 0;
+                    for (int i = 0; i < argTypes.length; i++) {
+                        if (TypeUtils.isAnyTypeArray(argTypes[i]) && !loadedVars.contains(ptr)) {
+                            om.addUnusedParameter(i);
+                        }
+                        ptr += argTypes[i].getSize();
+                    }
+                }
+                if (sampled) {
+                    if (om == null || sampledMaxPerSec <= 0) {
+                        reportError("sampled.invalid", methodName + methodDesc);
+                    } else {
+                        om.setSampledMaxPerSec(sampledMaxPerSec);
+                    }
+                }
                 if ((access & ACC_PUBLIC) == 0 && !methodName.equals(CLASS_INITIALIZER)) {
                     if (asBTrace) { // only btrace handlers are enforced to be public
                         reportError("method.should.be.public", methodName + methodDesc);
@@ -208,6 +322,10 @@ public class Verifier extends ClassVisitor {
 
             @Override
             public AnnotationVisitor visitParameterAnnotation(int parameter, final String desc, boolean visible) {
+                if (parameter < paramAnnos.length && paramAnnos[parameter] == null &&
+                    desc.startsWith("Lcom/sun/btrace/annotations/")) {
+                    paramAnnos[parameter] = desc;
+                }
                 if (desc.equals(BTRACE_SELF_DESC)) {
                     // all allowed
                     if (om != null) {
@@ -263,6 +381,39 @@ public class Verifier extends ClassVisitor {
                         }
                     }
                 }
+                if (desc.equals(BTRACE_CPUDURATION_DESC)) {
+                    if (om != null) {
+                        if (om.getLocation().getValue() == Kind.RETURN ||
+                            om.getLocation().getValue() == Kind.ERROR) {
+                            om.setCpuDurationParameter(parameter);
+                        } else {
+                            reportError("cpuduration.desc.invalid", methodName + methodDesc + "(" + parameter + ")");
+                        }
+                    }
+                }
+                if (desc.equals(BTRACE_ALLOCATEDBYTES_DESC)) {
+                    if (om != null) {
+                        if (om.getLocation().getValue() == Kind.RETURN ||
+                            om.getLocation().getValue() == Kind.ERROR) {
+                            om.setAllocatedBytesParameter(parameter);
+                        } else {
+                            reportError("allocatedbytes.desc.invalid", methodName + methodDesc + "(" + parameter + ")");
+                        }
+                    }
+                }
+                if (desc.equals(BTRACE_SAMPLINGRATE_DESC)) {
+                    if (om != null) {
+                        if (om.getLocation().getValue() == Kind.RETURN ||
+                            om.getLocation().getValue() == Kind.ERROR) {
+                            om.setSamplingRateParameter(parameter);
+                        } else if (om.getLocation().getValue() == Kind.CALL &&
+                                   om.getLocation().getWhere() == Where.AFTER) {
+                            om.setSamplingRateParameter(parameter);
+                        } else {
+                            reportError("samplingrate.desc.invalid", methodName + methodDesc + "(" + parameter + ")");
+                        }
+                    }
+                }
                 if (desc.equals(BTRACE_PROBECLASSNAME_DESC)) {
                     // allowed for all
                     if (om != null) {
@@ -290,6 +441,12 @@ public class Verifier extends ClassVisitor {
                             } else if (string.equals("samplingInterval") &&
                                        desc.equals(BTRACE_DURATION_DESC)) {
                                 om.setDurationSamplingInterval((Integer)o);
+                            } else if (string.equals("overheadBudgetNs") &&
+                                       desc.equals(BTRACE_DURATION_DESC)) {
+                                om.setDurationOverheadBudget((Long)o);
+                            } else if (string.equals("maxSamplesPerSec") &&
+                                       desc.equals(BTRACE_DURATION_DESC)) {
+                                om.setDurationMaxSamplesPerSec((Integer)o);
                             }
                         }
                         super.visit(string, o);
@@ -317,6 +474,8 @@ public class Verifier extends ClassVisitor {
                                 om.setMethod((String)value);
                             } else if (name.equals("type")) {
                                 om.setType((String)value);
+                            } else if (name.equals("predicate")) {
+                                om.setPredicate((String)value);
                             }
                         }
 
@@ -356,6 +515,16 @@ public class Verifier extends ClassVisitor {
                             return super.visitAnnotation(name, desc);
                         }
                     };
+                } else if (desc.equals(BTRACE_SAMPLED_DESC)) {
+                    sampled = true;
+                    sampledMaxPerSec = Sampled.DEFAULT_MAX_PER_SEC;
+                    return new AnnotationVisitor(Opcodes.ASM4) {
+                        public void visit(String name, Object value) {
+                            if (name.equals("maxPerSec")) {
+                                sampledMaxPerSec = (Integer)value;
+                            }
+                        }
+                    };
                 } else if (desc.equals(ONPROBE_DESC)) {
                     final OnProbe op = new OnProbe();
                     onProbes.add(op);
@@ -55,7 +55,172 @@ final public class SamplingSupport {
     }
 
 
-    private static final ThreadLocal<int[]> iCounters = new ThreadLocal<int[]>();
+    /**
+     * Per-thread sampling state. All the counters are dense arrays indexed
+     * by the method id which grow geometrically when a new id shows up, so
+     * the hot path is a single thread local lookup followed by an array access.
+     */
+    private static final class SamplingState {
+        private int[] countdown = new int[newCapacity(0, 0)];
+        private AdaptiveCounters adaptive;
+        private TimedCounters timed;
+
+        int[] countdown(int methodId) {
+            if (methodId >= countdown.length) {
+                countdown = Arrays.copyOf(countdown, newCapacity(countdown.length, methodId));
+            }
+            return countdown;
+        }
+
+        AdaptiveCounters adaptive(int methodId) {
+            if (adaptive == null) {
+                adaptive = new AdaptiveCounters(newCapacity(0, methodId));
+            }
+            adaptive.ensureCapacity(methodId);
+            return adaptive;
+        }
+
+        TimedCounters timed(int methodId) {
+            if (timed == null) {
+                timed = new TimedCounters(newCapacity(0, methodId));
+            }
+            timed.ensureCapacity(methodId);
+            return timed;
+        }
+    }
+
+    /**
+     * Per-thread state of the adaptive sampling, indexed by the method id
+     */
+    private static final class AdaptiveCounters {
+        private int[] countdown;
+        private int[] rate;
+        private int[] calls;
+        private long[] windowStart;
+        private long[] hitCost;
+
+        AdaptiveCounters(int size) {
+            countdown = new int[size];
+            rate = new int[size];
+            calls = new int[size];
+            windowStart = new long[size];
+            hitCost = new long[size];
+        }
+
+        void ensureCapacity(int methodId) {
+            if (methodId >= countdown.length) {
+                int size = newCapacity(countdown.length, methodId);
+                countdown = Arrays.copyOf(countdown, size);
+                rate = Arrays.copyOf(rate, size);
+                calls = Arrays.copyOf(calls, size);
+                windowStart = Arrays.copyOf(windowStart, size);
+                hitCost = Arrays.copyOf(hitCost, size);
+            }
+        }
+    }
+
+    /**
+     * Per-thread state of the time based sampling, indexed by the method id
+     */
+    private static final class TimedCounters {
+        private int[] tokens;
+        private long[] lastRefill;
+        private int[] calls;
+        private int[] hits;
+        private long[] windowStart;
+        private int[] rate;
+
+        TimedCounters(int size) {
+            tokens = new int[size];
+            lastRefill = new long[size];
+            calls = new int[size];
+            hits = new int[size];
+            windowStart = new long[size];
+            rate = new int[size];
+        }
+
+        void ensureCapacity(int methodId) {
+            if (methodId >= tokens.length) {
+                int size = newCapacity(tokens.length, methodId);
+                tokens = Arrays.copyOf(tokens, size);
+                lastRefill = Arrays.copyOf(lastRefill, size);
+                calls = Arrays.copyOf(calls, size);
+                hits = Arrays.copyOf(hits, size);
+                windowStart = Arrays.copyOf(windowStart, size);
+                rate = Arrays.copyOf(rate, size);
+            }
+        }
+    }
+
+    /**
+     * A millisecond clock updated periodically by a daemon thread.
+     * Reading it is just a volatile read. The thread is started on the first
+     * read and runs until {@linkplain #stop()} is called.
+     */
+    private static final class CoarseClock {
+        private static final long RESOLUTION = 10;
+        private static volatile long time;
+        private static volatile Thread ticker;
+
+        static long now() {
+            if (ticker == null) {
+                start();
+            }
+            return time;
+        }
+
+        private static synchronized void start() {
+            if (ticker != null) {
+                return;
+            }
+            time = System.currentTimeMillis();
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    while (!Thread.currentThread().isInterrupted()) {
+                        try {
+                            Thread.sleep(RESOLUTION);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        time = System.currentTimeMillis();
+                    }
+                }
+            }, "BTrace Coarse Clock");
+            t.setDaemon(true);
+            t.start();
+            ticker = t;
+        }
+
+        static synchronized void stop() {
+            if (ticker != null) {
+                ticker.interrupt();
+                ticker = null;
+            }
+        }
+    }
+
+    /**
+     * The default adaptive sampling overhead budget - 1ms per second
+     */
+    public static final long DEFAULT_OVERHEAD_BUDGET = 1000000L;
+
+    // the period for re-evaluating the adaptive sampling rate
+    private static final long ADAPTIVE_WINDOW = 100000000L;
+    private static final int MAX_ADAPTIVE_RATE = 1 << 20;
+    // the weight of the latest sample in the moving average of the hit cost (1/2^n)
+    private static final int HIT_COST_SHIFT = 3;
+
+    // the estimated cost of one measurement (two timestamps)
+    private static final long MEASUREMENT_COST;
+
+    private static final int MIN_CAPACITY = 16;
+
+    private static final ThreadLocal<SamplingState> state = new ThreadLocal<SamplingState>() {
+        @Override
+        protected SamplingState initialValue() {
+            return new SamplingState();
+        }
+    };
 
     private static Method nextIntMtd;
     private static Object threadLocalRandom;
@@ -76,6 +241,28 @@ final public class SamplingSupport {
         }
     }
 
+    static {
+        // calibrate the cost of taking the timestamps
+        int loops = 1000;
+        long start = System.nanoTime();
+        for (int i = 0; i < loops; i++) {
+            System.nanoTime();
+        }
+        long cost = (System.nanoTime() - start) / loops;
+        MEASUREMENT_COST = Math.max(2 * cost, 1L);
+    }
+
+    /**
+     * Computes the new size of a per-method counter array. Grows at least
+     * twice the current size to amortize the copying and leaves some room for
+     * the method ids allocated so far.
+     */
+    private static int newCapacity(int current, int methodId) {
+        int size = Math.max(MIN_CAPACITY, current * 2);
+        size = Math.max(size, MethodID.lastMehodId.get() + (MethodID.lastMehodId.get() >> 1));
+        return Math.max(size, methodId + 1);
+    }
+
     /**
      * Used from the injected code to figure out whether it should record the invocation.
      * @param rate On average each "rate"-th invocation will be recorded
@@ -83,16 +270,7 @@ final public class SamplingSupport {
      * @return Returns {@code true} if the invocation is to be recorded
      */
     public static boolean sampleHit(int rate, int methodId) {
-        int[] sampleCntrs = iCounters.get();
-        if (sampleCntrs == null) {
-            sampleCntrs = new int[(int) (MethodID.lastMehodId.get() * 1.5)];
-            Arrays.fill(sampleCntrs, 0);
-            iCounters.set(sampleCntrs);
-        } else {
-            if (methodId >= sampleCntrs.length) {
-                sampleCntrs = Arrays.copyOf(sampleCntrs, (int) (MethodID.lastMehodId.get() * 1.5));
-            }
-        }
+        int[] sampleCntrs = state.get().countdown(methodId);
         if (sampleCntrs[methodId] == 0) {
             sampleCntrs[methodId] = rndIntProvider.nextInt(rate);
             return true;
@@ -101,4 +279,181 @@ final public class SamplingSupport {
         sampleCntrs[methodId]--;
         return false;
     }
+
+    /**
+     * Used from the injected code to figure out whether it should record the invocation
+     * when the adaptive sampling is used.
+     * <p>
+     * The sampling rate is recomputed periodically from the observed invocation
+     * frequency so that the cost of the recorded invocations stays within the
+     * given budget. The cost of one recorded invocation is the measurement cost
+     * plus the handler cost reported by {@linkplain #adaptiveHitCost(long, int)};
+     * until the first report only the measurement cost is accounted for.
+     * The rate is maintained per thread and method.
+     * @param overheadBudget The allowed measurement cost in nanoseconds per second;
+     *                       values lower than 1 mean {@linkplain #DEFAULT_OVERHEAD_BUDGET}
+     * @param methodId A unique method id
+     * @return Returns {@code true} if the invocation is to be recorded
+     */
+    public static boolean sampleHitAdaptive(long overheadBudget, int methodId) {
+        return sampleHitAdaptive(overheadBudget, methodId, -1);
+    }
+
+    /**
+     * @param now The current {@linkplain System#nanoTime()} or -1 to read it
+     *            only when the rate needs to be re-evaluated
+     * @see #sampleHitAdaptive(long, int)
+     */
+    static boolean sampleHitAdaptive(long overheadBudget, int methodId, long now) {
+        AdaptiveCounters c = state.get().adaptive(methodId);
+        c.calls[methodId]++;
+        if (c.countdown[methodId] > 0) {
+            c.countdown[methodId]--;
+            return false;
+        }
+
+        int rate = c.rate[methodId];
+        if (now == -1) {
+            now = System.nanoTime();
+        }
+        long elapsed = now - c.windowStart[methodId];
+        if (rate == 0 || elapsed >= ADAPTIVE_WINDOW) {
+            if (overheadBudget < 1) {
+                overheadBudget = DEFAULT_OVERHEAD_BUDGET;
+            }
+            // number of measurements fitting the budget for the elapsed time
+            double allowed = rate == 0 ? Double.MAX_VALUE :
+                                 ((double) overheadBudget * elapsed / 1000000000d) /
+                                     (MEASUREMENT_COST + c.hitCost[methodId]);
+            int calls = c.calls[methodId];
+            rate = allowed >= calls ? 1 : (int) Math.min(MAX_ADAPTIVE_RATE, Math.ceil(calls / Math.max(allowed, 1d)));
+            c.rate[methodId] = rate;
+            c.calls[methodId] = 0;
+            c.windowStart[methodId] = now;
+        }
+        // to get average "rate" we need a uniform distribution (0, 2*rate)
+        c.countdown[methodId] = rate > 1 ? rndIntProvider.nextInt(rate * 2) : 0;
+        return true;
+    }
+
+    /**
+     * Used from the injected code to report the handler cost of a recorded
+     * invocation when the adaptive sampling is used. The cost is kept as
+     * a moving average per thread and method.
+     * @param start The {@linkplain System#nanoTime()} taken before the handler was invoked
+     * @param methodId A unique method id
+     */
+    public static void adaptiveHitCost(long start, int methodId) {
+        recordHitCost(System.nanoTime() - start, methodId);
+    }
+
+    static void recordHitCost(long cost, int methodId) {
+        AdaptiveCounters c = state.get().adaptive(methodId);
+        long avg = c.hitCost[methodId];
+        c.hitCost[methodId] = avg == 0 ? cost : avg + ((cost - avg) >> HIT_COST_SHIFT);
+    }
+
+    /**
+     * Used from the injected code to obtain the current adaptive sampling rate
+     * @param methodId A unique method id
+     * @return The average number of invocations per one recorded invocation
+     *         for the current thread
+     */
+    public static int getEffectiveRate(int methodId) {
+        AdaptiveCounters c = state.get().adaptive;
+        if (c == null || methodId >= c.rate.length) {
+            return 1;
+        }
+        int rate = c.rate[methodId];
+        return rate > 0 ? rate : 1;
+    }
+
+    /**
+     * Used from the injected code to figure out whether it should record the invocation
+     * when the time based sampling is used.
+     * <p>
+     * Each thread and method has its own token bucket holding up to
+     * {@code maxPerSec} tokens which is refilled continuously at the rate
+     * of {@code maxPerSec} tokens per second.
+     * @param maxPerSec The maximum number of recorded invocations per second
+     * @param methodId A unique method id
+     * @return Returns {@code true} if the invocation is to be recorded
+     */
+    public static boolean sampleHitTimed(int maxPerSec, int methodId) {
+        return sampleHitTimed(maxPerSec, methodId, CoarseClock.now());
+    }
+
+    /**
+     * @param now The current time in milliseconds
+     * @see #sampleHitTimed(int, int)
+     */
+    static boolean sampleHitTimed(int maxPerSec, int methodId, long now) {
+        TimedCounters c = state.get().timed(methodId);
+
+        if (now - c.windowStart[methodId] >= 1000) {
+            int calls = c.calls[methodId];
+            int hits = c.hits[methodId];
+            if (calls > 0) {
+                c.rate[methodId] = hits > 0 ? (calls + hits - 1) / hits : calls;
+            }
+            c.calls[methodId] = 0;
+            c.hits[methodId] = 0;
+            c.windowStart[methodId] = now;
+        }
+        c.calls[methodId]++;
+
+        long last = c.lastRefill[methodId];
+        if (last == 0) {
+            c.tokens[methodId] = maxPerSec;
+            c.lastRefill[methodId] = now;
+        } else if (now > last) {
+            long add = (now - last) * maxPerSec / 1000;
+            if (add > 0) {
+                long tokens = c.tokens[methodId] + add;
+                if (tokens >= maxPerSec) {
+                    c.tokens[methodId] = maxPerSec;
+                    c.lastRefill[methodId] = now;
+                } else {
+                    c.tokens[methodId] = (int) tokens;
+                    // keep the remainder for the next refill
+                    c.lastRefill[methodId] = last + add * 1000 / maxPerSec;
+                }
+            }
+        }
+        if (c.tokens[methodId] > 0) {
+            c.tokens[methodId]--;
+            c.hits[methodId]++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Stops the clock used by the time based sampling. Called when the last
+     * BTrace runtime exits; the clock is restarted on the next timed hit.
+     */
+    public static void stop() {
+        CoarseClock.stop();
+    }
+
+    /**
+     * Used from the injected code to obtain the average sampling rate resulting
+     * from the time based sampling
+     * @param methodId A unique method id
+     * @return The average number of invocations per one recorded invocation
+     *         for the current thread, as observed during the last second
+     */
+    public static int getTimedRate(int methodId) {
+        TimedCounters c = state.get().timed;
+        if (c == null || methodId >= c.rate.length) {
+            return 1;
+        }
+        int rate = c.rate[methodId];
+        if (rate == 0) {
+            // still in the first window
+            int hits = c.hits[methodId];
+            rate = hits > 0 ? (c.calls[methodId] + hits - 1) / hits : 1;
+        }
+        return rate > 0 ? rate : 1;
+    }
 }
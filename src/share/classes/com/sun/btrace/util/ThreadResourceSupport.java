@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2014, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.btrace.util;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * This class provides the per-thread CPU time and allocated bytes
+ * counters used from the injected code for {@linkplain com.sun.btrace.annotations.CpuDuration}
+ * and {@linkplain com.sun.btrace.annotations.AllocatedBytes} measurements.
+ * <p>
+ * The accessors are resolved once, picking the cheapest one the JVM supports.
+ * When a counter is not available the corresponding method returns -1 so that
+ * the computed differences are always 0.
+ *
+ * @author Jaroslav Bachorik
+ * @since 1.3
+ */
+final public class ThreadResourceSupport {
+    private static interface CounterProvider {
+        long get();
+    }
+
+    private static final class UnsupportedCounterProvider implements CounterProvider {
+        public long get() {
+            return -1L;
+        }
+    }
+
+    private static final class CpuTimeProvider implements CounterProvider {
+        private final ThreadMXBean bean;
+
+        public CpuTimeProvider(ThreadMXBean bean) {
+            this.bean = bean;
+        }
+
+        public long get() {
+            return bean.getCurrentThreadCpuTime();
+        }
+    }
+
+    private static final class AllocatedBytesProvider implements CounterProvider {
+        private final com.sun.management.ThreadMXBean bean;
+
+        public AllocatedBytesProvider(com.sun.management.ThreadMXBean bean) {
+            this.bean = bean;
+        }
+
+        public long get() {
+            return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+    }
+
+    private static final CounterProvider cpuTimeProvider;
+    private static final CounterProvider allocatedBytesProvider;
+
+    static {
+        ThreadMXBean bean = null;
+        try {
+            bean = ManagementFactory.getThreadMXBean();
+        } catch (Throwable e) {
+            // management not available
+        }
+        cpuTimeProvider = initCpuTimeProvider(bean);
+        allocatedBytesProvider = initAllocatedBytesProvider(bean);
+    }
+
+    private static CounterProvider initCpuTimeProvider(ThreadMXBean bean) {
+        try {
+            if (bean != null && bean.isCurrentThreadCpuTimeSupported()) {
+                if (!bean.isThreadCpuTimeEnabled()) {
+                    bean.setThreadCpuTimeEnabled(true);
+                }
+                return new CpuTimeProvider(bean);
+            }
+        } catch (Throwable e) {
+            // CPU time measurement can not be enabled
+        }
+        return new UnsupportedCounterProvider();
+    }
+
+    private static CounterProvider initAllocatedBytesProvider(ThreadMXBean bean) {
+        try {
+            // com.sun.management extensions are available only in HotSpot based JVMs
+            if (bean instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean hsBean = (com.sun.management.ThreadMXBean)bean;
+                if (hsBean.isThreadAllocatedMemorySupported()) {
+                    if (!hsBean.isThreadAllocatedMemoryEnabled()) {
+                        hsBean.setThreadAllocatedMemoryEnabled(true);
+                    }
+                    return new AllocatedBytesProvider(hsBean);
+                }
+            }
+        } catch (Throwable e) {
+            // allocated memory measurement not available
+        }
+        return new UnsupportedCounterProvider();
+    }
+
+    /**
+     * Used from the injected code to obtain the CPU time of the current thread
+     * @return The CPU time of the current thread in nanoseconds or -1 if not supported
+     */
+    public static long currentThreadCpuTime() {
+        return cpuTimeProvider.get();
+    }
+
+    /**
+     * Used from the injected code to obtain the number of bytes allocated
+     * by the current thread so far
+     * @return The number of allocated bytes or -1 if not supported
+     */
+    public static long currentThreadAllocatedBytes() {
+        return allocatedBytesProvider.get();
+    }
+
+    /**
+     * @return {@code true} if per-thread CPU time can be measured
+     */
+    public static boolean isCpuTimeSupported() {
+        return !(cpuTimeProvider instanceof UnsupportedCounterProvider);
+    }
+
+    /**
+     * @return {@code true} if per-thread allocated bytes can be measured
+     */
+    public static boolean isAllocatedBytesSupported() {
+        return !(allocatedBytesProvider instanceof UnsupportedCounterProvider);
+    }
+}
@@ -35,6 +35,8 @@ import com.sun.btrace.org.objectweb.asm.Type;
 import com.sun.btrace.org.objectweb.asm.TypePath;
 import com.sun.btrace.util.LocalVariableHelper;
 import com.sun.btrace.util.templates.impl.CallTimeStampExpander;
+import com.sun.btrace.util.templates.impl.MethodAllocationExpander;
+import com.sun.btrace.util.templates.impl.MethodCpuTimeExpander;
 import com.sun.btrace.util.templates.impl.MethodTimeStampExpander;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -57,9 +59,13 @@ public class TemplateExpanderVisitor extends MethodVisitor implements LocalVaria
 
         this.expanders.add(new MethodTimeStampExpander(className, methodName, desc));
         this.expanders.add(new CallTimeStampExpander(className, methodName, desc));
+        this.expanders.add(new MethodCpuTimeExpander(className, methodName, desc));
+        this.expanders.add(new MethodAllocationExpander(className, methodName, desc));
     }
 
     public int storeNewLocal(Type type) {
+        // the value to store may come from a pending template
+        expandTemplate(null);
         return lvs.storeNewLocal(type);
     }
 
@@ -279,13 +285,16 @@ public class TemplateExpanderVisitor extends MethodVisitor implements LocalVaria
     private TemplateExpander.Result expandTemplate(Template newTemplate) {
         if (expanding) return TemplateExpander.Result.PASSED;
 
+        // all the expanders need to see each instruction in order to flush
+        // their pending templates; the first non-PASSED result wins
+        TemplateExpander.Result result = TemplateExpander.Result.PASSED;
         for(TemplateExpander exp : expanders) {
             TemplateExpander.Result r = exp.expand(this, newTemplate);
-            if (r != TemplateExpander.Result.PASSED) {
-                return r;
+            if (result == TemplateExpander.Result.PASSED) {
+                result = r;
             }
         }
-        return TemplateExpander.Result.PASSED;
+        return result;
     }
 
     public void expand(
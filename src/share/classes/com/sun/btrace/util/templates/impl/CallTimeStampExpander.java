@@ -37,16 +37,21 @@ public class CallTimeStampExpander extends TimeStampExpander {
     public static final Template START_TIME = new Template("callStartTime", "()J");
     public static final Template END_TIME = new Template("callEndTime", "()J");
     public static final Template DURATION = new Template("callDuration", "()J");
+    public static final Template SAMPLING_RATE = new Template("callSamplingRate", "()I");
+    public static final Template SAMPLE_HIT = new Template("callSampleHit", "()Z");
+    public static final Template HIT_START = new Template("callHitStart", "()J");
+    public static final Template HIT_COST = new Template("callHitCost", "(J)V");
 
     public static final String CALLID = "callid";
 
     static {
-        BTraceTemplates.registerTemplates(START_TIME, END_TIME, DURATION);
+        BTraceTemplates.registerTemplates(START_TIME, END_TIME, DURATION, SAMPLING_RATE,
+                                          SAMPLE_HIT, HIT_START, HIT_COST);
     }
 
     public CallTimeStampExpander(String className, String methodName, String desc) {
         super(className, methodName, desc,
-              START_TIME, END_TIME, DURATION);
+              START_TIME, END_TIME, DURATION, SAMPLING_RATE, SAMPLE_HIT, HIT_START, HIT_COST);
     }
 
     @Override
@@ -63,6 +68,7 @@ public class CallTimeStampExpander extends TimeStampExpander {
     }
 
     private boolean isAccepted(Template t) {
-        return START_TIME.equals(t) || END_TIME.equals(t) || DURATION.equals(t);
+        return START_TIME.equals(t) || END_TIME.equals(t) || DURATION.equals(t) || SAMPLING_RATE.equals(t) ||
+               SAMPLE_HIT.equals(t) || HIT_START.equals(t) || HIT_COST.equals(t);
     }
 }
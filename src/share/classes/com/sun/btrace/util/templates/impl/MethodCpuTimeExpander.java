@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2014, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.btrace.util.templates.impl;
+
+import com.sun.btrace.org.objectweb.asm.Opcodes;
+import com.sun.btrace.org.objectweb.asm.Type;
+import com.sun.btrace.util.ThreadResourceSupport;
+import com.sun.btrace.util.templates.BTraceTemplates;
+import com.sun.btrace.util.templates.Template;
+import com.sun.btrace.util.templates.TemplateExpanderVisitor;
+
+/**
+ * An expander for the method CPU time related templates.
+ * Uses the current thread CPU time instead of the wall clock time.
+ * @author Jaroslav Bachorik
+ * @since 1.3
+ */
+public class MethodCpuTimeExpander extends TimeStampExpander {
+
+    public static final Template START_TIME = new Template("methodCpuStartTime", "()J");
+    public static final Template END_TIME = new Template("methodCpuEndTime", "()J");
+    public static final Template DURATION = new Template("methodCpuDuration", "()J");
+
+    static {
+        BTraceTemplates.registerTemplates(START_TIME, END_TIME, DURATION);
+    }
+
+    public MethodCpuTimeExpander(String className,
+                                 String methodName,
+                                 String desc
+    ) {
+        super(className, methodName, desc,
+              START_TIME,
+              END_TIME,
+              DURATION);
+    }
+
+    @Override
+    protected void expandTimeStamp(TemplateExpanderVisitor v) {
+        v.visitMethodInsn(Opcodes.INVOKESTATIC, Type.getInternalName(ThreadResourceSupport.class), "currentThreadCpuTime", "()J", false);
+    }
+
+    @Override
+    protected void resetStartTime() {
+        // never reset the start time in the method body
+    }
+}
@@ -38,9 +38,14 @@ public class MethodTimeStampExpander extends TimeStampExpander {
     public static final Template START_TIME = new Template("methodStartTime", "()J");
     public static final Template END_TIME = new Template("methodEndTime", "()J");
     public static final Template DURATION = new Template("methodDuration", "()J");
+    public static final Template SAMPLING_RATE = new Template("methodSamplingRate", "()I");
+    public static final Template SAMPLE_HIT = new Template("methodSampleHit", "()Z");
+    public static final Template HIT_START = new Template("methodHitStart", "()J");
+    public static final Template HIT_COST = new Template("methodHitCost", "(J)V");
 
     static {
-        BTraceTemplates.registerTemplates(START_TIME, END_TIME, DURATION);
+        BTraceTemplates.registerTemplates(START_TIME, END_TIME, DURATION, SAMPLING_RATE,
+                                          SAMPLE_HIT, HIT_START, HIT_COST);
     }
 
     public MethodTimeStampExpander(String className,
@@ -50,7 +55,11 @@ public class MethodTimeStampExpander extends TimeStampExpander {
         super(className, methodName, desc,
               START_TIME,
               END_TIME,
-              DURATION);
+              DURATION,
+              SAMPLING_RATE,
+              SAMPLE_HIT,
+              HIT_START,
+              HIT_COST);
     }
 
     @Override
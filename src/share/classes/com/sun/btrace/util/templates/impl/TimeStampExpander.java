@@ -28,6 +28,7 @@ package com.sun.btrace.util.templates.impl;
 import com.sun.btrace.org.objectweb.asm.Label;
 import com.sun.btrace.org.objectweb.asm.Opcodes;
 import com.sun.btrace.org.objectweb.asm.Type;
+import com.sun.btrace.annotations.Duration;
 import com.sun.btrace.util.MethodID;
 import com.sun.btrace.util.SamplingSupport;
 import com.sun.btrace.util.templates.Template;
@@ -40,6 +41,12 @@ import com.sun.btrace.util.templates.TemplateExpanderVisitor;
  */
 abstract public class TimeStampExpander implements TemplateExpander {
     public static final String SAMPLING_INTERVAl = "sint";
+    public static final String OVERHEAD_BUDGET = "budget";
+    public static final String MAX_SAMPLES = "smax";
+    /**
+     * The sampling interval value used for the time based sampling
+     */
+    public static final int TIMED = -2;
 
     private final String className;
     private final String desc;
@@ -55,15 +62,35 @@ abstract public class TimeStampExpander implements TemplateExpander {
     private final Template startTimeTemplate;
     private final Template endTimeTemplate;
     private final Template durationTemplate;
+    private final Template samplingRateTemplate;
+    private final Template sampleHitTemplate;
+    private final Template hitStartTemplate;
+    private final Template hitCostTemplate;
 
     private Template lastTemplate = null;
 
     private int samplingInterval = Integer.MAX_VALUE;
+    private long overheadBudget = 0;
+    private int maxSamples = 0;
+
+    // the sampling interval of the last expanded start time; used for the sampling rate
+    private int lastSamplingInterval = 1;
 
     public TimeStampExpander(String className, String desc, String methodName,
                              Template startTimeTemplate,
                              Template endTimeTemplate,
                              Template durationTemplate) {
+        this(className, desc, methodName, startTimeTemplate, endTimeTemplate, durationTemplate, null, null, null, null);
+    }
+
+    public TimeStampExpander(String className, String desc, String methodName,
+                             Template startTimeTemplate,
+                             Template endTimeTemplate,
+                             Template durationTemplate,
+                             Template samplingRateTemplate,
+                             Template sampleHitTemplate,
+                             Template hitStartTemplate,
+                             Template hitCostTemplate) {
         this.className = className;
         this.desc = desc;
         this.methodName = methodName;
@@ -71,13 +98,36 @@ abstract public class TimeStampExpander implements TemplateExpander {
         this.startTimeTemplate = startTimeTemplate;
         this.endTimeTemplate = endTimeTemplate;
         this.durationTemplate = durationTemplate;
+        this.samplingRateTemplate = samplingRateTemplate;
+        this.sampleHitTemplate = sampleHitTemplate;
+        this.hitStartTemplate = hitStartTemplate;
+        this.hitCostTemplate = hitCostTemplate;
     }
 
-    public Result expand(TemplateExpanderVisitor v, Template t) {
-        if (lastTemplate == null) {
-            if (!(durationTemplate.equals(t) || endTimeTemplate.equals(t) || startTimeTemplate.equals(t))) {
-                return Result.PASSED;
+    public Result expand(TemplateExpanderVisitor v, final Template t) {
+        if (isImmediate(t)) {
+            // flush the pending template and expand this one right away
+            if (lastTemplate != null) {
+                expand(v, null);
             }
+            v.expand(new Consumer<TemplateExpanderVisitor>() {
+                public void consume(TemplateExpanderVisitor visitor) {
+                    if (t.equals(samplingRateTemplate)) {
+                        expandSamplingRate(visitor, t);
+                    } else if (t.equals(sampleHitTemplate)) {
+                        expandSampleHit(visitor);
+                    } else if (t.equals(hitStartTemplate)) {
+                        expandHitStart(visitor);
+                    } else {
+                        expandHitCost(visitor, t);
+                    }
+                }
+            });
+            return Result.CONSUMED;
+        }
+        boolean accepted = isAccepted(t);
+        if (lastTemplate == null && !accepted) {
+            return Result.PASSED;
         }
         try {
             if ((lastTemplate == null && t != null) || !lastTemplate.equals(t)) {
@@ -95,17 +145,24 @@ abstract public class TimeStampExpander implements TemplateExpander {
                     resetEndTime();
                     resetDuration();
                     samplingInterval = Integer.MAX_VALUE;
+                    overheadBudget = 0;
+                    maxSamples = 0;
 
                     return t != null ? Result.CONSUMED : Result.PASSED;
                 } else if (startTimeTemplate.equals(lastTemplate)) {
                     int sinter = 1;
+                    long budget = 0;
+                    int smax = 0;
                     for(String tag : lastTemplate.getTags()) {
                         if (tag.startsWith(SAMPLING_INTERVAl + "=")) {
                             sinter = Integer.valueOf(tag.substring(SAMPLING_INTERVAl.length() + 1));
-                            break;
+                        } else if (tag.startsWith(OVERHEAD_BUDGET + "=")) {
+                            budget = Long.valueOf(tag.substring(OVERHEAD_BUDGET.length() + 1));
+                        } else if (tag.startsWith(MAX_SAMPLES + "=")) {
+                            smax = Integer.valueOf(tag.substring(MAX_SAMPLES.length() + 1));
                         }
                     }
-                    samplingInterval = Math.min(samplingInterval, sinter);
+                    mergeSampling(sinter, budget, smax);
                     v.expand(new Consumer<TemplateExpanderVisitor>() {
                         public void consume(TemplateExpanderVisitor visitor) {
                             expandCallStartTime(visitor);
@@ -126,14 +183,44 @@ abstract public class TimeStampExpander implements TemplateExpander {
                 return Result.IGNORED;
             }
         } finally {
-            lastTemplate = t;
+            // templates handled by other expanders must not be remembered
+            lastTemplate = accepted ? t : null;
         }
     }
 
+    private void mergeSampling(int sinter, long budget, int smax) {
+        if (smax > 0) {
+            // time based sampling takes precedence over the other sampling modes
+            maxSamples = Math.max(maxSamples, smax);
+            if (samplingInterval != 1) {
+                samplingInterval = TIMED;
+            }
+        } else if (sinter == Duration.ADAPTIVE) {
+            overheadBudget = overheadBudget > 0 ? Math.min(overheadBudget, budget) : budget;
+            if (samplingInterval != 1 && samplingInterval != TIMED) {
+                samplingInterval = Duration.ADAPTIVE;
+            }
+        } else if (sinter <= 1) {
+            // exact measurement always wins
+            samplingInterval = 1;
+        } else if (samplingInterval != Duration.ADAPTIVE && samplingInterval != TIMED) {
+            samplingInterval = Math.min(samplingInterval, sinter);
+        }
+    }
+
+    private boolean isImmediate(Template t) {
+        return t != null && (t.equals(samplingRateTemplate) || t.equals(sampleHitTemplate) ||
+                             t.equals(hitStartTemplate) || t.equals(hitCostTemplate));
+    }
+
+    private boolean isAccepted(Template t) {
+        return durationTemplate.equals(t) || endTimeTemplate.equals(t) || startTimeTemplate.equals(t);
+    }
+
     protected void expandCallDuration(TemplateExpanderVisitor v, boolean trans) {
         if (startTimeSet && endTimeSet) {
             if (!durationSet || trans) {
-                if (getSamplingInterval() > 1) {
+                if (isSampled()) {
                     Label elseLabel = new Label();
                     Label endLabel = new Label();
                     v.visitVarInsn(Type.BOOLEAN_TYPE.getOpcode(Opcodes.ILOAD), sampleHitVarIndex);
@@ -164,15 +251,15 @@ abstract public class TimeStampExpander implements TemplateExpander {
     protected void expandCallEndTime(TemplateExpanderVisitor v) {
         if (!endTimeSet) {
             Label skipLabel = new Label();
-            if (getSamplingInterval() > 1) {
+            if (isSampled()) {
                 v.visitLdcInsn(0L);
                 endTimeIndex = v.storeNewLocal(Type.LONG_TYPE);
                 endTimeSet = true;
                 v.visitVarInsn(Type.BOOLEAN_TYPE.getOpcode(Opcodes.ILOAD), sampleHitVarIndex);
                 v.visitJumpInsn(Opcodes.IFEQ, skipLabel);
             }
-            v.visitMethodInsn(Opcodes.INVOKESTATIC, Type.getInternalName(System.class), "nanoTime", "()J", false);
-            if (getSamplingInterval() > 1) {
+            expandTimeStamp(v);
+            if (isSampled()) {
                 v.visitVarInsn(Opcodes.LSTORE, endTimeIndex);
                 v.visitLabel(skipLabel);
             } else {
@@ -185,20 +272,31 @@ abstract public class TimeStampExpander implements TemplateExpander {
     protected void expandCallStartTime(TemplateExpanderVisitor v) {
         if (!startTimeSet) {
             Label skipLabel = new Label();
-            if (getSamplingInterval() > 1) {
+            lastSamplingInterval = getSamplingInterval();
+            if (isSampled()) {
                 v.visitLdcInsn(0L);
                 startTimeIndex = v.storeNewLocal(Type.LONG_TYPE);
                 startTimeSet = true;
-                v.visitLdcInsn(getSamplingInterval() * 2); // to get average "rate" we need a uniform distribution (0, 2*rate)
-                v.visitLdcInsn(MethodID.getMethodId(getMethodIdString(lastTemplate)));
-                v.visitMethodInsn(Opcodes.INVOKESTATIC, Type.getInternalName(SamplingSupport.class), "sampleHit", "(II)Z", false);
+                if (getSamplingInterval() == TIMED) {
+                    v.visitLdcInsn(maxSamples);
+                    v.visitLdcInsn(MethodID.getMethodId(getMethodIdString(lastTemplate)));
+                    v.visitMethodInsn(Opcodes.INVOKESTATIC, Type.getInternalName(SamplingSupport.class), "sampleHitTimed", "(II)Z", false);
+                } else if (getSamplingInterval() == Duration.ADAPTIVE) {
+                    v.visitLdcInsn(overheadBudget);
+                    v.visitLdcInsn(MethodID.getMethodId(getMethodIdString(lastTemplate)));
+                    v.visitMethodInsn(Opcodes.INVOKESTATIC, Type.getInternalName(SamplingSupport.class), "sampleHitAdaptive", "(JI)Z", false);
+                } else {
+                    v.visitLdcInsn(getSamplingInterval() * 2); // to get average "rate" we need a uniform distribution (0, 2*rate)
+                    v.visitLdcInsn(MethodID.getMethodId(getMethodIdString(lastTemplate)));
+                    v.visitMethodInsn(Opcodes.INVOKESTATIC, Type.getInternalName(SamplingSupport.class), "sampleHit", "(II)Z", false);
+                }
                 v.visitInsn(Opcodes.DUP);
                 // store the measurement flag for later reuse
                 sampleHitVarIndex = v.storeNewLocal(Type.BOOLEAN_TYPE);
                 v.visitJumpInsn(Opcodes.IFEQ, skipLabel);
             }
-            v.visitMethodInsn(Opcodes.INVOKESTATIC, Type.getInternalName(System.class), "nanoTime", "()J", false);
-            if (getSamplingInterval() > 1) {
+            expandTimeStamp(v);
+            if (isSampled()) {
                 v.visitVarInsn(Opcodes.LSTORE, startTimeIndex);
                 v.visitLabel(skipLabel);
             } else {
@@ -208,10 +306,89 @@ abstract public class TimeStampExpander implements TemplateExpander {
         }
     }
 
+    /**
+     * Generates the code leaving the current value of the measured counter
+     * on the stack. Defaults to {@linkplain System#nanoTime()}.
+     * @param v The visitor to generate the code to
+     */
+    protected void expandTimeStamp(TemplateExpanderVisitor v) {
+        v.visitMethodInsn(Opcodes.INVOKESTATIC, Type.getInternalName(System.class), "nanoTime", "()J", false);
+    }
+
+    /**
+     * Generates the code leaving the current sampling rate (int) on the stack
+     * @param v The visitor to generate the code to
+     * @param t The sampling rate template
+     */
+    protected void expandSamplingRate(TemplateExpanderVisitor v, Template t) {
+        if (lastSamplingInterval == Duration.ADAPTIVE) {
+            v.visitLdcInsn(MethodID.getMethodId(getMethodIdString(t)));
+            v.visitMethodInsn(Opcodes.INVOKESTATIC, Type.getInternalName(SamplingSupport.class), "getEffectiveRate", "(I)I", false);
+        } else if (lastSamplingInterval == TIMED) {
+            v.visitLdcInsn(MethodID.getMethodId(getMethodIdString(t)));
+            v.visitMethodInsn(Opcodes.INVOKESTATIC, Type.getInternalName(SamplingSupport.class), "getTimedRate", "(I)I", false);
+        } else {
+            v.visitLdcInsn(lastSamplingInterval);
+        }
+    }
+
+    /**
+     * Generates the code leaving the measurement flag of the current invocation
+     * (boolean) on the stack; always {@code true} if the invocation is not sampled
+     * @param v The visitor to generate the code to
+     */
+    protected void expandSampleHit(TemplateExpanderVisitor v) {
+        if (isSampled(lastSamplingInterval) && sampleHitVarIndex != -1) {
+            v.visitVarInsn(Type.BOOLEAN_TYPE.getOpcode(Opcodes.ILOAD), sampleHitVarIndex);
+        } else {
+            v.visitInsn(Opcodes.ICONST_1);
+        }
+    }
+
+    /**
+     * Generates the code leaving the start of the handler cost measurement (long)
+     * on the stack. The cost is measured only for the adaptive sampling.
+     * @param v The visitor to generate the code to
+     */
+    protected void expandHitStart(TemplateExpanderVisitor v) {
+        if (lastSamplingInterval == Duration.ADAPTIVE) {
+            expandTimeStamp(v);
+        } else {
+            v.visitInsn(Opcodes.LCONST_0);
+        }
+    }
+
+    /**
+     * Generates the code feeding the handler cost measured since the value
+     * on the stack (long) back to the adaptive sampling
+     * @param v The visitor to generate the code to
+     * @param t The hit cost template
+     */
+    protected void expandHitCost(TemplateExpanderVisitor v, Template t) {
+        if (lastSamplingInterval == Duration.ADAPTIVE) {
+            v.visitLdcInsn(MethodID.getMethodId(getMethodIdString(t)));
+            v.visitMethodInsn(Opcodes.INVOKESTATIC, Type.getInternalName(SamplingSupport.class), "adaptiveHitCost", "(JI)V", false);
+        } else {
+            v.visitInsn(Opcodes.POP2);
+        }
+    }
+
     protected int getSamplingInterval() {
         return samplingInterval == Integer.MAX_VALUE ? 1 : samplingInterval;
     }
 
+    protected boolean isSampled() {
+        return isSampled(getSamplingInterval());
+    }
+
+    /**
+     * @param interval The sampling interval
+     * @return {@code true} if the interval makes the measurement sampled
+     */
+    public static boolean isSampled(int interval) {
+        return interval > 1 || interval == Duration.ADAPTIVE || interval == TIMED;
+    }
+
     protected String getMethodIdString(Template t) {
         return className + "#" + methodName + "#" + desc;
     }
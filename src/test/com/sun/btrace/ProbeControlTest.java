@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2014, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.btrace;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jaroslav Bachorik
+ */
+public class ProbeControlTest {
+    private static class Overloaded {
+        private static final String $btrace$probes = "a(I)V,a(J)V,b()V";
+        private static volatile boolean $btrace$disabled$a_4I_5V;
+        private static volatile boolean $btrace$disabled$a_4J_5V;
+        private static volatile boolean $btrace$disabled$b_4_5V;
+    }
+
+    @Test
+    public void switchNames() {
+        assertEquals("$btrace$disabled$a_4I_5V", ProbeControl.getSwitchName(ProbeControl.getProbeId("a", "(I)V")));
+        assertEquals("$btrace$disabled$a_1b_4_3Ljava_6lang_6String_2_5V", ProbeControl.getSwitchName("a_b([Ljava/lang/String;)V"));
+        assertFalse(ProbeControl.getSwitchName("a(I)V").equals(ProbeControl.getSwitchName("a(J)V")));
+    }
+
+    @Test
+    public void overloadedProbes() {
+        ProbeControl pc = new ProbeControl(Overloaded.class);
+        assertArrayEquals(new String[]{"a(I)V", "a(J)V", "b()V"}, pc.getProbes());
+
+        pc.disable("a(J)V");
+        assertTrue(Overloaded.$btrace$disabled$a_4J_5V);
+        assertFalse(Overloaded.$btrace$disabled$a_4I_5V);
+        assertTrue(pc.isEnabled("a(I)V"));
+
+        // a handler name is enough as long as it is not overloaded
+        assertTrue(pc.hasProbe("b"));
+        pc.disable("b");
+        assertFalse(pc.isEnabled("b()V"));
+
+        assertFalse(pc.hasProbe("a"));
+        try {
+            pc.enable("a");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void enableResetsHandlerSampling() {
+        ProbeControl pc = new ProbeControl(Overloaded.class);
+        ProbeStats stats = new ProbeStats(pc.getProbes(), 0);
+        pc.setStats(stats);
+        stats.setHandlerSampling(2, 1000);
+        pc.disable("b");
+
+        // a probe disabled over its budget starts over at the full rate
+        pc.enable("b");
+        assertArrayEquals(new int[]{1, 1, 1}, stats.getHandlerSamplingIntervals());
+        assertTrue(pc.isEnabled("b()V"));
+    }
+}
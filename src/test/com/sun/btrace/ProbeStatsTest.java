@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2014, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.btrace;
+
+import com.sun.btrace.annotations.BTrace;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jaroslav Bachorik
+ */
+public class ProbeStatsTest {
+    @BTrace
+    private static class Probes {
+        private static final String $btrace$probes = "a()V";
+    }
+
+    @Test
+    public void countHits() {
+        ProbeStats stats = new ProbeStats(new String[]{"a", "b"}, 0);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(0L, stats.probeHit(0));
+        }
+        stats.probeHit(1);
+
+        assertArrayEquals(new long[]{10, 1}, stats.getHitCounts());
+        assertArrayEquals(new long[]{0, 0}, stats.getSampleCounts());
+    }
+
+    @Test
+    public void sampleCost() {
+        ProbeStats stats = new ProbeStats(new String[]{"a"}, 4);
+        int timed = 0;
+        for (int i = 0; i < 20; i++) {
+            long ts = stats.probeHit(0);
+            if (ts != 0L) {
+                timed++;
+            }
+            stats.probeExit(0, ts);
+        }
+
+        assertEquals(5, timed);
+        assertArrayEquals(new long[]{5}, stats.getSampleCounts());
+        assertTrue(stats.getSampledTimes()[0] >= 0);
+
+        List<Object[]> rows = stats.getGridData();
+        assertEquals(1, rows.size());
+        assertEquals("a", rows.get(0)[0]);
+        assertEquals(20L, rows.get(0)[1]);
+        assertEquals(5L, rows.get(0)[2]);
+    }
+
+    @Test
+    public void costRates() {
+        ProbeStats stats = new ProbeStats(new String[]{"a", "b"}, 2);
+        for (int i = 0; i < 10; i++) {
+            // pretend each timed invocation took 1ms
+            if (stats.probeHit(0) != 0L) {
+                stats.probeExit(0, System.nanoTime() - 1000000);
+            }
+        }
+        stats.probeHit(1);
+
+        long[] rates = stats.getCostRates();
+        assertTrue(rates[0] > 0);
+        assertEquals(0L, rates[1]);
+
+        // no invocations since the last call
+        assertArrayEquals(new long[]{0, 0}, stats.getCostRates());
+    }
+
+    @Test
+    public void handlerSampling() {
+        ProbeStats stats = new ProbeStats(new String[]{"a", "b"}, 1);
+        stats.setHandlerSampling(0, 10);
+        int run = 0;
+        for (int i = 0; i < 100; i++) {
+            long ts = stats.probeHit(0);
+            if (ts != ProbeStats.SAMPLED_OUT) {
+                run++;
+            }
+            stats.probeExit(0, ts);
+        }
+        stats.probeHit(1);
+
+        // the skipped invocations are neither counted nor timed
+        assertEquals(10, run);
+        assertArrayEquals(new long[]{10, 1}, stats.getHitCounts());
+        assertArrayEquals(new long[]{10, 0}, stats.getSampleCounts());
+        assertArrayEquals(new int[]{10, 1}, stats.getHandlerSamplingIntervals());
+    }
+
+    @Test
+    public void reset() {
+        ProbeStats stats = new ProbeStats(new String[]{"a"}, 1);
+        stats.probeExit(0, stats.probeHit(0));
+        stats.reset();
+
+        assertArrayEquals(new long[]{0}, stats.getHitCounts());
+        assertArrayEquals(new long[]{0}, stats.getSampleCounts());
+        assertArrayEquals(new long[]{0}, stats.getSampledTimes());
+    }
+
+    @Test
+    public void unregisterMBean() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName on = new ObjectName("btrace:type=ProbeStats,name=" + Probes.class.getName());
+        ProbeStats stats = ProbeStats.registerMBean(Probes.class, 0);
+        assertTrue(server.isRegistered(on));
+
+        // the bean must not keep the BTrace class reachable after exit
+        stats.unregisterMBean();
+        assertFalse(server.isRegistered(on));
+    }
+}
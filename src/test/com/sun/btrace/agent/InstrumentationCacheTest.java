@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2014, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.btrace.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jaroslav Bachorik
+ */
+public class InstrumentationCacheTest {
+    private static final List<String> HASHES = Arrays.asList("h1", "h2");
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("btrace-cache", "");
+        dir.delete();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void keyStability() throws Exception {
+        InstrumentationCache cache = new InstrumentationCache(dir, 1024 * 1024);
+        byte[] target = code(100, 1);
+        ClassLoader loader = new URLClassLoader(new URL[]{new URL("file:/a.jar")}, null);
+        ClassLoader otherLoader = new URLClassLoader(new URL[]{new URL("file:/b.jar")}, null);
+
+        String key = cache.key(loader, null, target, HASHES);
+        assertNotNull(key);
+        // another loader instance with the same class path
+        assertEquals(key, cache.key(new URLClassLoader(new URL[]{new URL("file:/a.jar")}, null), null, target, HASHES));
+        assertEquals(key, new InstrumentationCache(dir, 1024 * 1024).key(loader, null, target, HASHES));
+
+        assertFalse(key.equals(cache.key(otherLoader, null, target, HASHES)));
+        assertFalse(key.equals(cache.key(null, null, target, HASHES)));
+        assertFalse(key.equals(cache.key(loader, null, target, Arrays.asList("h2", "h1"))));
+        assertFalse(key.equals(cache.key(loader, null, code(100, 2), HASHES)));
+        // the retransformed classes are keyed by their supertypes, too
+        assertFalse(key.equals(cache.key(loader, Object.class, target, HASHES)));
+        assertFalse(cache.key(loader, Integer.class, target, HASHES).equals(cache.key(loader, String.class, target, HASHES)));
+
+        assertNull(cache.key(loader, null, target, Arrays.asList("h1", null)));
+    }
+
+    @Test
+    public void corruptEntry() throws Exception {
+        InstrumentationCache cache = new InstrumentationCache(dir, 1024 * 1024);
+        String key = cache.key(null, null, code(100, 1), HASHES);
+        byte[] code = code(100, 3);
+        cache.put(key, code, 1L);
+
+        InstrumentationCache.Entry e = cache.get(key);
+        assertNotNull(e);
+        assertArrayEquals(code, e.getCode());
+        assertTrue(e.isMatched(0));
+        assertFalse(e.isMatched(1));
+
+        File f = new File(dir, key + ".cls");
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            long pos = raf.length() - 10;
+            raf.seek(pos);
+            int b = raf.read();
+            raf.seek(pos);
+            raf.write(b ^ 0xff);
+        } finally {
+            raf.close();
+        }
+
+        assertNull(cache.get(key));
+        assertFalse(f.exists());
+    }
+
+    @Test
+    public void lruEviction() throws Exception {
+        byte[] code = code(100, 4);
+        InstrumentationCache cache = new InstrumentationCache(dir, 3 * entrySize(code) - 1);
+        String k1 = cache.key(null, null, code(10, 1), HASHES);
+        String k2 = cache.key(null, null, code(10, 2), HASHES);
+        String k3 = cache.key(null, null, code(10, 3), HASHES);
+
+        long now = System.currentTimeMillis();
+        cache.put(k1, code, 0L);
+        new File(dir, k1 + ".cls").setLastModified(now - 3000);
+        cache.put(k2, code, 0L);
+        new File(dir, k2 + ".cls").setLastModified(now - 2000);
+        // reading an entry makes it the most recently used one
+        assertNotNull(cache.get(k1));
+
+        cache.put(k3, code, 0L);
+
+        assertNull(cache.get(k2));
+        assertNotNull(cache.get(k1));
+        assertNotNull(cache.get(k3));
+    }
+
+    private long entrySize(byte[] code) throws IOException {
+        File probe = new File(dir, "probe");
+        InstrumentationCache cache = new InstrumentationCache(probe, Long.MAX_VALUE);
+        String key = cache.key(null, null, code, HASHES);
+        cache.put(key, code, 0L);
+        long size = new File(probe, key + ".cls").length();
+        new File(probe, key + ".cls").delete();
+        probe.delete();
+        return size;
+    }
+
+    private static byte[] code(int len, int seed) {
+        byte[] code = new byte[len];
+        for (int i = 0; i < len; i++) {
+            code[i] = (byte)(i * seed);
+        }
+        return code;
+    }
+}
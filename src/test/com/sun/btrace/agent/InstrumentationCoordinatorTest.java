@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2014, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.btrace.agent;
+
+import com.sun.btrace.comm.Command;
+import com.sun.btrace.org.objectweb.asm.ClassReader;
+import com.sun.btrace.org.objectweb.asm.ClassVisitor;
+import com.sun.btrace.org.objectweb.asm.MethodVisitor;
+import com.sun.btrace.org.objectweb.asm.Opcodes;
+import com.sun.btrace.runtime.Instrumentor;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * The clients initialize the BTrace runtime which works only when loaded
+ * by the bootstrap class loader. Therefore the scenarios run in a separate
+ * JVM with the test class path appended to the boot class path.
+ *
+ * @author Jaroslav Bachorik
+ */
+public class InstrumentationCoordinatorTest {
+    private static final String TARGET = "resources/OnMethodTest";
+
+    private static class TestClient extends Client {
+        private final boolean failChained;
+
+        TestClient(String trace, boolean failChained) throws IOException {
+            super(null);
+            this.failChained = failChained;
+            if (!prepare(loadFile("traces/" + trace + ".class"))) {
+                throw new IOException("can not load " + trace);
+            }
+        }
+
+        @Override
+        Instrumentor instrumentor(Class<?> classBeingRedefined, String cname, ClassVisitor cv) {
+            if (failChained) {
+                throw new IllegalStateException("chained instrumentation failed");
+            }
+            return super.instrumentor(classBeingRedefined, cname, cv);
+        }
+
+        public void onCommand(Command cmd) throws IOException {
+        }
+
+        protected void closeAll() throws IOException {
+        }
+    }
+
+    @Test
+    public void twoClientsSameClass() throws Exception {
+        runScenario("chained");
+    }
+
+    @Test
+    public void separateInstrumentationFallback() throws Exception {
+        runScenario("fallback");
+    }
+
+    @Test
+    public void inlinedHandler() throws Exception {
+        runScenario("inline");
+    }
+
+    @Test
+    public void noInliningWithProbeStats() throws Exception {
+        runScenario("inlineStats");
+    }
+
+    private void runScenario(String name) throws Exception {
+        String cp = System.getProperty("java.class.path");
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process p = new ProcessBuilder(java, "-Xbootclasspath/a:" + cp, "-cp", cp,
+                                       InstrumentationCoordinatorTest.class.getName(), name)
+                        .redirectErrorStream(true).start();
+        String output = new String(readAll(p.getInputStream()));
+        assertEquals(output, 0, p.waitFor());
+    }
+
+    public static void main(String[] args) throws Exception {
+        Instrumentation inst = (Instrumentation)Proxy.newProxyInstance(
+            InstrumentationCoordinatorTest.class.getClassLoader(), new Class[]{Instrumentation.class},
+            new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    return method.getReturnType() == boolean.class ? Boolean.FALSE : null;
+                }
+            });
+        InstrumentationCoordinator coordinator = InstrumentationCoordinator.getInstance(inst);
+
+        if (args[0].startsWith("inline")) {
+            // the inlined handlers would not be counted by the probe statistics
+            boolean stats = args[0].equals("inlineStats");
+            setAgentArgs("inlineThreshold=20" + (stats ? ",probeStatsPeriod=1000" : ""));
+            coordinator.register(new TestClient("onmethod/ArgsInlined", false));
+            byte[] code = coordinator.transform(null, TARGET, null, null, loadFile(TARGET + ".class"));
+            boolean invoked = getCalls(code, "args").contains("$btrace$traces$onmethod$ArgsInlined$args");
+            if (invoked != stats) {
+                System.out.println(stats ? "the handler was inlined" : "the handler was not inlined");
+                System.exit(1);
+            }
+            System.exit(0);
+        }
+
+        // in the fallback scenario the chained instrumentation fails and
+        // each client instruments the class on its own
+        coordinator.register(new TestClient("onmethod/Args", false));
+        coordinator.register(new TestClient("onmethod/ArgsReturn", "fallback".equals(args[0])));
+
+        byte[] code = coordinator.transform(null, TARGET, null, null, loadFile(TARGET + ".class"));
+        if (code == null) {
+            System.out.println("the class was not instrumented");
+            System.exit(1);
+        }
+        Set<String> calls = getCalls(code, "args");
+        if (!calls.contains("$btrace$traces$onmethod$Args$args") ||
+            !calls.contains("$btrace$traces$onmethod$ArgsReturn$args")) {
+            System.out.println("missing probes: " + calls);
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    private static void setAgentArgs(String args) throws Exception {
+        Method m = Main.class.getDeclaredMethod("parseArgs", String.class);
+        m.setAccessible(true);
+        m.invoke(null, args);
+    }
+
+    /**
+     * @return The names of the methods invoked from the given method
+     */
+    private static Set<String> getCalls(byte[] code, final String method) {
+        final Set<String> calls = new HashSet<String>();
+        new ClassReader(code).accept(new ClassVisitor(Opcodes.ASM5) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+                if (!name.equals(method)) {
+                    return null;
+                }
+                return new MethodVisitor(Opcodes.ASM5) {
+                    @Override
+                    public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+                        calls.add(name);
+                    }
+                };
+            }
+        }, 0);
+        return calls;
+    }
+
+    private static byte[] loadFile(String path) throws IOException {
+        InputStream is = ClassLoader.getSystemResourceAsStream(path);
+        try {
+            return readAll(is);
+        } finally {
+            is.close();
+        }
+    }
+
+    private static byte[] readAll(InputStream is) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = is.read(buffer)) > 0) {
+            bos.write(buffer, 0, read);
+        }
+        return bos.toByteArray();
+    }
+}
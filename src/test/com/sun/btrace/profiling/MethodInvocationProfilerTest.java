@@ -8,6 +8,8 @@ package com.sun.btrace.profiling;
 import com.sun.btrace.Profiler;
 import com.sun.btrace.Profiler.Record;
 import com.sun.btrace.Profiler.Snapshot;
+import java.util.ArrayList;
+import java.util.List;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -269,4 +271,105 @@ public class MethodInvocationProfilerTest {
         Snapshot s = p.snapshot();
         assertArrayEquals(expected, s.total);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testVisitStacks() {
+        System.out.println("testVisitStacks()");
+
+        for(int i=0;i<2;i++) {
+            p.recordEntry("r1");
+            p.recordEntry("r2");
+            p.recordEntry("r3");
+            p.recordExit("r3", 10);
+            p.recordExit("r2", 30);
+            p.recordEntry("r3");
+            p.recordExit("r3", 10);
+            p.recordExit("r1", 60);
+        }
+
+        final List<String> stacks = new ArrayList<String>();
+        p.visitStacks(new Profiler.StackVisitor() {
+            public void visitStack(String[] frames, int depth, long invocations, long selfTime) {
+                StringBuilder sb = new StringBuilder();
+                for(int i=0;i<depth;i++) {
+                    if (i > 0) sb.append(';');
+                    sb.append(frames[i]);
+                }
+                stacks.add(sb.append(' ').append(invocations).append(' ').append(selfTime).toString());
+            }
+        });
+
+        assertEquals(4, stacks.size());
+        assertTrue(stacks.contains("r1 2 40"));
+        assertTrue(stacks.contains("r1;r2 2 40"));
+        assertTrue(stacks.contains("r1;r2;r3 2 20"));
+        assertTrue(stacks.contains("r1;r3 2 20"));
+    }
+
+    @Test
+    public void testIncrementalSnapshots() {
+        System.out.println("testIncrementalSnapshots()");
+        Record[] expected = new Record[]{new Record("r1"), new Record("r2")};
+        expected[0].invocations = 2;
+        expected[0].selfTime = 20;
+        expected[0].wallTime = 20;
+        expected[1].invocations = 1;
+        expected[1].selfTime = 10;
+        expected[1].wallTime = 10;
+
+        p.recordEntry("r1");
+        p.recordExit("r1", 10);
+        p.snapshot();
+
+        p.recordEntry("r2");
+        p.recordExit("r2", 10);
+        p.snapshot();
+
+        p.recordEntry("r1");
+        p.recordExit("r1", 10);
+        Snapshot s = p.snapshot();
+
+        assertArrayEquals(expected, s.total);
+        assertEquals(10, s.total[0].selfTimeMin);
+        assertEquals(10, s.total[0].selfTimeMax);
+    }
+
+    @Test
+    public void testMultipleThreads() throws Exception {
+        System.out.println("testMultipleThreads()");
+        final int threads = 4;
+        final int loops = 100000;
+        Thread[] ts = new Thread[threads];
+        for(int i=0;i<threads;i++) {
+            ts[i] = new Thread(new Runnable() {
+                public void run() {
+                    for(int j=0;j<loops;j++) {
+                        p.recordEntry("r1");
+                        p.recordEntry("r2");
+                        p.recordExit("r2", 10);
+                        p.recordExit("r1", 20);
+                    }
+                }
+            });
+            ts[i].start();
+        }
+        // take the snapshots concurrently with the profiled threads
+        for(int i=0;i<10;i++) {
+            p.snapshot();
+        }
+        for(Thread t : ts) {
+            t.join();
+        }
+
+        Record[] expected = new Record[]{new Record("r1"), new Record("r2")};
+        expected[0].invocations = threads * loops;
+        expected[0].selfTime = threads * loops * 10L;
+        expected[0].wallTime = threads * loops * 20L;
+        expected[1].invocations = threads * loops;
+        expected[1].selfTime = threads * loops * 10L;
+        expected[1].wallTime = threads * loops * 10L;
+
+        Snapshot s = p.snapshot();
+        assertArrayEquals(expected, s.total);
+    }
+}
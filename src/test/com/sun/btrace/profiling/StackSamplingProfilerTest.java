@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2014, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.btrace.profiling;
+
+import com.sun.btrace.Profiler;
+import com.sun.btrace.Profiler.Record;
+import com.sun.btrace.Profiler.Snapshot;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jaroslav Bachorik
+ */
+public class StackSamplingProfilerTest {
+    private static final class Parked implements Runnable {
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        public void run() {
+            started.countDown();
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+            }
+        }
+    }
+
+    private StackSamplingProfiler p;
+
+    @Before
+    public void setUp() {
+        p = new StackSamplingProfiler(10, null, null);
+    }
+
+    private static StackTraceElement[] trace(String ... methods) {
+        StackTraceElement[] t = new StackTraceElement[methods.length];
+        for(int i=0;i<methods.length;i++) {
+            // top frame first
+            t[methods.length - 1 - i] = new StackTraceElement("C", methods[i], "C.java", i + 1);
+        }
+        return t;
+    }
+
+    private static Map<String, Record> byName(Snapshot s) {
+        Map<String, Record> m = new HashMap<String, Record>();
+        for(Record r : s.total) {
+            m.put(r.blockName, r);
+        }
+        return m;
+    }
+
+    @Test
+    public void testEmptySnapshot() {
+        Snapshot s = p.snapshot();
+        assertNotNull(s.total);
+        assertEquals(0, s.total.length);
+    }
+
+    @Test
+    public void testAggregation() {
+        p.recordStack(trace("main", "a", "b"));
+        p.recordStack(trace("main", "a", "b"));
+        p.recordStack(trace("main", "a"));
+        p.recordStack(trace("main", "r", "r"));
+
+        Map<String, Record> rs = byName(p.snapshot());
+        assertEquals(4, rs.size());
+        assertEquals(4, rs.get("C.main").invocations);
+        assertEquals(0, rs.get("C.main").selfTime);
+        assertEquals(40000000L, rs.get("C.main").wallTime);
+        assertEquals(3, rs.get("C.a").invocations);
+        assertEquals(10000000L, rs.get("C.a").selfTime);
+        assertEquals(2, rs.get("C.b").invocations);
+        assertEquals(20000000L, rs.get("C.b").selfTime);
+        // recursive frames are counted once per sample
+        assertEquals(1, rs.get("C.r").invocations);
+    }
+
+    @Test
+    public void testVisitStacks() {
+        p.recordStack(trace("main", "a", "b"));
+        p.recordStack(trace("main", "a", "b"));
+        p.recordStack(trace("main", "a"));
+
+        final Map<String, Long> stacks = new HashMap<String, Long>();
+        p.visitStacks(new Profiler.StackVisitor() {
+            public void visitStack(String[] frames, int depth, long invocations, long selfTime) {
+                StringBuilder sb = new StringBuilder();
+                for(int i=0;i<depth;i++) {
+                    sb.append(i > 0 ? ";" : "").append(frames[i]);
+                }
+                stacks.put(sb.toString(), invocations);
+            }
+        });
+        assertEquals(2, stacks.size());
+        assertEquals(Long.valueOf(2), stacks.get("C.main;C.a;C.b"));
+        assertEquals(Long.valueOf(1), stacks.get("C.main;C.a"));
+    }
+
+    @Test
+    public void testSnapshotAndReset() {
+        p.recordStack(trace("main", "a"));
+        assertEquals(2, p.snapshot(true).total.length);
+        assertEquals(0, p.snapshot().total.length);
+        p.recordStack(trace("main", "a"));
+        assertEquals(1, byName(p.snapshot()).get("C.a").invocations);
+    }
+
+    @Test
+    public void testFramesInternedByMethod() {
+        p.recordStack(new StackTraceElement[]{
+            new StackTraceElement("C", "a", "C.java", 10),
+            new StackTraceElement("C", "main", "C.java", 1)
+        });
+        p.recordStack(new StackTraceElement[]{
+            new StackTraceElement("C", "a", "C.java", 20),
+            new StackTraceElement("C", "main", "C.java", 2)
+        });
+        assertEquals(2, p.getFrameCount());
+        assertEquals(1, p.getStackCount());
+        assertEquals(2, byName(p.snapshot()).get("C.a").invocations);
+    }
+
+    @Test
+    public void testResetDropsTables() {
+        p.recordStack(trace("main", "a", "b"));
+        p.recordStack(trace("main", "c"));
+        p.reset();
+        assertEquals(0, p.getFrameCount());
+        assertEquals(0, p.getStackCount());
+
+        p.recordStack(trace("main", "d"));
+        assertEquals(2, p.getFrameCount());
+        assertEquals(1, p.getStackCount());
+        Map<String, Record> rs = byName(p.snapshot());
+        assertEquals(2, rs.size());
+        assertEquals(1, rs.get("C.d").invocations);
+    }
+
+    @Test
+    public void testSampleFiltered() throws Exception {
+        Parked parked = new Parked();
+        Thread t = new Thread(parked, "sampled-thread");
+        t.start();
+        try {
+            parked.started.await();
+            StackSamplingProfiler sp = new StackSamplingProfiler(
+                10, "sampled-.*", StackSamplingProfiler.parseThreadStates("WAITING, TIMED_WAITING")
+            );
+            // make sure the thread got parked
+            while (t.getState() != Thread.State.WAITING) {
+                Thread.sleep(1);
+            }
+            sp.sample();
+            sp.sample();
+
+            Map<String, Record> rs = byName(sp.snapshot());
+            Record r = rs.get(Parked.class.getName() + ".run");
+            assertNotNull(r);
+            assertEquals(2, r.invocations);
+
+            sp = new StackSamplingProfiler(10, "sampled-.*", EnumSet.of(Thread.State.RUNNABLE));
+            sp.sample();
+            assertEquals(0, sp.snapshot().total.length);
+        } finally {
+            parked.done.countDown();
+            t.join();
+        }
+    }
+}
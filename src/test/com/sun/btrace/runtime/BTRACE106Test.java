@@ -37,15 +37,23 @@ public class BTRACE106Test extends InstrumentorTestBase {
     public void annotatedClass() throws Exception {
         originalBC = loadTargetClass("issues/BTRACE106");
         transform("issues/BTRACE106");
-        checkTransformation("ALOAD 0\nLDC \"aMethod\"\n"
+        checkTransformation("GETSTATIC traces/issues/BTRACE106.$btrace$disabled$o1_4Ljava_6lang_6Object_2Ljava_6lang_6String_2_5V : Z\nIFNE L0\n"
+                + "GETSTATIC traces/issues/BTRACE106.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L0\n"
+                + "ALOAD 0\nLDC \"aMethod\"\n"
                 + "INVOKESTATIC resources/issues/BTRACE106.$btrace$traces$issues$BTRACE106$o1 (Ljava/lang/Object;Ljava/lang/String;)V\n"
                 + "INVOKESTATIC java/lang/System.nanoTime ()J\n"
                 + "LSTORE 1\n"
                 + "INVOKESTATIC java/lang/System.nanoTime ()J\n"
-                + "LSTORE 3\nALOAD 0\nLDC \"bMethod\"\nLLOAD 3\nLLOAD 1\nLSUB\n"
-                + "DUP2\nLSTORE 5\n"
+                + "LSTORE 3\nLLOAD 3\nLLOAD 1\nLSUB\n"
+                + "LSTORE 5\n"
+                + "GETSTATIC traces/issues/BTRACE106.$btrace$disabled$o2_4Ljava_6lang_6Object_2Ljava_6lang_6String_2J_5V : Z\nIFNE L2\n"
+                + "GETSTATIC traces/issues/BTRACE106.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L2\n"
+                + "ALOAD 0\nLDC \"bMethod\"\nLLOAD 5\n"
                 + "INVOKESTATIC resources/issues/BTRACE106.$btrace$traces$issues$BTRACE106$o2 (Ljava/lang/Object;Ljava/lang/String;J)V\n"
-                + "MAXSTACK = 6\nMAXLOCALS = 7"
+                + "L2\nL3\nLOCALVARIABLE this Lresources/issues/BTRACE106; L0 L3 0\n"
+                + "MAXSTACK = 4\nMAXLOCALS = 7"
         );
     }
 }
@@ -40,8 +40,11 @@ public class BTRACE22Test extends InstrumentorTestBase {
         checkTransformation("INVOKESTATIC java/lang/System.nanoTime ()J\nLSTORE 1\n" +
                             "DSTORE 3\nDLOAD 3\nDLOAD 3\n" +
                             "INVOKESTATIC java/lang/System.nanoTime ()J\nLSTORE 5\n" +
-                            "ALOAD 0\nLLOAD 5\nLLOAD 1\nLSUB\n" +
-                            "DUP2\nLSTORE 7\n" +
+                            "LLOAD 5\nLLOAD 1\nLSUB\nLSTORE 7\n" +
+                            "GETSTATIC traces/issues/BTRACE22.$btrace$disabled$tracker_4Ljava_6lang_6Object_2J_5V : Z\nIFNE L3\n" +
+                            "GETSTATIC traces/issues/BTRACE22.runtime : Lcom/sun/btrace/BTraceRuntime;\n" +
+                            "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L3\n" +
+                            "ALOAD 0\nLLOAD 7\n" +
                             "INVOKESTATIC resources/issues/BTRACE22.$btrace$traces$issues$BTRACE22$tracker (Ljava/lang/Object;J)V");
     }
 }
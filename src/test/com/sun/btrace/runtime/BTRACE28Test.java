@@ -37,9 +37,16 @@ public class BTRACE28Test extends InstrumentorTestBase {
     public void bytecodeValidation() throws Exception {
         originalBC = loadTargetClass("issues/BTRACE28");
         transform("issues/BTRACE28");
-        checkTransformation("LDC \"resources.issues.BTRACE28\"\nLDC \"<init>\"\n" +
+        checkTransformation("GETSTATIC traces/issues/BTRACE28.$btrace$disabled$tracker_4Ljava_6lang_6String_2Ljava_6lang_6String_2_5V : Z\nIFNE L1\n" +
+                            "GETSTATIC traces/issues/BTRACE28.runtime : Lcom/sun/btrace/BTraceRuntime;\n" +
+                            "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L1\n" +
+                            "LDC \"resources.issues.BTRACE28\"\nLDC \"<init>\"\n" +
                             "INVOKESTATIC resources/issues/BTRACE28.$btrace$traces$issues$BTRACE28$tracker (Ljava/lang/String;Ljava/lang/String;)V\n" +
+                            "L1\nL2\nLOCALVARIABLE this Lresources/issues/BTRACE28; L0 L2 0\n" +
                             "MAXSTACK = 2\nASTORE 5\nASTORE 6\nASTORE 7\nALOAD 7\nASTORE 8\nALOAD 8\n" +
+                            "GETSTATIC traces/issues/BTRACE28.$btrace$disabled$tracker_4Ljava_6lang_6String_2Ljava_6lang_6String_2_5V : Z\nIFNE L11\n" +
+                            "GETSTATIC traces/issues/BTRACE28.runtime : Lcom/sun/btrace/BTraceRuntime;\n" +
+                            "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L11\n" +
                             "LDC \"resources.issues.BTRACE28\"\nLDC \"serveResource\"\n" +
                             "INVOKESTATIC resources/issues/BTRACE28.$btrace$traces$issues$BTRACE28$tracker (Ljava/lang/String;Ljava/lang/String;)V");
     }
@@ -37,12 +37,20 @@ public class BTRACE87Test extends InstrumentorTestBase {
     public void bytecodeValidation() throws Exception {
         originalBC = loadTargetClass("issues/BTRACE87");
         transform("issues/BTRACE87");
-        checkTransformation("ASTORE 2\nALOAD 0\nLDC \"containerMethod\"\n" +
+        checkTransformation("ASTORE 2\n" +
+                            "GETSTATIC traces/issues/BTRACE87.$btrace$disabled$o_4Ljava_6lang_6Object_2Ljava_6lang_6String_2_3Lcom_6sun_6btrace_6AnyType_2_5V : Z\nIFNE L2\n" +
+                            "GETSTATIC traces/issues/BTRACE87.runtime : Lcom/sun/btrace/BTraceRuntime;\n" +
+                            "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L2\n" +
+                            "ALOAD 0\nLDC \"containerMethod\"\n" +
                             "ICONST_0\nANEWARRAY java/lang/Object\n" +
-                            "INVOKESTATIC resources/issues/BTRACE87.$btrace$traces$issues$BTRACE87$o (Ljava/lang/Object;Ljava/lang/String;[Ljava/lang/Object;)V\n" +
-                            "ALOAD 2\nASTORE 3\nASTORE 4\nALOAD 0\nLDC \"containerMethod\"\n" +
-                            "ICONST_1\nANEWARRAY java/lang/Object\n" +
-                            "DUP\nICONST_0\nALOAD 3\nAASTORE\n" +
+                            "INVOKESTATIC resources/issues/BTRACE87.$btrace$traces$issues$BTRACE87$o (Ljava/lang/Object;Ljava/lang/String;[Ljava/lang/Object;)V\nL2\n" +
+                            "ALOAD 2\nL3\nLINENUMBER 18 L3\nASTORE 3\nASTORE 4\n" +
+                            "GETSTATIC traces/issues/BTRACE87.$btrace$disabled$o_4Ljava_6lang_6Object_2Ljava_6lang_6String_2_3Lcom_6sun_6btrace_6AnyType_2_5V : Z\nIFNE L4\n" +
+                            "GETSTATIC traces/issues/BTRACE87.runtime : Lcom/sun/btrace/BTraceRuntime;\n" +
+                            "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L4\n" +
+                            "ALOAD 0\nLDC \"containerMethod\"\n" +
+                            "ALOAD 3\n" +
+                            "INVOKESTATIC resources/issues/BTRACE87.$btrace$traces$issues$BTRACE87$$args$0 (Ljava/lang/Object;)[Ljava/lang/Object;\n" +
                             "INVOKESTATIC resources/issues/BTRACE87.$btrace$traces$issues$BTRACE87$o (Ljava/lang/Object;Ljava/lang/String;[Ljava/lang/Object;)V");
     }
 }
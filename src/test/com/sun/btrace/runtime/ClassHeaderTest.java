@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2014, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.btrace.runtime;
+
+import com.sun.btrace.org.objectweb.asm.AnnotationVisitor;
+import com.sun.btrace.org.objectweb.asm.ClassReader;
+import com.sun.btrace.org.objectweb.asm.ClassVisitor;
+import com.sun.btrace.org.objectweb.asm.Opcodes;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jaroslav Bachorik
+ */
+public class ClassHeaderTest {
+    @Test
+    public void testHeaderMatchesClassReader() throws Exception {
+        for (String name : new String[]{"java/util/HashMap", "java/lang/Runnable",
+                                        "java/lang/Object", "java/lang/Thread",
+                                        "resources/OnMethodTest", "com/sun/btrace/BTraceUtils"}) {
+            final byte[] code = load(name);
+            ClassReader cr = new ClassReader(code);
+            ClassHeader h = ClassHeader.read(code);
+
+            assertEquals(cr.getAccess(), h.getAccess());
+            assertEquals(cr.getClassName(), h.getClassName());
+            assertEquals(cr.getSuperName(), h.getSuperName());
+            assertArrayEquals(cr.getInterfaces(), h.getInterfaces());
+
+            final List<String> annotations = new ArrayList<String>();
+            cr.accept(new ClassVisitor(Opcodes.ASM5) {
+                @Override
+                public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+                    annotations.add(desc);
+                    return null;
+                }
+            }, ClassReader.SKIP_CODE);
+            assertEquals(name, annotations, Arrays.asList(h.getAnnotations()));
+        }
+    }
+
+    @Test
+    public void testFilter() throws Exception {
+        List<OnMethod> oms = new ArrayList<OnMethod>();
+        OnMethod om = new OnMethod();
+        om.setClazz("/java\\.util\\..*Map/");
+        om.setMethod("put");
+        oms.add(om);
+        ClassFilter filter = new ClassFilter(oms);
+
+        assertTrue(filter.isCandidate(load("java/util/HashMap")));
+        assertFalse(filter.isCandidate(load("java/util/HashSet")));
+        // interfaces are never candidates
+        assertFalse(filter.isCandidate(load("java/util/Map")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidClass() {
+        ClassHeader.read(new byte[]{(byte)0xca, (byte)0xfe, (byte)0xba, (byte)0xbe, 0, 0});
+    }
+
+    private static byte[] load(String name) throws IOException {
+        InputStream is = ClassLoader.getSystemResourceAsStream(name + ".class");
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int read;
+            while ((read = is.read(buf)) > 0) {
+                bos.write(buf, 0, read);
+            }
+            return bos.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+}
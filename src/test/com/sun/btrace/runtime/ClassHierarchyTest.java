@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2014, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.btrace.runtime;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jaroslav Bachorik
+ */
+public class ClassHierarchyTest {
+    private final ClassLoader loader = ClassHierarchyTest.class.getClassLoader();
+    private final ClassHierarchy ch = ClassHierarchy.getInstance();
+
+    @Test
+    public void testCommonSuperClass() {
+        assertEquals("java/util/AbstractList", ch.getCommonSuperClass(loader, "java/util/ArrayList", "java/util/LinkedList"));
+        assertEquals("java/lang/Number", ch.getCommonSuperClass(loader, "java/lang/Integer", "java/lang/Long"));
+        assertEquals("java/lang/Object", ch.getCommonSuperClass(loader, "java/util/ArrayList", "java/lang/String"));
+        assertEquals("java/lang/Number", ch.getCommonSuperClass(null, "java/lang/Integer", "java/lang/Long"));
+    }
+
+    @Test
+    public void testAssignable() {
+        assertEquals("java/util/List", ch.getCommonSuperClass(loader, "java/util/List", "java/util/ArrayList"));
+        assertEquals("java/util/Collection", ch.getCommonSuperClass(loader, "java/util/ArrayList", "java/util/Collection"));
+        assertEquals("java/lang/Object", ch.getCommonSuperClass(loader, "java/util/List", "java/util/Set"));
+    }
+
+    @Test
+    public void testUnknownClass() {
+        assertEquals("java/lang/Object", ch.getCommonSuperClass(loader, "does/not/Exist", "java/lang/Integer"));
+    }
+}
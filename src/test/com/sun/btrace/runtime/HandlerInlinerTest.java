@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2014, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.btrace.runtime;
+
+import com.sun.btrace.org.objectweb.asm.Label;
+import org.junit.Test;
+import static com.sun.btrace.org.objectweb.asm.Opcodes.*;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jaroslav Bachorik
+ */
+public class HandlerInlinerTest {
+    @Test
+    public void localStoredBeforeRead() {
+        HandlerInliner.BodyRecorder r = recorder();
+        r.visitInsn(ICONST_0);
+        r.visitVarInsn(ISTORE, 1);
+        r.visitIincInsn(1, 1);
+        r.visitVarInsn(ILOAD, 1);
+        r.visitVarInsn(ILOAD, 0);
+        r.visitInsn(IADD);
+        r.visitInsn(POP);
+        r.visitInsn(RETURN);
+        assertNotNull(r.finish());
+    }
+
+    @Test
+    public void localReadBeforeStored() {
+        HandlerInliner.BodyRecorder r = recorder();
+        r.visitVarInsn(ILOAD, 1);
+        r.visitInsn(POP);
+        r.visitInsn(RETURN);
+        assertNull(r.finish());
+    }
+
+    @Test
+    public void localIncrementedBeforeStored() {
+        HandlerInliner.BodyRecorder r = recorder();
+        r.visitIincInsn(1, 1);
+        r.visitInsn(RETURN);
+        assertNull(r.finish());
+    }
+
+    @Test
+    public void forwardJump() {
+        HandlerInliner.BodyRecorder r = recorder();
+        Label l = new Label();
+        r.visitVarInsn(ILOAD, 0);
+        r.visitJumpInsn(IFEQ, l);
+        r.visitInsn(ICONST_0);
+        r.visitInsn(POP);
+        r.visitLabel(l);
+        r.visitInsn(RETURN);
+        assertNotNull(r.finish());
+    }
+
+    @Test
+    public void backwardJump() {
+        HandlerInliner.BodyRecorder r = recorder();
+        Label l = new Label();
+        r.visitLabel(l);
+        r.visitVarInsn(ILOAD, 0);
+        r.visitJumpInsn(IFNE, l);
+        r.visitInsn(RETURN);
+        assertNull(r.finish());
+    }
+
+    private static HandlerInliner.BodyRecorder recorder() {
+        HandlerInliner.BodyRecorder r = new HandlerInliner.BodyRecorder(null, "traces/Handler", "handler", "(I)V");
+        r.start();
+        return r;
+    }
+}
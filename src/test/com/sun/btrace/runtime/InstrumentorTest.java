@@ -24,8 +24,14 @@
  */
 package com.sun.btrace.runtime;
 
+import com.sun.btrace.VerifierException;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
 import support.InstrumentorTestBase;
 import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.objectweb.asm.Opcodes.*;
 
 /**
  *
@@ -38,7 +44,10 @@ public class InstrumentorTest extends InstrumentorTestBase {
         originalBC = loadTargetClass("DerivedClass");
         transform("onmethod/MatchDerived");
 
-        checkTransformation("ALOAD 0\nALOAD 1\nALOAD 2\n"
+        checkTransformation("GETSTATIC traces/onmethod/MatchDerived.$btrace$disabled$args_4Lresources_6AbstractClass_2Ljava_6lang_6String_2Ljava_6util_6Map_2_5V : Z\nIFNE L0\n"
+                + "GETSTATIC traces/onmethod/MatchDerived.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L0\n"
+                + "ALOAD 0\nALOAD 1\nALOAD 2\n"
                 + "INVOKESTATIC resources/DerivedClass.$btrace$traces$onmethod$MatchDerived$args (Lresources/AbstractClass;Ljava/lang/String;Ljava/util/Map;)V");
     }
 
@@ -47,7 +56,11 @@ public class InstrumentorTest extends InstrumentorTestBase {
         originalBC = loadTargetClass("OnMethodTest");
         transform("onmethod/CheckcastBefore");
 
-        checkTransformation("DUP\nASTORE 2\nALOAD 0\nLDC \"resources.OnMethodTest\"\nALOAD 2\n"
+        checkTransformation("DUP\n"
+                + "GETSTATIC traces/onmethod/CheckcastBefore.$btrace$disabled$args_4Ljava_6lang_6Object_2Ljava_6lang_6String_2Ljava_6util_6HashMap_2_5V : Z\nIFNE L2\n"
+                + "GETSTATIC traces/onmethod/CheckcastBefore.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L2\n"
+                + "ALOAD 0\nLDC \"resources.OnMethodTest\"\nALOAD 2\n"
                 + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$CheckcastBefore$args (Ljava/lang/Object;Ljava/lang/String;Ljava/util/HashMap;)V");
     }
 
@@ -56,7 +69,11 @@ public class InstrumentorTest extends InstrumentorTestBase {
         originalBC = loadTargetClass("OnMethodTest");
         transform("onmethod/CheckcastAfter");
 
-        checkTransformation("DUP\nALOAD 0\nLDC \"casts\"\nALOAD 2\n"
+        checkTransformation("DUP\n"
+                + "GETSTATIC traces/onmethod/CheckcastAfter.$btrace$disabled$args_4Ljava_6lang_6Object_2Ljava_6lang_6String_2Ljava_6util_6HashMap_2_5V : Z\nIFNE L2\n"
+                + "GETSTATIC traces/onmethod/CheckcastAfter.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L2\n"
+                + "ALOAD 0\nLDC \"casts\"\nALOAD 2\n"
                 + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$CheckcastAfter$args (Ljava/lang/Object;Ljava/lang/String;Ljava/util/HashMap;)V\n");
     }
 
@@ -65,7 +82,11 @@ public class InstrumentorTest extends InstrumentorTestBase {
         originalBC = loadTargetClass("OnMethodTest");
         transform("onmethod/InstanceofBefore");
 
-        checkTransformation("DUP\nASTORE 3\nALOAD 0\nLDC \"resources.OnMethodTest\"\nALOAD 3\n"
+        checkTransformation("DUP\nASTORE 3\n"
+                + "GETSTATIC traces/onmethod/InstanceofBefore.$btrace$disabled$args_4Ljava_6lang_6Object_2Ljava_6lang_6String_2Ljava_6util_6HashMap_2_5V : Z\nIFNE L3\n"
+                + "GETSTATIC traces/onmethod/InstanceofBefore.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L3\n"
+                + "ALOAD 0\nLDC \"resources.OnMethodTest\"\nALOAD 3\n"
                 + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$InstanceofBefore$args (Ljava/lang/Object;Ljava/lang/String;Ljava/util/HashMap;)V");
     }
 
@@ -74,7 +95,11 @@ public class InstrumentorTest extends InstrumentorTestBase {
         originalBC = loadTargetClass("OnMethodTest");
         transform("onmethod/InstanceofAfter");
 
-        checkTransformation("DUP\nASTORE 3\nALOAD 0\nLDC \"casts\"\nALOAD 3\n"
+        checkTransformation("DUP\nASTORE 3\n"
+                + "GETSTATIC traces/onmethod/InstanceofAfter.$btrace$disabled$args_4Ljava_6lang_6Object_2Ljava_6lang_6String_2Ljava_6util_6HashMap_2_5V : Z\nIFNE L3\n"
+                + "GETSTATIC traces/onmethod/InstanceofAfter.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\n"
+                + "ALOAD 0\nLDC \"casts\"\nALOAD 3\n"
                 + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$InstanceofAfter$args (Ljava/lang/Object;Ljava/lang/String;Ljava/util/HashMap;)V\n");
     }
 
@@ -83,7 +108,11 @@ public class InstrumentorTest extends InstrumentorTestBase {
         originalBC = loadTargetClass("OnMethodTest");
         transform("onmethod/Catch");
 
-        checkTransformation("DUP\nALOAD 0\nALOAD 1\n"
+        checkTransformation("DUP\n"
+                + "GETSTATIC traces/onmethod/Catch.$btrace$disabled$args_4Ljava_6lang_6Object_2Ljava_6io_6IOException_2_5V : Z\nIFNE L2\n"
+                + "GETSTATIC traces/onmethod/Catch.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L2\n"
+                + "ALOAD 0\nALOAD 1\n"
                 + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$Catch$args (Ljava/lang/Object;Ljava/io/IOException;)V\n"
                 + "ASTORE 2");
     }
@@ -93,7 +122,11 @@ public class InstrumentorTest extends InstrumentorTestBase {
         originalBC = loadTargetClass("OnMethodTest");
         transform("onmethod/Throw");
 
-        checkTransformation("DUP\nASTORE 1\nALOAD 0\nLDC \"resources.OnMethodTest\"\nLDC \"exception\"\nALOAD 1\n"
+        checkTransformation("DUP\nASTORE 1\n"
+                + "GETSTATIC traces/onmethod/Throw.$btrace$disabled$args_4Ljava_6lang_6Object_2Ljava_6lang_6String_2Ljava_6lang_6String_2Ljava_6lang_6Throwable_2_5V : Z\nIFNE L2\n"
+                + "GETSTATIC traces/onmethod/Throw.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L2\n"
+                + "ALOAD 0\nLDC \"resources.OnMethodTest\"\nLDC \"exception\"\nALOAD 1\n"
                 + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$Throw$args (Ljava/lang/Object;Ljava/lang/String;Ljava/lang/String;Ljava/lang/Throwable;)V");
     }
 
@@ -103,7 +136,11 @@ public class InstrumentorTest extends InstrumentorTestBase {
         transform("onmethod/Error");
 
         checkTransformation("TRYCATCHBLOCK L0 L1 L1 java/lang/Throwable\n"
-                + "DUP\nASTORE 1\nALOAD 0\nLDC \"uncaught\"\nALOAD 1\n"
+                + "DUP\nASTORE 1\n"
+                + "GETSTATIC traces/onmethod/Error.$btrace$disabled$args_4Ljava_6lang_6Object_2Ljava_6lang_6String_2Ljava_6lang_6Throwable_2_5V : Z\nIFNE L2\n"
+                + "GETSTATIC traces/onmethod/Error.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L2\n"
+                + "ALOAD 0\nLDC \"uncaught\"\nALOAD 1\n"
                 + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$Error$args (Ljava/lang/Object;Ljava/lang/String;Ljava/lang/Throwable;)V");
     }
 
@@ -113,9 +150,14 @@ public class InstrumentorTest extends InstrumentorTestBase {
         transform("onmethod/ErrorDuration");
 
         checkTransformation("TRYCATCHBLOCK L0 L1 L1 java/lang/Throwable\nINVOKESTATIC java/lang/System.nanoTime ()J\nLSTORE 1\n"
-                + "INVOKESTATIC java/lang/System.nanoTime ()J\nLSTORE 3\nDUP\nASTORE 5\nALOAD 0\nLDC \"uncaught\"\n"
-                + "LLOAD 3\nLLOAD 1\nLSUB\nALOAD 5\n"
-                + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$ErrorDuration$args (Ljava/lang/Object;Ljava/lang/String;JLjava/lang/Throwable;)V\n"
+                + "INVOKESTATIC java/lang/System.nanoTime ()J\nLSTORE 3\nDUP\nASTORE 5\n"
+                + "LLOAD 3\nLLOAD 1\nLSUB\n"
+                + "LSTORE 6\nGETSTATIC traces/onmethod/ErrorDuration.$btrace$disabled$args_4Ljava_6lang_6Object_2Ljava_6lang_6String_2JLjava_6lang_6Throwable_2_5V : Z\nIFNE L2\n"
+                + "GETSTATIC traces/onmethod/ErrorDuration.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L2\nALOAD 0\n"
+                + "LDC \"uncaught\"\nLLOAD 6\n"
+                + "ALOAD 5\n"
+                + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$ErrorDuration$args (Ljava/lang/Object;Ljava/lang/String;JLjava/lang/Throwable;)V\nL2\n"
                 + "ATHROW"
         );
     }
@@ -125,8 +167,11 @@ public class InstrumentorTest extends InstrumentorTestBase {
         originalBC = loadTargetClass("OnMethodTest");
         transform("onmethod/Line");
 
-        checkTransformation("LDC \"field\"\nLDC 84\n"
-                + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$Line$args (Ljava/lang/Object;Ljava/lang/String;I)V\n"
+        checkTransformation("GETSTATIC traces/onmethod/Line.$btrace$disabled$args_4Ljava_6lang_6Object_2Ljava_6lang_6String_2I_5V : Z\nIFNE L1\n"
+                + "GETSTATIC traces/onmethod/Line.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L1\n"
+                + "LDC \"field\"\nLDC 84\n"
+                + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$Line$args (Ljava/lang/Object;Ljava/lang/String;I)V\nL1\n"
                 + "ALOAD 0");
     }
 
@@ -135,7 +180,10 @@ public class InstrumentorTest extends InstrumentorTestBase {
         originalBC = loadTargetClass("OnMethodTest");
         transform("onmethod/NewBefore");
 
-        checkTransformation("ALOAD 0\nLDC \"java.util.HashMap\"\n"
+        checkTransformation("GETSTATIC traces/onmethod/NewBefore.$btrace$disabled$args_4Ljava_6lang_6Object_2Ljava_6lang_6String_2_5V : Z\nIFNE L1\n"
+                + "GETSTATIC traces/onmethod/NewBefore.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L1\n"
+                + "ALOAD 0\nLDC \"java.util.HashMap\"\n"
                 + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$NewBefore$args (Ljava/lang/Object;Ljava/lang/String;)V");
     }
 
@@ -144,7 +192,10 @@ public class InstrumentorTest extends InstrumentorTestBase {
         originalBC = loadTargetClass("OnMethodTest");
         transform("onmethod/NewAfter");
 
-        checkTransformation("ASTORE 1\nALOAD 0\nALOAD 1\nLDC \"java.util.HashMap\"\n"
+        checkTransformation("GETSTATIC traces/onmethod/NewAfter.$btrace$disabled$args_4Ljava_6lang_6Object_2Ljava_6util_6Map_2Ljava_6lang_6String_2_5V : Z\nIFNE L1\n"
+                + "GETSTATIC traces/onmethod/NewAfter.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L1\n"
+                + "ALOAD 0\nALOAD 1\nLDC \"java.util.HashMap\"\n"
                 + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$NewAfter$args (Ljava/lang/Object;Ljava/util/Map;Ljava/lang/String;)V\n"
                 + "DUP");
     }
@@ -155,7 +206,11 @@ public class InstrumentorTest extends InstrumentorTestBase {
         transform("onmethod/SyncEntry");
 
         checkTransformation("TRYCATCHBLOCK L4 L5 L5 java/lang/Throwable\nL6\n"
-                + "LINENUMBER 108 L6\nDUP\nASTORE 2\nALOAD 0\nLDC \"sync\"\nALOAD 2\n"
+                + "LINENUMBER 108 L6\nDUP\nASTORE 2\n"
+                + "GETSTATIC traces/onmethod/SyncEntry.$btrace$disabled$args_4Ljava_6lang_6Object_2Ljava_6lang_6String_2Ljava_6lang_6Object_2_5V : Z\nIFNE L7\n"
+                + "GETSTATIC traces/onmethod/SyncEntry.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L7\n"
+                + "ALOAD 0\nLDC \"sync\"\nALOAD 2\n"
                 + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$SyncEntry$args (Ljava/lang/Object;Ljava/lang/String;Ljava/lang/Object;)V");
     }
 
@@ -166,7 +221,11 @@ public class InstrumentorTest extends InstrumentorTestBase {
 
         checkTransformation("TRYCATCHBLOCK L4 L5 L5 java/lang/Throwable\nL6\n"
                 + "LINENUMBER 108 L6\nL7\nLINENUMBER 110 L7\n"
-                + "DUP\nASTORE 2\nALOAD 0\nLDC \"resources/OnMethodTest\"\nALOAD 2\n"
+                + "DUP\nASTORE 2\n"
+                + "GETSTATIC traces/onmethod/SyncExit.$btrace$disabled$args_4Ljava_6lang_6Object_2Ljava_6lang_6String_2Ljava_6lang_6Object_2_5V : Z\nIFNE L8\n"
+                + "GETSTATIC traces/onmethod/SyncExit.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L8\n"
+                + "ALOAD 0\nLDC \"resources/OnMethodTest\"\nALOAD 2\n"
                 + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$SyncExit$args (Ljava/lang/Object;Ljava/lang/String;Ljava/lang/Object;)V\n");
     }
 
@@ -175,7 +234,10 @@ public class InstrumentorTest extends InstrumentorTestBase {
         originalBC = loadTargetClass("OnMethodTest");
         transform("onmethod/NewArrayIntBefore");
 
-        checkTransformation("ALOAD 0\nLDC \"int\"\nLDC 1\n"
+        checkTransformation("GETSTATIC traces/onmethod/NewArrayIntBefore.$btrace$disabled$args_4Ljava_6lang_6Object_2Ljava_6lang_6String_2I_5V : Z\nIFNE L1\n"
+                + "GETSTATIC traces/onmethod/NewArrayIntBefore.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L1\n"
+                + "ALOAD 0\nLDC \"int\"\nLDC 1\n"
                 + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$NewArrayIntBefore$args (Ljava/lang/Object;Ljava/lang/String;I)V");
     }
 
@@ -184,7 +246,10 @@ public class InstrumentorTest extends InstrumentorTestBase {
         originalBC = loadTargetClass("OnMethodTest");
         transform("onmethod/NewArrayStringBefore");
 
-        checkTransformation("ALOAD 0\nLDC \"java.lang.String\"\nLDC 1\n"
+        checkTransformation("GETSTATIC traces/onmethod/NewArrayStringBefore.$btrace$disabled$args_4Ljava_6lang_6Object_2Ljava_6lang_6String_2I_5V : Z\nIFNE L3\n"
+                + "GETSTATIC traces/onmethod/NewArrayStringBefore.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L3\n"
+                + "ALOAD 0\nLDC \"java.lang.String\"\nLDC 1\n"
                 + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$NewArrayStringBefore$args (Ljava/lang/Object;Ljava/lang/String;I)V");
     }
 
@@ -193,7 +258,11 @@ public class InstrumentorTest extends InstrumentorTestBase {
         originalBC = loadTargetClass("OnMethodTest");
         transform("onmethod/NewArrayIntAfter");
 
-        checkTransformation("DUP\nALOAD 0\nALOAD 1\n"
+        checkTransformation("DUP\n"
+                + "GETSTATIC traces/onmethod/NewArrayIntAfter.$btrace$disabled$args_4Ljava_6lang_6Object_2_3I_5V : Z\nIFNE L1\n"
+                + "GETSTATIC traces/onmethod/NewArrayIntAfter.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L1\n"
+                + "ALOAD 0\nALOAD 1\n"
                 + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$NewArrayIntAfter$args (Ljava/lang/Object;[I)V");
     }
 
@@ -202,7 +271,11 @@ public class InstrumentorTest extends InstrumentorTestBase {
         originalBC = loadTargetClass("OnMethodTest");
         transform("onmethod/NewArrayStringAfter");
 
-        checkTransformation("DUP\nALOAD 0\nALOAD 3\n"
+        checkTransformation("DUP\n"
+                + "GETSTATIC traces/onmethod/NewArrayStringAfter.$btrace$disabled$args_4Ljava_6lang_6Object_2_3Ljava_6lang_6String_2_5V : Z\nIFNE L3\n"
+                + "GETSTATIC traces/onmethod/NewArrayStringAfter.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L3\n"
+                + "ALOAD 0\nALOAD 3\n"
                 + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$NewArrayStringAfter$args (Ljava/lang/Object;[Ljava/lang/String;)V");
     }
 
@@ -211,7 +284,11 @@ public class InstrumentorTest extends InstrumentorTestBase {
         originalBC = loadTargetClass("OnMethodTest");
         transform("onmethod/ArrayGetBefore");
 
-        checkTransformation("DUP2\nISTORE 3\nASTORE 4\nALOAD 0\nALOAD 4\nILOAD 3\n"
+        checkTransformation("DUP2\nASTORE 4\n"
+                + "GETSTATIC traces/onmethod/ArrayGetBefore.$btrace$disabled$args_4Ljava_6lang_6Object_2_3II_5V : Z\nIFNE L2\n"
+                + "GETSTATIC traces/onmethod/ArrayGetBefore.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L2\n"
+                + "ALOAD 0\nALOAD 4\nILOAD 3\n"
                 + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$ArrayGetBefore$args (Ljava/lang/Object;[II)V");
     }
 
@@ -220,7 +297,11 @@ public class InstrumentorTest extends InstrumentorTestBase {
         originalBC = loadTargetClass("OnMethodTest");
         transform("onmethod/ArrayGetAfter");
 
-        checkTransformation("DUP2\nISTORE 3\nASTORE 4\nDUP\nISTORE 5\nALOAD 0\nILOAD 5\nALOAD 4\nILOAD 3\n"
+        checkTransformation("DUP2\nISTORE 3\nASTORE 4\nDUP\nISTORE 5\n"
+                + "GETSTATIC traces/onmethod/ArrayGetAfter.$btrace$disabled$args_4Ljava_6lang_6Object_2I_3II_5V : Z\nIFNE L2\n"
+                + "GETSTATIC traces/onmethod/ArrayGetAfter.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L2\n"
+                + "ALOAD 0\nILOAD 5\nALOAD 4\nILOAD 3\n"
                 + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$ArrayGetAfter$args (Ljava/lang/Object;I[II)V");
     }
 
@@ -229,7 +310,11 @@ public class InstrumentorTest extends InstrumentorTestBase {
         originalBC = loadTargetClass("OnMethodTest");
         transform("onmethod/ArraySetBefore");
 
-        checkTransformation("ISTORE 4\nDUP2\nISTORE 5\nASTORE 6\nILOAD 4\nALOAD 0\nALOAD 6\nILOAD 5\nILOAD 4\n"
+        checkTransformation("ISTORE 4\nDUP2\nISTORE 5\nASTORE 6\nILOAD 4\n"
+                + "GETSTATIC traces/onmethod/ArraySetBefore.$btrace$disabled$args_4Ljava_6lang_6Object_2_3III_5V : Z\nIFNE L3\n"
+                + "GETSTATIC traces/onmethod/ArraySetBefore.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L3\n"
+                + "ALOAD 0\nALOAD 6\nILOAD 5\nILOAD 4\n"
                 + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$ArraySetBefore$args (Ljava/lang/Object;[III)V");
     }
 
@@ -238,7 +323,11 @@ public class InstrumentorTest extends InstrumentorTestBase {
         originalBC = loadTargetClass("OnMethodTest");
         transform("onmethod/ArraySetAfter");
 
-        checkTransformation("ISTORE 4\nDUP2\nISTORE 5\nASTORE 6\nILOAD 4\nALOAD 0\nALOAD 6\nILOAD 5\nILOAD 4\n"
+        checkTransformation("ISTORE 4\nDUP2\nISTORE 5\nASTORE 6\nILOAD 4\n"
+                + "GETSTATIC traces/onmethod/ArraySetAfter.$btrace$disabled$args_4Ljava_6lang_6Object_2_3III_5V : Z\nIFNE L3\n"
+                + "GETSTATIC traces/onmethod/ArraySetAfter.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L3\n"
+                + "ALOAD 0\nALOAD 6\nILOAD 5\nILOAD 4\n"
                 + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$ArraySetAfter$args (Ljava/lang/Object;[III)V");
     }
 
@@ -247,7 +336,11 @@ public class InstrumentorTest extends InstrumentorTestBase {
         originalBC = loadTargetClass("OnMethodTest");
         transform("onmethod/FieldGetBefore");
 
-        checkTransformation("DUP\nASTORE 1\nALOAD 0\nALOAD 1\nLDC \"field\"\n"
+        checkTransformation("DUP\nASTORE 1\n"
+                + "GETSTATIC traces/onmethod/FieldGetBefore.$btrace$disabled$args_4Ljava_6lang_6Object_2Ljava_6lang_6Object_2Ljava_6lang_6String_2_5V : Z\nIFNE L1\n"
+                + "GETSTATIC traces/onmethod/FieldGetBefore.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L1\n"
+                + "ALOAD 0\nALOAD 1\nLDC \"field\"\n"
                 + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$FieldGetBefore$args (Ljava/lang/Object;Ljava/lang/Object;Ljava/lang/String;)V");
     }
 
@@ -256,7 +349,11 @@ public class InstrumentorTest extends InstrumentorTestBase {
         originalBC = loadTargetClass("OnMethodTest");
         transform("onmethod/FieldGetAfter");
 
-        checkTransformation("DUP\nASTORE 1\nDUP\nISTORE 2\nALOAD 0\nALOAD 1\nLDC \"field\"\nILOAD 2\n"
+        checkTransformation("DUP\nASTORE 1\nDUP\nISTORE 2\n"
+                + "GETSTATIC traces/onmethod/FieldGetAfter.$btrace$disabled$args_4Ljava_6lang_6Object_2Ljava_6lang_6Object_2Ljava_6lang_6String_2I_5V : Z\nIFNE L1\n"
+                + "GETSTATIC traces/onmethod/FieldGetAfter.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L1\n"
+                + "ALOAD 0\nALOAD 1\nLDC \"field\"\nILOAD 2\n"
                 + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$FieldGetAfter$args (Ljava/lang/Object;Ljava/lang/Object;Ljava/lang/String;I)V");
     }
 
@@ -265,7 +362,11 @@ public class InstrumentorTest extends InstrumentorTestBase {
         originalBC = loadTargetClass("OnMethodTest");
         transform("onmethod/FieldSetBefore");
 
-        checkTransformation("ISTORE 1\nDUP\nASTORE 2\nILOAD 1\nALOAD 0\nALOAD 2\nLDC \"field\"\nILOAD 1\n"
+        checkTransformation("ISTORE 1\nDUP\nASTORE 2\nILOAD 1\n"
+                + "GETSTATIC traces/onmethod/FieldSetBefore.$btrace$disabled$args_4Ljava_6lang_6Object_2Ljava_6lang_6Object_2Ljava_6lang_6String_2I_5V : Z\nIFNE L1\n"
+                + "GETSTATIC traces/onmethod/FieldSetBefore.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L1\n"
+                + "ALOAD 0\nALOAD 2\nLDC \"field\"\nILOAD 1\n"
                 + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$FieldSetBefore$args (Ljava/lang/Object;Ljava/lang/Object;Ljava/lang/String;I)V");
     }
 
@@ -274,7 +375,11 @@ public class InstrumentorTest extends InstrumentorTestBase {
         originalBC = loadTargetClass("OnMethodTest");
         transform("onmethod/FieldSetAfter");
 
-        checkTransformation("ISTORE 1\nDUP\nASTORE 2\nILOAD 1\nALOAD 0\nALOAD 2\nLDC \"field\"\nILOAD 1\n"
+        checkTransformation("ISTORE 1\nDUP\nASTORE 2\nILOAD 1\n"
+                + "GETSTATIC traces/onmethod/FieldSetAfter.$btrace$disabled$args_4Ljava_6lang_6Object_2Ljava_6lang_6Object_2Ljava_6lang_6String_2I_5V : Z\nIFNE L1\n"
+                + "GETSTATIC traces/onmethod/FieldSetAfter.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L1\n"
+                + "ALOAD 0\nALOAD 2\nLDC \"field\"\nILOAD 1\n"
                 + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$FieldSetAfter$args (Ljava/lang/Object;Ljava/lang/Object;Ljava/lang/String;I)V");
     }
 
@@ -283,7 +388,10 @@ public class InstrumentorTest extends InstrumentorTestBase {
         originalBC = loadTargetClass("OnMethodTest");
         transform("onmethod/ArgsNoSelf");
 
-        checkTransformation("ALOAD 1\nLLOAD 2\nALOAD 4\nALOAD 5\nINVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$ArgsNoSelf$argsNoSelf (Ljava/lang/String;J[Ljava/lang/String;[I)V");
+        checkTransformation("GETSTATIC traces/onmethod/ArgsNoSelf.$btrace$disabled$argsNoSelf_4Ljava_6lang_6String_2J_3Ljava_6lang_6String_2_3I_5V : Z\nIFNE L0\n"
+                + "GETSTATIC traces/onmethod/ArgsNoSelf.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L0\n"
+                + "ALOAD 1\nLLOAD 2\nALOAD 4\nALOAD 5\nINVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$ArgsNoSelf$argsNoSelf (Ljava/lang/String;J[Ljava/lang/String;[I)V");
     }
 
     @Test
@@ -291,21 +399,48 @@ public class InstrumentorTest extends InstrumentorTestBase {
         originalBC = loadTargetClass("OnMethodTest");
         transform("onmethod/NoArgs");
 
-        checkTransformation("ALOAD 0\nINVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$NoArgs$argsEmpty (Ljava/lang/Object;)V");
+        checkTransformation("GETSTATIC traces/onmethod/NoArgs.$btrace$disabled$argsEmpty_4Ljava_6lang_6Object_2_5V : Z\nIFNE L0\n"
+                + "GETSTATIC traces/onmethod/NoArgs.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L0\n"
+                + "ALOAD 0\nINVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$NoArgs$argsEmpty (Ljava/lang/Object;)V");
     }
 
     @Test
     public void methodEntryArgs() throws Exception {
         originalBC = loadTargetClass("OnMethodTest");
         transform("onmethod/Args");
-        checkTransformation("ALOAD 0\nALOAD 1\nLLOAD 2\nALOAD 4\nALOAD 5\nINVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$Args$args (Ljava/lang/Object;Ljava/lang/String;J[Ljava/lang/String;[I)V");
+        checkTransformation("GETSTATIC traces/onmethod/Args.$btrace$disabled$args_4Ljava_6lang_6Object_2Ljava_6lang_6String_2J_3Ljava_6lang_6String_2_3I_5V : Z\nIFNE L0\n"
+                + "GETSTATIC traces/onmethod/Args.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L0\n"
+                + "ALOAD 0\nALOAD 1\nLLOAD 2\nALOAD 4\nALOAD 5\nINVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$Args$args (Ljava/lang/Object;Ljava/lang/String;J[Ljava/lang/String;[I)V");
+    }
+
+    @Test
+    public void methodEntryArgsInlined() throws Exception {
+        originalBC = loadTargetClass("OnMethodTest");
+        transform("onmethod/ArgsInlined", 20);
+        checkTransformation("GETSTATIC traces/onmethod/ArgsInlined.$btrace$disabled$args_4Ljava_6lang_6Object_2Ljava_6lang_6String_2J_3Ljava_6lang_6String_2_3I_5V : Z\nIFNE L0\n"
+                + "GETSTATIC traces/onmethod/ArgsInlined.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L0\n"
+                + "ALOAD 0\nALOAD 1\nLLOAD 2\nALOAD 4\nALOAD 5\n"
+                + "ASTORE 6\nASTORE 7\nLSTORE 8\nASTORE 10\nASTORE 11\n"
+                + "GETSTATIC traces/onmethod/ArgsInlined.$count : J\nLCONST_1\nLADD\n"
+                + "PUTSTATIC traces/onmethod/ArgsInlined.$count : J\n"
+                + "LLOAD 8\nLCONST_0\nLCMP\nIFLE L0\n"
+                + "GETSTATIC traces/onmethod/ArgsInlined.$total : J\nLLOAD 8\nLADD\n"
+                + "PUTSTATIC traces/onmethod/ArgsInlined.$total : J\n"
+                + "MAXSTACK = 6\nMAXLOCALS = 12");
     }
 
     @Test
     public void methodEntryArgsReturn() throws Exception {
         originalBC = loadTargetClass("OnMethodTest");
         transform("onmethod/ArgsReturn");
-        checkTransformation("DUP2\nLSTORE 6\nALOAD 0\nLLOAD 6\nALOAD 1\nLLOAD 2\nALOAD 4\nALOAD 5\nINVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$ArgsReturn$args (Ljava/lang/Object;JLjava/lang/String;J[Ljava/lang/String;[I)V");
+        checkTransformation("DUP2\nLSTORE 6\n"
+                + "GETSTATIC traces/onmethod/ArgsReturn.$btrace$disabled$args_4Ljava_6lang_6Object_2JLjava_6lang_6String_2J_3Ljava_6lang_6String_2_3I_5V : Z\nIFNE L1\n"
+                + "GETSTATIC traces/onmethod/ArgsReturn.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L1\n"
+                + "ALOAD 0\nLLOAD 6\nALOAD 1\nLLOAD 2\nALOAD 4\nALOAD 5\nINVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$ArgsReturn$args (Ljava/lang/Object;JLjava/lang/String;J[Ljava/lang/String;[I)V");
     }
 
     @Test
@@ -314,12 +449,135 @@ public class InstrumentorTest extends InstrumentorTestBase {
         transform("onmethod/ArgsDuration");
         checkTransformation("INVOKESTATIC java/lang/System.nanoTime ()J\nLSTORE 6\n"
                 + "INVOKESTATIC java/lang/System.nanoTime ()J\nLSTORE 8\n"
-                + "DUP2\nLSTORE 10\nALOAD 0\nLLOAD 10\nLLOAD 8\nLLOAD 6\nLSUB\n"
+                + "DUP2\nLSTORE 10\nLLOAD 8\nLLOAD 6\nLSUB\n"
+                + "LSTORE 12\nGETSTATIC traces/onmethod/ArgsDuration.$btrace$disabled$args_4Ljava_6lang_6Object_2JJLjava_6lang_6String_2J_3Ljava_6lang_6String_2_3I_5V : Z\nIFNE L1\n"
+                + "GETSTATIC traces/onmethod/ArgsDuration.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L1\nALOAD 0\nLLOAD 10\n"
+                + "LLOAD 12\n"
                 + "ALOAD 1\nLLOAD 2\nALOAD 4\nALOAD 5\n"
                 + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$ArgsDuration$args (Ljava/lang/Object;JJLjava/lang/String;J[Ljava/lang/String;[I)V\n"
+                + "L1\nL2\nLOCALVARIABLE this Lresources/OnMethodTest; L0 L2 0\nLOCALVARIABLE a Ljava/lang/String; L0 L2 1\n"
+                + "LOCALVARIABLE b J L0 L2 2\nLOCALVARIABLE c [Ljava/lang/String; L0 L2 4\nLOCALVARIABLE d [I L0 L2 5\n"
                 + "MAXSTACK");
     }
 
+    @Test
+    public void methodEntryArgsDurationPredicate() throws Exception {
+        originalBC = loadTargetClass("OnMethodTest");
+        transform("onmethod/ArgsDurationPredicate");
+        checkTransformation("INVOKESTATIC java/lang/System.nanoTime ()J\nLSTORE 6\n"
+                + "INVOKESTATIC java/lang/System.nanoTime ()J\nLSTORE 8\n"
+                + "DUP2\nLSTORE 10\nLLOAD 8\nLLOAD 6\nLSUB\n"
+                + "LSTORE 12\nGETSTATIC traces/onmethod/ArgsDurationPredicate.$btrace$disabled$args_4Ljava_6lang_6Object_2JJLjava_6lang_6String_2J_3Ljava_6lang_6String_2_3I_5V : Z\nIFNE L1\n"
+                + "GETSTATIC traces/onmethod/ArgsDurationPredicate.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L1\n"
+                + "LLOAD 12\nALOAD 1\n"
+                + "INVOKESTATIC traces/onmethod/ArgsDurationPredicate.$btrace$predicate$slow (JLjava/lang/String;)Z\nIFEQ L1\n"
+                + "ALOAD 0\nLLOAD 10\nLLOAD 12\nALOAD 1\nLLOAD 2\nALOAD 4\nALOAD 5\n"
+                + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$ArgsDurationPredicate$args (Ljava/lang/Object;JJLjava/lang/String;J[Ljava/lang/String;[I)V\n"
+                + "L1");
+    }
+
+    @Test
+    public void methodEntryArgsPredicateUnavailable() throws Exception {
+        originalBC = loadTargetClass("OnMethodTest");
+        Trace btrace = loadTrace("onmethod/ArgsDurationPredicate");
+        for (OnMethod om : btrace.onMethods) {
+            // bind the predicate to a handler argument no location provides
+            om.setPredicateArgs(new int[]{om.getPredicateArgs()[0], 42});
+        }
+        transform(btrace);
+        // the probe is skipped rather than invoked without the predicate
+        assertFalse(asmify(transformedBC).contains("$btrace$traces$onmethod$ArgsDurationPredicate$args"));
+    }
+
+    @Test
+    public void methodEntryArgsDurationCpuAlloc() throws Exception {
+        originalBC = loadTargetClass("OnMethodTest");
+        transform("onmethod/ArgsDurationCpuAlloc");
+        checkTransformation("INVOKESTATIC java/lang/System.nanoTime ()J\nLSTORE 6\n"
+                + "INVOKESTATIC com/sun/btrace/util/ThreadResourceSupport.currentThreadCpuTime ()J\nLSTORE 8\n"
+                + "INVOKESTATIC com/sun/btrace/util/ThreadResourceSupport.currentThreadAllocatedBytes ()J\nLSTORE 10\n"
+                + "INVOKESTATIC java/lang/System.nanoTime ()J\nLSTORE 12\n"
+                + "INVOKESTATIC com/sun/btrace/util/ThreadResourceSupport.currentThreadCpuTime ()J\nLSTORE 14\n"
+                + "INVOKESTATIC com/sun/btrace/util/ThreadResourceSupport.currentThreadAllocatedBytes ()J\nLSTORE 16\n"
+                + "DUP2\nLSTORE 18\nLLOAD 12\nLLOAD 6\nLSUB\nLSTORE 20\n"
+                + "LLOAD 14\nLLOAD 8\nLSUB\nLSTORE 22\nLLOAD 16\nLLOAD 10\nLSUB\n"
+                + "LSTORE 24\nGETSTATIC traces/onmethod/ArgsDurationCpuAlloc.$btrace$disabled$args_4Ljava_6lang_6Object_2JJJJLjava_6lang_6String_2J_3Ljava_6lang_6String_2_3I_5V : Z\nIFNE L1\n"
+                + "GETSTATIC traces/onmethod/ArgsDurationCpuAlloc.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L1\nALOAD 0\nLLOAD 18\n"
+                + "LLOAD 20\nLLOAD 22\nLLOAD 24\n"
+                + "ALOAD 1\nLLOAD 2\nALOAD 4\nALOAD 5\n"
+                + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$ArgsDurationCpuAlloc$args (Ljava/lang/Object;JJJJLjava/lang/String;J[Ljava/lang/String;[I)V\n"
+                + "L1\nL2\nLOCALVARIABLE this Lresources/OnMethodTest; L0 L2 0\nLOCALVARIABLE a Ljava/lang/String; L0 L2 1\n"
+                + "LOCALVARIABLE b J L0 L2 2\nLOCALVARIABLE c [Ljava/lang/String; L0 L2 4\nLOCALVARIABLE d [I L0 L2 5\n"
+                + "MAXSTACK");
+    }
+
+    @Test
+    public void methodEntryArgsDurationMultiReturnSharedExit() throws Exception {
+        originalBC = loadTargetClass("OnMethodTest");
+        sharedExit = true;
+        transform("onmethod/ArgsDurationMultiReturn");
+        checkTransformation(
+            "INVOKESTATIC java/lang/System.nanoTime ()J\nLSTORE 6\n" +
+            "LSTORE 8\nGOTO L3\nIFLE L4\nL5\nLINENUMBER 128 L5\n" +
+            "LCONST_1\nLSTORE 8\nGOTO L3\nLINENUMBER 132 L4\nL6\nLINENUMBER 133 L6\n" +
+            "LSTORE 8\nGOTO L3\nL3\nLLOAD 8\n" +
+            "INVOKESTATIC java/lang/System.nanoTime ()J\nLSTORE 10\n" +
+            "DUP2\nLSTORE 12\nLLOAD 10\nLLOAD 6\nLSUB\nLSTORE 14\n" +
+            "GETSTATIC traces/onmethod/ArgsDurationMultiReturn.$btrace$disabled$args_4Ljava_6lang_6Object_2JJLjava_6lang_6String_2J_3Ljava_6lang_6String_2_3I_5V : Z\nIFNE L7\n" +
+            "GETSTATIC traces/onmethod/ArgsDurationMultiReturn.runtime : Lcom/sun/btrace/BTraceRuntime;\n" +
+            "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L7\n" +
+            "ALOAD 0\nLLOAD 12\nLLOAD 14\nALOAD 1\nLLOAD 2\nALOAD 4\nALOAD 5\n" +
+            "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$ArgsDurationMultiReturn$args (Ljava/lang/Object;JJLjava/lang/String;J[Ljava/lang/String;[I)V\n" +
+            "L7\n");
+    }
+
+    @Test
+    public void methodReturnSharedExitExtraStack() throws Exception {
+        originalBC = extraStackClass();
+        sharedExit = true;
+        transform("onmethod/ReturnExtraStack");
+        // the return with a value below the return value keeps its own probe
+        checkTransformation(
+            "DUP\nISTORE 1\n" +
+            "GETSTATIC traces/onmethod/ReturnExtraStack.$btrace$disabled$exit_4I_5V : Z\nIFNE L1\n" +
+            "GETSTATIC traces/onmethod/ReturnExtraStack.runtime : Lcom/sun/btrace/BTraceRuntime;\n" +
+            "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L1\n" +
+            "ILOAD 1\nINVOKESTATIC resources/ExtraStack.$btrace$traces$onmethod$ReturnExtraStack$exit (I)V\n" +
+            "L1\nISTORE 2\nGOTO L2\nL2\nILOAD 2\nDUP\nISTORE 3\n" +
+            "GETSTATIC traces/onmethod/ReturnExtraStack.$btrace$disabled$exit_4I_5V : Z\nIFNE L3\n" +
+            "GETSTATIC traces/onmethod/ReturnExtraStack.runtime : Lcom/sun/btrace/BTraceRuntime;\n" +
+            "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L3\n" +
+            "ILOAD 3\nINVOKESTATIC resources/ExtraStack.$btrace$traces$onmethod$ReturnExtraStack$exit (I)V\n" +
+            "L3\n");
+    }
+
+    /**
+     * A class the javac would not generate - one of the returns leaves
+     * another value on the operand stack
+     */
+    private static byte[] extraStackClass() {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(V1_5, ACC_PUBLIC, "resources/ExtraStack", null, "java/lang/Object", null);
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, "twoReturns", "(I)I", null, null);
+        mv.visitCode();
+        Label l = new Label();
+        mv.visitVarInsn(ILOAD, 0);
+        mv.visitJumpInsn(IFEQ, l);
+        mv.visitInsn(ICONST_1);
+        mv.visitInsn(ICONST_2);
+        mv.visitInsn(IRETURN);
+        mv.visitLabel(l);
+        mv.visitInsn(ICONST_3);
+        mv.visitInsn(IRETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
     @Test
     public void methodEntryArgsDurationMultiReturn() throws Exception {
         originalBC = loadTargetClass("OnMethodTest");
@@ -331,46 +589,54 @@ public class InstrumentorTest extends InstrumentorTestBase {
             "LSTORE 8\n" +
             "DUP2\n" +
             "LSTORE 10\n" +
-            "ALOAD 0\n" +
-            "LLOAD 10\n" +
             "LLOAD 8\n" +
             "LLOAD 6\n" +
             "LSUB\n" +
+            "LSTORE 12\nGETSTATIC traces/onmethod/ArgsDurationMultiReturn.$btrace$disabled$args_4Ljava_6lang_6Object_2JJLjava_6lang_6String_2J_3Ljava_6lang_6String_2_3I_5V : Z\nIFNE L3\n" +
+            "GETSTATIC traces/onmethod/ArgsDurationMultiReturn.runtime : Lcom/sun/btrace/BTraceRuntime;\n" +
+            "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L3\nALOAD 0\nLLOAD 10\n" +
+            "LLOAD 12\n" +
             "ALOAD 1\n" +
             "LLOAD 2\n" +
             "ALOAD 4\n" +
             "ALOAD 5\n" +
             "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$ArgsDurationMultiReturn$args (Ljava/lang/Object;JJLjava/lang/String;J[Ljava/lang/String;[I)V\n" +
+            "L3\nIFLE L4\nL5\nLINENUMBER 128 L5\n" +
             "INVOKESTATIC java/lang/System.nanoTime ()J\n" +
-            "LSTORE 12\n" +
-            "DUP2\n" +
             "LSTORE 14\n" +
-            "ALOAD 0\n" +
+            "DUP2\nLSTORE 16\n" +
             "LLOAD 14\n" +
-            "LLOAD 12\n" +
             "LLOAD 6\n" +
             "LSUB\n" +
+            "LSTORE 18\nGETSTATIC traces/onmethod/ArgsDurationMultiReturn.$btrace$disabled$args_4Ljava_6lang_6Object_2JJLjava_6lang_6String_2J_3Ljava_6lang_6String_2_3I_5V : Z\nIFNE L6\n" +
+            "GETSTATIC traces/onmethod/ArgsDurationMultiReturn.runtime : Lcom/sun/btrace/BTraceRuntime;\n" +
+            "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L6\nALOAD 0\nLLOAD 16\n" +
+            "LLOAD 18\n" +
             "ALOAD 1\n" +
             "LLOAD 2\n" +
             "ALOAD 4\n" +
             "ALOAD 5\n" +
             "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$ArgsDurationMultiReturn$args (Ljava/lang/Object;JJLjava/lang/String;J[Ljava/lang/String;[I)V\n" +
+            "L6\nL4\nLINENUMBER 132 L4\nL7\nLINENUMBER 133 L7\n" +
             "INVOKESTATIC java/lang/System.nanoTime ()J\n" +
-            "LSTORE 16\n" +
+            "LSTORE 20\n" +
             "DUP2\n" +
-            "LSTORE 18\n" +
-            "ALOAD 0\n" +
-            "LLOAD 18\n" +
-            "LLOAD 16\n" +
+            "LSTORE 22\nLLOAD 20\n" +
             "LLOAD 6\n" +
             "LSUB\n" +
+            "LSTORE 24\nGETSTATIC traces/onmethod/ArgsDurationMultiReturn.$btrace$disabled$args_4Ljava_6lang_6Object_2JJLjava_6lang_6String_2J_3Ljava_6lang_6String_2_3I_5V : Z\nIFNE L8\n" +
+            "GETSTATIC traces/onmethod/ArgsDurationMultiReturn.runtime : Lcom/sun/btrace/BTraceRuntime;\n" +
+            "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L8\nALOAD 0\nLLOAD 22\n" +
+            "LLOAD 24\n" +
             "ALOAD 1\n" +
             "LLOAD 2\n" +
             "ALOAD 4\n" +
             "ALOAD 5\n" +
             "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$ArgsDurationMultiReturn$args (Ljava/lang/Object;JJLjava/lang/String;J[Ljava/lang/String;[I)V\n" +
+            "L8\nL9\nLOCALVARIABLE this Lresources/OnMethodTest; L0 L9 0\nLOCALVARIABLE a Ljava/lang/String; L0 L9 1\n" +
+            "LOCALVARIABLE b J L0 L9 2\nLOCALVARIABLE c [Ljava/lang/String; L0 L9 4\nLOCALVARIABLE d [I L0 L9 5\n" +
             "MAXSTACK = 12\n" +
-            "MAXLOCALS = 20"
+            "MAXLOCALS = 26"
         );
     }
 
@@ -382,14 +648,99 @@ public class InstrumentorTest extends InstrumentorTestBase {
             "LDC 0\nLSTORE 6\nLDC 20\nLDC 1\nINVOKESTATIC com/sun/btrace/util/SamplingSupport.sampleHit (II)Z\n" +
             "DUP\nISTORE 8\nIFEQ L0\nINVOKESTATIC java/lang/System.nanoTime ()J\n" +
             "LSTORE 6\nLDC 0\nLSTORE 9\nILOAD 8\nIFEQ L1\nINVOKESTATIC java/lang/System.nanoTime ()J\n" +
-            "LSTORE 9\nL1\nDUP2\nLSTORE 11\nALOAD 0\nLLOAD 11\n" +
+            "LSTORE 9\nL1\nDUP2\nLSTORE 11\n" +
             "ILOAD 8\nIFEQ L2\nLLOAD 9\nLLOAD 6\nLSUB\nGOTO L3\n" +
             "L2\nLDC 0\nL3\n" +
+            "LSTORE 13\nGETSTATIC traces/onmethod/ArgsDurationSampled.$btrace$disabled$args_4Ljava_6lang_6Object_2JJLjava_6lang_6String_2J_3Ljava_6lang_6String_2_3I_5V : Z\nIFNE L4\n" +
+            "GETSTATIC traces/onmethod/ArgsDurationSampled.runtime : Lcom/sun/btrace/BTraceRuntime;\n" +
+            "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L4\nALOAD 0\nLLOAD 11\n" +
+            "LLOAD 13\n" +
             "ALOAD 1\nLLOAD 2\nALOAD 4\nALOAD 5\n" +
             "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$ArgsDurationSampled$args (Ljava/lang/Object;JJLjava/lang/String;J[Ljava/lang/String;[I)V\n"
         );
     }
 
+    @Test
+    public void methodEntryArgsDurationAdaptive() throws Exception {
+        originalBC = loadTargetClass("OnMethodTest");
+        transform("onmethod/ArgsDurationAdaptive");
+        checkTransformation(
+            "LDC 0\nLSTORE 6\nLDC 500000\nLDC 1\nINVOKESTATIC com/sun/btrace/util/SamplingSupport.sampleHitAdaptive (JI)Z\n" +
+            "DUP\nISTORE 8\nIFEQ L0\nINVOKESTATIC java/lang/System.nanoTime ()J\n" +
+            "LSTORE 6\nLDC 0\nLSTORE 9\nILOAD 8\nIFEQ L1\nINVOKESTATIC java/lang/System.nanoTime ()J\n" +
+            "LSTORE 9\nL1\nDUP2\nLSTORE 11\n" +
+            "ILOAD 8\nIFEQ L2\nLLOAD 9\nLLOAD 6\nLSUB\nGOTO L3\n" +
+            "L2\nLDC 0\nL3\nLSTORE 13\n" +
+            "LDC 1\nINVOKESTATIC com/sun/btrace/util/SamplingSupport.getEffectiveRate (I)I\n" +
+            "ISTORE 15\nGETSTATIC traces/onmethod/ArgsDurationAdaptive.$btrace$disabled$args_4Ljava_6lang_6Object_2JJILjava_6lang_6String_2J_3Ljava_6lang_6String_2_3I_5V : Z\nIFNE L4\n" +
+            "GETSTATIC traces/onmethod/ArgsDurationAdaptive.runtime : Lcom/sun/btrace/BTraceRuntime;\n" +
+            "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L4\n" +
+            "ILOAD 8\nIFEQ L4\nINVOKESTATIC java/lang/System.nanoTime ()J\nLSTORE 16\nALOAD 0\nLLOAD 11\n" +
+            "LLOAD 13\nILOAD 15\n" +
+            "ALOAD 1\nLLOAD 2\nALOAD 4\nALOAD 5\n" +
+            "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$ArgsDurationAdaptive$args (Ljava/lang/Object;JJILjava/lang/String;J[Ljava/lang/String;[I)V\n" +
+            "LLOAD 16\nLDC 1\nINVOKESTATIC com/sun/btrace/util/SamplingSupport.adaptiveHitCost (JI)V\n"
+        );
+    }
+
+    @Test
+    public void methodEntryArgsDurationTimed() throws Exception {
+        originalBC = loadTargetClass("OnMethodTest");
+        transform("onmethod/ArgsDurationTimed");
+        checkTransformation(
+            "LDC 0\nLSTORE 6\nLDC 100\nLDC 1\nINVOKESTATIC com/sun/btrace/util/SamplingSupport.sampleHitTimed (II)Z\n" +
+            "DUP\nISTORE 8\nIFEQ L0\nINVOKESTATIC java/lang/System.nanoTime ()J\n" +
+            "LSTORE 6\nLDC 0\nLSTORE 9\nILOAD 8\nIFEQ L1\nINVOKESTATIC java/lang/System.nanoTime ()J\n" +
+            "LSTORE 9\nL1\nDUP2\nLSTORE 11\n" +
+            "ILOAD 8\nIFEQ L2\nLLOAD 9\nLLOAD 6\nLSUB\nGOTO L3\n" +
+            "L2\nLDC 0\nL3\nLSTORE 13\n" +
+            "LDC 1\nINVOKESTATIC com/sun/btrace/util/SamplingSupport.getTimedRate (I)I\n" +
+            "ISTORE 15\nGETSTATIC traces/onmethod/ArgsDurationTimed.$btrace$disabled$args_4Ljava_6lang_6Object_2JJILjava_6lang_6String_2J_3Ljava_6lang_6String_2_3I_5V : Z\nIFNE L4\n" +
+            "GETSTATIC traces/onmethod/ArgsDurationTimed.runtime : Lcom/sun/btrace/BTraceRuntime;\n" +
+            "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L4\nALOAD 0\nLLOAD 11\n" +
+            "LLOAD 13\nILOAD 15\n" +
+            "ALOAD 1\nLLOAD 2\nALOAD 4\nALOAD 5\n" +
+            "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$ArgsDurationTimed$args (Ljava/lang/Object;JJILjava/lang/String;J[Ljava/lang/String;[I)V\n"
+        );
+    }
+
+    @Test
+    public void methodEntryNoArgsSampled() throws Exception {
+        originalBC = loadTargetClass("OnMethodTest");
+        transform("onmethod/NoArgsSampled");
+        checkTransformation("GETSTATIC traces/onmethod/NoArgsSampled.$btrace$disabled$argsEmpty_4Ljava_6lang_6Object_2_5V : Z\nIFNE L0\n" +
+            "GETSTATIC traces/onmethod/NoArgsSampled.runtime : Lcom/sun/btrace/BTraceRuntime;\n" +
+            "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L0\n" +
+            "BIPUSH 10\nICONST_1\n" +
+            "INVOKESTATIC com/sun/btrace/util/SamplingSupport.sampleHitTimed (II)Z\nIFEQ L0\nALOAD 0\n" +
+            "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$NoArgsSampled$argsEmpty (Ljava/lang/Object;)V\n");
+    }
+
+    @Test(expected = VerifierException.class)
+    public void methodEntryNoArgsSampledZero() throws Exception {
+        originalBC = loadTargetClass("OnMethodTest");
+        transform("onmethod/NoArgsSampledZero");
+    }
+
+    @Test
+    public void methodEntryNoArgsSampledOverloaded() throws Exception {
+        originalBC = loadTargetClass("OnMethodTest");
+        transform("onmethod/NoArgsSampledOverloaded");
+        // each of the overloaded handlers gets its own bucket
+        checkTransformation("GETSTATIC traces/onmethod/NoArgsSampledOverloaded.$btrace$disabled$argsEmpty_4Ljava_6lang_6String_2_5V : Z\nIFNE L0\n" +
+            "GETSTATIC traces/onmethod/NoArgsSampledOverloaded.runtime : Lcom/sun/btrace/BTraceRuntime;\n" +
+            "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L0\n" +
+            "BIPUSH 10\nICONST_1\n" +
+            "INVOKESTATIC com/sun/btrace/util/SamplingSupport.sampleHitTimed (II)Z\nIFEQ L0\nLDC \"args\"\n" +
+            "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$NoArgsSampledOverloaded$argsEmpty (Ljava/lang/String;)V\n" +
+            "GETSTATIC traces/onmethod/NoArgsSampledOverloaded.$btrace$disabled$argsEmpty_4Ljava_6lang_6Object_2_5V : Z\nIFNE L1\n" +
+            "GETSTATIC traces/onmethod/NoArgsSampledOverloaded.runtime : Lcom/sun/btrace/BTraceRuntime;\n" +
+            "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L1\n" +
+            "BIPUSH 10\nICONST_2\n" +
+            "INVOKESTATIC com/sun/btrace/util/SamplingSupport.sampleHitTimed (II)Z\nIFEQ L1\nALOAD 0\n" +
+            "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$NoArgsSampledOverloaded$argsEmpty (Ljava/lang/Object;)V\n");
+    }
+
     @Test
     public void methodEntryArgsDurationBoxed() throws Exception {
         originalBC = loadTargetClass("OnMethodTest");
@@ -403,9 +754,14 @@ public class InstrumentorTest extends InstrumentorTestBase {
         transform("onmethod/ArgsDurationConstructor");
         checkTransformation("INVOKESTATIC java/lang/System.nanoTime ()J\nLSTORE 2\n"
                 + "INVOKESTATIC java/lang/System.nanoTime ()J\nLSTORE 4\n"
-                + "ALOAD 0\nLLOAD 4\nLLOAD 2\nLSUB\nALOAD 1\n"
+                + "LLOAD 4\nLLOAD 2\nLSUB\n"
+                + "LSTORE 6\nGETSTATIC traces/onmethod/ArgsDurationConstructor.$btrace$disabled$args_4Ljava_6lang_6Object_2JLjava_6lang_6String_2_5V : Z\nIFNE L1\n"
+                + "GETSTATIC traces/onmethod/ArgsDurationConstructor.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L1\nALOAD 0\nLLOAD 6\n"
+                + "ALOAD 1\n"
                 + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$ArgsDurationConstructor$args (Ljava/lang/Object;JLjava/lang/String;)V\n"
-                + "MAXSTACK");
+                + "L1\nL2\nLOCALVARIABLE this Lresources/OnMethodTest; L0 L2 0\nLOCALVARIABLE a Ljava/lang/String; L0 L2 1\n"
+                + "MAXSTACK = 4");
     }
 
     @Test
@@ -415,14 +771,25 @@ public class InstrumentorTest extends InstrumentorTestBase {
         transform("onmethod/ArgsDuration2");
         checkTransformation("INVOKESTATIC java/lang/System.nanoTime ()J\nLSTORE 6\n"
                 + "INVOKESTATIC java/lang/System.nanoTime ()J\nLSTORE 8\n"
-                + "DUP2\nLSTORE 10\nALOAD 0\nLLOAD 10\nLLOAD 8\nLLOAD 6\nLSUB\n"
+                + "DUP2\nLSTORE 10\nLLOAD 8\nLLOAD 6\nLSUB\n"
+                + "LSTORE 12\nGETSTATIC traces/onmethod/ArgsDuration2.$btrace$disabled$args2_4Ljava_6lang_6Object_2JJLjava_6lang_6String_2J_3Ljava_6lang_6String_2_3I_5V : Z\nIFNE L1\n"
+                + "GETSTATIC traces/onmethod/ArgsDuration2.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L1\nALOAD 0\nLLOAD 10\n"
+                + "LLOAD 12\n"
                 + "ALOAD 1\nLLOAD 2\nALOAD 4\nALOAD 5\n"
-                + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$ArgsDuration2$args2 (Ljava/lang/Object;JJLjava/lang/String;J[Ljava/lang/String;[I)V\n"
+                + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$ArgsDuration2$args2 (Ljava/lang/Object;JJLjava/lang/String;J[Ljava/lang/String;[I)V\nL1\n"
                 + "INVOKESTATIC java/lang/System.nanoTime ()J\n"
-                + "LSTORE 12\nDUP2\nLSTORE 14\nALOAD 0\nLLOAD 14\n"
-                + "LLOAD 12\nLLOAD 6\nLSUB\nALOAD 1\nLLOAD 2\nALOAD 4\nALOAD 5\n"
+                + "LSTORE 14\nDUP2\nLSTORE 16\nLLOAD 14\n"
+                + "LLOAD 6\nLSUB\n"
+                + "LSTORE 18\nGETSTATIC traces/onmethod/ArgsDuration2.$btrace$disabled$args_4Ljava_6lang_6Object_2JJLjava_6lang_6String_2J_3Ljava_6lang_6String_2_3I_5V : Z\nIFNE L2\n"
+                + "GETSTATIC traces/onmethod/ArgsDuration2.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L2\nALOAD 0\nLLOAD 16\n"
+                + "LLOAD 18\n"
+                + "ALOAD 1\nLLOAD 2\nALOAD 4\nALOAD 5\n"
                 + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$ArgsDuration2$args (Ljava/lang/Object;JJLjava/lang/String;J[Ljava/lang/String;[I)V\n"
-                + "MAXSTACK = 12\nMAXLOCALS = 16");
+                + "L2\nL3\nLOCALVARIABLE this Lresources/OnMethodTest; L0 L3 0\nLOCALVARIABLE a Ljava/lang/String; L0 L3 1\n"
+                + "LOCALVARIABLE b J L0 L3 2\nLOCALVARIABLE c [Ljava/lang/String; L0 L3 4\nLOCALVARIABLE d [I L0 L3 5\n"
+                + "MAXSTACK = 12\nMAXLOCALS = 20");
     }
 
     @Test
@@ -436,14 +803,23 @@ public class InstrumentorTest extends InstrumentorTestBase {
                 + "INVOKESTATIC java/lang/System.nanoTime ()J\nLSTORE 6\n"
                 + "LDC 0\nLSTORE 9\nILOAD 8\nIFEQ L1\n"
                 + "INVOKESTATIC java/lang/System.nanoTime ()J\nLSTORE 9\n"
-                + "L1\nDUP2\nLSTORE 11\nALOAD 0\nLLOAD 11\n"
+                + "L1\nDUP2\nLSTORE 11\n"
                 + "ILOAD 8\nIFEQ L2\nLLOAD 9\nLLOAD 6\nLSUB\nGOTO L3\n"
                 + "L2\nLDC 0\nL3\n"
+                + "LSTORE 13\nGETSTATIC traces/onmethod/ArgsDuration2Sampled.$btrace$disabled$args2_4Ljava_6lang_6Object_2JJLjava_6lang_6String_2J_3Ljava_6lang_6String_2_3I_5V : Z\nIFNE L4\n"
+                + "GETSTATIC traces/onmethod/ArgsDuration2Sampled.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L4\nALOAD 0\nLLOAD 11\n"
+                + "LLOAD 13\n"
                 + "ALOAD 1\nLLOAD 2\nALOAD 4\nALOAD 5\n"
-                + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$ArgsDuration2Sampled$args2 (Ljava/lang/Object;JJLjava/lang/String;J[Ljava/lang/String;[I)V\n"
+                + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$ArgsDuration2Sampled$args2 (Ljava/lang/Object;JJLjava/lang/String;J[Ljava/lang/String;[I)V\nL4\n"
                 + "INVOKESTATIC java/lang/System.nanoTime ()J\n"
-                + "LSTORE 13\nDUP2\nLSTORE 15\nALOAD 0\nLLOAD 15\nLLOAD 13\n"
-                + "LLOAD 6\nLSUB\nALOAD 1\nLLOAD 2\nALOAD 4\nALOAD 5\n"
+                + "LSTORE 15\nDUP2\nLSTORE 17\nLLOAD 15\n"
+                + "LLOAD 6\nLSUB\n"
+                + "LSTORE 19\nGETSTATIC traces/onmethod/ArgsDuration2Sampled.$btrace$disabled$args_4Ljava_6lang_6Object_2JJLjava_6lang_6String_2J_3Ljava_6lang_6String_2_3I_5V : Z\nIFNE L5\n"
+                + "GETSTATIC traces/onmethod/ArgsDuration2Sampled.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L5\nALOAD 0\nLLOAD 17\n"
+                + "LLOAD 19\n"
+                + "ALOAD 1\nLLOAD 2\nALOAD 4\nALOAD 5\n"
                 + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$ArgsDuration2Sampled$args (Ljava/lang/Object;JJLjava/lang/String;J[Ljava/lang/String;[I)V\n");
     }
 
@@ -456,8 +832,12 @@ public class InstrumentorTest extends InstrumentorTestBase {
                 + "INVOKESTATIC java/lang/System.nanoTime ()J\n"
                 + "LSTORE 6\n"
                 + "INVOKESTATIC java/lang/System.nanoTime ()J\n"
-                + "LSTORE 8\nDUP\nASTORE 10\nALOAD 0\nLLOAD 8\nLLOAD 6\nLSUB\nALOAD 10\n"
-                + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$ArgsDurationErr$args (Ljava/lang/Object;JLjava/lang/Throwable;)V\n"
+                + "LSTORE 8\nDUP\nASTORE 10\nLLOAD 8\nLLOAD 6\nLSUB\n"
+                + "LSTORE 11\nGETSTATIC traces/onmethod/ArgsDurationErr.$btrace$disabled$args_4Ljava_6lang_6Object_2JLjava_6lang_6Throwable_2_5V : Z\nIFNE L2\n"
+                + "GETSTATIC traces/onmethod/ArgsDurationErr.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L2\nALOAD 0\nLLOAD 11\n"
+                + "ALOAD 10\n"
+                + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$ArgsDurationErr$args (Ljava/lang/Object;JLjava/lang/Throwable;)V\nL2\n"
                 + "ATHROW");
     }
 
@@ -478,9 +858,13 @@ public class InstrumentorTest extends InstrumentorTestBase {
                 + "INVOKESTATIC java/lang/System.nanoTime ()J\n"
                 + "LSTORE 1\nL0\n"
                 + "INVOKESTATIC java/lang/System.nanoTime ()J\n"
-                + "LSTORE 3\nDUP\nASTORE 5\nALOAD 0\nLLOAD 3\n"
-                + "LLOAD 1\nLSUB\nALOAD 5\n"
-                + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$ArgsDurationConstructorErr$args (Ljava/lang/Object;JLjava/lang/Throwable;)V\n"
+                + "LSTORE 3\nDUP\nASTORE 5\nLLOAD 3\n"
+                + "LLOAD 1\nLSUB\n"
+                + "LSTORE 6\nGETSTATIC traces/onmethod/ArgsDurationConstructorErr.$btrace$disabled$args_4Ljava_6lang_6Object_2JLjava_6lang_6Throwable_2_5V : Z\nIFNE L3\n"
+                + "GETSTATIC traces/onmethod/ArgsDurationConstructorErr.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L3\nALOAD 0\nLLOAD 6\n"
+                + "ALOAD 5\n"
+                + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$ArgsDurationConstructorErr$args (Ljava/lang/Object;JLjava/lang/Throwable;)V\nL3\n"
                 + "ATHROW");
     }
 
@@ -492,8 +876,12 @@ public class InstrumentorTest extends InstrumentorTestBase {
         checkTransformation("TRYCATCHBLOCK L0 L1 L1 java/lang/Throwable\nTRYCATCHBLOCK L0 L2 L2 java/lang/Throwable\n"
                 + "INVOKESTATIC java/lang/System.nanoTime ()J\nLSTORE 6\n"
                 + "INVOKESTATIC java/lang/System.nanoTime ()J\nLSTORE 8\n"
-                + "DUP\nASTORE 10\nALOAD 0\nLLOAD 8\nLLOAD 6\nLSUB\nALOAD 10\n"
-                + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$ArgsDuration2Err$args2 (Ljava/lang/Object;JLjava/lang/Throwable;)V\n"
+                + "DUP\nASTORE 10\nLLOAD 8\nLLOAD 6\nLSUB\n"
+                + "LSTORE 11\nGETSTATIC traces/onmethod/ArgsDuration2Err.$btrace$disabled$args2_4Ljava_6lang_6Object_2JLjava_6lang_6Throwable_2_5V : Z\nIFNE L3\n"
+                + "GETSTATIC traces/onmethod/ArgsDuration2Err.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L3\nALOAD 0\nLLOAD 11\n"
+                + "ALOAD 10\n"
+                + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$ArgsDuration2Err$args2 (Ljava/lang/Object;JLjava/lang/Throwable;)V\nL3\n"
                 + "ATHROW");
     }
 
@@ -501,29 +889,52 @@ public class InstrumentorTest extends InstrumentorTestBase {
     public void methodEntryAnytypeArgs() throws Exception {
         originalBC = loadTargetClass("OnMethodTest");
         transform("onmethod/AnytypeArgs");
-        checkTransformation("ALOAD 0\nICONST_4\nANEWARRAY java/lang/Object\nDUP\n"
-                + "ICONST_0\nALOAD 1\nAASTORE\nDUP\n"
-                + "ICONST_1\nLLOAD 2\nINVOKESTATIC java/lang/Long.valueOf (J)Ljava/lang/Long;\nAASTORE\nDUP\n"
-                + "ICONST_2\nALOAD 4\nAASTORE\nDUP\n"
-                + "ICONST_3\nALOAD 5\nAASTORE\nINVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$AnytypeArgs$args (Ljava/lang/Object;[Ljava/lang/Object;)V");
+        checkTransformation("GETSTATIC traces/onmethod/AnytypeArgs.$btrace$disabled$args_4Ljava_6lang_6Object_2_3Lcom_6sun_6btrace_6AnyType_2_5V : Z\nIFNE L0\n"
+                + "GETSTATIC traces/onmethod/AnytypeArgs.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L0\n"
+                + "ALOAD 0\nACONST_NULL\n"
+                + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$AnytypeArgs$args (Ljava/lang/Object;[Ljava/lang/Object;)V");
     }
 
     @Test
     public void methodEntryAnytypeArgsNoSelf() throws Exception {
         originalBC = loadTargetClass("OnMethodTest");
         transform("onmethod/AnytypeArgsNoSelf");
-        checkTransformation("ICONST_4\nANEWARRAY java/lang/Object\nDUP\nICONST_0\nALOAD 1\nAASTORE\n"
-                + "DUP\nICONST_1\nLLOAD 2\nINVOKESTATIC java/lang/Long.valueOf (J)Ljava/lang/Long;\nAASTORE\n"
-                + "DUP\nICONST_2\nALOAD 4\nAASTORE\nDUP\nICONST_3\nALOAD 5\nAASTORE\n"
+        checkTransformation("GETSTATIC traces/onmethod/AnytypeArgsNoSelf.$btrace$disabled$argsNoSelf_4_3Lcom_6sun_6btrace_6AnyType_2_5V : Z\nIFNE L0\n"
+                + "GETSTATIC traces/onmethod/AnytypeArgsNoSelf.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L0\n"
+                + "ACONST_NULL\n"
                 + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$AnytypeArgsNoSelf$argsNoSelf ([Ljava/lang/Object;)V");
     }
 
+    @Test
+    public void methodEntryAnytypeArgsRead() throws Exception {
+        originalBC = loadTargetClass("OnMethodTest");
+        transform("onmethod/AnytypeArgsRead");
+        checkTransformation("GETSTATIC traces/onmethod/AnytypeArgsRead.$btrace$disabled$args_4_3Lcom_6sun_6btrace_6AnyType_2_5V : Z\nIFNE L0\n"
+                + "GETSTATIC traces/onmethod/AnytypeArgsRead.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L0\n"
+                + "ALOAD 1\nLLOAD 2\nALOAD 4\nALOAD 5\n"
+                + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$AnytypeArgsRead$$args$0 (Ljava/lang/Object;JLjava/lang/Object;Ljava/lang/Object;)[Ljava/lang/Object;\n"
+                + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$AnytypeArgsRead$args ([Ljava/lang/Object;)V\n"
+                + "MAXSTACK = 5\n\n"
+                + "// access flags 0x100A\n"
+                + "private static synthetic $btrace$traces$onmethod$AnytypeArgsRead$$args$0(Ljava/lang/Object;JLjava/lang/Object;Ljava/lang/Object;)[Ljava/lang/Object;\n"
+                + "ICONST_4\nANEWARRAY java/lang/Object\nDUP\nICONST_0\nALOAD 0\nAASTORE\n"
+                + "DUP\nICONST_1\nLLOAD 1\nINVOKESTATIC java/lang/Long.valueOf (J)Ljava/lang/Long;\nAASTORE\n"
+                + "DUP\nICONST_2\nALOAD 3\nAASTORE\nDUP\nICONST_3\nALOAD 4\nAASTORE\n"
+                + "ARETURN");
+    }
+
     @Test
     public void methodEntryStaticArgs() throws Exception {
         originalBC = loadTargetClass("OnMethodTest");
         transform("onmethod/StaticArgs");
 
-        checkTransformation("ALOAD 0\nLLOAD 1\nALOAD 3\nALOAD 4\nINVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$StaticArgs$args (Ljava/lang/String;J[Ljava/lang/String;[I)V");
+        checkTransformation("GETSTATIC traces/onmethod/StaticArgs.$btrace$disabled$args_4Ljava_6lang_6String_2J_3Ljava_6lang_6String_2_3I_5V : Z\nIFNE L0\n"
+                + "GETSTATIC traces/onmethod/StaticArgs.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L0\n"
+                + "ALOAD 0\nLLOAD 1\nALOAD 3\nALOAD 4\nINVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$StaticArgs$args (Ljava/lang/String;J[Ljava/lang/String;[I)V");
     }
 
     @Test
@@ -531,7 +942,11 @@ public class InstrumentorTest extends InstrumentorTestBase {
         originalBC = loadTargetClass("OnMethodTest");
         transform("onmethod/StaticArgsReturn");
 
-        checkTransformation("DUP2\nLSTORE 5\nALOAD 0\nLLOAD 5\nLLOAD 1\nALOAD 3\nALOAD 4\nINVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$StaticArgsReturn$args (Ljava/lang/String;JJ[Ljava/lang/String;[I)V");
+        checkTransformation("DUP2\nLSTORE 5\n"
+                + "GETSTATIC traces/onmethod/StaticArgsReturn.$btrace$disabled$args_4Ljava_6lang_6String_2JJ_3Ljava_6lang_6String_2_3I_5V : Z\nIFNE L1\n"
+                + "GETSTATIC traces/onmethod/StaticArgsReturn.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L1\n"
+                + "ALOAD 0\nLLOAD 5\nLLOAD 1\nALOAD 3\nALOAD 4\nINVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$StaticArgsReturn$args (Ljava/lang/String;JJ[Ljava/lang/String;[I)V");
     }
 
     @Test
@@ -547,7 +962,10 @@ public class InstrumentorTest extends InstrumentorTestBase {
         originalBC = loadTargetClass("OnMethodTest");
         transform("onmethod/StaticNoArgs");
 
-        checkTransformation("INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$StaticNoArgs$argsEmpty ()V");
+        checkTransformation("GETSTATIC traces/onmethod/StaticNoArgs.$btrace$disabled$argsEmpty_4_5V : Z\nIFNE L0\n"
+                + "GETSTATIC traces/onmethod/StaticNoArgs.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L0\n"
+                + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$StaticNoArgs$argsEmpty ()V");
     }
 
     @Test
@@ -563,10 +981,14 @@ public class InstrumentorTest extends InstrumentorTestBase {
         originalBC = loadTargetClass("OnMethodTest");
         transform("onmethod/MethodCall");
 
-        checkTransformation("LSTORE 4\nASTORE 6\nASTORE 7\nALOAD 0\nALOAD 6\nLLOAD 4\nALOAD 7\n"
+        checkTransformation("LSTORE 4\nASTORE 6\nASTORE 7\n"
+                + "GETSTATIC traces/onmethod/MethodCall.$btrace$disabled$args_4Ljava_6lang_6Object_2Ljava_6lang_6String_2JLjava_6lang_6Object_2Ljava_6lang_6String_2Ljava_6lang_6String_2Ljava_6lang_6String_2_5V : Z\nIFNE L1\n"
+                + "GETSTATIC traces/onmethod/MethodCall.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L1\n"
+                + "ALOAD 0\nALOAD 6\nLLOAD 4\nALOAD 7\n"
                 + "LDC \"resources/OnMethodTest.callTarget(Ljava/lang/String;J)J\"\nLDC \"resources/OnMethodTest\"\n"
                 + "LDC \"callTopLevel\"\n"
-                + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$MethodCall$args (Ljava/lang/Object;Ljava/lang/String;JLjava/lang/Object;Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;)V\n"
+                + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$MethodCall$args (Ljava/lang/Object;Ljava/lang/String;JLjava/lang/Object;Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;)V\nL1\n"
                 + "ALOAD 7\nALOAD 6\nLLOAD 4");
     }
 
@@ -576,8 +998,12 @@ public class InstrumentorTest extends InstrumentorTestBase {
         transform("onmethod/MethodCallReturn");
 
         checkTransformation("LSTORE 4\nASTORE 6\nASTORE 7\nALOAD 7\nALOAD 6\nLLOAD 4\n"
-                + "LSTORE 8\nLLOAD 8\nALOAD 6\nLLOAD 4\n"
-                + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$MethodCallReturn$args (JLjava/lang/String;J)V\n"
+                + "LSTORE 8\n"
+                + "GETSTATIC traces/onmethod/MethodCallReturn.$btrace$disabled$args_4JLjava_6lang_6String_2J_5V : Z\nIFNE L1\n"
+                + "GETSTATIC traces/onmethod/MethodCallReturn.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L1\n"
+                + "LLOAD 8\nALOAD 6\nLLOAD 4\n"
+                + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$MethodCallReturn$args (JLjava/lang/String;J)V\nL1\n"
                 + "LLOAD 8");
     }
 
@@ -586,14 +1012,20 @@ public class InstrumentorTest extends InstrumentorTestBase {
         originalBC = loadTargetClass("OnMethodTest");
         transform("onmethod/MethodCallDuration");
 
-        checkTransformation("LSTORE 4\nASTORE 6\nASTORE 7\n"
-                + "INVOKESTATIC java/lang/System.nanoTime ()J\n"
-                + "LSTORE 8\nALOAD 7\nALOAD 6\nLLOAD 4\nLSTORE 10\n"
+        checkTransformation("INVOKESTATIC java/lang/System.nanoTime ()J\nLSTORE 4\n"
+                + "LSTORE 6\nASTORE 8\nASTORE 9\nALOAD 9\nALOAD 8\nLLOAD 6\n"
                 + "INVOKESTATIC java/lang/System.nanoTime ()J\n"
-                + "LSTORE 12\nLLOAD 10\nLLOAD 12\nLLOAD 8\nLSUB\n"
-                + "ALOAD 6\nLLOAD 4\n"
+                + "LSTORE 10\n"
+                + "LSTORE 12\nLLOAD 10\n"
+                + "LLOAD 4\n"
+                + "LSUB\nLSTORE 14\nGETSTATIC traces/onmethod/MethodCallDuration.$btrace$disabled$args_4JJLjava_6lang_6String_2J_5V : Z\nIFNE L1\n"
+                + "GETSTATIC traces/onmethod/MethodCallDuration.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L1\nLLOAD 12\n"
+                + "LLOAD 14\nALOAD 8\nLLOAD 6\n"
                 + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$MethodCallDuration$args (JJLjava/lang/String;J)V\n"
-                + "LLOAD 10\nMAXSTACK = 7\nMAXLOCALS = 14\n");
+                + "L1\nLLOAD 12\nL2\nLOCALVARIABLE this Lresources/OnMethodTest; L0 L2 0\nLOCALVARIABLE a Ljava/lang/String; L0 L2 1\n"
+                + "LOCALVARIABLE b J L0 L2 2\n"
+                + "MAXSTACK = 7\n");
     }
 
     @Test
@@ -601,18 +1033,22 @@ public class InstrumentorTest extends InstrumentorTestBase {
         originalBC = loadTargetClass("OnMethodTest");
         transform("onmethod/MethodCallDurationSampled");
 
-        checkTransformation("LSTORE 4\nASTORE 6\nASTORE 7\n"
-                + "LDC 0\nLSTORE 8\nLDC 20\nLDC 1\n"
+        checkTransformation("LDC 0\nLSTORE 4\nLDC 20\nLDC 1\n"
                 + "INVOKESTATIC com/sun/btrace/util/SamplingSupport.sampleHit (II)Z\n"
-                + "DUP\nISTORE 10\nIFEQ L1\nINVOKESTATIC java/lang/System.nanoTime ()J\n"
-                + "LSTORE 8\nL1\nALOAD 7\nALOAD 6\nLLOAD 4\nLSTORE 11\n"
-                + "LDC 0\nLSTORE 13\nILOAD 10\nIFEQ L2\n"
-                + "INVOKESTATIC java/lang/System.nanoTime ()J\n"
-                + "LSTORE 13\nL2\nLLOAD 11\nILOAD 10\nIFEQ L3\n"
-                + "LLOAD 13\nLLOAD 8\nLSUB\nGOTO L4\nL3\nLDC 0\n"
-                + "L4\nALOAD 6\nLLOAD 4\n"
-                + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$MethodCallDurationSampled$args (JJLjava/lang/String;J)V\n"
-                + "LLOAD 11");
+                + "DUP\nISTORE 6\nIFEQ L1\nINVOKESTATIC java/lang/System.nanoTime ()J\nLSTORE 4\n"
+                + "L1\n"
+                + "LSTORE 7\nASTORE 9\nASTORE 10\nALOAD 10\nALOAD 9\nLLOAD 7\n"
+                + "LDC 0\nLSTORE 11\nILOAD 6\nIFEQ L2\n"
+                + "INVOKESTATIC java/lang/System.nanoTime ()J\nLSTORE 11\n"
+                + "L2\nLSTORE 13\nILOAD 6\nIFEQ L3\nLLOAD 11\nLLOAD 4\n"
+                + "LSUB\nGOTO L4\nL3\nLDC 0\n"
+                + "L4\n"
+                + "LSTORE 15\nGETSTATIC traces/onmethod/MethodCallDurationSampled.$btrace$disabled$args_4JJLjava_6lang_6String_2J_5V : Z\nIFNE L5\n"
+                + "GETSTATIC traces/onmethod/MethodCallDurationSampled.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L5\nLLOAD 13\n"
+                + "LLOAD 15\nALOAD 9\nLLOAD 7\n"
+                + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$MethodCallDurationSampled$args (JJLjava/lang/String;J)V\nL5\n"
+                + "LLOAD 13");
     }
 
     @Test
@@ -620,32 +1056,45 @@ public class InstrumentorTest extends InstrumentorTestBase {
         originalBC = loadTargetClass("OnMethodTest");
         transform("onmethod/MethodCallDurationSampledMulti");
 
-        checkTransformation("LSTORE 4\nASTORE 6\nASTORE 7\n"
-                + "LDC 0\nLSTORE 8\nLDC 20\nLDC 1\n"
+        checkTransformation("LDC 0\nLSTORE 4\nLDC 20\nLDC 1\n"
                 + "INVOKESTATIC com/sun/btrace/util/SamplingSupport.sampleHit (II)Z\n"
-                + "DUP\nISTORE 10\nIFEQ L1\nINVOKESTATIC java/lang/System.nanoTime ()J\n"
-                + "LSTORE 8\nL1\nALOAD 7\nALOAD 6\nLLOAD 4\nLSTORE 11\n"
-                + "LDC 0\nLSTORE 13\nILOAD 10\nIFEQ L2\n"
-                + "INVOKESTATIC java/lang/System.nanoTime ()J\n"
-                + "LSTORE 13\nL2\nLLOAD 11\nILOAD 10\nIFEQ L3\n"
-                + "LLOAD 13\nLLOAD 8\nLSUB\nGOTO L4\nL3\nLDC 0\n"
-                + "L4\nALOAD 6\nLLOAD 4\n"
+                + "DUP\nISTORE 6\nIFEQ L1\nINVOKESTATIC java/lang/System.nanoTime ()J\nLSTORE 4\n"
+                + "L1\n"
+                + "LSTORE 7\nASTORE 9\nASTORE 10\nALOAD 10\nALOAD 9\nLLOAD 7\n"
+                + "LDC 0\nLSTORE 11\nILOAD 6\nIFEQ L2\n"
+                + "INVOKESTATIC java/lang/System.nanoTime ()J\nLSTORE 11\n"
+                + "L2\nLSTORE 13\nILOAD 6\nIFEQ L3\nLLOAD 11\nLLOAD 4\n"
+                + "LSUB\nGOTO L4\nL3\nLDC 0\n"
+                + "L4\n"
+                + "LSTORE 15\n"
+                + "GETSTATIC traces/onmethod/MethodCallDurationSampledMulti.$btrace$disabled$args_4JJLjava_6lang_6String_2J_5V : Z\nIFNE L5\n"
+                + "GETSTATIC traces/onmethod/MethodCallDurationSampledMulti.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L5\nLLOAD 13\n"
+                + "LLOAD 15\nALOAD 9\nLLOAD 7\n"
                 + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$MethodCallDurationSampledMulti$args (JJLjava/lang/String;J)V\n"
-                + "LLOAD 11\nLSTORE 15\nASTORE 17\nLDC 0\nLSTORE 18\n"
+                + "L5\nLLOAD 13\n"
+                + "LDC 0\nLSTORE 17\n"
                 + "LDC 20\nLDC 2\nINVOKESTATIC com/sun/btrace/util/SamplingSupport.sampleHit (II)Z\n"
-                + "DUP\nISTORE 20\nIFEQ L5\nINVOKESTATIC java/lang/System.nanoTime ()J\n"
-                + "LSTORE 18\nL5\nALOAD 17\nLLOAD 15\nLSTORE 21\nLDC 0\n"
-                + "LSTORE 23\nILOAD 20\nIFEQ L6\nINVOKESTATIC java/lang/System.nanoTime ()J\n"
-                + "LSTORE 23\nL6\nLLOAD 21\nILOAD 20\nIFEQ L7\nLLOAD 23\n"
-                + "LLOAD 18\nLSUB\nGOTO L8\nL7\nLDC 0\nL8\nALOAD 17\nLLOAD 15\n"
+                + "DUP\nISTORE 19\nIFEQ L6\nINVOKESTATIC java/lang/System.nanoTime ()J\n"
+                + "LSTORE 17\nL6\nLSTORE 20\nASTORE 22\nALOAD 22\nLLOAD 20\n"
+                + "LDC 0\n"
+                + "LSTORE 23\nILOAD 19\nIFEQ L7\nINVOKESTATIC java/lang/System.nanoTime ()J\n"
+                + "LSTORE 23\n"
+                + "L7\nLSTORE 25\nILOAD 19\nIFEQ L8\n"
+                + "LLOAD 23\nLLOAD 17\n"
+                + "LSUB\nGOTO L9\nL8\nLDC 0\n"
+                + "L9\n"
+                + "LSTORE 27\nGETSTATIC traces/onmethod/MethodCallDurationSampledMulti.$btrace$disabled$args_4JJLjava_6lang_6String_2J_5V : Z\nIFNE L10\n"
+                + "GETSTATIC traces/onmethod/MethodCallDurationSampledMulti.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L10\n"
+                + "LLOAD 25\n"
+                + "LLOAD 27\nALOAD 22\nLLOAD 20\n"
                 + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$MethodCallDurationSampledMulti$args (JJLjava/lang/String;J)V\n"
-                + "LLOAD 21\nLSTORE 25\nL9\nLINENUMBER 115 L9\nLLOAD 25\nL10\n"
-                + "LOCALVARIABLE this Lresources/OnMethodTest; L0 L10 0\n"
-                + "LOCALVARIABLE a Ljava/lang/String; L0 L10 1\n"
-                + "LOCALVARIABLE b J L0 L10 2\n"
-                + "LOCALVARIABLE i J L9 L10 25\n"
+                + "L10\n"
+                + "LLOAD 25\nLSTORE 29\nL11\nLINENUMBER 115 L11\nLLOAD 29\nL12\nLOCALVARIABLE this Lresources/OnMethodTest; L0 L12 0\n"
+                + "LOCALVARIABLE a Ljava/lang/String; L0 L12 1\nLOCALVARIABLE b J L0 L12 2\nLOCALVARIABLE i J L11 L12 29\n"
                 + "MAXSTACK = 9\n"
-                +"MAXLOCALS = 27");
+                +"MAXLOCALS = 31");
     }
 
     // multiple instrumentation of a call site is not handled well
@@ -670,11 +1119,15 @@ public class InstrumentorTest extends InstrumentorTestBase {
         originalBC = loadTargetClass("OnMethodTest");
         transform("onmethod/MethodCallStatic");
 
-        checkTransformation("LSTORE 4\nASTORE 6\nALOAD 0\nALOAD 6\nLLOAD 4\n"
+        checkTransformation("LSTORE 4\nASTORE 6\n"
+                + "GETSTATIC traces/onmethod/MethodCallStatic.$btrace$disabled$args_4Ljava_6lang_6Object_2Ljava_6lang_6String_2JLjava_6lang_6String_2Ljava_6lang_6String_2Ljava_6lang_6String_2_5V : Z\nIFNE L1\n"
+                + "GETSTATIC traces/onmethod/MethodCallStatic.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L1\n"
+                + "ALOAD 0\nALOAD 6\nLLOAD 4\n"
                 + "LDC \"resources/OnMethodTest.callTargetStatic(Ljava/lang/String;J)J\"\nLDC \"resources/OnMethodTest\"\n"
                 + "LDC \"callTopLevel\"\n"
                 + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$MethodCallStatic$args (Ljava/lang/Object;Ljava/lang/String;JLjava/lang/String;Ljava/lang/String;Ljava/lang/String;)V\n"
-                + "ALOAD 6\nLLOAD 4");
+                + "L1\nALOAD 6\nLLOAD 4");
     }
 
     @Test
@@ -682,10 +1135,14 @@ public class InstrumentorTest extends InstrumentorTestBase {
         originalBC = loadTargetClass("OnMethodTest");
         transform("onmethod/StaticMethodCall");
 
-        checkTransformation("LSTORE 4\nASTORE 6\nASTORE 7\nALOAD 6\nLLOAD 4\nALOAD 7\n"
+        checkTransformation("LSTORE 4\nASTORE 6\nASTORE 7\n"
+                + "GETSTATIC traces/onmethod/StaticMethodCall.$btrace$disabled$args_4Ljava_6lang_6String_2JLjava_6lang_6Object_2Ljava_6lang_6String_2Ljava_6lang_6String_2Ljava_6lang_6String_2_5V : Z\nIFNE L2\n"
+                + "GETSTATIC traces/onmethod/StaticMethodCall.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L2\n"
+                + "ALOAD 6\nLLOAD 4\nALOAD 7\n"
                 + "LDC \"resources/OnMethodTest.callTarget(Ljava/lang/String;J)J\"\nLDC \"resources/OnMethodTest\"\n"
                 + "LDC \"callTopLevelStatic\"\n"
-                + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$StaticMethodCall$args (Ljava/lang/String;JLjava/lang/Object;Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;)V\n"
+                + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$StaticMethodCall$args (Ljava/lang/String;JLjava/lang/Object;Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;)V\nL2\n"
                 + "ALOAD 7\nALOAD 6\nLLOAD 4");
     }
 
@@ -694,10 +1151,14 @@ public class InstrumentorTest extends InstrumentorTestBase {
         originalBC = loadTargetClass("OnMethodTest");
         transform("onmethod/StaticMethodCallStatic");
 
-        checkTransformation("LSTORE 4\nASTORE 6\nALOAD 6\nLLOAD 4\n"
+        checkTransformation("LSTORE 4\nASTORE 6\n"
+                + "GETSTATIC traces/onmethod/StaticMethodCallStatic.$btrace$disabled$args_4Ljava_6lang_6String_2JLjava_6lang_6String_2Ljava_6lang_6String_2Ljava_6lang_6String_2_5V : Z\nIFNE L2\n"
+                + "GETSTATIC traces/onmethod/StaticMethodCallStatic.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L2\n"
+                + "ALOAD 6\nLLOAD 4\n"
                 + "LDC \"resources/OnMethodTest.callTargetStatic(Ljava/lang/String;J)J\"\nLDC \"resources/OnMethodTest\"\n"
                 + "LDC \"callTopLevelStatic\"\n"
-                + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$StaticMethodCallStatic$args (Ljava/lang/String;JLjava/lang/String;Ljava/lang/String;Ljava/lang/String;)V\n"
+                + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$StaticMethodCallStatic$args (Ljava/lang/String;JLjava/lang/String;Ljava/lang/String;Ljava/lang/String;)V\nL2\n"
                 + "ALOAD 6\nLLOAD 4");
     }
 
@@ -706,7 +1167,13 @@ public class InstrumentorTest extends InstrumentorTestBase {
         originalBC = loadTargetClass("OnMethodTest");
         transform("onmethod/NoArgsEntryReturn");
 
-        checkTransformation("ALOAD 0\nINVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$NoArgsEntryReturn$argsEmptyEntry (Ljava/lang/Object;)V\n"
+        checkTransformation("GETSTATIC traces/onmethod/NoArgsEntryReturn.$btrace$disabled$argsEmptyEntry_4Ljava_6lang_6Object_2_5V : Z\nIFNE L0\n"
+                + "GETSTATIC traces/onmethod/NoArgsEntryReturn.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L0\n"
+                + "ALOAD 0\nINVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$NoArgsEntryReturn$argsEmptyEntry (Ljava/lang/Object;)V\n"
+                + "GETSTATIC traces/onmethod/NoArgsEntryReturn.$btrace$disabled$argsEmptyReturn_4Ljava_6lang_6Object_2_5V : Z\nIFNE L1\n"
+                + "GETSTATIC traces/onmethod/NoArgsEntryReturn.runtime : Lcom/sun/btrace/BTraceRuntime;\n"
+                + "INVOKESTATIC com/sun/btrace/BTraceRuntime.isActive (Lcom/sun/btrace/BTraceRuntime;)Z\nIFEQ L1\n"
                 + "ALOAD 0\nINVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$NoArgsEntryReturn$argsEmptyReturn (Ljava/lang/Object;)V");
     }
 }
\ No newline at end of file
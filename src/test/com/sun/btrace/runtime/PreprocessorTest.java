@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2014, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.btrace.runtime;
+
+import com.sun.btrace.org.objectweb.asm.ClassReader;
+import com.sun.btrace.org.objectweb.asm.ClassVisitor;
+import com.sun.btrace.org.objectweb.asm.ClassWriter;
+import com.sun.btrace.org.objectweb.asm.MethodVisitor;
+import com.sun.btrace.org.objectweb.asm.Opcodes;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jaroslav Bachorik
+ */
+public class PreprocessorTest {
+    @Test
+    public void probeStatsDisabled() throws IOException {
+        List<String> calls = handlerCalls(false);
+        assertFalse(calls.contains(Preprocessor.BTRACE_RUNTIME_PROBE_HIT));
+        assertFalse(calls.contains(Preprocessor.BTRACE_RUNTIME_PROBE_EXIT));
+        // the disabled probe returns first
+        assertEquals(Arrays.asList("return", "enter", "return"), calls.subList(0, 3));
+    }
+
+    @Test
+    public void probeStatsEnabled() throws IOException {
+        List<String> calls = handlerCalls(true);
+        // a sampled down handler returns right after counting; the counted
+        // invocation is finished when the handler is re-entered
+        assertEquals(Arrays.asList("return", "probeHit", "return", "enter", "probeExit", "return"),
+                     calls.subList(0, 6));
+        // ... and on the regular and the exceptional exit
+        assertEquals(Arrays.asList("probeExit", "leave", "return"),
+                     calls.subList(calls.indexOf("leave") - 1, calls.indexOf("leave") + 2));
+        assertEquals(Arrays.asList("probeExit", "handleException", "return"),
+                     calls.subList(calls.size() - 3, calls.size()));
+    }
+
+    /**
+     * @return The names of the methods called and the returns in the
+     *         preprocessed {@code ArgsInlined.args} handler
+     */
+    private static List<String> handlerCalls(boolean probeStats) throws IOException {
+        byte[] code = loadFile("traces/onmethod/ArgsInlined.class");
+        ClassWriter writer = InstrumentUtils.newClassWriter();
+        InstrumentUtils.accept(new ClassReader(code), new Preprocessor(writer, probeStats));
+
+        final List<String> calls = new ArrayList<String>();
+        new ClassReader(writer.toByteArray()).accept(new ClassVisitor(Opcodes.ASM4) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+                if (!name.equals("args")) {
+                    return null;
+                }
+                return new MethodVisitor(Opcodes.ASM4) {
+                    @Override
+                    public void visitMethodInsn(int opcode, String owner, String name, String desc) {
+                        calls.add(name);
+                    }
+
+                    @Override
+                    public void visitInsn(int opcode) {
+                        if (opcode == Opcodes.RETURN) {
+                            calls.add("return");
+                        }
+                    }
+                };
+            }
+        }, 0);
+        return calls;
+    }
+
+    private static byte[] loadFile(String path) throws IOException {
+        InputStream is = ClassLoader.getSystemResourceAsStream(path);
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] buf = new byte[1024];
+            int read;
+            while ((read = is.read(buf)) != -1) {
+                bos.write(buf, 0, read);
+            }
+            return bos.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+}
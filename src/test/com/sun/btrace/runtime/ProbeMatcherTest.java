@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2014, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.btrace.runtime;
+
+import com.sun.btrace.annotations.Kind;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jaroslav Bachorik
+ */
+public class ProbeMatcherTest {
+    private static OnMethod onMethod(String clazz, String method) {
+        OnMethod om = new OnMethod();
+        om.setClazz(clazz);
+        om.setMethod(method);
+        om.setTargetName("handler");
+        return om;
+    }
+
+    @Test
+    public void testLiteralPrefix() {
+        assertEquals("java.util.", ProbeMatcher.literalPrefix("java\\.util\\..*"));
+        assertEquals("javax.swing.", ProbeMatcher.literalPrefix("javax\\.swing\\.(JButton|JLabel)"));
+        assertEquals("java.la", ProbeMatcher.literalPrefix("java\\.lan?g\\..*"));
+        assertEquals("", ProbeMatcher.literalPrefix(".*\\.OnMethodTest"));
+        assertEquals("", ProbeMatcher.literalPrefix("java\\.util\\..*|javax\\..*"));
+        assertEquals("abc", ProbeMatcher.literalPrefix("abc"));
+        assertEquals("a", ProbeMatcher.literalPrefix("a\\w+"));
+        assertEquals("", ProbeMatcher.literalPrefix("(?i)abc"));
+    }
+
+    @Test
+    public void testClassMatch() {
+        List<OnMethod> oms = new ArrayList<OnMethod>();
+        oms.add(onMethod("java.lang.String", "length"));
+        oms.add(onMethod("/java\\.util\\..*Map/", "put"));
+        oms.add(onMethod("/.*\\.OnMethodTest/", "args"));
+        oms.add(onMethod("+java.lang.Runnable", "run"));
+        oms.add(onMethod("@/.*Ann/", "run"));
+        oms.add(onMethod("/[invalid/", "run"));
+        ProbeMatcher pm = new ProbeMatcher(oms);
+
+        assertTrue(pm.hasClassMatch("java.lang.String"));
+        assertTrue(pm.hasClassMatch("java.util.HashMap"));
+        assertTrue(pm.hasClassMatch("resources.OnMethodTest"));
+        assertFalse(pm.hasClassMatch("java.util.HashSet"));
+        assertFalse(pm.hasClassMatch("java.lang.Thread"));
+        assertTrue(pm.hasClassAnnotationMatch("my.MyAnn"));
+        assertFalse(pm.hasClassAnnotationMatch("my.MyAnnotation"));
+
+        List<OnMethod> matched = pm.matchClass(null, "java/util/HashMap", "java/lang/Object", new String[]{"java/lang/Runnable"});
+        assertEquals(2, matched.size());
+        assertSame(oms.get(1), matched.get(0));
+        assertSame(oms.get(3), matched.get(1));
+    }
+
+    @Test
+    public void testMethodMatch() {
+        OnMethod exact = onMethod("a.B", "run");
+        OnMethod regex = onMethod("a.B", "/get.*/");
+        OnMethod anno = onMethod("a.B", "@a.Ann");
+        OnMethod defaulted = onMethod("a.B", "");
+        List<OnMethod> oms = new ArrayList<OnMethod>();
+        oms.add(exact);
+        oms.add(regex);
+        oms.add(anno);
+        oms.add(defaulted);
+        ProbeMatcher pm = new ProbeMatcher(oms);
+
+        assertTrue(pm.matchesMethod(exact, "run"));
+        assertFalse(pm.matchesMethod(exact, "runner"));
+        assertTrue(pm.matchesMethod(regex, "getName"));
+        assertFalse(pm.matchesMethod(regex, "setName"));
+        assertTrue(pm.matchesMethod(defaulted, "handler"));
+        assertFalse(pm.matchesMethod(anno, "run"));
+        assertTrue(pm.matchesMethodAnnotation(anno, "a.Ann"));
+        assertFalse(pm.matchesMethodAnnotation(anno, "a.Ann2"));
+        assertFalse(pm.matchesMethodAnnotation(exact, "a.Ann"));
+
+        assertTrue(pm.matches("/java\\.io\\..*/", "java.io.File"));
+        assertTrue(pm.matches("java.io.File", "java.io.File"));
+        assertFalse(pm.matches("/[invalid/", "java.io.File"));
+    }
+
+    @Test
+    public void testMethodIndex() {
+        OnMethod regex = onMethod("a.B", "/get.*/");
+        OnMethod exact = onMethod("a.B", "getName");
+        OnMethod typed = onMethod("a.B", "getName");
+        typed.setType("void (int)");
+        OnMethod anno = onMethod("a.B", "@a.Ann");
+        OnMethod line = onMethod("a.B", "other");
+        Location loc = new Location();
+        loc.setValue(Kind.LINE);
+        line.setLocation(loc);
+        List<OnMethod> oms = new ArrayList<OnMethod>();
+        oms.add(regex);
+        oms.add(exact);
+        oms.add(typed);
+        oms.add(anno);
+        oms.add(line);
+        ProbeMatcher pm = new ProbeMatcher(oms);
+        ProbeMatcher.MethodIndex mi = pm.indexMethods(oms);
+
+        assertEquals(Arrays.asList(regex, exact, line), mi.match("getName", "()V"));
+        assertEquals(Arrays.asList(regex, exact, typed, line), mi.match("getName", "(I)V"));
+        assertEquals(Arrays.asList(regex, line), mi.match("getValue", "()V"));
+        assertEquals(Arrays.asList(line), mi.match("run", "()V"));
+        assertEquals(Arrays.asList(anno), mi.matchAnnotation("a.Ann"));
+        assertTrue(mi.matchAnnotation("a.Other").isEmpty());
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2014, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.sun.btrace.util;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jaroslav Bachorik
+ */
+public class SamplingSupportTest {
+    // simulated invocations 'step' nanoseconds apart
+    private static int sampleFor(long budget, int methodId, int calls, long step) {
+        int hits = 0;
+        long now = 1000000000L;
+        for (int i = 0; i < calls; i++) {
+            if (SamplingSupport.sampleHitAdaptive(budget, methodId, now)) {
+                hits++;
+            }
+            now += step;
+        }
+        return hits;
+    }
+
+    @Test
+    public void testAdaptiveRateIncreases() {
+        int id = MethodID.getMethodId("SamplingSupportTest#low");
+        assertEquals(1, SamplingSupport.getEffectiveRate(id));
+        // 1ns per second can not be satisfied by anything but the maximum rate
+        sampleFor(1, id, 300000, 1000);
+        assertTrue(SamplingSupport.getEffectiveRate(id) > 1000);
+    }
+
+    @Test
+    public void testAdaptiveRateWithinBudget() {
+        int id = MethodID.getMethodId("SamplingSupportTest#high");
+        // 1000 calls per second fit easily into the default budget
+        int hits = sampleFor(0, id, 250, 1000000);
+        assertEquals(1, SamplingSupport.getEffectiveRate(id));
+        assertEquals(250, hits);
+    }
+
+    @Test
+    public void testAdaptiveRateAccountsHitCost() {
+        int cheap = MethodID.getMethodId("SamplingSupportTest#cheap");
+        int costly = MethodID.getMethodId("SamplingSupportTest#costly");
+        long now = 1000000000L;
+        for (int i = 0; i < 300000; i++) {
+            SamplingSupport.sampleHitAdaptive(0, cheap, now);
+            if (SamplingSupport.sampleHitAdaptive(0, costly, now)) {
+                // pretend each invoked handler took 1ms
+                SamplingSupport.recordHitCost(1000000L, costly);
+            }
+            now += 1000;
+        }
+        int cheapRate = SamplingSupport.getEffectiveRate(cheap);
+        int costlyRate = SamplingSupport.getEffectiveRate(costly);
+        assertTrue("cheap: " + cheapRate + ", costly: " + costlyRate, costlyRate > cheapRate * 10);
+    }
+
+    @Test
+    public void testRatePerThread() throws Exception {
+        final int id = MethodID.getMethodId("SamplingSupportTest#thread");
+        sampleFor(1, id, 300000, 1000);
+        assertTrue(SamplingSupport.getEffectiveRate(id) > 1);
+
+        final int[] rate = new int[1];
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                rate[0] = SamplingSupport.getEffectiveRate(id);
+            }
+        });
+        t.start();
+        t.join();
+        assertEquals(1, rate[0]);
+    }
+
+    @Test
+    public void testTimedHitsLimited() {
+        int id = MethodID.getMethodId("SamplingSupportTest#timed");
+        int hits = 0;
+        // 100 calls at each of 1000ms, 1100ms and 1200ms
+        for (long now = 1000; now <= 1200; now += 100) {
+            for (int i = 0; i < 100; i++) {
+                if (SamplingSupport.sampleHitTimed(10, id, now)) {
+                    hits++;
+                }
+            }
+        }
+        // the initial burst of 10 plus 1 token refilled every 100ms
+        assertEquals(12, hits);
+        assertEquals(25, SamplingSupport.getTimedRate(id));
+    }
+
+    @Test
+    public void testClockStopped() throws Exception {
+        int id = MethodID.getMethodId("SamplingSupportTest#clock");
+        SamplingSupport.sampleHitTimed(10, id);
+        Thread clock = findThread("BTrace Coarse Clock");
+        assertNotNull(clock);
+
+        SamplingSupport.stop();
+        clock.join(5000);
+        assertFalse(clock.isAlive());
+
+        // restarted on demand
+        SamplingSupport.sampleHitTimed(10, id);
+        assertNotNull(findThread("BTrace Coarse Clock"));
+        SamplingSupport.stop();
+    }
+
+    private static Thread findThread(String name) {
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (name.equals(t.getName()) && t.isAlive()) {
+                return t;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void testSampleHitGrowsTable() {
+        // way beyond any method id allocated so far
+        int id = 10000;
+        int hits = 0;
+        for (int i = 0; i < 100; i++) {
+            if (SamplingSupport.sampleHit(1000000, id)) {
+                hits++;
+            }
+        }
+        // the countdown must survive the table growth
+        assertTrue("hits: " + hits, hits <= 2);
+        assertTrue(SamplingSupport.sampleHit(1, id + 5000));
+    }
+}
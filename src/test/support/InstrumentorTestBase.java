@@ -26,7 +26,9 @@
 package support;
 
 import com.sun.btrace.org.objectweb.asm.ClassReader;
+import com.sun.btrace.org.objectweb.asm.ClassVisitor;
 import com.sun.btrace.org.objectweb.asm.ClassWriter;
+import com.sun.btrace.org.objectweb.asm.Opcodes;
 import com.sun.btrace.runtime.InstrumentUtils;
 import com.sun.btrace.runtime.Instrumentor;
 import com.sun.btrace.runtime.OnMethod;
@@ -55,7 +57,7 @@ import sun.misc.Unsafe;
 abstract public class InstrumentorTestBase {
     protected static class Trace {
         final byte[] content;
-        final List<OnMethod> onMethods;
+        public final List<OnMethod> onMethods;
         public final String className;
 
         public Trace(byte[] content, List<OnMethod> onMethods, String className) {
@@ -78,6 +80,8 @@ abstract public class InstrumentorTestBase {
 
     protected byte[] originalBC;
     protected byte[] transformedBC;
+    // generate the method exit probes in a single shared block
+    protected boolean sharedExit;
 
     private ClassLoader cl;
 
@@ -110,6 +114,7 @@ abstract public class InstrumentorTestBase {
     protected void cleanup() {
         originalBC = null;
         transformedBC = null;
+        sharedExit = false;
     }
 
     protected void load() {
@@ -134,13 +139,44 @@ abstract public class InstrumentorTestBase {
     }
 
     protected void transform(String traceName) throws IOException {
-        Trace btrace = loadTrace(traceName);
+        transform(loadTrace(traceName));
+        System.err.println("==== " + traceName);
+    }
+
+    protected void transform(Trace btrace) throws IOException {
         ClassReader reader = new ClassReader(originalBC);
         ClassWriter writer = InstrumentUtils.newClassWriter();
 
-        InstrumentUtils.accept(reader, new Instrumentor(null,
+        Instrumentor instrumentor = new Instrumentor(null,
                     btrace.className, btrace.content,
-                    btrace.onMethods, writer));
+                    btrace.onMethods, writer);
+        instrumentor.setSharedExit(sharedExit);
+        InstrumentUtils.accept(reader, instrumentor);
+
+        transformedBC = writer.toByteArray();
+        load();
+    }
+
+    /**
+     * Transforms the target class the way the agent does - the trace is
+     * verified and preprocessed separately and the handlers up to the
+     * given size are inlined into the probe sites
+     */
+    protected void transform(String traceName, int inlineThreshold) throws IOException {
+        byte[] code = loadFile("traces/" + traceName + ".class");
+        Verifier verifier = new Verifier(new ClassVisitor(Opcodes.ASM4) {});
+        InstrumentUtils.accept(new ClassReader(code), verifier);
+        ClassWriter writer = InstrumentUtils.newClassWriter();
+        InstrumentUtils.accept(new ClassReader(code), new Preprocessor(writer));
+        byte[] btrace = writer.toByteArray();
+
+        ClassReader reader = new ClassReader(originalBC);
+        writer = InstrumentUtils.newClassWriter();
+        Instrumentor instrumentor = new Instrumentor(null,
+                    verifier.getClassName(), btrace,
+                    verifier.getOnMethods(), writer);
+        instrumentor.setInlineThreshold(inlineThreshold);
+        InstrumentUtils.accept(reader, instrumentor);
 
         transformedBC = writer.toByteArray();
         load();